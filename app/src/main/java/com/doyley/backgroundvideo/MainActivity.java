@@ -81,6 +81,11 @@ public class MainActivity extends ActionBarActivity {
 		public void notifyAspectRatioChange() {
 
 		}
+
+		@Override
+		public void onText(String text) {
+
+		}
 	};
 
 	@Override
@@ -17,6 +17,7 @@ import com.doyley.backgroundvideo.service.VideoService;
 import com.doyley.backgroundvideo.service.VideoServiceListener;
 import com.doyley.backgroundvideo.view.MediaController;
 import com.google.android.exoplayer.VideoSurfaceView;
+import com.google.android.exoplayer.text.SubtitleView;
 
 public class VideoPlayerActivity extends Activity {
 
@@ -31,6 +32,7 @@ public class VideoPlayerActivity extends Activity {
 	private boolean mSurfaceCreated;
 	private View mThrobberView;
 	private View mShutterView;
+	private SubtitleView mSubtitleView;
 
 	private VideoServiceListener mVideoServiceListener = new VideoServiceListener() {
 
@@ -92,6 +94,21 @@ public class VideoPlayerActivity extends Activity {
 				});
 			}
 		}
+
+		@Override
+		public void onText(final String text) {
+			runOnUiThread(new Runnable() {
+				@Override
+				public void run() {
+					if (text == null) {
+						mSubtitleView.setVisibility(View.INVISIBLE);
+					} else {
+						mSubtitleView.setText(text);
+						mSubtitleView.setVisibility(View.VISIBLE);
+					}
+				}
+			});
+		}
 	};
 
 	private ServiceConnection mVideoServiceConnection = new ServiceConnection() {
@@ -149,6 +166,7 @@ public class VideoPlayerActivity extends Activity {
 		mShutterView = findViewById(R.id.shutter);
 
 		mThrobberView = findViewById(R.id.throbber);
+		mSubtitleView = (SubtitleView) findViewById(R.id.subtitles);
 		mThrobberView.setVisibility(View.GONE);
 
 		mVideoSurfaceView.getHolder().addCallback(mSurfaceCallback);
@@ -0,0 +1,38 @@
+package com.doyley.backgroundvideo.audio;
+
+import com.google.android.exoplayer.audio.AudioTrack;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The device end of a {@link BufferedAudioSink} - an {@link AudioTrackOutput} on a device, anything that
+ * counts what it is given elsewhere. Written to from the sink's writer thread only; everything else is
+ * called from the playback thread, except that the played frame count is read from both.
+ */
+public interface AudioOutput {
+
+	/** opens the output in the given session, or a new one if sessionId is 0 - returns the session id */
+	public int open(int sampleRate, int channelCount, int sessionId) throws AudioTrack.InitializationException;
+
+	/** bytes that have to be written before the output starts playing */
+	public int getStartThreshold();
+
+	/**
+	 * writes up to size bytes from the position of data onwards without blocking, moving the position on -
+	 * returns the bytes written, 0 if the output is full, or a negative error code
+	 */
+	public int write(ByteBuffer data, int size);
+
+	/** frames played since the output was opened */
+	public long getPlayedFrames();
+
+	public void play();
+
+	public void pause();
+
+	public void setVolume(float volume);
+
+	/** drops what has not been played and closes the output */
+	public void release();
+
+}
@@ -0,0 +1,54 @@
+package com.doyley.backgroundvideo.audio;
+
+import android.media.MediaFormat;
+
+import com.google.android.exoplayer.audio.AudioTrack;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Where an audio renderer puts its decoded PCM, and where its clock comes from. The calls and their
+ * results are those of ExoPlayer's {@link AudioTrack}, which {@link DirectAudioSink} hands them to as they
+ * are. All calls come from the playback thread.
+ */
+public interface AudioSink {
+
+	public static final int RESULT_POSITION_DISCONTINUITY = AudioTrack.RESULT_POSITION_DISCONTINUITY;
+	public static final int RESULT_BUFFER_CONSUMED = AudioTrack.RESULT_BUFFER_CONSUMED;
+	public static final int SESSION_ID_NOT_SET = AudioTrack.SESSION_ID_NOT_SET;
+	public static final long CURRENT_POSITION_NOT_SET = AudioTrack.CURRENT_POSITION_NOT_SET;
+
+	public boolean isInitialized();
+
+	/** opens the output in the given session, or a new one if SESSION_ID_NOT_SET - returns the session id */
+	public int initialize(int sessionId) throws AudioTrack.InitializationException;
+
+	public void reconfigure(MediaFormat format);
+
+	public void play();
+
+	public void pause();
+
+	/** drops everything queued and closes the output - initialize opens it again */
+	public void reset();
+
+	/** the next buffer starts the timeline afresh from its timestamp */
+	public void handleDiscontinuity();
+
+	/**
+	 * queues size bytes at offset - returns RESULT_BUFFER_CONSUMED in the result once all of them have been
+	 * taken, which can take several calls with the same buffer
+	 */
+	public int handleBuffer(ByteBuffer buffer, int offset, int size, long presentationTimeUs)
+			throws AudioTrack.WriteException;
+
+	public boolean hasPendingData();
+
+	public boolean hasEnoughDataToBeginPlayback();
+
+	public void setVolume(float volume);
+
+	/** where playback is on the timeline of the buffers' timestamps, or CURRENT_POSITION_NOT_SET */
+	public long getCurrentPositionUs(boolean sourceEnded);
+
+}
@@ -0,0 +1,105 @@
+package com.doyley.backgroundvideo.audio;
+
+import android.media.AudioFormat;
+import android.media.AudioManager;
+
+import com.google.android.exoplayer.audio.AudioTrack;
+
+import java.nio.ByteBuffer;
+
+/** An {@link AudioOutput} on a framework AudioTrack in streaming mode, sized the way ExoPlayer sizes its own. */
+public class AudioTrackOutput implements AudioOutput {
+
+	private static final int BUFFER_MULTIPLICATION_FACTOR = 4;
+	private static final long MIN_BUFFER_DURATION_US = 250000;
+	private static final long MAX_BUFFER_DURATION_US = 750000;
+
+	private android.media.AudioTrack mAudioTrack;
+	private int mMinBufferSize;
+	private float mVolume = 1f;
+
+	@Override
+	public int open(int sampleRate, int channelCount, int sessionId) throws AudioTrack.InitializationException {
+		int channelConfig;
+		switch (channelCount) {
+			case 1:
+				channelConfig = AudioFormat.CHANNEL_OUT_MONO;
+				break;
+			case 2:
+				channelConfig = AudioFormat.CHANNEL_OUT_STEREO;
+				break;
+			case 6:
+				channelConfig = AudioFormat.CHANNEL_OUT_5POINT1;
+				break;
+			case 8:
+				channelConfig = AudioFormat.CHANNEL_OUT_7POINT1;
+				break;
+			default:
+				throw new IllegalArgumentException("unsupported channel count " + channelCount);
+		}
+		int frameSize = 2 * channelCount;
+		mMinBufferSize = android.media.AudioTrack.getMinBufferSize(sampleRate, channelConfig,
+				AudioFormat.ENCODING_PCM_16BIT);
+		int minBufferSize = (int) (MIN_BUFFER_DURATION_US * sampleRate / 1000000) * frameSize;
+		int maxBufferSize = (int) (MAX_BUFFER_DURATION_US * sampleRate / 1000000) * frameSize;
+		int bufferSize = Math.max(minBufferSize,
+				Math.min(maxBufferSize, mMinBufferSize * BUFFER_MULTIPLICATION_FACTOR));
+
+		mAudioTrack = sessionId != 0
+				? new android.media.AudioTrack(AudioManager.STREAM_MUSIC, sampleRate, channelConfig,
+						AudioFormat.ENCODING_PCM_16BIT, bufferSize, android.media.AudioTrack.MODE_STREAM, sessionId)
+				: new android.media.AudioTrack(AudioManager.STREAM_MUSIC, sampleRate, channelConfig,
+						AudioFormat.ENCODING_PCM_16BIT, bufferSize, android.media.AudioTrack.MODE_STREAM);
+		int state = mAudioTrack.getState();
+		if (state != android.media.AudioTrack.STATE_INITIALIZED) {
+			mAudioTrack.release();
+			mAudioTrack = null;
+			throw new AudioTrack.InitializationException(state, sampleRate, channelConfig, bufferSize);
+		}
+		mAudioTrack.setVolume(mVolume);
+		return mAudioTrack.getAudioSessionId();
+	}
+
+	@Override
+	public int getStartThreshold() {
+		return mMinBufferSize;
+	}
+
+	@Override
+	public int write(ByteBuffer data, int size) {
+		return mAudioTrack.write(data, size, android.media.AudioTrack.WRITE_NON_BLOCKING);
+	}
+
+	@Override
+	public long getPlayedFrames() {
+		// an unsigned int, which takes a day of audio to wrap
+		return 0xFFFFFFFFL & mAudioTrack.getPlaybackHeadPosition();
+	}
+
+	@Override
+	public void play() {
+		mAudioTrack.play();
+	}
+
+	@Override
+	public void pause() {
+		mAudioTrack.pause();
+	}
+
+	@Override
+	public void setVolume(float volume) {
+		mVolume = volume;
+		if (mAudioTrack != null) {
+			mAudioTrack.setVolume(volume);
+		}
+	}
+
+	@Override
+	public void release() {
+		mAudioTrack.pause();
+		mAudioTrack.flush();
+		mAudioTrack.release();
+		mAudioTrack = null;
+	}
+
+}
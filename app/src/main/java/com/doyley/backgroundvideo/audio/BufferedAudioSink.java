@@ -0,0 +1,314 @@
+package com.doyley.backgroundvideo.audio;
+
+import android.media.MediaFormat;
+import android.os.Process;
+import android.util.Log;
+
+import com.doyley.backgroundvideo.qoe.LogHistogram;
+import com.google.android.exoplayer.audio.AudioTrack;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An {@link AudioSink} that decouples the playback thread from the audio output.
+ *
+ * Buffers handed to the sink are copied into a {@link PcmRingBuffer} of about half a second of audio, and
+ * a writer thread of its own, at audio priority, moves them on to the {@link AudioOutput} without blocking
+ * - so a hiccup on the playback thread is covered by what is in the ring rather than heard. The writer
+ * parks when the ring is empty or the output full; the playback thread wakes it when it adds something.
+ *
+ * The clock is the output's played frame count, sampled every 30ms and run on with the system clock in
+ * between, never past what has been written. Timestamps are checked against the bytes handed over the way
+ * ExoPlayer's AudioTrack does, so the renderer sees the same discontinuities it would there.
+ *
+ * The sink counts underruns - the output running dry while playing, counted once audio comes again so
+ * that the end of a stream does not count - and the latency from a block entering the ring to it being in
+ * the output. Those can be read from any thread.
+ */
+public class BufferedAudioSink implements AudioSink {
+
+	private static final int BLOCK_SIZE = 4096;
+	private static final long RING_DURATION_US = 500000;
+	private static final long WRITER_PARK_NS = 5000000;
+	private static final long DISCONTINUITY_THRESHOLD_US = 200000;
+	private static final long POSITION_SAMPLE_INTERVAL_US = 30000;
+
+	private final AudioOutput mOutput;
+
+	// playback thread
+	private int mSampleRate;
+	private int mChannelCount;
+	private int mFrameSize;
+	// volatile for the getters only
+	private volatile PcmRingBuffer mRing;
+	private Thread mWriter;
+	private long mStartUs = -1;
+	private boolean mNeedSync;
+	private long mSubmittedBytes;
+	private int mPendingOffset;
+	private int mPendingSize;
+	private long mSampledPlayedUs;
+	private long mSampledAtUs = -1;
+
+	private volatile boolean mPlaying;
+	private volatile boolean mStopRequested;
+	// written by the writer thread while it runs
+	private volatile long mWrittenBytes;
+	private volatile int mWriteErrorCode;
+	private volatile int mUnderrunCount;
+
+	private final LogHistogram mWriteLatencyUs = new LogHistogram();
+
+	public BufferedAudioSink(AudioOutput output) {
+		mOutput = output;
+	}
+
+	@Override
+	public boolean isInitialized() {
+		return mWriter != null;
+	}
+
+	@Override
+	public int initialize(int sessionId) throws AudioTrack.InitializationException {
+		int audioSessionId = mOutput.open(mSampleRate, mChannelCount, sessionId);
+		int blockCount = (int) ((RING_DURATION_US * mSampleRate / 1000000 * mFrameSize + BLOCK_SIZE - 1) / BLOCK_SIZE);
+		if (mRing == null || mRing.getBlockCount() != blockCount) {
+			mRing = new PcmRingBuffer(blockCount, BLOCK_SIZE);
+		}
+		mStopRequested = false;
+		mWriter = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+				writeLoop();
+			}
+		}, "BufferedAudioSink");
+		mWriter.start();
+		return audioSessionId;
+	}
+
+	@Override
+	public void reconfigure(MediaFormat format) {
+		configure(format.getInteger(MediaFormat.KEY_SAMPLE_RATE), format.getInteger(MediaFormat.KEY_CHANNEL_COUNT));
+	}
+
+	/** as reconfigure, for 16 bit PCM of the given rate and channels */
+	void configure(int sampleRate, int channelCount) {
+		if (isInitialized() && sampleRate == mSampleRate && channelCount == mChannelCount) {
+			return;
+		}
+		reset();
+		mSampleRate = sampleRate;
+		mChannelCount = channelCount;
+		mFrameSize = 2 * channelCount;
+	}
+
+	@Override
+	public void play() {
+		if (isInitialized()) {
+			mPlaying = true;
+			mSampledAtUs = -1;
+			mOutput.play();
+		}
+	}
+
+	@Override
+	public void pause() {
+		if (isInitialized()) {
+			mPlaying = false;
+			mSampledAtUs = -1;
+			mOutput.pause();
+		}
+	}
+
+	@Override
+	public void reset() {
+		if (!isInitialized()) {
+			return;
+		}
+		mStopRequested = true;
+		mPlaying = false;
+		LockSupport.unpark(mWriter);
+		boolean interrupted = false;
+		while (mWriter.isAlive()) {
+			try {
+				// the writer never blocks for longer than a park
+				mWriter.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		mWriter = null;
+		mOutput.release();
+		mRing.clear();
+		mStartUs = -1;
+		mNeedSync = false;
+		mSubmittedBytes = 0;
+		mPendingSize = 0;
+		mSampledAtUs = -1;
+		mWrittenBytes = 0;
+		mWriteErrorCode = 0;
+	}
+
+	@Override
+	public void handleDiscontinuity() {
+		if (mStartUs != -1) {
+			mNeedSync = true;
+		}
+	}
+
+	@Override
+	public int handleBuffer(ByteBuffer buffer, int offset, int size, long presentationTimeUs)
+			throws AudioTrack.WriteException {
+		int errorCode = mWriteErrorCode;
+		if (errorCode != 0) {
+			throw new AudioTrack.WriteException(errorCode);
+		}
+		if (size == 0) {
+			return RESULT_BUFFER_CONSUMED;
+		}
+		int result = 0;
+		if (mPendingSize == 0) {
+			mPendingOffset = offset;
+			mPendingSize = size;
+			long submittedUs = framesToUs(mSubmittedBytes / mFrameSize);
+			if (mStartUs == -1) {
+				mStartUs = Math.max(0, presentationTimeUs - submittedUs);
+			} else {
+				long expectedUs = mStartUs + submittedUs;
+				if (!mNeedSync && Math.abs(expectedUs - presentationTimeUs) > DISCONTINUITY_THRESHOLD_US) {
+					Log.e(this.getClass().getSimpleName(), "handleBuffer : discontinuity detected, expected "
+							+ expectedUs + " got " + presentationTimeUs);
+					mNeedSync = true;
+				}
+				if (mNeedSync) {
+					mStartUs += presentationTimeUs - expectedUs;
+					mNeedSync = false;
+					result |= RESULT_POSITION_DISCONTINUITY;
+				}
+			}
+		}
+		int copied = mRing.offer(buffer, mPendingOffset, mPendingSize);
+		if (copied > 0) {
+			LockSupport.unpark(mWriter);
+		}
+		mPendingOffset += copied;
+		mPendingSize -= copied;
+		mSubmittedBytes += copied;
+		if (mPendingSize == 0) {
+			result |= RESULT_BUFFER_CONSUMED;
+		}
+		return result;
+	}
+
+	@Override
+	public boolean hasPendingData() {
+		return isInitialized() && mSubmittedBytes / mFrameSize > mOutput.getPlayedFrames();
+	}
+
+	@Override
+	public boolean hasEnoughDataToBeginPlayback() {
+		return mSubmittedBytes >= mOutput.getStartThreshold();
+	}
+
+	@Override
+	public void setVolume(float volume) {
+		mOutput.setVolume(volume);
+	}
+
+	@Override
+	public long getCurrentPositionUs(boolean sourceEnded) {
+		if (!isInitialized() || mStartUs == -1) {
+			return CURRENT_POSITION_NOT_SET;
+		}
+		long nowUs = System.nanoTime() / 1000;
+		long playedUs;
+		if (mSampledAtUs == -1 || nowUs - mSampledAtUs >= POSITION_SAMPLE_INTERVAL_US) {
+			mSampledPlayedUs = framesToUs(mOutput.getPlayedFrames());
+			mSampledAtUs = nowUs;
+			playedUs = mSampledPlayedUs;
+		} else {
+			playedUs = mSampledPlayedUs + (mPlaying ? nowUs - mSampledAtUs : 0);
+		}
+		return mStartUs + Math.min(playedUs, framesToUs(mWrittenBytes / mFrameSize));
+	}
+
+	/** ring blocks in use, in per mille of the ring */
+	public int getFillPerMille() {
+		PcmRingBuffer ring = mRing;
+		return ring == null ? 0 : ring.size() * 1000 / ring.getBlockCount();
+	}
+
+	public int getUnderrunCount() {
+		return mUnderrunCount;
+	}
+
+	/** from a block entering the ring to the last of it being in the output */
+	public LogHistogram getWriteLatencyUs() {
+		LogHistogram copy = new LogHistogram();
+		synchronized (mWriteLatencyUs) {
+			copy.merge(mWriteLatencyUs);
+		}
+		return copy;
+	}
+
+	public String getDebugString() {
+		return "fill = " + getFillPerMille() / 10 + "%, underruns = " + mUnderrunCount + ", write latency us : "
+				+ getWriteLatencyUs();
+	}
+
+	private void writeLoop() {
+		PcmRingBuffer ring = mRing;
+		long writtenBytes = 0;
+		boolean starved = false;
+		while (!mStopRequested) {
+			if (mWriteErrorCode != 0) {
+				// the playback thread reports it and resets us
+				LockSupport.parkNanos(WRITER_PARK_NS);
+				continue;
+			}
+			ByteBuffer block = ring.peek();
+			if (block == null) {
+				if (mPlaying && !starved && writtenBytes > 0 && mOutput.getPlayedFrames() >= writtenBytes / mFrameSize) {
+					starved = true;
+				}
+				LockSupport.parkNanos(WRITER_PARK_NS);
+				continue;
+			}
+			int result = mOutput.write(block, block.remaining());
+			if (result < 0) {
+				Log.e(this.getClass().getSimpleName(), "writeLoop : write failed " + result);
+				mWriteErrorCode = result;
+				continue;
+			}
+			if (result == 0) {
+				// full - some of it has to be played first
+				LockSupport.parkNanos(WRITER_PARK_NS);
+				continue;
+			}
+			writtenBytes += result;
+			mWrittenBytes = writtenBytes;
+			if (starved) {
+				// the output ran dry and there was more to come - that was heard
+				mUnderrunCount++;
+				starved = false;
+			}
+			if (!block.hasRemaining()) {
+				long latencyUs = (System.nanoTime() - ring.getHeadEnqueueTimeNs()) / 1000;
+				ring.release();
+				synchronized (mWriteLatencyUs) {
+					mWriteLatencyUs.record(latencyUs);
+				}
+			}
+		}
+	}
+
+	private long framesToUs(long frames) {
+		return frames * 1000000L / mSampleRate;
+	}
+
+}
@@ -0,0 +1,75 @@
+package com.doyley.backgroundvideo.audio;
+
+import android.media.MediaFormat;
+
+import com.google.android.exoplayer.audio.AudioTrack;
+
+import java.nio.ByteBuffer;
+
+/** Writes to ExoPlayer's {@link AudioTrack} straight from the playback thread. */
+public class DirectAudioSink implements AudioSink {
+
+	private final AudioTrack mAudioTrack = new AudioTrack();
+
+	@Override
+	public boolean isInitialized() {
+		return mAudioTrack.isInitialized();
+	}
+
+	@Override
+	public int initialize(int sessionId) throws AudioTrack.InitializationException {
+		return sessionId != SESSION_ID_NOT_SET ? mAudioTrack.initialize(sessionId) : mAudioTrack.initialize();
+	}
+
+	@Override
+	public void reconfigure(MediaFormat format) {
+		mAudioTrack.reconfigure(format);
+	}
+
+	@Override
+	public void play() {
+		mAudioTrack.play();
+	}
+
+	@Override
+	public void pause() {
+		mAudioTrack.pause();
+	}
+
+	@Override
+	public void reset() {
+		mAudioTrack.reset();
+	}
+
+	@Override
+	public void handleDiscontinuity() {
+		mAudioTrack.handleDiscontinuity();
+	}
+
+	@Override
+	public int handleBuffer(ByteBuffer buffer, int offset, int size, long presentationTimeUs)
+			throws AudioTrack.WriteException {
+		return mAudioTrack.handleBuffer(buffer, offset, size, presentationTimeUs);
+	}
+
+	@Override
+	public boolean hasPendingData() {
+		return mAudioTrack.hasPendingData();
+	}
+
+	@Override
+	public boolean hasEnoughDataToBeginPlayback() {
+		return mAudioTrack.hasEnoughDataToBeginPlayback();
+	}
+
+	@Override
+	public void setVolume(float volume) {
+		mAudioTrack.setVolume(volume);
+	}
+
+	@Override
+	public long getCurrentPositionUs(boolean sourceEnded) {
+		return mAudioTrack.getCurrentPositionUs(sourceEnded);
+	}
+
+}
@@ -0,0 +1,217 @@
+package com.doyley.backgroundvideo.audio;
+
+import java.util.Arrays;
+
+/**
+ * Measures the integrated loudness of 16 bit PCM as it goes by, the way EBU R128 defines it.
+ *
+ * Each channel goes through the K-weighting filter - a high shelf and a high pass, with the coefficients
+ * worked out for the sample rate the way libebur128 does - and its mean square is taken over 400ms blocks
+ * that start every 100ms, so the window slides by a quarter of itself. A block's loudness is the weighted
+ * sum of its channels, the surround channels of 5.1 counting 1.41 and the LFE not at all.
+ *
+ * Blocks quieter than -70 LUFS are dropped and the rest counted into a histogram of 0.1 LU bins. The
+ * integrated loudness is then the mean of the blocks no more than 10 LU below the mean of them all - worked
+ * out from the histogram, so it can be had at any time without keeping the blocks. Nothing is allocated
+ * once configured. Not thread safe, apart from the getters for what was last measured.
+ */
+public final class LoudnessMeter {
+
+	public static final float ABSOLUTE_GATE_LUFS = -70f;
+	private static final float RELATIVE_GATE_LU = -10f;
+	private static final float MAX_LUFS = 30f;
+	private static final float BIN_WIDTH_LU = 0.1f;
+	private static final int BIN_COUNT = (int) ((MAX_LUFS - ABSOLUTE_GATE_LUFS) / BIN_WIDTH_LU);
+	private static final int HOP_MS = 100;
+	private static final int HOPS_PER_BLOCK = 4;
+	private static final double SURROUND_WEIGHT = 1.41;
+	private static final double SAMPLE_SCALE = 1.0 / 32768;
+
+	// mean square of the middle of each bin
+	private static final double[] sBinEnergies = new double[BIN_COUNT];
+
+	static {
+		for (int i = 0; i < BIN_COUNT; i++) {
+			sBinEnergies[i] = toEnergy(ABSOLUTE_GATE_LUFS + (i + 0.5f) * BIN_WIDTH_LU);
+		}
+	}
+
+	private final long[] mHistogram = new long[BIN_COUNT];
+	private volatile long mGatedBlockCount;
+	private double mGatedEnergy;
+
+	private int mSampleRate;
+	private int mChannels;
+	private double[] mChannelWeights;
+	// filter coefficients, a0 normalised to 1
+	private double mShelfB0, mShelfB1, mShelfB2, mShelfA1, mShelfA2;
+	private double mHighPassA1, mHighPassA2;
+	// filter state per channel, two per filter
+	private double[] mState;
+
+	private int mHopFrames;
+	private int mHopFramesDone;
+	// weighted energy of the hops making up the current block, as a ring
+	private final double[] mHopEnergies = new double[HOPS_PER_BLOCK];
+	private int mHopCount;
+
+	private volatile float mIntegratedLufs = Float.NaN;
+	private volatile float mMomentaryLufs = Float.NaN;
+
+	/** sets the meter up for a format - what was measured so far is kept */
+	public void configure(int sampleRate, int channels) {
+		if (sampleRate == mSampleRate && channels == mChannels) {
+			return;
+		}
+		mSampleRate = sampleRate;
+		mChannels = channels;
+		mChannelWeights = new double[channels];
+		for (int i = 0; i < channels; i++) {
+			mChannelWeights[i] = channels == 6 && i == 3 ? 0 : channels == 6 && i >= 4 ? SURROUND_WEIGHT : 1;
+		}
+		mState = new double[channels * 4];
+		mHopFrames = sampleRate * HOP_MS / 1000;
+
+		double k = Math.tan(Math.PI * 1681.974450955533 / sampleRate);
+		double q = 0.7071752369554196;
+		double vh = Math.pow(10, 3.999843853973347 / 20);
+		double vb = Math.pow(vh, 0.4996667741545416);
+		double a0 = 1 + k / q + k * k;
+		mShelfB0 = (vh + vb * k / q + k * k) / a0;
+		mShelfB1 = 2 * (k * k - vh) / a0;
+		mShelfB2 = (vh - vb * k / q + k * k) / a0;
+		mShelfA1 = 2 * (k * k - 1) / a0;
+		mShelfA2 = (1 - k / q + k * k) / a0;
+
+		k = Math.tan(Math.PI * 38.13547087602444 / sampleRate);
+		q = 0.5003270373238773;
+		a0 = 1 + k / q + k * k;
+		mHighPassA1 = 2 * (k * k - 1) / a0;
+		mHighPassA2 = (1 - k / q + k * k) / a0;
+		resetBlock();
+	}
+
+	/** measures frames of interleaved samples */
+	public void process(short[] samples, int offset, int frames) {
+		while (frames > 0) {
+			int count = Math.min(frames, mHopFrames - mHopFramesDone);
+			double energy = 0;
+			for (int c = 0; c < mChannels; c++) {
+				double weight = mChannelWeights[c];
+				if (weight != 0) {
+					energy += weight * filter(samples, offset + c, count, c);
+				}
+			}
+			mHopEnergies[mHopCount % HOPS_PER_BLOCK] += energy;
+			mHopFramesDone += count;
+			offset += count * mChannels;
+			frames -= count;
+			if (mHopFramesDone == mHopFrames) {
+				endHop();
+			}
+		}
+	}
+
+	/** forgets the filter state and the current block, for a jump in the input - what was measured is kept */
+	public void resetBlock() {
+		if (mState != null) {
+			Arrays.fill(mState, 0);
+		}
+		Arrays.fill(mHopEnergies, 0);
+		mHopCount = 0;
+		mHopFramesDone = 0;
+	}
+
+	/** integrated loudness in LUFS of everything measured so far, or NaN while no block is loud enough */
+	public float getIntegratedLoudness() {
+		return mIntegratedLufs;
+	}
+
+	/** loudness in LUFS of the last 400ms block, or NaN before the first */
+	public float getMomentaryLoudness() {
+		return mMomentaryLufs;
+	}
+
+	/** duration in ms of the blocks that got through the absolute gate */
+	public long getGatedDurationMs() {
+		// blocks overlap - each one adds a hop
+		return mGatedBlockCount * HOP_MS;
+	}
+
+	/** sum of the K-weighted squares of count frames of one channel, running its filters on */
+	private double filter(short[] samples, int index, int count, int channel) {
+		double[] state = mState;
+		int s = channel * 4;
+		double shelf1 = state[s], shelf2 = state[s + 1], highPass1 = state[s + 2], highPass2 = state[s + 3];
+		double b0 = mShelfB0, b1 = mShelfB1, b2 = mShelfB2, a1 = mShelfA1, a2 = mShelfA2;
+		double hpA1 = mHighPassA1, hpA2 = mHighPassA2;
+		int stride = mChannels;
+		double sum = 0;
+		for (int i = 0; i < count; i++, index += stride) {
+			// direct form II, one after the other
+			double in = samples[index] * SAMPLE_SCALE;
+			double w = in - a1 * shelf1 - a2 * shelf2;
+			double shelved = b0 * w + b1 * shelf1 + b2 * shelf2;
+			shelf2 = shelf1;
+			shelf1 = w;
+			w = shelved - hpA1 * highPass1 - hpA2 * highPass2;
+			double out = w - 2 * highPass1 + highPass2;
+			highPass2 = highPass1;
+			highPass1 = w;
+			sum += out * out;
+		}
+		state[s] = shelf1;
+		state[s + 1] = shelf2;
+		state[s + 2] = highPass1;
+		state[s + 3] = highPass2;
+		return sum;
+	}
+
+	private void endHop() {
+		mHopCount++;
+		mHopFramesDone = 0;
+		if (mHopCount >= HOPS_PER_BLOCK) {
+			double energy = 0;
+			for (int i = 0; i < HOPS_PER_BLOCK; i++) {
+				energy += mHopEnergies[i];
+			}
+			addBlock(energy / (HOPS_PER_BLOCK * mHopFrames));
+		}
+		// the oldest hop makes way for the next one
+		mHopEnergies[mHopCount % HOPS_PER_BLOCK] = 0;
+	}
+
+	private void addBlock(double energy) {
+		float lufs = toLufs(energy);
+		mMomentaryLufs = lufs;
+		if (!(lufs > ABSOLUTE_GATE_LUFS)) {
+			return;
+		}
+		int bin = Math.min(BIN_COUNT - 1, (int) ((lufs - ABSOLUTE_GATE_LUFS) / BIN_WIDTH_LU));
+		mHistogram[bin]++;
+		mGatedBlockCount++;
+		mGatedEnergy += energy;
+
+		float relativeGate = toLufs(mGatedEnergy / mGatedBlockCount) + RELATIVE_GATE_LU;
+		int firstBin = Math.max(0, (int) ((relativeGate - ABSOLUTE_GATE_LUFS) / BIN_WIDTH_LU));
+		double gatedEnergy = 0;
+		long gatedCount = 0;
+		for (int i = firstBin; i < BIN_COUNT; i++) {
+			long count = mHistogram[i];
+			if (count != 0) {
+				gatedEnergy += count * sBinEnergies[i];
+				gatedCount += count;
+			}
+		}
+		mIntegratedLufs = gatedCount == 0 ? Float.NaN : toLufs(gatedEnergy / gatedCount);
+	}
+
+	private static float toLufs(double energy) {
+		return (float) (-0.691 + 10 * Math.log10(energy));
+	}
+
+	private static double toEnergy(float lufs) {
+		return Math.pow(10, (lufs + 0.691) / 10);
+	}
+
+}
@@ -0,0 +1,117 @@
+package com.doyley.backgroundvideo.audio;
+
+import java.util.Locale;
+
+/**
+ * Brings 16 bit PCM to a common loudness, so one video is not much louder than the one before it.
+ *
+ * The input is measured by a {@link LoudnessMeter} on the way through, and the gain is what takes its
+ * integrated loudness to TARGET_LOUDNESS_LUFS, within MAX_GAIN_DB either way. The gain moves towards that
+ * with a time constant of a couple of seconds, so a changing estimate is not heard as pumping. A sample
+ * that would clip pulls the gain down at once, to just below clipping, and it comes back up as slowly.
+ *
+ * A loudness measured of the same media before, as kept by a
+ * {@link com.doyley.backgroundvideo.persist.LoudnessCache}, is used from the first sample until more than
+ * it was measured over has been measured again. Without one the gain stays at 0dB until a few seconds of
+ * audio have been through the gates.
+ *
+ * Samples are processed in place and nothing is allocated. Not thread safe, apart from the getters.
+ */
+public final class LoudnessNormalizer {
+
+	public static final float TARGET_LOUDNESS_LUFS = -16f;
+	private static final float MAX_GAIN_DB = 12f;
+	private static final long MIN_ESTIMATE_DURATION_MS = 3000;
+	private static final float GAIN_TIME_CONSTANT_S = 2f;
+	private static final float MAX_SAMPLE = Short.MAX_VALUE;
+
+	private final LoudnessMeter mMeter = new LoudnessMeter();
+	private final float mKnownLoudnessLufs;
+	private final long mKnownDurationMs;
+
+	private int mChannels;
+	private float mGainStep;
+	private float mGain = 1f;
+	private volatile float mTargetGainDb;
+
+	/** knownLoudnessLufs is NaN if the media has not been measured before */
+	public LoudnessNormalizer(float knownLoudnessLufs, long knownDurationMs) {
+		mKnownLoudnessLufs = knownLoudnessLufs;
+		mKnownDurationMs = Float.isNaN(knownLoudnessLufs) ? 0 : knownDurationMs;
+		if (!Float.isNaN(knownLoudnessLufs)) {
+			mTargetGainDb = toGainDb(knownLoudnessLufs);
+			mGain = dbToLinear(mTargetGainDb);
+		}
+	}
+
+	public void configure(int sampleRate, int channels) {
+		mMeter.configure(sampleRate, channels);
+		mChannels = channels;
+		// per frame, for an exponential approach with the time constant
+		mGainStep = (float) (1 - Math.exp(-1 / (GAIN_TIME_CONSTANT_S * sampleRate)));
+	}
+
+	/** measures and normalizes frames of interleaved samples in place */
+	public void process(short[] samples, int offset, int frames) {
+		mMeter.process(samples, offset, frames);
+		float loudness = getLoudness();
+		if (!Float.isNaN(loudness)) {
+			mTargetGainDb = toGainDb(loudness);
+		}
+		float targetGain = dbToLinear(mTargetGainDb);
+		float gain = mGain;
+		float step = mGainStep;
+		int channels = mChannels;
+		for (int i = offset, end = offset + frames * channels; i < end; i += channels) {
+			gain += (targetGain - gain) * step;
+			for (int c = i; c < i + channels; c++) {
+				float out = samples[c] * gain;
+				if (out > MAX_SAMPLE || out < -MAX_SAMPLE) {
+					// limit - this sample is clamped and the gain is set so the next one like it is not
+					gain = MAX_SAMPLE / Math.abs(samples[c]);
+					out = out > 0 ? MAX_SAMPLE : -MAX_SAMPLE;
+				}
+				samples[c] = (short) out;
+			}
+		}
+		mGain = gain;
+	}
+
+	/** for a jump in the input - the filters and the current block start again, the measurement is kept */
+	public void onDiscontinuity() {
+		mMeter.resetBlock();
+	}
+
+	/** best estimate of the loudness in LUFS the gain is set from, NaN if there is none yet */
+	public float getLoudness() {
+		long measuredMs = mMeter.getGatedDurationMs();
+		if (measuredMs > mKnownDurationMs && measuredMs >= MIN_ESTIMATE_DURATION_MS) {
+			return mMeter.getIntegratedLoudness();
+		}
+		return mKnownLoudnessLufs;
+	}
+
+	/** duration in ms of the audio that the estimate was measured over */
+	public long getLoudnessDurationMs() {
+		long measuredMs = mMeter.getGatedDurationMs();
+		return measuredMs > mKnownDurationMs && measuredMs >= MIN_ESTIMATE_DURATION_MS ? measuredMs : mKnownDurationMs;
+	}
+
+	public float getTargetGainDb() {
+		return mTargetGainDb;
+	}
+
+	public String getDebugString() {
+		return String.format(Locale.US, "loudness = %.1f LUFS over %ds, momentary = %.1f LUFS, gain = %.1f dB",
+				getLoudness(), getLoudnessDurationMs() / 1000, mMeter.getMomentaryLoudness(), mTargetGainDb);
+	}
+
+	private static float toGainDb(float loudnessLufs) {
+		return Math.max(-MAX_GAIN_DB, Math.min(MAX_GAIN_DB, TARGET_LOUDNESS_LUFS - loudnessLufs));
+	}
+
+	private static float dbToLinear(float db) {
+		return (float) Math.pow(10, db / 20);
+	}
+
+}
@@ -0,0 +1,101 @@
+package com.doyley.backgroundvideo.audio;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Ring of preallocated PCM blocks between exactly one producer thread and one consumer thread, without
+ * locks.
+ *
+ * The producer fills the block at the tail and publishes it by moving the tail on; the consumer drains the
+ * block at the head and hands it back by moving the head on. Each index is only ever written by its own
+ * side, and the volatile write of an index orders the block contents before it - so a block is owned by
+ * exactly one side at a time. A block is published as soon as a call to offer is done with it, full or
+ * not, so audio never waits in a half filled block.
+ */
+public final class PcmRingBuffer {
+
+	private final ByteBuffer[] mBlocks;
+	private final long[] mEnqueueTimesNs;
+	private final int mBlockSize;
+
+	// next block the consumer drains - written by the consumer only
+	private volatile long mHead;
+	// next block the producer fills - written by the producer only
+	private volatile long mTail;
+
+	public PcmRingBuffer(int blockCount, int blockSize) {
+		mBlocks = new ByteBuffer[blockCount];
+		mEnqueueTimesNs = new long[blockCount];
+		mBlockSize = blockSize;
+		for (int i = 0; i < blockCount; i++) {
+			mBlocks[i] = ByteBuffer.allocateDirect(blockSize).order(ByteOrder.nativeOrder());
+		}
+	}
+
+	public int getBlockCount() {
+		return mBlocks.length;
+	}
+
+	public int getBlockSize() {
+		return mBlockSize;
+	}
+
+	/** blocks published and not yet handed back - exact on either side, a snapshot anywhere else */
+	public int size() {
+		return (int) (mTail - mHead);
+	}
+
+	/**
+	 * producer side - copies up to size bytes at offset in source into free blocks and publishes them,
+	 * returns the bytes copied. The source's position and limit are left as they were.
+	 */
+	public int offer(ByteBuffer source, int offset, int size) {
+		int position = source.position();
+		int limit = source.limit();
+		int copied = 0;
+		long tail = mTail;
+		long head = mHead;
+		long nowNs = System.nanoTime();
+		while (copied < size && tail - head < mBlocks.length) {
+			int slot = (int) (tail % mBlocks.length);
+			ByteBuffer block = mBlocks[slot];
+			int length = Math.min(mBlockSize, size - copied);
+			block.clear();
+			source.limit(offset + copied + length);
+			source.position(offset + copied);
+			block.put(source);
+			block.flip();
+			mEnqueueTimesNs[slot] = nowNs;
+			copied += length;
+			tail++;
+			mTail = tail;
+		}
+		source.limit(limit);
+		source.position(position);
+		return copied;
+	}
+
+	/** consumer side - the block at the head, its position where draining it got to, or null if none */
+	public ByteBuffer peek() {
+		long head = mHead;
+		return head == mTail ? null : mBlocks[(int) (head % mBlocks.length)];
+	}
+
+	/** consumer side - when the block at the head was published */
+	public long getHeadEnqueueTimeNs() {
+		return mEnqueueTimesNs[(int) (mHead % mBlocks.length)];
+	}
+
+	/** consumer side - hands the block at the head back to the producer */
+	public void release() {
+		mHead = mHead + 1;
+	}
+
+	/** drops every block - only while neither side is running */
+	public void clear() {
+		mHead = 0;
+		mTail = 0;
+	}
+
+}
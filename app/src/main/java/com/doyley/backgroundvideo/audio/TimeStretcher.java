@@ -0,0 +1,293 @@
+package com.doyley.backgroundvideo.audio;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Changes the speed of 16 bit PCM without changing its pitch, the way Sonic does it.
+ *
+ * The pitch period at the current input position is found by the average magnitude difference of the
+ * signal against itself - on a copy downsampled to about 4kHz first, then refined at the full rate. To
+ * speed up, a pitch period is dropped and the periods either side of it are cross-faded together; to slow
+ * down, one is repeated and cross-faded with itself. Between two of those the input is copied straight
+ * through, in the amount that makes the output come out at input length / speed on average. Because whole
+ * pitch periods go in or out, speech keeps its pitch and does not sound warbled.
+ *
+ * Samples are interleaved, in short arrays. Buffers grow to fit the largest input seen and are reused, so
+ * nothing is allocated once the stream is running. Not thread safe.
+ */
+public final class TimeStretcher {
+
+	public static final float MIN_SPEED = 0.5f;
+	public static final float MAX_SPEED = 4f;
+
+	private static final int MIN_PITCH_HZ = 65;
+	private static final int MAX_PITCH_HZ = 400;
+	private static final int AMDF_RATE_HZ = 4000;
+
+	private final int mChannels;
+	private final int mMinPeriod;
+	private final int mMaxPeriod;
+	// input needed to find a period and cross-fade the two either side of it
+	private final int mMaxRequired;
+	private final int mSkip;
+	private final short[] mDownsampled;
+
+	private float mSpeed = 1f;
+	private short[] mInput;
+	private int mInputFrames;
+	private short[] mOutput;
+	private int mOutputFrames;
+	private int mRemainingInputToCopy;
+
+	public TimeStretcher(int sampleRate, int channels) {
+		mChannels = channels;
+		mMinPeriod = sampleRate / MAX_PITCH_HZ;
+		mMaxPeriod = sampleRate / MIN_PITCH_HZ;
+		mMaxRequired = 2 * mMaxPeriod;
+		mSkip = Math.max(1, sampleRate / AMDF_RATE_HZ);
+		mDownsampled = new short[mMaxRequired];
+		mInput = new short[mMaxRequired * channels * 2];
+		mOutput = new short[mMaxRequired * channels * 2];
+	}
+
+	/** speeds outside MIN_SPEED and MAX_SPEED are clamped - takes effect from the next input processed */
+	public void setSpeed(float speed) {
+		mSpeed = Math.max(MIN_SPEED, Math.min(MAX_SPEED, speed));
+	}
+
+	public float getSpeed() {
+		return mSpeed;
+	}
+
+	public int getChannels() {
+		return mChannels;
+	}
+
+	/** input frames queued but not turned into output yet */
+	public int getInputFramesPending() {
+		return mInputFrames;
+	}
+
+	/** output frames waiting to be read */
+	public int getOutputFramesAvailable() {
+		return mOutputFrames;
+	}
+
+	/** queues frames of interleaved samples and processes as much of the input as possible */
+	public void queueInput(short[] samples, int offset, int frames) {
+		ensureInputCapacity(frames);
+		System.arraycopy(samples, offset, mInput, mInputFrames * mChannels, frames * mChannels);
+		mInputFrames += frames;
+		process();
+	}
+
+	/** as above, for size bytes of PCM at offset in the buffer, read in the buffer's byte order */
+	public void queueInput(ByteBuffer pcm, int offset, int size) {
+		int frames = size / (2 * mChannels);
+		ensureInputCapacity(frames);
+		int sample = mInputFrames * mChannels;
+		for (int i = 0, end = frames * mChannels; i < end; i++) {
+			mInput[sample + i] = pcm.getShort(offset + 2 * i);
+		}
+		mInputFrames += frames;
+		process();
+	}
+
+	/** moves up to maxFrames of output into samples - returns the number of frames moved */
+	public int readOutput(short[] samples, int offset, int maxFrames) {
+		int frames = Math.min(maxFrames, mOutputFrames);
+		System.arraycopy(mOutput, 0, samples, offset, frames * mChannels);
+		removeOutput(frames);
+		return frames;
+	}
+
+	/** as above, as PCM in the target's byte order from its start - returns the number of bytes written */
+	public int readOutput(ByteBuffer target) {
+		int frames = Math.min(target.capacity() / (2 * mChannels), mOutputFrames);
+		for (int i = 0, end = frames * mChannels; i < end; i++) {
+			target.putShort(2 * i, mOutput[i]);
+		}
+		removeOutput(frames);
+		return frames * 2 * mChannels;
+	}
+
+	/** the input has ended - turns what is left of it into output, without looking for periods */
+	public void flush() {
+		int frames = Math.min(mInputFrames, (int) (mInputFrames / mSpeed + 0.5f));
+		ensureOutputCapacity(frames);
+		System.arraycopy(mInput, 0, mOutput, mOutputFrames * mChannels, frames * mChannels);
+		mOutputFrames += frames;
+		mInputFrames = 0;
+		mRemainingInputToCopy = 0;
+	}
+
+	/** drops all input and output - for seeks */
+	public void reset() {
+		mInputFrames = 0;
+		mOutputFrames = 0;
+		mRemainingInputToCopy = 0;
+	}
+
+	private void process() {
+		if (mInputFrames < mMaxRequired) {
+			return;
+		}
+		int position = 0;
+		if (mSpeed > 0.99999f && mSpeed < 1.00001f) {
+			// nothing to stretch - keep the window needed should the speed change
+			position = mInputFrames - mMaxRequired;
+			copyToOutput(0, position);
+		} else {
+			do {
+				if (mRemainingInputToCopy > 0) {
+					int frames = Math.min(mMaxRequired, mRemainingInputToCopy);
+					copyToOutput(position, frames);
+					mRemainingInputToCopy -= frames;
+					position += frames;
+				} else {
+					int period = findPitchPeriod(position);
+					position += mSpeed > 1f ? skipPitchPeriod(position, period) : insertPitchPeriod(position, period);
+				}
+			} while (position + mMaxRequired <= mInputFrames);
+		}
+		removeInput(position);
+	}
+
+	/** drops the period at position - returns the input frames used up */
+	private int skipPitchPeriod(int position, int period) {
+		int newFrames;
+		if (mSpeed >= 2f) {
+			newFrames = (int) (period / (mSpeed - 1f));
+		} else {
+			newFrames = period;
+			mRemainingInputToCopy = (int) (period * (2f - mSpeed) / (mSpeed - 1f));
+		}
+		ensureOutputCapacity(newFrames);
+		overlapAdd(newFrames, mOutputFrames, position, position + period);
+		mOutputFrames += newFrames;
+		return period + newFrames;
+	}
+
+	/** plays the period at position twice - returns the input frames used up */
+	private int insertPitchPeriod(int position, int period) {
+		int newFrames;
+		if (mSpeed < 0.5f) {
+			newFrames = (int) (period * mSpeed / (1f - mSpeed));
+		} else {
+			newFrames = period;
+			mRemainingInputToCopy = (int) (period * (2f * mSpeed - 1f) / (1f - mSpeed));
+		}
+		ensureOutputCapacity(period + newFrames);
+		System.arraycopy(mInput, position * mChannels, mOutput, mOutputFrames * mChannels, period * mChannels);
+		overlapAdd(newFrames, mOutputFrames + period, position + period, position);
+		mOutputFrames += period + newFrames;
+		return newFrames;
+	}
+
+	/** writes frames of output, fading out the input at fadeOut while fading in the input at fadeIn */
+	private void overlapAdd(int frames, int outputFrame, int fadeOut, int fadeIn) {
+		for (int c = 0; c < mChannels; c++) {
+			int out = outputFrame * mChannels + c;
+			int down = fadeOut * mChannels + c;
+			int up = fadeIn * mChannels + c;
+			for (int i = 0; i < frames; i++) {
+				mOutput[out] = (short) ((mInput[down] * (frames - i) + mInput[up] * i) / frames);
+				out += mChannels;
+				down += mChannels;
+				up += mChannels;
+			}
+		}
+	}
+
+	private int findPitchPeriod(int position) {
+		int period;
+		if (mSkip == 1 && mChannels == 1) {
+			period = findPitchPeriodInRange(mInput, position, mMinPeriod, mMaxPeriod);
+		} else {
+			downsample(position, mSkip);
+			period = findPitchPeriodInRange(mDownsampled, 0, mMinPeriod / mSkip, mMaxPeriod / mSkip);
+			if (mSkip != 1) {
+				// refine around the coarse period at the full rate
+				period *= mSkip;
+				int minPeriod = Math.max(mMinPeriod, period - (mSkip << 2));
+				int maxPeriod = Math.min(mMaxPeriod, period + (mSkip << 2));
+				if (mChannels == 1) {
+					period = findPitchPeriodInRange(mInput, position, minPeriod, maxPeriod);
+				} else {
+					downsample(position, 1);
+					period = findPitchPeriodInRange(mDownsampled, 0, minPeriod, maxPeriod);
+				}
+			}
+		}
+		return period;
+	}
+
+	/** the period in the range the signal at offset looks most like itself over */
+	private static int findPitchPeriodInRange(short[] samples, int offset, int minPeriod, int maxPeriod) {
+		int bestPeriod = 0;
+		long minDiff = 0;
+		for (int period = minPeriod; period <= maxPeriod; period++) {
+			long diff = 0;
+			for (int i = 0; i < period; i++) {
+				diff += Math.abs(samples[offset + i] - samples[offset + i + period]);
+			}
+			// compare diff / period without dividing
+			if (bestPeriod == 0 || diff * bestPeriod < minDiff * period) {
+				minDiff = diff;
+				bestPeriod = period;
+			}
+		}
+		return bestPeriod;
+	}
+
+	/** mono mix of the window at position, averaged over skip frames at a time */
+	private void downsample(int position, int skip) {
+		int frames = mMaxRequired / skip;
+		int samplesPerPoint = skip * mChannels;
+		int sample = position * mChannels;
+		for (int i = 0; i < frames; i++) {
+			int sum = 0;
+			for (int j = 0; j < samplesPerPoint; j++) {
+				sum += mInput[sample++];
+			}
+			mDownsampled[i] = (short) (sum / samplesPerPoint);
+		}
+	}
+
+	private void copyToOutput(int position, int frames) {
+		ensureOutputCapacity(frames);
+		System.arraycopy(mInput, position * mChannels, mOutput, mOutputFrames * mChannels, frames * mChannels);
+		mOutputFrames += frames;
+	}
+
+	private void removeInput(int frames) {
+		int remaining = mInputFrames - frames;
+		System.arraycopy(mInput, frames * mChannels, mInput, 0, remaining * mChannels);
+		mInputFrames = remaining;
+	}
+
+	private void removeOutput(int frames) {
+		int remaining = mOutputFrames - frames;
+		System.arraycopy(mOutput, frames * mChannels, mOutput, 0, remaining * mChannels);
+		mOutputFrames = remaining;
+	}
+
+	private void ensureInputCapacity(int frames) {
+		int needed = (mInputFrames + frames) * mChannels;
+		if (needed > mInput.length) {
+			short[] input = new short[needed + needed / 2];
+			System.arraycopy(mInput, 0, input, 0, mInputFrames * mChannels);
+			mInput = input;
+		}
+	}
+
+	private void ensureOutputCapacity(int frames) {
+		int needed = (mOutputFrames + frames) * mChannels;
+		if (needed > mOutput.length) {
+			short[] output = new short[needed + needed / 2];
+			System.arraycopy(mOutput, 0, output, 0, mOutputFrames * mChannels);
+			mOutput = output;
+		}
+	}
+
+}
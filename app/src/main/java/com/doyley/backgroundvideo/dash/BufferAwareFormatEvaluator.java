@@ -0,0 +1,204 @@
+package com.doyley.backgroundvideo.dash;
+
+import android.util.Log;
+
+import com.google.android.exoplayer.chunk.Format;
+import com.google.android.exoplayer.chunk.FormatEvaluator;
+import com.google.android.exoplayer.chunk.MediaChunk;
+import com.google.android.exoplayer.upstream.BandwidthMeter;
+import com.google.android.exoplayer.util.Clock;
+import com.google.android.exoplayer.util.SystemClock;
+
+import java.util.List;
+
+/**
+ * Picks a representation from the measured throughput and the current buffer level.
+ *
+ * The share of the bandwidth estimate we are prepared to spend grows with the buffer - with an almost
+ * empty buffer we play it safe, with a full one we can afford to be optimistic. Switches up need enough
+ * buffer to absorb a wrong guess, and switches down are held off while the buffer can carry us. After a
+ * rebuffer, reported by the player through {@link #onRebuffer}, the estimate has just been shown to be too
+ * optimistic : for a while the safe share is used whatever the buffer, and there are no switches up. Formats
+ * are expected in decreasing bandwidth order, which is how {@link com.google.android.exoplayer.dash.DashChunkSource}
+ * hands them over.
+ */
+public class BufferAwareFormatEvaluator implements FormatEvaluator {
+
+	public static final int DEFAULT_MAX_INITIAL_BITRATE = 800000;
+	public static final long DEFAULT_LOW_BUFFER_US = 5000000;
+	public static final long DEFAULT_HIGH_BUFFER_US = 20000000;
+	public static final float DEFAULT_LOW_BUFFER_BANDWIDTH_FRACTION = 0.5f;
+	public static final float DEFAULT_HIGH_BUFFER_BANDWIDTH_FRACTION = 0.9f;
+	public static final long DEFAULT_MIN_BUFFER_FOR_QUALITY_INCREASE_US = 10000000;
+	public static final long DEFAULT_MAX_BUFFER_FOR_QUALITY_DECREASE_US = 25000000;
+	public static final long DEFAULT_MIN_BUFFER_TO_RETAIN_AFTER_DISCARD_US = 25000000;
+	/** how long a rebuffer keeps the evaluator cautious - longer ones by as much again as they lasted */
+	public static final long REBUFFER_PENALTY_MS = 30000;
+
+	private final BandwidthMeter mBandwidthMeter;
+	private final Clock mClock;
+	private final int mMaxInitialBitrate;
+	private final long mLowBufferUs;
+	private final long mHighBufferUs;
+	private final float mLowBufferBandwidthFraction;
+	private final float mHighBufferBandwidthFraction;
+	private final long mMinBufferForQualityIncreaseUs;
+	private final long mMaxBufferForQualityDecreaseUs;
+	private final long mMinBufferToRetainAfterDiscardUs;
+
+	private int mSwitchCount;
+	private long mSelectedBitrateTimeProduct;
+	private long mSelectedTimeMs;
+	private long mLastEvaluationTimeMs;
+	private int mLastSelectedBitrate;
+
+	// written on the player's listener thread, read on the playback thread
+	private volatile long mCautiousUntilMs;
+	private volatile int mRebufferCount;
+	private volatile long mRebufferTimeMs;
+
+	public BufferAwareFormatEvaluator(BandwidthMeter bandwidthMeter) {
+		this(bandwidthMeter, new SystemClock());
+	}
+
+	public BufferAwareFormatEvaluator(BandwidthMeter bandwidthMeter, Clock clock) {
+		this(bandwidthMeter, clock, DEFAULT_MAX_INITIAL_BITRATE, DEFAULT_LOW_BUFFER_US, DEFAULT_HIGH_BUFFER_US,
+				DEFAULT_LOW_BUFFER_BANDWIDTH_FRACTION, DEFAULT_HIGH_BUFFER_BANDWIDTH_FRACTION,
+				DEFAULT_MIN_BUFFER_FOR_QUALITY_INCREASE_US, DEFAULT_MAX_BUFFER_FOR_QUALITY_DECREASE_US,
+				DEFAULT_MIN_BUFFER_TO_RETAIN_AFTER_DISCARD_US);
+	}
+
+	public BufferAwareFormatEvaluator(BandwidthMeter bandwidthMeter, Clock clock, int maxInitialBitrate,
+	                                  long lowBufferUs, long highBufferUs, float lowBufferBandwidthFraction,
+	                                  float highBufferBandwidthFraction, long minBufferForQualityIncreaseUs,
+	                                  long maxBufferForQualityDecreaseUs, long minBufferToRetainAfterDiscardUs) {
+		mBandwidthMeter = bandwidthMeter;
+		mClock = clock;
+		mMaxInitialBitrate = maxInitialBitrate;
+		mLowBufferUs = lowBufferUs;
+		mHighBufferUs = highBufferUs;
+		mLowBufferBandwidthFraction = lowBufferBandwidthFraction;
+		mHighBufferBandwidthFraction = highBufferBandwidthFraction;
+		mMinBufferForQualityIncreaseUs = minBufferForQualityIncreaseUs;
+		mMaxBufferForQualityDecreaseUs = maxBufferForQualityDecreaseUs;
+		mMinBufferToRetainAfterDiscardUs = minBufferToRetainAfterDiscardUs;
+	}
+
+	@Override
+	public void enable() {
+		mSwitchCount = 0;
+		mSelectedBitrateTimeProduct = 0;
+		mSelectedTimeMs = 0;
+		mLastEvaluationTimeMs = mClock.elapsedRealtime();
+		mLastSelectedBitrate = 0;
+	}
+
+	@Override
+	public void disable() {
+		Log.d(this.getClass().getSimpleName(), "disable : switches = " + mSwitchCount
+				+ ", average bitrate = " + getAverageBitrate() + ", rebuffers = " + mRebufferCount
+				+ " (" + mRebufferTimeMs + "ms)");
+	}
+
+	/** playback ran out of buffer and was held up for durationMs before it could go on */
+	public void onRebuffer(long durationMs) {
+		mRebufferCount++;
+		mRebufferTimeMs += durationMs;
+		mCautiousUntilMs = mClock.elapsedRealtime() + REBUFFER_PENALTY_MS + durationMs;
+	}
+
+	@Override
+	public void evaluate(List<? extends MediaChunk> queue, long playbackPositionUs, Format[] formats,
+	                     Evaluation evaluation) {
+		long bufferedDurationUs = queue.isEmpty() ? 0
+				: queue.get(queue.size() - 1).endTimeUs - playbackPositionUs;
+		Format current = evaluation.format;
+		boolean cautious = isCautious();
+		Format ideal = determineIdealFormat(formats, cautious ? 0 : bufferedDurationUs);
+		boolean isHigher = ideal != null && current != null && ideal.bitrate > current.bitrate;
+		boolean isLower = ideal != null && current != null && ideal.bitrate < current.bitrate;
+
+		if (isHigher) {
+			if (cautious || bufferedDurationUs < mMinBufferForQualityIncreaseUs) {
+				// not enough buffer to absorb a wrong guess, or a rebuffer not long ago - stay where we are
+				ideal = current;
+			} else if (bufferedDurationUs >= mMinBufferToRetainAfterDiscardUs) {
+				// plenty buffered - drop queued lower quality chunks so the better format shows up sooner
+				for (int i = 1; i < queue.size(); i++) {
+					MediaChunk chunk = queue.get(i);
+					long durationBeforeThisChunkUs = chunk.startTimeUs - playbackPositionUs;
+					if (durationBeforeThisChunkUs >= mMinBufferToRetainAfterDiscardUs
+							&& chunk.format.bitrate < ideal.bitrate
+							&& chunk.format.height < ideal.height
+							&& chunk.format.height < 720
+							&& chunk.format.width < 1280) {
+						evaluation.queueSize = i;
+						break;
+					}
+				}
+			}
+		} else if (isLower && bufferedDurationUs >= mMaxBufferForQualityDecreaseUs) {
+			// the buffer can carry us through the dip
+			ideal = current;
+		}
+
+		if (current != null && ideal != current) {
+			evaluation.trigger = TRIGGER_ADAPTIVE;
+			mSwitchCount++;
+		}
+		evaluation.format = ideal;
+		accumulateSelectedBitrate(ideal);
+	}
+
+	public int getSwitchCount() {
+		return mSwitchCount;
+	}
+
+	public int getRebufferCount() {
+		return mRebufferCount;
+	}
+
+	/** true while a recent rebuffer holds the evaluator to the safe share of the bandwidth */
+	public boolean isCautious() {
+		return mClock.elapsedRealtime() < mCautiousUntilMs;
+	}
+
+	/** time weighted average of the selected bitrate since the evaluator was enabled */
+	public int getAverageBitrate() {
+		return mSelectedTimeMs == 0 ? mLastSelectedBitrate : (int) (mSelectedBitrateTimeProduct / mSelectedTimeMs);
+	}
+
+	protected Format determineIdealFormat(Format[] formats, long bufferedDurationUs) {
+		long bitrateEstimate = mBandwidthMeter.getBitrateEstimate();
+		long effectiveBitrate = bitrateEstimate == BandwidthMeter.NO_ESTIMATE
+				? mMaxInitialBitrate : (long) (bitrateEstimate * getBandwidthFraction(bufferedDurationUs));
+		for (Format format : formats) {
+			if (format.bitrate <= effectiveBitrate) {
+				return format;
+			}
+		}
+		// the lowest format is all we can do
+		return formats[formats.length - 1];
+	}
+
+	/** interpolates between the low and high buffer fractions */
+	private float getBandwidthFraction(long bufferedDurationUs) {
+		if (bufferedDurationUs <= mLowBufferUs) {
+			return mLowBufferBandwidthFraction;
+		} else if (bufferedDurationUs >= mHighBufferUs) {
+			return mHighBufferBandwidthFraction;
+		}
+		float progress = (float) (bufferedDurationUs - mLowBufferUs) / (mHighBufferUs - mLowBufferUs);
+		return mLowBufferBandwidthFraction + progress * (mHighBufferBandwidthFraction - mLowBufferBandwidthFraction);
+	}
+
+	private void accumulateSelectedBitrate(Format selected) {
+		long nowMs = mClock.elapsedRealtime();
+		long elapsedMs = nowMs - mLastEvaluationTimeMs;
+		mSelectedBitrateTimeProduct += (long) mLastSelectedBitrate * elapsedMs;
+		mSelectedTimeMs += mLastSelectedBitrate != 0 ? elapsedMs : 0;
+		mLastEvaluationTimeMs = nowMs;
+		mLastSelectedBitrate = selected != null ? selected.bitrate : 0;
+	}
+
+}
@@ -0,0 +1,210 @@
+package com.doyley.backgroundvideo.dash;
+
+import android.os.Looper;
+import android.util.Log;
+
+import com.doyley.backgroundvideo.upstream.SlidingWindowBandwidthMeter;
+import com.google.android.exoplayer.DefaultLoadControl;
+import com.google.android.exoplayer.ExoPlayerLibraryInfo;
+import com.google.android.exoplayer.LoadControl;
+import com.google.android.exoplayer.MediaCodecUtil;
+import com.google.android.exoplayer.ParserException;
+import com.google.android.exoplayer.SampleSource;
+import com.google.android.exoplayer.chunk.ChunkSampleSource;
+import com.google.android.exoplayer.chunk.ChunkSource;
+import com.google.android.exoplayer.chunk.Format;
+import com.google.android.exoplayer.chunk.FormatEvaluator;
+import com.google.android.exoplayer.dash.DashChunkSource;
+import com.google.android.exoplayer.dash.mpd.AdaptationSet;
+import com.google.android.exoplayer.dash.mpd.MediaPresentationDescription;
+import com.google.android.exoplayer.dash.mpd.MediaPresentationDescriptionParser;
+import com.google.android.exoplayer.dash.mpd.Period;
+import com.google.android.exoplayer.dash.mpd.Representation;
+import com.google.android.exoplayer.upstream.Allocator;
+import com.google.android.exoplayer.upstream.DataSource;
+import com.google.android.exoplayer.upstream.UriDataSource;
+import com.google.android.exoplayer.util.ManifestFetcher;
+import com.google.android.exoplayer.util.MimeTypes;
+import com.google.android.exoplayer.util.Util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Fetches a DASH manifest and builds chunk sample sources for its video and audio adaptation sets.
+ *
+ * Fragmented mp4 segments are fetched through a {@link UriDataSource} that reports every transfer to
+ * the bandwidth meter, and the video representation is picked by a {@link BufferAwareFormatEvaluator},
+ * which the player tells about rebuffers through {@link #onRebuffer}.
+ * Audio stays on a single representation.
+ */
+public class DashSampleSourceBuilder implements ManifestFetcher.ManifestCallback<MediaPresentationDescription> {
+
+	public interface Callback {
+		void onSampleSources(SampleSource videoSource, SampleSource audioSource);
+
+		void onSampleSourcesError(Exception e);
+	}
+
+	public static final String USER_AGENT = "BackgroundVideo ExoPlayerLib/" + ExoPlayerLibraryInfo.VERSION;
+
+	public static final int BUFFER_SEGMENT_SIZE = 64 * 1024;
+	private static final int VIDEO_BUFFER_SEGMENTS = 200;
+	private static final int AUDIO_BUFFER_SEGMENTS = 60;
+	private static final long LIVE_EDGE_LATENCY_MS = 30000;
+
+	private final String mManifestUri;
+	private final SlidingWindowBandwidthMeter mBandwidthMeter;
+	private final Allocator mAllocator;
+
+	private ManifestFetcher<MediaPresentationDescription> mManifestFetcher;
+	private MediaPresentationDescription mManifest;
+	private volatile BufferAwareFormatEvaluator mVideoFormatEvaluator;
+	private Looper mLooper;
+	private Callback mCallback;
+	private boolean mCanceled;
+
+	/** allocator hands out the sample buffers - its buffers should be BUFFER_SEGMENT_SIZE long */
+	public DashSampleSourceBuilder(String manifestUri, SlidingWindowBandwidthMeter bandwidthMeter,
+	                               Allocator allocator) {
+		mManifestUri = manifestUri;
+		mBandwidthMeter = bandwidthMeter;
+		mAllocator = allocator;
+	}
+
+	/** returns true if the uri points at a DASH manifest - only fetched over http(s) */
+	public static boolean isDashManifest(String uri) {
+		if (!uri.startsWith("http:") && !uri.startsWith("https:")) {
+			return false;
+		}
+		int queryIndex = uri.indexOf('?');
+		String path = queryIndex == -1 ? uri : uri.substring(0, queryIndex);
+		return path.endsWith(".mpd");
+	}
+
+	/** loads the manifest - the callback is invoked on the given looper */
+	public void build(Looper looper, Callback callback) {
+		mLooper = looper;
+		mCallback = callback;
+		mManifestFetcher = new ManifestFetcher<>(new MediaPresentationDescriptionParser(), null, mManifestUri,
+				USER_AGENT);
+		mManifestFetcher.singleLoad(looper, this);
+	}
+
+	/**
+	 * builds the sample sources again for a retry, with the same callback - from the manifest already fetched,
+	 * unless there is none yet or it is a live one
+	 */
+	public void rebuild() {
+		if (mManifest == null || mManifest.dynamic) {
+			build(mLooper, mCallback);
+		} else {
+			onManifest(null, mManifest);
+		}
+	}
+
+	/** playback was held up by a rebuffer for durationMs - the video representation is picked more cautiously */
+	public void onRebuffer(long durationMs) {
+		BufferAwareFormatEvaluator evaluator = mVideoFormatEvaluator;
+		if (evaluator != null) {
+			evaluator.onRebuffer(durationMs);
+		}
+	}
+
+	/** stops a pending build from calling back - used when the player is torn down or reinitialized */
+	public void cancel() {
+		mCanceled = true;
+	}
+
+	@Override
+	public void onManifest(String contentId, MediaPresentationDescription manifest) {
+		if (mCanceled) {
+			return;
+		}
+		mManifest = manifest;
+
+		Period period = manifest.periods.get(0);
+		int videoAdaptationSetIndex = period.getAdaptationSetIndex(AdaptationSet.TYPE_VIDEO);
+		int audioAdaptationSetIndex = period.getAdaptationSetIndex(AdaptationSet.TYPE_AUDIO);
+		if (videoAdaptationSetIndex == -1) {
+			mCallback.onSampleSourcesError(new ParserException("no video adaptation set in " + mManifestUri));
+			return;
+		}
+
+		int[] videoRepresentationIndices;
+		try {
+			videoRepresentationIndices = getPlayableVideoRepresentations(
+					period.adaptationSets.get(videoAdaptationSetIndex));
+		} catch (MediaCodecUtil.DecoderQueryException e) {
+			mCallback.onSampleSourcesError(e);
+			return;
+		}
+		if (videoRepresentationIndices.length == 0) {
+			mCallback.onSampleSourcesError(new ParserException("no playable video representation in " + mManifestUri));
+			return;
+		}
+		Log.d(this.getClass().getSimpleName(), "onManifest : dynamic = " + manifest.dynamic
+				+ ", video representations = " + videoRepresentationIndices.length);
+
+		LoadControl loadControl = new DefaultLoadControl(mAllocator);
+
+		DataSource videoDataSource = new UriDataSource(USER_AGENT, mBandwidthMeter);
+		mVideoFormatEvaluator = new BufferAwareFormatEvaluator(mBandwidthMeter);
+		ChunkSource videoChunkSource = newChunkSource(manifest, videoAdaptationSetIndex,
+				videoRepresentationIndices, videoDataSource, mVideoFormatEvaluator);
+		SampleSource videoSource = new ChunkSampleSource(videoChunkSource, loadControl,
+				VIDEO_BUFFER_SEGMENTS * BUFFER_SEGMENT_SIZE, true);
+
+		SampleSource audioSource = null;
+		if (audioAdaptationSetIndex != -1) {
+			DataSource audioDataSource = new UriDataSource(USER_AGENT, mBandwidthMeter);
+			ChunkSource audioChunkSource = newChunkSource(manifest, audioAdaptationSetIndex, null,
+					audioDataSource, new FormatEvaluator.FixedEvaluator());
+			audioSource = new ChunkSampleSource(audioChunkSource, loadControl,
+					AUDIO_BUFFER_SEGMENTS * BUFFER_SEGMENT_SIZE, true);
+		}
+
+		mCallback.onSampleSources(videoSource, audioSource);
+	}
+
+	@Override
+	public void onManifestError(String contentId, IOException e) {
+		if (mCanceled) {
+			return;
+		}
+		mCallback.onSampleSourcesError(e);
+	}
+
+	private ChunkSource newChunkSource(MediaPresentationDescription manifest, int adaptationSetIndex,
+	                                   int[] representationIndices, DataSource dataSource,
+	                                   FormatEvaluator formatEvaluator) {
+		if (manifest.dynamic) {
+			// live manifests keep being refreshed by the chunk source through the fetcher
+			return new DashChunkSource(mManifestFetcher, adaptationSetIndex, representationIndices, dataSource,
+					formatEvaluator, LIVE_EDGE_LATENCY_MS);
+		}
+		return new DashChunkSource(manifest, adaptationSetIndex, representationIndices, dataSource,
+				formatEvaluator);
+	}
+
+	/** drops representations the device cannot decode */
+	private static int[] getPlayableVideoRepresentations(AdaptationSet adaptationSet)
+			throws MediaCodecUtil.DecoderQueryException {
+		int maxDecodableFrameSize = MediaCodecUtil.maxH264DecodableFrameSize();
+		List<Integer> indices = new ArrayList<>();
+		List<Representation> representations = adaptationSet.representations;
+		for (int i = 0; i < representations.size(); i++) {
+			Format format = representations.get(i).format;
+			if (format.width * format.height > maxDecodableFrameSize) {
+				continue;
+			}
+			if (!MimeTypes.VIDEO_MP4.equals(format.mimeType) && !MimeTypes.VIDEO_WEBM.equals(format.mimeType)) {
+				continue;
+			}
+			indices.add(i);
+		}
+		return Util.toArray(indices);
+	}
+
+}
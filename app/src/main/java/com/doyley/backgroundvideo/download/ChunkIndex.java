@@ -0,0 +1,223 @@
+package com.doyley.backgroundvideo.download;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * The durable record of which chunks of a download are on disk, kept next to the downloaded file.
+ *
+ * Layout : a fixed header (magic, version, total length, chunk size, chunk count and the remote validator
+ * the chunks were fetched against), a bitmap with one bit per completed chunk and the CRC32 of every
+ * completed chunk. A bit is only set once the chunk's data has been forced to disk, so a chunk marked
+ * complete survives the process dying at any point.
+ */
+final class ChunkIndex {
+
+	private static final int MAGIC = 0x444c4349;
+	private static final int VERSION = 1;
+	private static final int MAX_VALIDATOR_LENGTH = 256;
+	private static final int HEADER_SIZE = 4 + 4 + 8 + 4 + 4 + 2 + MAX_VALIDATOR_LENGTH;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final RandomAccessFile mFile;
+	private final FileChannel mChannel;
+	private final long mTotalLength;
+	private final int mChunkSize;
+	private final int mChunkCount;
+	private final String mValidator;
+	private final byte[] mBitmap;
+	private final int[] mCrcs;
+	private int mCompletedCount;
+
+	private ChunkIndex(RandomAccessFile file, long totalLength, int chunkSize, String validator) {
+		mFile = file;
+		mChannel = file.getChannel();
+		mTotalLength = totalLength;
+		mChunkSize = chunkSize;
+		mChunkCount = (int) ((totalLength + chunkSize - 1) / chunkSize);
+		mValidator = validator;
+		mBitmap = new byte[(mChunkCount + 7) / 8];
+		mCrcs = new int[mChunkCount];
+	}
+
+	/** loads an existing index, or returns null if there is none or it cannot be read */
+	public static ChunkIndex load(File file) {
+		if (!file.exists()) {
+			return null;
+		}
+		RandomAccessFile randomAccessFile = null;
+		try {
+			randomAccessFile = new RandomAccessFile(file, "rw");
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			readFully(randomAccessFile.getChannel(), header, 0);
+			header.flip();
+			if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+				randomAccessFile.close();
+				return null;
+			}
+			long totalLength = header.getLong();
+			int chunkSize = header.getInt();
+			header.getInt();
+			int validatorLength = header.getShort();
+			String validator = null;
+			if (validatorLength > 0) {
+				byte[] validatorBytes = new byte[validatorLength];
+				header.get(validatorBytes);
+				validator = new String(validatorBytes, UTF8);
+			}
+			ChunkIndex index = new ChunkIndex(randomAccessFile, totalLength, chunkSize, validator);
+			index.readState();
+			return index;
+		} catch (IOException e) {
+			closeQuietly(randomAccessFile);
+			return null;
+		}
+	}
+
+	/** creates a new, empty index - an existing one is overwritten */
+	public static ChunkIndex create(File file, long totalLength, int chunkSize, String validator)
+			throws IOException {
+		if (validator != null && validator.getBytes(UTF8).length > MAX_VALIDATOR_LENGTH) {
+			// without a usable validator the download is restarted whenever it resumes
+			validator = null;
+		}
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		ChunkIndex index = new ChunkIndex(randomAccessFile, totalLength, chunkSize, validator);
+		randomAccessFile.setLength(0);
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC).putInt(VERSION).putLong(totalLength).putInt(chunkSize).putInt(index.mChunkCount);
+		byte[] validatorBytes = validator == null ? new byte[0] : validator.getBytes(UTF8);
+		header.putShort((short) validatorBytes.length).put(validatorBytes);
+		header.clear();
+		index.mChannel.write(header, 0);
+		index.mChannel.write(ByteBuffer.allocate(index.mBitmap.length + 4 * index.mChunkCount), HEADER_SIZE);
+		index.mChannel.force(true);
+		return index;
+	}
+
+	/** true if the index was written for the same remote file */
+	public boolean matches(long totalLength, int chunkSize, String validator) {
+		return mTotalLength == totalLength && mChunkSize == chunkSize && validator != null
+				&& validator.equals(mValidator);
+	}
+
+	public long getTotalLength() {
+		return mTotalLength;
+	}
+
+	public int getChunkSize() {
+		return mChunkSize;
+	}
+
+	public int getChunkCount() {
+		return mChunkCount;
+	}
+
+	public long getChunkPosition(int chunk) {
+		return (long) chunk * mChunkSize;
+	}
+
+	public int getChunkLength(int chunk) {
+		return (int) Math.min(mChunkSize, mTotalLength - getChunkPosition(chunk));
+	}
+
+	public synchronized boolean isComplete(int chunk) {
+		return (mBitmap[chunk >> 3] & (1 << (chunk & 7))) != 0;
+	}
+
+	public synchronized int getCrc(int chunk) {
+		return mCrcs[chunk];
+	}
+
+	public synchronized int getCompletedCount() {
+		return mCompletedCount;
+	}
+
+	public synchronized boolean isDownloadComplete() {
+		return mCompletedCount == mChunkCount;
+	}
+
+	public synchronized long getCompletedBytes() {
+		long bytes = (long) mCompletedCount * mChunkSize;
+		int last = mChunkCount - 1;
+		if (last >= 0 && isComplete(last)) {
+			bytes -= mChunkSize - getChunkLength(last);
+		}
+		return bytes;
+	}
+
+	/** marks a chunk complete - its data must already be forced to disk */
+	public synchronized void setComplete(int chunk, int crc) throws IOException {
+		if (isComplete(chunk)) {
+			return;
+		}
+		mCrcs[chunk] = crc;
+		ByteBuffer crcBuffer = ByteBuffer.allocate(4);
+		crcBuffer.putInt(0, crc);
+		mChannel.write(crcBuffer, HEADER_SIZE + mBitmap.length + 4L * chunk);
+		mChannel.force(false);
+		// the bit goes last - a chunk is never complete with a stale crc
+		mBitmap[chunk >> 3] |= 1 << (chunk & 7);
+		writeBitmapByte(chunk >> 3);
+		mCompletedCount++;
+	}
+
+	public synchronized void clear(int chunk) throws IOException {
+		if (!isComplete(chunk)) {
+			return;
+		}
+		mBitmap[chunk >> 3] &= ~(1 << (chunk & 7));
+		writeBitmapByte(chunk >> 3);
+		mCompletedCount--;
+	}
+
+	public synchronized void close() {
+		closeQuietly(mFile);
+	}
+
+	private void writeBitmapByte(int index) throws IOException {
+		ByteBuffer bitmapByte = ByteBuffer.allocate(1);
+		bitmapByte.put(0, mBitmap[index]);
+		mChannel.write(bitmapByte, HEADER_SIZE + index);
+		mChannel.force(false);
+	}
+
+	private void readState() throws IOException {
+		ByteBuffer state = ByteBuffer.allocate(mBitmap.length + 4 * mChunkCount);
+		readFully(mChannel, state, HEADER_SIZE);
+		state.flip();
+		state.get(mBitmap);
+		for (int i = 0; i < mChunkCount; i++) {
+			mCrcs[i] = state.getInt();
+			if (isComplete(i)) {
+				mCompletedCount++;
+			}
+		}
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer target, long position) throws IOException {
+		while (target.hasRemaining()) {
+			int read = channel.read(target, position);
+			if (read < 0) {
+				throw new IOException("index truncated");
+			}
+			position += read;
+		}
+	}
+
+	private static void closeQuietly(RandomAccessFile file) {
+		if (file == null) {
+			return;
+		}
+		try {
+			file.close();
+		} catch (IOException e) {
+			// nothing left to do with it
+		}
+	}
+
+}
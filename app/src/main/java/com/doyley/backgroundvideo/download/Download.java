@@ -0,0 +1,425 @@
+package com.doyley.backgroundvideo.download;
+
+import android.util.Log;
+
+import com.doyley.backgroundvideo.upstream.IoScheduler;
+import com.google.android.exoplayer.C;
+import com.google.android.exoplayer.util.Util;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * One file being saved for offline playback.
+ *
+ * The file is split into chunks that are fetched as separate byte ranges, in parallel as far as the
+ * download class of the {@link IoScheduler} allows. A dropped connection resumes the chunk from the last
+ * byte written. Every chunk is checksummed as it streams in and recorded in a {@link ChunkIndex} once it
+ * is on disk - on resume the completed chunks are verified against their checksums and only the missing
+ * ones are fetched. A reader waiting for a chunk moves it up to playback priority. A chunk that fails is
+ * submitted again after a backoff, so the wait does not hold a worker.
+ */
+public final class Download {
+
+	public static final int STATE_PREPARING = 0;
+	public static final int STATE_DOWNLOADING = 1;
+	public static final int STATE_COMPLETED = 2;
+	public static final int STATE_FAILED = 3;
+	public static final int STATE_CANCELED = 4;
+
+	public static final int CHUNK_SIZE = 1024 * 1024;
+
+	private static final int READ_SIZE = 32 * 1024;
+	private static final int MAX_ATTEMPTS = 5;
+	private static final long RETRY_DELAY_MS = 500;
+
+	private final class PrepareTask extends IoScheduler.Task {
+		@Override
+		public boolean run() {
+			return prepare(this);
+		}
+	}
+
+	private final class ChunkTask extends IoScheduler.Task {
+		final int chunk;
+		final CRC32 crc;
+		long written;
+		int attempts;
+
+		ChunkTask(int chunk) {
+			this.chunk = chunk;
+			this.crc = new CRC32();
+		}
+
+		/** takes over the progress of a task that failed, to retry the chunk from where it got to */
+		ChunkTask(ChunkTask previous) {
+			this.chunk = previous.chunk;
+			this.crc = previous.crc;
+			this.written = previous.written;
+			this.attempts = previous.attempts;
+		}
+
+		@Override
+		public boolean run() {
+			return fetchChunk(this);
+		}
+	}
+
+	private final String mUri;
+	private final File mTargetFile;
+	private final File mIndexFile;
+	private final IoScheduler mScheduler;
+	private final String mUserAgent;
+	private final DownloadManager.Listener mListener;
+
+	private int mState = STATE_PREPARING;
+	private ChunkIndex mIndex;
+	private RandomAccessFile mDataFile;
+	private FileChannel mDataChannel;
+	private PrepareTask mPrepareTask;
+	private ChunkTask[] mChunkTasks;
+	private boolean[] mPromoted;
+	private IOException mError;
+
+	/** index is one already loaded from disk, so readers can start before the remote file is checked */
+	Download(String uri, File targetFile, File indexFile, ChunkIndex index, IoScheduler scheduler,
+	         String userAgent, DownloadManager.Listener listener) {
+		mUri = uri;
+		mTargetFile = targetFile;
+		mIndexFile = indexFile;
+		mIndex = index;
+		mScheduler = scheduler;
+		mUserAgent = userAgent;
+		mListener = listener;
+	}
+
+	public String getUri() {
+		return mUri;
+	}
+
+	public File getTargetFile() {
+		return mTargetFile;
+	}
+
+	public synchronized int getState() {
+		return mState;
+	}
+
+	public synchronized long getTotalLength() {
+		return mIndex == null ? C.LENGTH_UNBOUNDED : mIndex.getTotalLength();
+	}
+
+	public synchronized long getDownloadedBytes() {
+		return mIndex == null ? 0 : mIndex.getCompletedBytes();
+	}
+
+	synchronized ChunkIndex getIndex() {
+		return mIndex;
+	}
+
+	synchronized void start() {
+		mPrepareTask = new PrepareTask();
+		mScheduler.submit(IoScheduler.PRIORITY_DOWNLOAD, mPrepareTask);
+	}
+
+	synchronized void cancel() {
+		if (mState == STATE_COMPLETED || mState == STATE_FAILED || mState == STATE_CANCELED) {
+			return;
+		}
+		mState = STATE_CANCELED;
+		cancelTasks();
+		notifyAll();
+	}
+
+	/** blocks until the chunk is on disk - throws if the download ends without it */
+	synchronized void awaitChunk(int chunk) throws IOException {
+		while (mIndex == null || !mIndex.isComplete(chunk)) {
+			if (mState == STATE_FAILED || mState == STATE_CANCELED) {
+				throw new IOException("download ended without chunk " + chunk, mError);
+			}
+			promote(chunk);
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+		}
+	}
+
+	/**
+	 * called with the lock held - a chunk somebody is waiting for is fetched as playback, whether it is
+	 * still queued, already running or waiting to be retried
+	 */
+	private void promote(int chunk) {
+		if (mChunkTasks == null || mPromoted[chunk]) {
+			return;
+		}
+		ChunkTask task = mChunkTasks[chunk];
+		if (task != null) {
+			mPromoted[chunk] = true;
+			mScheduler.promote(task, IoScheduler.PRIORITY_PLAYBACK);
+		}
+	}
+
+	/**
+	 * runs on a scheduler worker - checks the remote file against the index and queues the missing chunks,
+	 * returns true if it yielded before it got to anything that has to be undone
+	 */
+	private boolean prepare(PrepareTask task) {
+		RangeHttpDataSource dataSource = new RangeHttpDataSource(mUserAgent);
+		try {
+			long length = dataSource.open(mUri, 0, C.LENGTH_UNBOUNDED);
+			String validator = dataSource.getValidator();
+			Util.closeQuietly(dataSource);
+			if (length == C.LENGTH_UNBOUNDED) {
+				throw new IOException("length of " + mUri + " unknown");
+			}
+			if (task.shouldYield()) {
+				// preempted - run again later from the start
+				return true;
+			}
+
+			ChunkIndex index = getIndex();
+			if (index == null) {
+				index = ChunkIndex.load(mIndexFile);
+			}
+			if (index != null && !index.matches(length, CHUNK_SIZE, validator)) {
+				Log.d(this.getClass().getSimpleName(), "prepare : remote file changed - restarting " + mUri);
+				index.close();
+				index = null;
+			}
+			if (index == null) {
+				index = ChunkIndex.create(mIndexFile, length, CHUNK_SIZE, validator);
+			}
+
+			RandomAccessFile dataFile = new RandomAccessFile(mTargetFile, "rw");
+			if (dataFile.length() != length) {
+				dataFile.setLength(length);
+			}
+			int corruptCount = verifyChunks(index, dataFile.getChannel());
+
+			synchronized (this) {
+				mIndex = index;
+				mDataFile = dataFile;
+				mDataChannel = dataFile.getChannel();
+				if (mState == STATE_CANCELED) {
+					closeFiles();
+					return false;
+				}
+				mState = STATE_DOWNLOADING;
+				int chunkCount = index.getChunkCount();
+				mChunkTasks = new ChunkTask[chunkCount];
+				mPromoted = new boolean[chunkCount];
+				for (int i = 0; i < chunkCount; i++) {
+					if (!index.isComplete(i)) {
+						mChunkTasks[i] = new ChunkTask(i);
+						mScheduler.submit(IoScheduler.PRIORITY_DOWNLOAD, mChunkTasks[i]);
+					}
+				}
+				Log.d(this.getClass().getSimpleName(), "prepare : " + mUri + ", length = " + length
+						+ ", chunks done = " + index.getCompletedCount() + "/" + chunkCount
+						+ ", corrupt = " + corruptCount);
+				notifyAll();
+			}
+			checkCompleted();
+		} catch (IOException e) {
+			Util.closeQuietly(dataSource);
+			fail(e);
+		}
+		return false;
+	}
+
+	/** re-reads the completed chunks and clears the ones whose data no longer matches its checksum */
+	private static int verifyChunks(ChunkIndex index, FileChannel channel) throws IOException {
+		int corruptCount = 0;
+		ByteBuffer buffer = ByteBuffer.allocate(READ_SIZE);
+		CRC32 crc = new CRC32();
+		for (int i = 0; i < index.getChunkCount(); i++) {
+			if (!index.isComplete(i)) {
+				continue;
+			}
+			crc.reset();
+			long position = index.getChunkPosition(i);
+			long end = position + index.getChunkLength(i);
+			while (position < end) {
+				buffer.clear();
+				buffer.limit((int) Math.min(READ_SIZE, end - position));
+				int read = channel.read(buffer, position);
+				if (read < 0) {
+					break;
+				}
+				crc.update(buffer.array(), 0, read);
+				position += read;
+			}
+			if (position < end || (int) crc.getValue() != index.getCrc(i)) {
+				index.clear(i);
+				corruptCount++;
+			}
+		}
+		return corruptCount;
+	}
+
+	/** runs on a scheduler worker - returns true if it yielded with some of the chunk still to fetch */
+	private boolean fetchChunk(ChunkTask task) {
+		ChunkIndex index;
+		FileChannel channel;
+		synchronized (this) {
+			if (mState != STATE_DOWNLOADING) {
+				return false;
+			}
+			index = mIndex;
+			channel = mDataChannel;
+		}
+		long position = index.getChunkPosition(task.chunk);
+		int length = index.getChunkLength(task.chunk);
+		byte[] data = new byte[READ_SIZE];
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+
+		while (task.written < length && !task.shouldYield()) {
+			RangeHttpDataSource dataSource = new RangeHttpDataSource(mUserAgent);
+			long writtenBefore = task.written;
+			try {
+				dataSource.open(mUri, position + task.written, length - task.written);
+				String validator = dataSource.getValidator();
+				if (validator != null && !index.matches(index.getTotalLength(), CHUNK_SIZE, validator)) {
+					throw new IOException("remote file changed during download");
+				}
+				while (task.written < length && !task.shouldYield()) {
+					int read = dataSource.read(data, 0, (int) Math.min(READ_SIZE, length - task.written));
+					if (read == -1) {
+						throw new EOFException("connection closed " + (length - task.written) + " bytes short");
+					}
+					buffer.clear();
+					buffer.limit(read);
+					while (buffer.hasRemaining()) {
+						channel.write(buffer, position + task.written + buffer.position());
+					}
+					task.crc.update(data, 0, read);
+					task.written += read;
+				}
+			} catch (IOException e) {
+				if (task.shouldYield()) {
+					break;
+				}
+				if (task.written > writtenBefore) {
+					// the connection made progress before it dropped - not the same failure again
+					task.attempts = 0;
+				}
+				if (++task.attempts >= MAX_ATTEMPTS) {
+					fail(e);
+					return false;
+				}
+				Log.d(this.getClass().getSimpleName(), "fetchChunk : chunk " + task.chunk + " attempt "
+						+ task.attempts + " failed : " + e.getMessage());
+				retryChunk(task);
+				return false;
+			} finally {
+				Util.closeQuietly(dataSource);
+			}
+		}
+		if (task.written < length) {
+			// cancelled, or preempted and resumed from here when the scheduler runs the task again
+			return true;
+		}
+
+		try {
+			channel.force(false);
+			index.setComplete(task.chunk, (int) task.crc.getValue());
+		} catch (IOException e) {
+			fail(e);
+			return false;
+		}
+		synchronized (this) {
+			if (mChunkTasks != null) {
+				mChunkTasks[task.chunk] = null;
+			}
+			notifyAll();
+		}
+		if (mListener != null) {
+			mListener.onDownloadProgress(this);
+		}
+		checkCompleted();
+		return false;
+	}
+
+	/** queues a chunk that failed again, once its backoff has passed - it carries on from what it wrote */
+	private synchronized void retryChunk(ChunkTask task) {
+		if (mState != STATE_DOWNLOADING || task.isCanceled()) {
+			return;
+		}
+		ChunkTask retry = new ChunkTask(task);
+		mChunkTasks[task.chunk] = retry;
+		int priority = mPromoted[task.chunk] ? IoScheduler.PRIORITY_PLAYBACK : IoScheduler.PRIORITY_DOWNLOAD;
+		mScheduler.submitDelayed(priority, retry, RETRY_DELAY_MS * task.attempts);
+	}
+
+	private void checkCompleted() {
+		synchronized (this) {
+			if (mState != STATE_DOWNLOADING || !mIndex.isDownloadComplete()) {
+				return;
+			}
+			mState = STATE_COMPLETED;
+			closeFiles();
+			notifyAll();
+		}
+		Log.d(this.getClass().getSimpleName(), "completed : " + mUri);
+		if (mListener != null) {
+			mListener.onDownloadCompleted(this);
+		}
+	}
+
+	private void fail(IOException e) {
+		synchronized (this) {
+			if (mState == STATE_FAILED || mState == STATE_CANCELED || mState == STATE_COMPLETED) {
+				return;
+			}
+			mState = STATE_FAILED;
+			mError = e;
+			cancelTasks();
+			notifyAll();
+		}
+		Log.e(this.getClass().getSimpleName(), "failed : " + mUri, e);
+		if (mListener != null) {
+			mListener.onDownloadFailed(this, e);
+		}
+	}
+
+	/** called with the lock held - what already made it to disk stays recorded for the next attempt */
+	private void cancelTasks() {
+		if (mPrepareTask != null) {
+			mPrepareTask.cancel();
+		}
+		if (mChunkTasks != null) {
+			for (ChunkTask task : mChunkTasks) {
+				if (task != null) {
+					task.cancel();
+				}
+			}
+		}
+		// chunk tasks still writing fail on the closed channel and see they were cancelled
+		closeFiles();
+	}
+
+	/** called with the lock held - the index keeps answering from memory */
+	private void closeFiles() {
+		if (mIndex != null) {
+			mIndex.close();
+		}
+		if (mDataFile != null) {
+			try {
+				mDataFile.close();
+			} catch (IOException e) {
+				// nothing left to do with it
+			}
+			mDataFile = null;
+			mDataChannel = null;
+		}
+	}
+
+}
@@ -0,0 +1,141 @@
+package com.doyley.backgroundvideo.download;
+
+import android.util.Log;
+
+import com.doyley.backgroundvideo.source.FileInputSource;
+import com.doyley.backgroundvideo.source.InputSource;
+import com.doyley.backgroundvideo.upstream.IoScheduler;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Saves videos for offline playback - see {@link Download} for how a single file is fetched.
+ *
+ * Every uri is stored under a name derived from it, next to its chunk index, so a download picks up where
+ * it stopped even after the process died. A partially downloaded file can already be played from the
+ * chunks that are there.
+ */
+public class DownloadManager {
+
+	/** called on scheduler workers */
+	public interface Listener {
+
+		void onDownloadProgress(Download download);
+
+		void onDownloadCompleted(Download download);
+
+		void onDownloadFailed(Download download, IOException e);
+	}
+
+	private static final String DATA_SUFFIX = ".media";
+	private static final String INDEX_SUFFIX = ".chunks";
+
+	private final File mDirectory;
+	private final IoScheduler mScheduler;
+	private final String mUserAgent;
+	private final Listener mListener;
+	private final Map<String, Download> mDownloads = new HashMap<>();
+
+	public DownloadManager(File directory, IoScheduler scheduler, String userAgent, Listener listener) {
+		mDirectory = directory;
+		mScheduler = scheduler;
+		mUserAgent = userAgent;
+		mListener = listener;
+	}
+
+	/** starts or resumes the download of a uri - a download already running is returned as it is */
+	public synchronized Download start(String uri) {
+		Download download = mDownloads.get(uri);
+		if (download != null && download.getState() != Download.STATE_FAILED) {
+			// cancelled downloads are no longer in the map
+			return download;
+		}
+		return start(uri, null);
+	}
+
+	public synchronized void cancel(String uri) {
+		Download download = mDownloads.remove(uri);
+		if (download != null) {
+			download.cancel();
+		}
+	}
+
+	/** cancels everything in flight - what is on disk is kept and resumed by the next start */
+	public synchronized void release() {
+		for (Download download : mDownloads.values()) {
+			download.cancel();
+		}
+		mDownloads.clear();
+	}
+
+	public synchronized Download getDownload(String uri) {
+		return mDownloads.get(uri);
+	}
+
+	/**
+	 * returns an unopened input for the downloaded copy of a uri, or null if there is nothing to play from.
+	 * a partial copy resumes its download and reads wait for the chunks that are still missing
+	 */
+	public synchronized InputSource getInputSource(String uri) {
+		Download download = mDownloads.get(uri);
+		if (download != null && download.getState() == Download.STATE_COMPLETED) {
+			return new FileInputSource(download.getTargetFile());
+		}
+		if (download == null || download.getIndex() == null || download.getState() == Download.STATE_FAILED) {
+			ChunkIndex index = ChunkIndex.load(getIndexFile(uri));
+			if (index == null) {
+				// never started, or not far enough to know the length
+				return null;
+			}
+			if (index.isDownloadComplete()) {
+				index.close();
+				return new FileInputSource(getDataFile(uri));
+			}
+			if (download != null) {
+				download.cancel();
+			}
+			download = start(uri, index);
+		}
+		Log.d(this.getClass().getSimpleName(), "getInputSource : partial " + uri + ", "
+				+ download.getDownloadedBytes() + "/" + download.getTotalLength());
+		return new PartialDownloadInputSource(download);
+	}
+
+	private Download start(String uri, ChunkIndex index) {
+		mDirectory.mkdirs();
+		Download download = new Download(uri, getDataFile(uri), getIndexFile(uri), index, mScheduler, mUserAgent,
+				mListener);
+		mDownloads.put(uri, download);
+		download.start();
+		return download;
+	}
+
+	private File getDataFile(String uri) {
+		return new File(mDirectory, getName(uri) + DATA_SUFFIX);
+	}
+
+	private File getIndexFile(String uri) {
+		return new File(mDirectory, getName(uri) + INDEX_SUFFIX);
+	}
+
+	private static String getName(String uri) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(uri.getBytes("UTF-8"));
+			StringBuilder name = new StringBuilder(digest.length * 2);
+			for (byte b : digest) {
+				name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			}
+			return name.toString();
+		} catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+			// both are guaranteed to exist
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
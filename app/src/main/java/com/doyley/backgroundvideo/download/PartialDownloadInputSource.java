@@ -0,0 +1,59 @@
+package com.doyley.backgroundvideo.download;
+
+import com.doyley.backgroundvideo.source.FileInputSource;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads a file that is still being downloaded - a read waits until the chunk it falls in is on disk.
+ *
+ * Only the chunk index knows which parts of the file hold data, so anything reading the descriptor
+ * directly would see holes - the input must be read through {@link #read(ByteBuffer, long)}.
+ */
+final class PartialDownloadInputSource extends FileInputSource {
+
+	private final Download mDownload;
+	private final ChunkIndex mIndex;
+
+	PartialDownloadInputSource(Download download) {
+		super(download.getTargetFile(), TYPE_PARTIAL_DOWNLOAD, Download.CHUNK_SIZE);
+		mDownload = download;
+		mIndex = download.getIndex();
+	}
+
+	@Override
+	public void open() throws IOException {
+		super.open();
+		if (getLength() != mIndex.getTotalLength()) {
+			throw new IOException("partial download of " + getLength() + " bytes, expected "
+					+ mIndex.getTotalLength());
+		}
+	}
+
+	@Override
+	public int read(ByteBuffer target, long position) throws IOException {
+		if (position >= getLength()) {
+			return -1;
+		}
+		int chunk = (int) (position / mIndex.getChunkSize());
+		mDownload.awaitChunk(chunk);
+		int limit = target.limit();
+		long chunkEnd = mIndex.getChunkPosition(chunk) + mIndex.getChunkLength(chunk);
+		if (target.remaining() > chunkEnd - position) {
+			// the next chunk may not be there yet
+			target.limit(target.position() + (int) (chunkEnd - position));
+		}
+		try {
+			return super.read(target, position);
+		} finally {
+			target.limit(limit);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "partial download " + mDownload.getUri();
+	}
+
+}
@@ -0,0 +1,118 @@
+package com.doyley.backgroundvideo.download;
+
+import com.google.android.exoplayer.C;
+import com.google.android.exoplayer.upstream.DataSource;
+import com.google.android.exoplayer.upstream.DataSpec;
+import com.google.android.exoplayer.upstream.HttpDataSource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * {@link DataSource} over http that insists on byte ranges being honoured and exposes the validator of the
+ * remote file, so chunks fetched at different times are known to belong to the same version of it. A range
+ * can be opened straight from the url string, which is what downloads do.
+ */
+final class RangeHttpDataSource implements DataSource {
+
+	private final String mUserAgent;
+
+	private HttpURLConnection mConnection;
+	private InputStream mInputStream;
+	private String mValidator;
+	private long mBytesRemaining;
+
+	public RangeHttpDataSource(String userAgent) {
+		mUserAgent = userAgent;
+	}
+
+	@Override
+	public long open(DataSpec dataSpec) throws IOException {
+		return open(dataSpec.uri.toString(), dataSpec.position, dataSpec.length);
+	}
+
+	/**
+	 * opens length bytes of the file at url from position on, or all the rest of it for
+	 * {@link C#LENGTH_UNBOUNDED} - returns the length opened, {@link C#LENGTH_UNBOUNDED} if the server did
+	 * not say
+	 */
+	public long open(String url, long position, long length) throws IOException {
+		mConnection = (HttpURLConnection) new URL(url).openConnection();
+		mConnection.setConnectTimeout(HttpDataSource.DEFAULT_CONNECT_TIMEOUT_MILLIS);
+		mConnection.setReadTimeout(HttpDataSource.DEFAULT_READ_TIMEOUT_MILLIS);
+		mConnection.setRequestProperty("User-Agent", mUserAgent);
+		// a compressed body would not line up with the byte offsets
+		mConnection.setRequestProperty("Accept-Encoding", "identity");
+		if (position != 0 || length != C.LENGTH_UNBOUNDED) {
+			String end = length == C.LENGTH_UNBOUNDED ? "" : Long.toString(position + length - 1);
+			mConnection.setRequestProperty("Range", "bytes=" + position + "-" + end);
+		}
+		int responseCode = mConnection.getResponseCode();
+		if (responseCode < 200 || responseCode > 299) {
+			close();
+			throw new IOException("response code " + responseCode + " for " + url);
+		}
+		if (position != 0 && responseCode != HttpURLConnection.HTTP_PARTIAL) {
+			// a full response would be written at the wrong offset
+			close();
+			throw new IOException("byte range not honoured by " + url);
+		}
+		mValidator = mConnection.getHeaderField("ETag");
+		if (mValidator == null) {
+			mValidator = mConnection.getHeaderField("Last-Modified");
+		}
+		mInputStream = mConnection.getInputStream();
+		mBytesRemaining = length != C.LENGTH_UNBOUNDED ? length : getContentLength(mConnection);
+		return mBytesRemaining;
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int readLength) throws IOException {
+		if (mBytesRemaining == 0) {
+			return -1;
+		}
+		if (mBytesRemaining != C.LENGTH_UNBOUNDED) {
+			readLength = (int) Math.min(readLength, mBytesRemaining);
+		}
+		int read = mInputStream.read(buffer, offset, readLength);
+		if (read > 0 && mBytesRemaining != C.LENGTH_UNBOUNDED) {
+			mBytesRemaining -= read;
+		}
+		return read;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			if (mInputStream != null) {
+				mInputStream.close();
+			}
+		} finally {
+			mInputStream = null;
+			if (mConnection != null) {
+				mConnection.disconnect();
+				mConnection = null;
+			}
+		}
+	}
+
+	/** the ETag, or failing that the Last-Modified date, of the opened response - null if there is neither */
+	public String getValidator() {
+		return mValidator;
+	}
+
+	private static long getContentLength(HttpURLConnection connection) {
+		String contentLength = connection.getHeaderField("Content-Length");
+		if (contentLength == null) {
+			return C.LENGTH_UNBOUNDED;
+		}
+		try {
+			return Long.parseLong(contentLength.trim());
+		} catch (NumberFormatException e) {
+			return C.LENGTH_UNBOUNDED;
+		}
+	}
+
+}
@@ -0,0 +1,334 @@
+package com.doyley.backgroundvideo.extractor;
+
+import android.util.Log;
+
+import com.doyley.backgroundvideo.source.InputSource;
+import com.google.android.exoplayer.MediaFormat;
+import com.google.android.exoplayer.MediaFormatHolder;
+import com.google.android.exoplayer.ParserException;
+import com.google.android.exoplayer.SampleHolder;
+import com.google.android.exoplayer.SampleSource;
+import com.google.android.exoplayer.TrackInfo;
+import com.google.android.exoplayer.TrackRenderer;
+import com.google.android.exoplayer.mp4.Atom;
+import com.google.android.exoplayer.mp4.CommonMp4AtomParsers;
+import com.google.android.exoplayer.mp4.Mp4TrackSampleTable;
+import com.google.android.exoplayer.mp4.Mp4Util;
+import com.google.android.exoplayer.mp4.Track;
+import com.google.android.exoplayer.source.SampleExtractor;
+import com.google.android.exoplayer.util.MimeTypes;
+import com.google.android.exoplayer.util.ParsableByteArray;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * {@link SampleExtractor} for local ISO-BMFF (mp4) files - an alternative to the framework extractor.
+ *
+ * The moov atom is parsed once into per track sample tables. Sample data is then copied straight from a
+ * memory mapped slice of the file into the decoder input buffer when the {@link InputSource} is mapped,
+ * so there is no intermediate copy. Other inputs are read positionally.
+ *
+ * The input is owned by the caller and is not closed on {@link #release()}.
+ */
+public final class Mp4SampleExtractor implements SampleExtractor {
+
+	private static final int TYPE_ftyp = 0x66747970;
+
+	private final InputSource mInputSource;
+	private final ByteBuffer mHeaderBuffer = ByteBuffer.allocate(Mp4Util.LONG_ATOM_HEADER_SIZE);
+
+	private ByteBuffer mMappedBuffer;
+	private Track[] mTracks;
+	private Mp4TrackSampleTable[] mSampleTables;
+	private MediaFormat[] mMediaFormats;
+	private TrackInfo[] mTrackInfos;
+	private ByteBuffer[] mTrackSlices;
+	private int[] mSampleIndices;
+
+	/** the input must already be open */
+	public Mp4SampleExtractor(InputSource inputSource) {
+		mInputSource = inputSource;
+	}
+
+	/** returns true if the open input starts with an ftyp atom */
+	public static boolean sniff(InputSource inputSource) {
+		ByteBuffer header = ByteBuffer.allocate(Mp4Util.ATOM_HEADER_SIZE);
+		try {
+			while (header.hasRemaining()) {
+				if (inputSource.read(header, header.position()) < 0) {
+					return false;
+				}
+			}
+		} catch (IOException e) {
+			return false;
+		}
+		return header.getInt(4) == TYPE_ftyp;
+	}
+
+	@Override
+	public boolean prepare() throws IOException {
+		if (mTracks != null) {
+			return true;
+		}
+
+		mMappedBuffer = mInputSource.getMappedBuffer();
+
+		Atom.ContainerAtom moov = readMoov(mInputSource.getLength());
+		if (moov == null) {
+			throw new ParserException("no moov atom found");
+		}
+		parseTracks(moov);
+
+		Log.d(this.getClass().getSimpleName(), "prepared : tracks = " + mTracks.length
+				+ ", mapped = " + (mMappedBuffer != null));
+		return true;
+	}
+
+	@Override
+	public TrackInfo[] getTrackInfos() {
+		return mTrackInfos;
+	}
+
+	@Override
+	public void selectTrack(int index) {
+		// every track has its own read cursor, so there is nothing to interleave
+	}
+
+	@Override
+	public void deselectTrack(int index) {
+	}
+
+	@Override
+	public long getBufferedPositionUs() {
+		// everything is on local storage, so the whole file is as good as buffered
+		return TrackRenderer.END_OF_TRACK_US;
+	}
+
+	@Override
+	public void seekTo(long positionUs) {
+		for (int i = 0; i < mSampleTables.length; i++) {
+			Mp4TrackSampleTable sampleTable = mSampleTables[i];
+			int sampleIndex = sampleTable.getIndexOfEarlierOrEqualSynchronizationSample(positionUs);
+			if (sampleIndex == Mp4Util.NO_SAMPLE) {
+				sampleIndex = sampleTable.getIndexOfLaterOrEqualSynchronizationSample(positionUs);
+			}
+			mSampleIndices[i] = sampleIndex == Mp4Util.NO_SAMPLE ? sampleTable.getSampleCount() : sampleIndex;
+		}
+	}
+
+	@Override
+	public void getTrackMediaFormat(int track, MediaFormatHolder mediaFormatHolder) {
+		mediaFormatHolder.format = mMediaFormats[track];
+		mediaFormatHolder.drmInitData = null;
+	}
+
+	@Override
+	public int readSample(int track, SampleHolder sampleHolder) throws IOException {
+		Mp4TrackSampleTable sampleTable = mSampleTables[track];
+		int sampleIndex = mSampleIndices[track];
+		if (sampleIndex >= sampleTable.getSampleCount()) {
+			return SampleSource.END_OF_STREAM;
+		}
+
+		int size = sampleTable.sizes[sampleIndex];
+		if (sampleHolder.data != null) {
+			if (sampleHolder.data.remaining() < size && !sampleHolder.replaceBuffer(size)) {
+				throw new IllegalStateException("sample of " + size + " bytes does not fit the input buffer");
+			}
+			readSampleData(track, sampleTable.offsets[sampleIndex], size, sampleHolder.data);
+			if (MimeTypes.VIDEO_H264.equals(mMediaFormats[track].mimeType)) {
+				// mp4 holds length prefixed NAL units, but the decoder wants start code delimited ones
+				Mp4Util.replaceLengthPrefixesWithAvcStartCodes(sampleHolder.data, size);
+			}
+			sampleHolder.size = size;
+		} else {
+			sampleHolder.size = 0;
+		}
+		sampleHolder.timeUs = sampleTable.timestampsUs[sampleIndex];
+		sampleHolder.flags = sampleTable.flags[sampleIndex];
+
+		mSampleIndices[track] = sampleIndex + 1;
+		return SampleSource.SAMPLE_READ;
+	}
+
+	@Override
+	public void release() {
+		// the input belongs to the caller - just drop our views of it
+		mMappedBuffer = null;
+		mTrackSlices = null;
+	}
+
+	private void readSampleData(int track, long position, int size, ByteBuffer target) throws IOException {
+		if (mMappedBuffer != null) {
+			// one reusable view per track, so no allocation per sample
+			ByteBuffer slice = mTrackSlices[track];
+			slice.clear();
+			slice.position((int) position);
+			slice.limit((int) position + size);
+			target.put(slice);
+		} else {
+			int limit = target.limit();
+			target.limit(target.position() + size);
+			readFully(target, position);
+			target.limit(limit);
+		}
+	}
+
+	private void readFully(ByteBuffer target, long position) throws IOException {
+		while (target.hasRemaining()) {
+			int read = mInputSource.read(target, position);
+			if (read < 0) {
+				throw new EOFException();
+			}
+			position += read;
+		}
+	}
+
+	/** walks the top level atoms until the moov atom is found - only that atom is read into memory */
+	private Atom.ContainerAtom readMoov(long length) throws IOException {
+		long position = 0;
+		while (position + Mp4Util.ATOM_HEADER_SIZE <= length) {
+			mHeaderBuffer.clear();
+			mHeaderBuffer.limit(Mp4Util.ATOM_HEADER_SIZE);
+			readFully(mHeaderBuffer, position);
+			long atomSize = mHeaderBuffer.getInt(0) & 0xFFFFFFFFL;
+			int atomType = mHeaderBuffer.getInt(4);
+			if (atomSize == Mp4Util.LONG_ATOM_SIZE) {
+				mHeaderBuffer.limit(Mp4Util.LONG_ATOM_HEADER_SIZE);
+				readFully(mHeaderBuffer, position + Mp4Util.ATOM_HEADER_SIZE);
+				atomSize = mHeaderBuffer.getLong(Mp4Util.ATOM_HEADER_SIZE);
+			} else if (atomSize == 0) {
+				atomSize = length - position;
+			}
+			if (atomSize < Mp4Util.ATOM_HEADER_SIZE) {
+				throw new ParserException("invalid atom size : " + atomSize);
+			}
+
+			if (atomType == Atom.TYPE_moov) {
+				if (atomSize > Integer.MAX_VALUE) {
+					throw new ParserException("moov atom too large : " + atomSize);
+				}
+				byte[] moovData = new byte[(int) atomSize];
+				readFully(ByteBuffer.wrap(moovData), position);
+				ParsableByteArray moov = new ParsableByteArray(moovData, moovData.length);
+				moov.setPosition(Mp4Util.ATOM_HEADER_SIZE);
+				return parseContainerAtom(moov, Atom.TYPE_moov, moovData.length);
+			}
+			position += atomSize;
+		}
+		return null;
+	}
+
+	private static Atom.ContainerAtom parseContainerAtom(ParsableByteArray data, int type, int endPosition)
+			throws ParserException {
+		Atom.ContainerAtom container = new Atom.ContainerAtom(type, endPosition);
+		while (data.getPosition() + Mp4Util.ATOM_HEADER_SIZE <= endPosition) {
+			int atomStart = data.getPosition();
+			long atomSize = data.readUnsignedInt();
+			int atomType = data.readInt();
+			if (atomSize == Mp4Util.LONG_ATOM_SIZE) {
+				atomSize = data.readUnsignedLongToLong();
+			} else if (atomSize == 0) {
+				atomSize = endPosition - atomStart;
+			}
+			if (atomSize < Mp4Util.ATOM_HEADER_SIZE || atomStart + atomSize > endPosition) {
+				throw new ParserException("invalid atom size : " + atomSize);
+			}
+			int atomEnd = atomStart + (int) atomSize;
+
+			if (isContainerAtom(atomType)) {
+				container.add(parseContainerAtom(data, atomType, atomEnd));
+			} else if (isLeafAtom(atomType)) {
+				// leaf atoms keep their header - the common parsers expect absolute positions
+				byte[] leafData = Arrays.copyOfRange(data.data, atomStart, atomEnd);
+				container.add(new Atom.LeafAtom(atomType, new ParsableByteArray(leafData, leafData.length)));
+			}
+			data.setPosition(atomEnd);
+		}
+		return container;
+	}
+
+	private void parseTracks(Atom.ContainerAtom moov) throws ParserException {
+		Atom.LeafAtom mvhd = moov.getLeafAtomOfType(Atom.TYPE_mvhd);
+		if (mvhd == null) {
+			throw new ParserException("no mvhd atom found");
+		}
+
+		List<Track> tracks = new ArrayList<>();
+		List<Mp4TrackSampleTable> sampleTables = new ArrayList<>();
+		for (Atom.ContainerAtom trak : moov.containerChildren) {
+			if (trak.type != Atom.TYPE_trak) {
+				continue;
+			}
+			Track track = CommonMp4AtomParsers.parseTrak(trak, mvhd);
+			if (track == null || track.mediaFormat == null
+					|| (track.type != Track.TYPE_VIDEO && track.type != Track.TYPE_AUDIO)) {
+				continue;
+			}
+			Atom.ContainerAtom stbl = trak.getContainerAtomOfType(Atom.TYPE_mdia)
+					.getContainerAtomOfType(Atom.TYPE_minf)
+					.getContainerAtomOfType(Atom.TYPE_stbl);
+			Mp4TrackSampleTable sampleTable = CommonMp4AtomParsers.parseStbl(track, stbl);
+			if (sampleTable.getSampleCount() == 0) {
+				continue;
+			}
+			tracks.add(track);
+			sampleTables.add(sampleTable);
+		}
+
+		int trackCount = tracks.size();
+		mTracks = tracks.toArray(new Track[trackCount]);
+		mSampleTables = sampleTables.toArray(new Mp4TrackSampleTable[trackCount]);
+		mMediaFormats = new MediaFormat[trackCount];
+		mTrackInfos = new TrackInfo[trackCount];
+		mTrackSlices = new ByteBuffer[trackCount];
+		mSampleIndices = new int[trackCount];
+		for (int i = 0; i < trackCount; i++) {
+			mMediaFormats[i] = withMaxInputSize(mTracks[i], getMaxSampleSize(mSampleTables[i]));
+			mTrackInfos[i] = new TrackInfo(mMediaFormats[i].mimeType, mTracks[i].durationUs);
+			if (mMappedBuffer != null) {
+				mTrackSlices[i] = mMappedBuffer.duplicate();
+			}
+		}
+	}
+
+	private static int getMaxSampleSize(Mp4TrackSampleTable sampleTable) {
+		int maxSampleSize = 0;
+		for (int size : sampleTable.sizes) {
+			maxSampleSize = Math.max(maxSampleSize, size);
+		}
+		return maxSampleSize;
+	}
+
+	/** the decoder input buffers must be able to hold the largest sample in the table */
+	private static MediaFormat withMaxInputSize(Track track, int maxSampleSize) {
+		MediaFormat format = track.mediaFormat;
+		if (format.maxInputSize != MediaFormat.NO_VALUE && format.maxInputSize >= maxSampleSize) {
+			return format;
+		}
+		if (track.type == Track.TYPE_VIDEO) {
+			return MediaFormat.createVideoFormat(format.mimeType, maxSampleSize, format.width, format.height,
+					format.pixelWidthHeightRatio, format.initializationData);
+		}
+		return MediaFormat.createAudioFormat(format.mimeType, maxSampleSize, format.channelCount,
+				format.sampleRate, format.initializationData);
+	}
+
+	private static boolean isContainerAtom(int type) {
+		return type == Atom.TYPE_moov || type == Atom.TYPE_trak || type == Atom.TYPE_mdia
+				|| type == Atom.TYPE_minf || type == Atom.TYPE_stbl;
+	}
+
+	private static boolean isLeafAtom(int type) {
+		return type == Atom.TYPE_mvhd || type == Atom.TYPE_tkhd || type == Atom.TYPE_mdhd
+				|| type == Atom.TYPE_hdlr || type == Atom.TYPE_stsd || type == Atom.TYPE_stts
+				|| type == Atom.TYPE_stss || type == Atom.TYPE_ctts || type == Atom.TYPE_stsc
+				|| type == Atom.TYPE_stsz || type == Atom.TYPE_stco || type == Atom.TYPE_co64;
+	}
+
+}
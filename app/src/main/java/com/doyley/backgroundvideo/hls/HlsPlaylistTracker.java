@@ -0,0 +1,153 @@
+package com.doyley.backgroundvideo.hls;
+
+import android.net.Uri;
+import android.os.Handler;
+import android.util.Log;
+
+import com.google.android.exoplayer.C;
+import com.google.android.exoplayer.hls.HlsMediaPlaylist;
+import com.google.android.exoplayer.hls.HlsPlaylist;
+import com.google.android.exoplayer.util.ManifestFetcher;
+import com.google.android.exoplayer.util.Util;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Follows a media playlist and feeds its segments to a {@link SegmentPrefetcher}.
+ *
+ * Live playlists are reloaded every target duration, or after half of it when a reload brought nothing
+ * new. Only segments past the last media sequence number we have seen are handed on, so a reload costs
+ * the prefetcher nothing for the part of the window it already knows. The tracker also passes the
+ * playhead to the prefetcher once a second so it can drop what has been played.
+ *
+ * Everything runs on the handler's thread.
+ */
+public class HlsPlaylistTracker implements ManifestFetcher.ManifestCallback<HlsPlaylist> {
+
+	public interface PlaybackPositionProvider {
+		long getPlaybackPositionUs();
+	}
+
+	private static final long POSITION_UPDATE_INTERVAL_MS = 1000;
+	// HlsChunkSource starts live playback this many segments from the end of the playlist
+	private static final int LIVE_START_SEGMENT_OFFSET = 3;
+
+	private final ManifestFetcher<HlsPlaylist> mPlaylistFetcher;
+	private final SegmentPrefetcher mPrefetcher;
+	private final Handler mHandler;
+	private final PlaybackPositionProvider mPositionProvider;
+
+	private int mNextMediaSequence = -1;
+	private long mTimelineEndUs;
+	private boolean mLive = true;
+	private boolean mStopped;
+	private int mRefreshCount;
+	private int mUnchangedRefreshCount;
+
+	private final Runnable mRefreshRunnable = new Runnable() {
+		@Override
+		public void run() {
+			mPlaylistFetcher.singleLoad(mHandler.getLooper(), HlsPlaylistTracker.this);
+		}
+	};
+
+	private final Runnable mPositionUpdateRunnable = new Runnable() {
+		@Override
+		public void run() {
+			mPrefetcher.updatePlaybackPosition(mPositionProvider.getPlaybackPositionUs());
+			mHandler.postDelayed(this, POSITION_UPDATE_INTERVAL_MS);
+		}
+	};
+
+	public HlsPlaylistTracker(String mediaPlaylistUrl, SegmentPrefetcher prefetcher, Handler handler,
+	                          PlaybackPositionProvider positionProvider) {
+		mPlaylistFetcher = new ManifestFetcher<>(new StreamingPlaylistParser(), null, mediaPlaylistUrl,
+				HlsSampleSourceBuilder.USER_AGENT);
+		mPrefetcher = prefetcher;
+		mHandler = handler;
+		mPositionProvider = positionProvider;
+	}
+
+	/** starts tracking - initialPlaylist may be null, in which case it is fetched first */
+	public void start(HlsMediaPlaylist initialPlaylist) {
+		if (initialPlaylist != null) {
+			onMediaPlaylist(initialPlaylist);
+		} else {
+			mHandler.post(mRefreshRunnable);
+		}
+		mHandler.postDelayed(mPositionUpdateRunnable, POSITION_UPDATE_INTERVAL_MS);
+	}
+
+	public void stop() {
+		mStopped = true;
+		mHandler.removeCallbacks(mRefreshRunnable);
+		mHandler.removeCallbacks(mPositionUpdateRunnable);
+		Log.d(this.getClass().getSimpleName(), "stop : refreshes = " + mRefreshCount
+				+ ", unchanged = " + mUnchangedRefreshCount);
+	}
+
+	@Override
+	public void onManifest(String contentId, HlsPlaylist playlist) {
+		if (mStopped) {
+			return;
+		}
+		if (playlist.type != HlsPlaylist.TYPE_MEDIA) {
+			Log.w(this.getClass().getSimpleName(), "onManifest : expected a media playlist, stopped tracking");
+			return;
+		}
+		onMediaPlaylist((HlsMediaPlaylist) playlist);
+	}
+
+	@Override
+	public void onManifestError(String contentId, IOException e) {
+		if (mStopped) {
+			return;
+		}
+		// the chunk source copes on its own, we just try again a little later
+		Log.d(this.getClass().getSimpleName(), "onManifestError : " + e.getMessage());
+		mHandler.postDelayed(mRefreshRunnable, POSITION_UPDATE_INTERVAL_MS);
+	}
+
+	private void onMediaPlaylist(HlsMediaPlaylist playlist) {
+		List<HlsMediaPlaylist.Segment> segments = playlist.segments;
+		int firstNewIndex;
+		if (mNextMediaSequence == -1) {
+			// first load - live playback starts near the end, anything before that is never played
+			firstNewIndex = playlist.live ? Math.max(0, segments.size() - LIVE_START_SEGMENT_OFFSET) : 0;
+			mTimelineEndUs = 0;
+		} else {
+			firstNewIndex = mNextMediaSequence - playlist.mediaSequence;
+			if (firstNewIndex < 0) {
+				// the window slid past everything we knew about - carry on from its start
+				Log.d(this.getClass().getSimpleName(), "onMediaPlaylist : lost " + -firstNewIndex + " segments");
+				firstNewIndex = 0;
+			}
+		}
+
+		int added = 0;
+		for (int i = firstNewIndex; i < segments.size(); i++) {
+			HlsMediaPlaylist.Segment segment = segments.get(i);
+			long durationUs = (long) (segment.durationSecs * C.MICROS_PER_SECOND);
+			Uri uri = Util.getMergedUri(playlist.baseUri, segment.url);
+			mPrefetcher.addSegment(uri, segment.byterangeOffset, segment.byterangeLength, mTimelineEndUs,
+					durationUs);
+			mTimelineEndUs += durationUs;
+			added++;
+		}
+		mNextMediaSequence = Math.max(mNextMediaSequence, playlist.mediaSequence + segments.size());
+		mLive = playlist.live;
+		mRefreshCount++;
+
+		if (!mLive) {
+			return;
+		}
+		long refreshDelayMs = playlist.targetDurationSecs * 1000L;
+		if (added == 0) {
+			mUnchangedRefreshCount++;
+			refreshDelayMs /= 2;
+		}
+		mHandler.postDelayed(mRefreshRunnable, refreshDelayMs);
+	}
+
+}
@@ -0,0 +1,181 @@
+package com.doyley.backgroundvideo.hls;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.doyley.backgroundvideo.dash.DashSampleSourceBuilder;
+import com.doyley.backgroundvideo.upstream.IoScheduler;
+import com.doyley.backgroundvideo.upstream.SlidingWindowBandwidthMeter;
+import com.google.android.exoplayer.SampleSource;
+import com.google.android.exoplayer.hls.HlsChunkSource;
+import com.google.android.exoplayer.hls.HlsMasterPlaylist;
+import com.google.android.exoplayer.hls.HlsMediaPlaylist;
+import com.google.android.exoplayer.hls.HlsPlaylist;
+import com.google.android.exoplayer.hls.HlsSampleSource;
+import com.google.android.exoplayer.hls.Variant;
+import com.google.android.exoplayer.upstream.BandwidthMeter;
+import com.google.android.exoplayer.upstream.DataSource;
+import com.google.android.exoplayer.upstream.UriDataSource;
+import com.google.android.exoplayer.util.ManifestFetcher;
+import com.google.android.exoplayer.util.Util;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Fetches an HLS playlist and builds the sample source for it.
+ *
+ * The chunk source reads through a {@link PrefetchingDataSource}, and a {@link HlsPlaylistTracker} keeps
+ * the {@link SegmentPrefetcher} fed with the segments of the media playlist. For a master playlist the
+ * variant the bandwidth estimate points at is the one prefetched - should the chunk source pick another
+ * one its segments simply miss the prefetcher and are loaded as usual.
+ *
+ * The builder stays alive with the sample source - {@link #release()} stops tracking and prefetching.
+ */
+public class HlsSampleSourceBuilder implements ManifestFetcher.ManifestCallback<HlsPlaylist> {
+
+	public interface Callback {
+		void onSampleSource(SampleSource sampleSource);
+
+		void onSampleSourceError(Exception e);
+	}
+
+	public static final String USER_AGENT = DashSampleSourceBuilder.USER_AGENT;
+
+	private final String mPlaylistUri;
+	private final SlidingWindowBandwidthMeter mBandwidthMeter;
+	private final HlsPlaylistTracker.PlaybackPositionProvider mPositionProvider;
+
+	private Looper mLooper;
+	private Handler mHandler;
+	private Callback mCallback;
+	private HlsPlaylist mPlaylist;
+	private SegmentPrefetcher mPrefetcher;
+	private HlsPlaylistTracker mPlaylistTracker;
+	private boolean mReleased;
+
+	public HlsSampleSourceBuilder(String playlistUri, SlidingWindowBandwidthMeter bandwidthMeter,
+	                              HlsPlaylistTracker.PlaybackPositionProvider positionProvider) {
+		mPlaylistUri = playlistUri;
+		mBandwidthMeter = bandwidthMeter;
+		mPositionProvider = positionProvider;
+	}
+
+	/** returns true if the uri points at an HLS playlist */
+	public static boolean isHlsPlaylist(String uri) {
+		int queryIndex = uri.indexOf('?');
+		String path = queryIndex == -1 ? uri : uri.substring(0, queryIndex);
+		return path.endsWith(".m3u8");
+	}
+
+	/** loads the playlist - the callback, playlist refreshes and prefetch bookkeeping run on the given looper */
+	public void build(Looper looper, Callback callback) {
+		mLooper = looper;
+		mHandler = new Handler(looper);
+		mCallback = callback;
+		ManifestFetcher<HlsPlaylist> playlistFetcher = new ManifestFetcher<>(new StreamingPlaylistParser(), null,
+				mPlaylistUri, USER_AGENT);
+		playlistFetcher.singleLoad(looper, this);
+	}
+
+	/** stops a pending build from calling back and stops tracking the playlist */
+	public void release() {
+		mReleased = true;
+		if (mPlaylistTracker != null) {
+			mPlaylistTracker.stop();
+			mPlaylistTracker = null;
+		}
+		if (mPrefetcher != null) {
+			mPrefetcher.release();
+			mPrefetcher = null;
+		}
+	}
+
+	/**
+	 * builds the sample source again for a retry, with the same callback - from the playlist already fetched,
+	 * reading through the same prefetcher, so the segments it holds are not fetched twice
+	 */
+	public void rebuild() {
+		if (mReleased) {
+			return;
+		}
+		if (mPlaylist == null) {
+			build(mLooper, mCallback);
+		} else {
+			mCallback.onSampleSource(newSampleSource(mPlaylist));
+		}
+	}
+
+	/** frees the prefetched segments while the video is in the background - returns the bytes released */
+	public long suspendPrefetching() {
+		return mPrefetcher != null ? mPrefetcher.suspend() : 0;
+	}
+
+	public void resumePrefetching() {
+		if (mPrefetcher != null) {
+			mPrefetcher.resume();
+		}
+	}
+
+	@Override
+	public void onManifest(String contentId, HlsPlaylist playlist) {
+		if (mReleased) {
+			return;
+		}
+		mPlaylist = playlist;
+
+		String mediaPlaylistUri;
+		HlsMediaPlaylist mediaPlaylist = null;
+		if (playlist.type == HlsPlaylist.TYPE_MASTER) {
+			Variant variant = selectVariant(((HlsMasterPlaylist) playlist).variants);
+			mediaPlaylistUri = Util.getMergedUri(playlist.baseUri, variant.url).toString();
+			Log.d(this.getClass().getSimpleName(), "onManifest : prefetching variant with bandwidth "
+					+ variant.bandwidth);
+		} else {
+			mediaPlaylistUri = mPlaylistUri;
+			mediaPlaylist = (HlsMediaPlaylist) playlist;
+		}
+
+		mPrefetcher = new SegmentPrefetcher(new UriDataSource(USER_AGENT, mBandwidthMeter),
+				SegmentPrefetcher.DEFAULT_SEGMENTS_AHEAD, IoScheduler.getInstance());
+		mPlaylistTracker = new HlsPlaylistTracker(mediaPlaylistUri, mPrefetcher, mHandler, mPositionProvider);
+		mPlaylistTracker.start(mediaPlaylist);
+
+		mCallback.onSampleSource(newSampleSource(playlist));
+	}
+
+	@Override
+	public void onManifestError(String contentId, IOException e) {
+		if (mReleased) {
+			return;
+		}
+		mCallback.onSampleSourceError(e);
+	}
+
+	private SampleSource newSampleSource(HlsPlaylist playlist) {
+		DataSource dataSource = new PrefetchingDataSource(new UriDataSource(USER_AGENT, mBandwidthMeter),
+				mPrefetcher);
+		HlsChunkSource chunkSource = new HlsChunkSource(dataSource, mPlaylistUri, playlist, mBandwidthMeter,
+				null, HlsChunkSource.ADAPTIVE_MODE_SPLICE);
+		return new HlsSampleSource(chunkSource, true, 2);
+	}
+
+	/** the highest bandwidth variant the current estimate allows, or the lowest one */
+	private Variant selectVariant(List<Variant> variants) {
+		long bitrateEstimate = mBandwidthMeter.getBitrateEstimate();
+		Variant selected = null;
+		Variant lowest = null;
+		for (Variant variant : variants) {
+			if (lowest == null || variant.bandwidth < lowest.bandwidth) {
+				lowest = variant;
+			}
+			if (bitrateEstimate != BandwidthMeter.NO_ESTIMATE && variant.bandwidth <= bitrateEstimate
+					&& (selected == null || variant.bandwidth > selected.bandwidth)) {
+				selected = variant;
+			}
+		}
+		return selected != null ? selected : lowest;
+	}
+
+}
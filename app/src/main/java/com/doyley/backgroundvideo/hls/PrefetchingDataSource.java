@@ -0,0 +1,69 @@
+package com.doyley.backgroundvideo.hls;
+
+import com.google.android.exoplayer.C;
+import com.google.android.exoplayer.upstream.DataSource;
+import com.google.android.exoplayer.upstream.DataSpec;
+
+import java.io.IOException;
+
+/**
+ * Serves segments the {@link SegmentPrefetcher} already holds and passes everything else, playlists
+ * and keys included, on to the upstream source.
+ */
+public class PrefetchingDataSource implements DataSource {
+
+	private final DataSource mUpstream;
+	private final SegmentPrefetcher mPrefetcher;
+	private final int[] mLengthHolder = new int[1];
+
+	private byte[] mData;
+	private int mDataPosition;
+	private int mDataLimit;
+	private boolean mUpstreamOpened;
+
+	public PrefetchingDataSource(DataSource upstream, SegmentPrefetcher prefetcher) {
+		mUpstream = upstream;
+		mPrefetcher = prefetcher;
+	}
+
+	@Override
+	public long open(DataSpec dataSpec) throws IOException {
+		byte[] data = mPrefetcher.getSegment(dataSpec.uri, dataSpec.absoluteStreamPosition, mLengthHolder);
+		if (data != null) {
+			int length = mLengthHolder[0];
+			if (dataSpec.length != C.LENGTH_UNBOUNDED) {
+				length = (int) Math.min(length, dataSpec.length);
+			}
+			mData = data;
+			mDataPosition = 0;
+			mDataLimit = length;
+			return length;
+		}
+		mUpstreamOpened = true;
+		return mUpstream.open(dataSpec);
+	}
+
+	@Override
+	public void close() throws IOException {
+		mData = null;
+		if (mUpstreamOpened) {
+			mUpstreamOpened = false;
+			mUpstream.close();
+		}
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int readLength) throws IOException {
+		if (mData == null) {
+			return mUpstream.read(buffer, offset, readLength);
+		}
+		if (mDataPosition == mDataLimit) {
+			return -1;
+		}
+		int length = Math.min(readLength, mDataLimit - mDataPosition);
+		System.arraycopy(mData, mDataPosition, buffer, offset, length);
+		mDataPosition += length;
+		return length;
+	}
+
+}
@@ -0,0 +1,270 @@
+package com.doyley.backgroundvideo.hls;
+
+import android.net.Uri;
+import android.util.Log;
+
+import com.doyley.backgroundvideo.upstream.IoScheduler;
+import com.google.android.exoplayer.C;
+import com.google.android.exoplayer.upstream.DataSource;
+import com.google.android.exoplayer.upstream.DataSpec;
+import com.google.android.exoplayer.util.Util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps a number of media segments ahead of the playhead downloaded into memory.
+ *
+ * Segments are announced by the {@link HlsPlaylistTracker} as they appear in the playlist and fetched one
+ * at a time as prefetch work of the {@link IoScheduler}, which makes them give way to playback reads. The
+ * chunk source reads them back through a {@link PrefetchingDataSource},
+ * so a segment that was prefetched in time is loaded without touching the network. Segments behind the
+ * playhead are dropped, which bounds the memory to roughly the target count.
+ */
+public class SegmentPrefetcher {
+
+	public static final int DEFAULT_SEGMENTS_AHEAD = 3;
+
+	private static final int READ_SIZE = 16 * 1024;
+	private static final int UNKNOWN_LENGTH_INITIAL_SIZE = 512 * 1024;
+
+	private static final class Segment {
+		final String key;
+		final Uri uri;
+		final int byterangeOffset;
+		final int byterangeLength;
+		final long startTimeUs;
+		final long endTimeUs;
+
+		boolean requested;
+		volatile boolean dropped;
+		byte[] data;
+		int dataLength;
+
+		Segment(Uri uri, int byterangeOffset, int byterangeLength, long startTimeUs, long endTimeUs) {
+			this.key = getKey(uri, byterangeOffset);
+			this.uri = uri;
+			this.byterangeOffset = byterangeOffset;
+			this.byterangeLength = byterangeLength;
+			this.startTimeUs = startTimeUs;
+			this.endTimeUs = endTimeUs;
+		}
+	}
+
+	private final DataSource mUpstream;
+	private final int mSegmentsAhead;
+	private final IoScheduler mScheduler;
+	private final List<Segment> mWindow = new ArrayList<>();
+
+	private IoScheduler.Task mFetchTask;
+
+	private long mPlaybackPositionUs;
+	private boolean mSuspended;
+	private boolean mReleased;
+
+	private int mHitCount;
+	private int mMissCount;
+	private long mPrefetchedBytes;
+
+	/** upstream is used by one fetch at a time only and must not be shared with the chunk source */
+	public SegmentPrefetcher(DataSource upstream, int segmentsAhead, IoScheduler scheduler) {
+		mUpstream = upstream;
+		mSegmentsAhead = segmentsAhead;
+		mScheduler = scheduler;
+	}
+
+	/** appends a segment to the end of the window - startTimeUs is on the playback timeline */
+	public synchronized void addSegment(Uri uri, int byterangeOffset, int byterangeLength, long startTimeUs,
+	                                    long durationUs) {
+		if (mReleased) {
+			return;
+		}
+		mWindow.add(new Segment(uri, byterangeOffset, byterangeLength, startTimeUs, startTimeUs + durationUs));
+		scheduleFetches();
+	}
+
+	/** drops everything that has been played and tops the window back up */
+	public synchronized void updatePlaybackPosition(long positionUs) {
+		if (mReleased) {
+			return;
+		}
+		mPlaybackPositionUs = positionUs;
+		while (!mWindow.isEmpty() && mWindow.get(0).endTimeUs <= positionUs) {
+			Segment segment = mWindow.remove(0);
+			segment.dropped = true;
+			segment.data = null;
+		}
+		scheduleFetches();
+	}
+
+	/**
+	 * returns the prefetched bytes of a segment or null if it is not (yet) available. the array may be
+	 * larger than the segment - the length is passed back through length[0]
+	 */
+	public synchronized byte[] getSegment(Uri uri, long byterangeOffset, int[] length) {
+		String key = getKey(uri, byterangeOffset);
+		for (int i = 0; i < mWindow.size(); i++) {
+			Segment segment = mWindow.get(i);
+			if (segment.key.equals(key)) {
+				if (segment.data == null) {
+					break;
+				}
+				mHitCount++;
+				length[0] = segment.dataLength;
+				return segment.data;
+			}
+		}
+		mMissCount++;
+		return null;
+	}
+
+	/**
+	 * drops the segments held in memory and stops prefetching until {@link #resume()} - returns the number
+	 * of bytes released. a segment still in flight is dropped when it completes
+	 */
+	public synchronized long suspend() {
+		mSuspended = true;
+		cancelFetch();
+		long releasedBytes = 0;
+		for (Segment segment : mWindow) {
+			if (segment.data != null) {
+				releasedBytes += segment.data.length;
+				segment.data = null;
+			}
+			segment.requested = false;
+		}
+		return releasedBytes;
+	}
+
+	public synchronized void resume() {
+		if (!mSuspended) {
+			return;
+		}
+		mSuspended = false;
+		scheduleFetches();
+	}
+
+	public synchronized void release() {
+		mReleased = true;
+		for (Segment segment : mWindow) {
+			segment.dropped = true;
+			segment.data = null;
+		}
+		mWindow.clear();
+		cancelFetch();
+		Log.d(this.getClass().getSimpleName(), "release : hits = " + mHitCount + ", misses = " + mMissCount
+				+ ", prefetched bytes = " + mPrefetchedBytes);
+	}
+
+	public synchronized int getHitCount() {
+		return mHitCount;
+	}
+
+	public synchronized int getMissCount() {
+		return mMissCount;
+	}
+
+	/** submits a fetch for the first segment in the window that has not been requested yet */
+	private void scheduleFetches() {
+		if (mSuspended || mReleased || mFetchTask != null) {
+			return;
+		}
+		int ahead = 0;
+		for (int i = 0; i < mWindow.size() && ahead < mSegmentsAhead; i++) {
+			final Segment segment = mWindow.get(i);
+			if (segment.endTimeUs <= mPlaybackPositionUs) {
+				continue;
+			}
+			ahead++;
+			if (!segment.requested) {
+				segment.requested = true;
+				mFetchTask = new IoScheduler.Task() {
+					@Override
+					public boolean run() {
+						return fetch(segment, this);
+					}
+				};
+				mScheduler.submit(IoScheduler.PRIORITY_PREFETCH, mFetchTask);
+				return;
+			}
+		}
+	}
+
+	/** a cancelled fetch that is already running keeps mFetchTask until it returns, so fetches never overlap */
+	private void cancelFetch() {
+		if (mFetchTask != null && mFetchTask.cancel()) {
+			mFetchTask = null;
+		}
+	}
+
+	/** runs on a scheduler worker - returns true if it yielded, to be run again from the start */
+	private boolean fetch(Segment segment, IoScheduler.Task task) {
+		if (segment.dropped || task.isCanceled()) {
+			onFetchDone(task);
+			return false;
+		}
+		if (task.isPreempted()) {
+			return true;
+		}
+		DataSpec dataSpec = new DataSpec(segment.uri, segment.byterangeOffset, segment.byterangeLength, null);
+		byte[] data = null;
+		int length = 0;
+		boolean yielded = false;
+		try {
+			long openedLength = mUpstream.open(dataSpec);
+			data = new byte[openedLength == C.LENGTH_UNBOUNDED ? UNKNOWN_LENGTH_INITIAL_SIZE : (int) openedLength];
+			while (!segment.dropped) {
+				if (task.shouldYield()) {
+					yielded = true;
+					break;
+				}
+				if (length == data.length) {
+					if (openedLength != C.LENGTH_UNBOUNDED) {
+						break;
+					}
+					byte[] grown = new byte[data.length * 2];
+					System.arraycopy(data, 0, grown, 0, length);
+					data = grown;
+				}
+				int read = mUpstream.read(data, length, Math.min(READ_SIZE, data.length - length));
+				if (read == -1) {
+					break;
+				}
+				length += read;
+			}
+		} catch (IOException e) {
+			// the chunk source will load the segment itself
+			Log.d(this.getClass().getSimpleName(), "fetch : failed for " + segment.uri + " : " + e.getMessage());
+			data = null;
+		} finally {
+			Util.closeQuietly(mUpstream);
+		}
+
+		if (yielded && !task.isCanceled()) {
+			// run again from the start once playback reads are done - the task stays ours meanwhile
+			return true;
+		}
+		synchronized (this) {
+			if (data != null && !segment.dropped && !task.isCanceled()) {
+				segment.data = data;
+				segment.dataLength = length;
+				mPrefetchedBytes += length;
+			}
+		}
+		onFetchDone(task);
+		return false;
+	}
+
+	private synchronized void onFetchDone(IoScheduler.Task task) {
+		if (mFetchTask == task) {
+			mFetchTask = null;
+		}
+		scheduleFetches();
+	}
+
+	private static String getKey(Uri uri, long byterangeOffset) {
+		return byterangeOffset == 0 ? uri.toString() : uri.toString() + '@' + byterangeOffset;
+	}
+
+}
@@ -0,0 +1,372 @@
+package com.doyley.backgroundvideo.hls;
+
+import android.net.Uri;
+
+import com.google.android.exoplayer.C;
+import com.google.android.exoplayer.ParserException;
+import com.google.android.exoplayer.hls.HlsMasterPlaylist;
+import com.google.android.exoplayer.hls.HlsMediaPlaylist;
+import com.google.android.exoplayer.hls.HlsPlaylist;
+import com.google.android.exoplayer.hls.Variant;
+import com.google.android.exoplayer.util.ManifestParser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * M3U8 parser that works on the raw bytes of each line.
+ *
+ * Lines are assembled in a reusable buffer and tags are matched by prefix, numbers are parsed straight
+ * from the bytes, and strings are only created for segment and variant urls and the few attribute values
+ * the playlist objects keep. A refreshed live playlist therefore costs little more than its segments.
+ *
+ * An instance keeps its buffers between calls and is not thread safe - give each fetcher its own.
+ */
+public final class StreamingPlaylistParser implements ManifestParser<HlsPlaylist> {
+
+	private static final Charset UTF_8 = Charset.forName(C.UTF8_NAME);
+
+	private static final byte[] TAG_HEADER = ascii("#EXTM3U");
+	private static final byte[] TAG_VERSION = ascii("#EXT-X-VERSION:");
+	private static final byte[] TAG_STREAM_INF = ascii("#EXT-X-STREAM-INF:");
+	private static final byte[] TAG_TARGET_DURATION = ascii("#EXT-X-TARGETDURATION:");
+	private static final byte[] TAG_MEDIA_SEQUENCE = ascii("#EXT-X-MEDIA-SEQUENCE:");
+	private static final byte[] TAG_MEDIA_DURATION = ascii("#EXTINF:");
+	private static final byte[] TAG_DISCONTINUITY = ascii("#EXT-X-DISCONTINUITY");
+	private static final byte[] TAG_KEY = ascii("#EXT-X-KEY:");
+	private static final byte[] TAG_BYTERANGE = ascii("#EXT-X-BYTERANGE:");
+	private static final byte[] TAG_ENDLIST = ascii("#EXT-X-ENDLIST");
+
+	private static final byte[] ATTR_BANDWIDTH = ascii("BANDWIDTH=");
+	private static final byte[] ATTR_CODECS = ascii("CODECS=");
+	private static final byte[] ATTR_RESOLUTION = ascii("RESOLUTION=");
+	private static final byte[] ATTR_METHOD = ascii("METHOD=");
+	private static final byte[] ATTR_URI = ascii("URI=");
+	private static final byte[] ATTR_IV = ascii("IV=");
+
+	private static final byte[] METHOD_NONE = ascii(HlsMediaPlaylist.ENCRYPTION_METHOD_NONE);
+
+	private static final int READ_BUFFER_SIZE = 8 * 1024;
+	private static final int INITIAL_LINE_LENGTH = 256;
+
+	private final byte[] mReadBuffer = new byte[READ_BUFFER_SIZE];
+	private byte[] mLine = new byte[INITIAL_LINE_LENGTH];
+	private int mLineLength;
+
+	private InputStream mInputStream;
+	private int mReadPosition;
+	private int mReadLimit;
+
+	// attribute values are located in place - these hold the bounds of the last one found
+	private int mValueStart;
+	private int mValueEnd;
+
+	@Override
+	public HlsPlaylist parse(InputStream inputStream, String inputEncoding, String contentId, Uri baseUri)
+			throws IOException {
+		mInputStream = inputStream;
+		mReadPosition = 0;
+		mReadLimit = 0;
+		try {
+			return parsePlaylist(baseUri);
+		} finally {
+			mInputStream = null;
+		}
+	}
+
+	private HlsPlaylist parsePlaylist(Uri baseUri) throws IOException {
+		boolean sawHeader = false;
+		boolean sawTag = false;
+
+		List<Variant> variants = new ArrayList<>();
+		int variantBandwidth = 0;
+		String[] variantCodecs = null;
+		int variantWidth = -1;
+		int variantHeight = -1;
+		boolean expectingVariantUrl = false;
+
+		List<HlsMediaPlaylist.Segment> segments = new ArrayList<>();
+		int mediaSequence = 0;
+		int targetDurationSecs = 0;
+		int version = 1;
+		boolean live = true;
+		double segmentDurationSecs = 0;
+		boolean segmentDiscontinuity = false;
+		long segmentStartTimeUs = 0;
+		String encryptionMethod = null;
+		String encryptionKeyUri = null;
+		String encryptionIV = null;
+		int segmentMediaSequence = 0;
+		int byterangeOffset = 0;
+		int byterangeLength = C.LENGTH_UNBOUNDED;
+
+		while (readLine()) {
+			if (mLineLength == 0) {
+				continue;
+			}
+			if (mLine[0] != '#') {
+				String url = new String(mLine, 0, mLineLength, UTF_8);
+				if (expectingVariantUrl) {
+					variants.add(new Variant(variants.size(), url, variantBandwidth, variantCodecs, variantWidth,
+							variantHeight));
+					variantBandwidth = 0;
+					variantCodecs = null;
+					variantWidth = -1;
+					variantHeight = -1;
+					expectingVariantUrl = false;
+					continue;
+				}
+				if (!sawTag) {
+					throw new ParserException("Missing a tag before URL.");
+				}
+				String segmentIV = encryptionIV;
+				if (encryptionMethod != null && segmentIV == null) {
+					// without an explicit IV the media sequence number is used
+					segmentIV = Integer.toHexString(segmentMediaSequence);
+				}
+				segments.add(new HlsMediaPlaylist.Segment(url, segmentDurationSecs, segmentDiscontinuity,
+						segmentStartTimeUs, encryptionMethod, encryptionKeyUri, segmentIV, byterangeOffset,
+						byterangeLength));
+				segmentStartTimeUs += (long) (segmentDurationSecs * C.MICROS_PER_SECOND);
+				segmentMediaSequence++;
+				segmentDurationSecs = 0;
+				segmentDiscontinuity = false;
+				if (byterangeLength != C.LENGTH_UNBOUNDED) {
+					// a following byterange without an offset continues from here
+					byterangeOffset += byterangeLength;
+				}
+				byterangeLength = C.LENGTH_UNBOUNDED;
+				continue;
+			}
+
+			if (startsWith(TAG_HEADER)) {
+				sawHeader = true;
+				continue;
+			}
+			sawTag = true;
+			if (startsWith(TAG_MEDIA_DURATION)) {
+				segmentDurationSecs = parseDecimal(TAG_MEDIA_DURATION.length, mLineLength);
+			} else if (startsWith(TAG_BYTERANGE)) {
+				int start = TAG_BYTERANGE.length;
+				int at = indexOf('@', start, mLineLength);
+				if (at == -1) {
+					byterangeLength = parseInt(start, mLineLength);
+				} else {
+					byterangeLength = parseInt(start, at);
+					byterangeOffset = parseInt(at + 1, mLineLength);
+				}
+			} else if (startsWith(TAG_DISCONTINUITY)) {
+				segmentDiscontinuity = true;
+			} else if (startsWith(TAG_KEY)) {
+				if (!findAttribute(ATTR_METHOD) || regionEquals(mValueStart, mValueEnd, METHOD_NONE)) {
+					encryptionMethod = null;
+					encryptionKeyUri = null;
+					encryptionIV = null;
+				} else {
+					encryptionMethod = valueString();
+					encryptionKeyUri = findAttribute(ATTR_URI) ? valueString() : null;
+					encryptionIV = findAttribute(ATTR_IV) ? valueString() : null;
+				}
+			} else if (startsWith(TAG_MEDIA_SEQUENCE)) {
+				mediaSequence = parseInt(TAG_MEDIA_SEQUENCE.length, mLineLength);
+				segmentMediaSequence = mediaSequence;
+			} else if (startsWith(TAG_TARGET_DURATION)) {
+				targetDurationSecs = parseInt(TAG_TARGET_DURATION.length, mLineLength);
+			} else if (startsWith(TAG_VERSION)) {
+				version = parseInt(TAG_VERSION.length, mLineLength);
+			} else if (startsWith(TAG_ENDLIST)) {
+				live = false;
+			} else if (startsWith(TAG_STREAM_INF)) {
+				variantBandwidth = findAttribute(ATTR_BANDWIDTH) ? parseInt(mValueStart, mValueEnd) : 0;
+				variantCodecs = findAttribute(ATTR_CODECS) ? splitCodecs() : null;
+				if (findAttribute(ATTR_RESOLUTION)) {
+					int x = indexOf('x', mValueStart, mValueEnd);
+					if (x != -1) {
+						variantWidth = parseInt(mValueStart, x);
+						variantHeight = parseInt(x + 1, mValueEnd);
+					}
+				}
+				expectingVariantUrl = true;
+			}
+			// anything else is a tag we have no use for
+		}
+
+		if (!sawHeader && !sawTag) {
+			throw new ParserException("Failed to parse the playlist, could not identify any tags.");
+		}
+		if (!variants.isEmpty()) {
+			return new HlsMasterPlaylist(baseUri, variants);
+		}
+		return new HlsMediaPlaylist(baseUri, mediaSequence, targetDurationSecs, version, live, segments);
+	}
+
+	/** reads the next line into mLine without its terminator and trailing whitespace */
+	private boolean readLine() throws IOException {
+		mLineLength = 0;
+		boolean readAnything = false;
+		while (true) {
+			if (mReadPosition == mReadLimit) {
+				mReadLimit = mInputStream.read(mReadBuffer, 0, mReadBuffer.length);
+				mReadPosition = 0;
+				if (mReadLimit <= 0) {
+					mReadLimit = 0;
+					trimLine();
+					return readAnything;
+				}
+			}
+			byte b = mReadBuffer[mReadPosition++];
+			readAnything = true;
+			if (b == '\n' || b == '\r') {
+				if (mLineLength == 0) {
+					// the second half of a \r\n or an empty line
+					continue;
+				}
+				trimLine();
+				return true;
+			}
+			if (mLineLength == mLine.length) {
+				byte[] line = new byte[mLine.length * 2];
+				System.arraycopy(mLine, 0, line, 0, mLineLength);
+				mLine = line;
+			}
+			mLine[mLineLength++] = b;
+		}
+	}
+
+	private void trimLine() {
+		while (mLineLength > 0 && mLine[mLineLength - 1] <= ' ') {
+			mLineLength--;
+		}
+	}
+
+	private boolean startsWith(byte[] prefix) {
+		return mLineLength >= prefix.length && regionEquals(0, prefix.length, prefix);
+	}
+
+	private boolean regionEquals(int start, int end, byte[] value) {
+		if (end - start != value.length) {
+			return false;
+		}
+		for (int i = 0; i < value.length; i++) {
+			if (mLine[start + i] != value[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int indexOf(char c, int start, int end) {
+		for (int i = start; i < end; i++) {
+			if (mLine[i] == c) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * finds NAME= in the attribute list of the current line and sets mValueStart/mValueEnd to its value,
+	 * without the quotes if it is a quoted string
+	 */
+	private boolean findAttribute(byte[] name) {
+		int position = indexOf(':', 0, mLineLength) + 1;
+		boolean quoted = false;
+		while (position < mLineLength) {
+			// only match at the start of an attribute so IV= does not match inside another name
+			if (!quoted && (mLine[position - 1] == ':' || mLine[position - 1] == ',')
+					&& mLineLength - position >= name.length && regionEquals(position, position + name.length, name)) {
+				int start = position + name.length;
+				if (start < mLineLength && mLine[start] == '"') {
+					int close = indexOf('"', start + 1, mLineLength);
+					mValueStart = start + 1;
+					mValueEnd = close == -1 ? mLineLength : close;
+				} else {
+					int comma = indexOf(',', start, mLineLength);
+					mValueStart = start;
+					mValueEnd = comma == -1 ? mLineLength : comma;
+				}
+				return true;
+			}
+			if (mLine[position] == '"') {
+				quoted = !quoted;
+			}
+			position++;
+		}
+		return false;
+	}
+
+	private String valueString() {
+		return new String(mLine, mValueStart, mValueEnd - mValueStart, UTF_8);
+	}
+
+	private String[] splitCodecs() {
+		int count = 1;
+		for (int i = mValueStart; i < mValueEnd; i++) {
+			if (mLine[i] == ',') {
+				count++;
+			}
+		}
+		String[] codecs = new String[count];
+		int start = mValueStart;
+		for (int i = 0; i < count; i++) {
+			int end = indexOf(',', start, mValueEnd);
+			if (end == -1) {
+				end = mValueEnd;
+			}
+			int trimmedStart = start;
+			int trimmedEnd = end;
+			while (trimmedStart < trimmedEnd && mLine[trimmedStart] == ' ') {
+				trimmedStart++;
+			}
+			while (trimmedEnd > trimmedStart && mLine[trimmedEnd - 1] == ' ') {
+				trimmedEnd--;
+			}
+			codecs[i] = new String(mLine, trimmedStart, trimmedEnd - trimmedStart, UTF_8);
+			start = end + 1;
+		}
+		return codecs;
+	}
+
+	private int parseInt(int start, int end) throws ParserException {
+		int value = 0;
+		int i = start;
+		for (; i < end && mLine[i] >= '0' && mLine[i] <= '9'; i++) {
+			value = value * 10 + (mLine[i] - '0');
+		}
+		if (i == start) {
+			throw new ParserException("Expected a number in " + new String(mLine, 0, mLineLength, UTF_8));
+		}
+		return value;
+	}
+
+	/** parses the leading decimal of the region - #EXTINF durations are followed by a comma and a title */
+	private double parseDecimal(int start, int end) throws ParserException {
+		long integerPart = 0;
+		long fraction = 0;
+		long fractionScale = 1;
+		int i = start;
+		for (; i < end && mLine[i] >= '0' && mLine[i] <= '9'; i++) {
+			integerPart = integerPart * 10 + (mLine[i] - '0');
+		}
+		if (i == start) {
+			throw new ParserException("Expected a duration in " + new String(mLine, 0, mLineLength, UTF_8));
+		}
+		if (i < end && mLine[i] == '.') {
+			for (i++; i < end && mLine[i] >= '0' && mLine[i] <= '9'; i++) {
+				if (fractionScale < 1000000000L) {
+					fraction = fraction * 10 + (mLine[i] - '0');
+					fractionScale *= 10;
+				}
+			}
+		}
+		return integerPart + (double) fraction / fractionScale;
+	}
+
+	private static byte[] ascii(String value) {
+		return value.getBytes(Charset.forName("US-ASCII"));
+	}
+
+}
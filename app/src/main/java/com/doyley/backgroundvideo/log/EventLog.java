@@ -0,0 +1,192 @@
+package com.doyley.backgroundvideo.log;
+
+import com.doyley.backgroundvideo.BuildConfig;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A binary event log for the playback hot paths, kept in memory and turned into text only when dumped.
+ *
+ * An event is a fixed size record - an event id, a timestamp and two longs - written into a preallocated
+ * {@link RecordRing} without locks or allocations, the oldest records being overwritten. Strings such as uris are
+ * interned once into a small table and logged by id. Calls are guarded by {@link #ENABLED}, a compile time
+ * constant that is false in release builds, so there the calls are compiled out :
+ *
+ *     if (EventLog.ENABLED) {
+ *         EventLog.log(EventLog.LOAD_VIDEO, uriId, positionMs);
+ *     }
+ *
+ * The log is dumped with {@code adb shell dumpsys activity service VideoService}.
+ */
+public final class EventLog {
+
+	/** compile time gate - see the release build type */
+	public static final boolean ENABLED = BuildConfig.EVENT_LOG;
+
+	public static final int SERVICE_CREATE = 1;
+	public static final int SERVICE_DESTROY = 2;
+	public static final int START_COMMAND = 3;
+	public static final int SERVICE_RESTART = 4;
+	public static final int PLAYBACK_INFO = 5;
+	public static final int PLAYBACK_COMPLETED = 6;
+	public static final int MEDIA_PREPARED = 7;
+	public static final int DRAWN_TO_SURFACE = 8;
+	public static final int ASPECT_RATIO_CHANGED = 9;
+	public static final int TRIM_MEMORY = 10;
+	public static final int START = 11;
+	public static final int LOAD_VIDEO = 12;
+	public static final int SET_BACKGROUNDED = 13;
+	public static final int BEGIN_VIDEO = 14;
+	public static final int START_ACTIVITY = 15;
+	public static final int SET_SURFACE = 16;
+	public static final int TEAR_DOWN = 17;
+	public static final int RESTORE_SESSION = 18;
+	public static final int SESSION_RESTORED = 19;
+	public static final int DOWNLOAD_PROGRESS = 20;
+	public static final int DOWNLOAD_COMPLETED = 21;
+	public static final int PLAYER_INITIALIZE = 22;
+	public static final int PLAYER_STATE_CHANGED = 23;
+	public static final int DROPPED_FRAMES = 24;
+	public static final int VIDEO_SIZE_CHANGED = 25;
+	public static final int PLAYER_TEAR_DOWN = 26;
+	public static final int STALL_DETECTED = 27;
+	public static final int STALL_RECOVERY = 28;
+	public static final int STALL_RECOVERED = 29;
+	public static final int AUDIO_TRACK_SWITCHED = 30;
+	public static final int AV_SYNC_CATCH_UP = 31;
+
+	/** how each event is printed - %s is an interned string, %d a number */
+	private static final String[] FORMATS = {
+			null,
+			"service create",
+			"service destroy",
+			"start command : action = %s, start id = %d",
+			"service restart : restoring = %d",
+			"playback info : state = %d, playing = %d",
+			"playback completed",
+			"media prepared : duration = %d",
+			"drawn to surface",
+			"aspect ratio changed",
+			"trim memory : level = %d",
+			"start : prepared = %d",
+			"load video : uri = %s, start position = %d",
+			"set backgrounded : %d",
+			"begin video : activity requested = %d, start requested = %d",
+			"start activity",
+			"set surface : %d",
+			"tear down",
+			"restore session : uri = %s, position = %d",
+			"session restored : latency = %dms",
+			"download progress : %d/%d",
+			"download completed : uri = %s",
+			"player initialize : source = %s, type = %d",
+			"player state changed : state = %d, play when ready = %d",
+			"dropped frames : %d in %dms",
+			"video size changed : %dx%d",
+			"player tear down",
+			"stall detected : position = %d, stalled for %dms",
+			"stall recovery : level = %d, position = %d",
+			"stall recovered : after %dms, level = %d",
+			"audio track switched : track = %d, gap = %dms",
+			"a/v sync catch up : video behind by %dms at %d"
+	};
+
+	private static final int CAPACITY = 4096;
+	private static final int MAX_STRINGS = 1024;
+
+	private static final RecordRing sRing = new RecordRing(CAPACITY, false);
+	private static final ConcurrentHashMap<String, Long> sStringIds = new ConcurrentHashMap<>();
+	private static final List<String> sStrings = new ArrayList<>();
+
+	private EventLog() {
+	}
+
+	public static void log(int event) {
+		log(event, 0, 0);
+	}
+
+	public static void log(int event, long a) {
+		log(event, a, 0);
+	}
+
+	public static void log(int event, long a, long b) {
+		sRing.write(event, System.nanoTime(), a, b, null);
+	}
+
+	/** returns the id a string is logged by - no allocation once a string is known, -1 once the table is full */
+	public static long intern(String value) {
+		if (value == null) {
+			return -1;
+		}
+		Long id = sStringIds.get(value);
+		if (id != null) {
+			return id;
+		}
+		synchronized (sStrings) {
+			id = sStringIds.get(value);
+			if (id == null) {
+				if (sStrings.size() == MAX_STRINGS) {
+					return -1;
+				}
+				id = (long) sStrings.size();
+				sStrings.add(value);
+				sStringIds.put(value, id);
+			}
+			return id;
+		}
+	}
+
+	/** prints the records still in the ring, oldest first, with their age relative to the newest one */
+	public static void dump(PrintWriter writer) {
+		long next = sRing.getNextSequence();
+		long[] record = new long[RecordRing.RECORD_LONGS];
+		List<long[]> records = new ArrayList<>();
+		for (long sequence = sRing.getFirstSequence(); sequence < next; sequence++) {
+			// skipped if overwritten or still being written
+			if (sRing.read(sequence, record, null)) {
+				records.add(record.clone());
+			}
+		}
+		writer.println("event log : " + records.size() + " of " + next + " events");
+		if (records.isEmpty()) {
+			return;
+		}
+		long newestNs = records.get(records.size() - 1)[1];
+		for (long[] event : records) {
+			writer.println(String.format(Locale.US, "%10.3f ", (event[1] - newestNs) / 1000000.0)
+					+ decode((int) event[0], event[2], event[3]));
+		}
+	}
+
+	private static String decode(int event, long a, long b) {
+		if (event <= 0 || event >= FORMATS.length) {
+			return "unknown event " + event + " : " + a + ", " + b;
+		}
+		String format = FORMATS[event];
+		StringBuilder text = new StringBuilder(format.length() + 32);
+		long[] args = {a, b};
+		int arg = 0;
+		for (int i = 0; i < format.length(); i++) {
+			char c = format.charAt(i);
+			if (c == '%' && i + 1 < format.length() && arg < args.length) {
+				char type = format.charAt(++i);
+				text.append(type == 's' ? lookup(args[arg]) : String.valueOf(args[arg]));
+				arg++;
+			} else {
+				text.append(c);
+			}
+		}
+		return text.toString();
+	}
+
+	private static String lookup(long id) {
+		synchronized (sStrings) {
+			return id >= 0 && id < sStrings.size() ? sStrings.get((int) id) : "?";
+		}
+	}
+
+}
@@ -0,0 +1,168 @@
+package com.doyley.backgroundvideo.log;
+
+import android.os.Process;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Spans and instant events of the playback session, across the main, background and ExoPlayer threads,
+ * exported as Chrome trace-event JSON - load the file in chrome://tracing or Perfetto.
+ *
+ * Tracing is off until {@link #start()}. While it is off every call returns on its first branch. Events go
+ * into a preallocated {@link RecordRing}, the oldest being overwritten, and names must be constants - they
+ * are stored by reference. Spans are matched by the viewer per thread, so a begin and its end must happen on
+ * the same one.
+ */
+public final class PlaybackTrace {
+
+	private static final int CAPACITY = 16384;
+	private static final char PHASE_BEGIN = 'B';
+	private static final char PHASE_END = 'E';
+	private static final char PHASE_INSTANT = 'i';
+
+	private static volatile boolean sEnabled;
+
+	// phase, thread id, timestamp and argument, with the name as the reference
+	private static final RecordRing sRing = new RecordRing(CAPACITY, true);
+	private static final ConcurrentHashMap<Integer, String> sThreadNames = new ConcurrentHashMap<>();
+	private static final ThreadLocal<int[]> sThreadId = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			int tid = Process.myTid();
+			sThreadNames.put(tid, Thread.currentThread().getName());
+			return new int[]{tid};
+		}
+	};
+
+	private PlaybackTrace() {
+	}
+
+	/** clears what was recorded and starts recording */
+	public static synchronized void start() {
+		sRing.clear();
+		sEnabled = true;
+	}
+
+	public static synchronized void stop() {
+		sEnabled = false;
+	}
+
+	public static boolean isEnabled() {
+		return sEnabled;
+	}
+
+	public static void begin(String name) {
+		if (sEnabled) {
+			record(PHASE_BEGIN, name, 0);
+		}
+	}
+
+	public static void begin(String name, long arg) {
+		if (sEnabled) {
+			record(PHASE_BEGIN, name, arg);
+		}
+	}
+
+	public static void end(String name) {
+		if (sEnabled) {
+			record(PHASE_END, name, 0);
+		}
+	}
+
+	public static void instant(String name, long arg) {
+		if (sEnabled) {
+			record(PHASE_INSTANT, name, arg);
+		}
+	}
+
+	/** writes what is in the ring to a file - returns the number of events written */
+	public static int export(File file) throws IOException {
+		Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		try {
+			return export(writer);
+		} finally {
+			writer.close();
+		}
+	}
+
+	public static synchronized int export(Writer writer) throws IOException {
+		int pid = Process.myPid();
+		long next = sRing.getNextSequence();
+		long[] record = new long[RecordRing.RECORD_LONGS];
+		Object[] object = new Object[1];
+		int count = 0;
+		StringBuilder event = new StringBuilder(128);
+		writer.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+		for (long sequence = sRing.getFirstSequence(); sequence < next; sequence++) {
+			if (!sRing.read(sequence, record, object)) {
+				// overwritten, or from before the last start
+				continue;
+			}
+			String name = (String) object[0];
+			char phase = (char) record[0];
+			long tid = record[1];
+			long timestampNs = record[2];
+			long arg = record[3];
+			event.setLength(0);
+			if (count > 0) {
+				event.append(',');
+			}
+			event.append("\n{\"name\":");
+			appendString(event, name);
+			event.append(",\"ph\":\"").append(phase).append("\",\"ts\":").append(timestampNs / 1000)
+					.append('.').append(String.format(Locale.US, "%03d", timestampNs % 1000))
+					.append(",\"pid\":").append(pid).append(",\"tid\":").append(tid);
+			if (phase == PHASE_INSTANT) {
+				event.append(",\"s\":\"t\"");
+			}
+			if (phase != PHASE_END) {
+				event.append(",\"args\":{\"arg\":").append(arg).append('}');
+			}
+			event.append('}');
+			writer.write(event.toString());
+			count++;
+		}
+		for (Integer tid : sThreadNames.keySet()) {
+			event.setLength(0);
+			if (count > 0) {
+				event.append(',');
+			}
+			event.append("\n{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":").append(pid).append(",\"tid\":")
+					.append(tid).append(",\"args\":{\"name\":");
+			appendString(event, sThreadNames.get(tid));
+			event.append("}}");
+			writer.write(event.toString());
+			count++;
+		}
+		writer.write("\n]}\n");
+		writer.flush();
+		return count;
+	}
+
+	private static void record(char phase, String name, long arg) {
+		int tid = sThreadId.get()[0];
+		sRing.write(phase, tid, System.nanoTime(), arg, name);
+	}
+
+	private static void appendString(StringBuilder builder, String value) {
+		builder.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				builder.append('\\').append(c);
+			} else if (c < 0x20) {
+				builder.append(String.format(Locale.US, "\\u%04x", (int) c));
+			} else {
+				builder.append(c);
+			}
+		}
+		builder.append('"');
+	}
+
+}
@@ -0,0 +1,89 @@
+package com.doyley.backgroundvideo.log;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The ring behind {@link EventLog} and {@link PlaybackTrace} - fixed size records written from any thread
+ * without locks or allocations, the oldest being overwritten.
+ *
+ * A record is four longs and, if the ring is made with them, a reference. Each slot has a published word,
+ * 0 if empty, -(sequence + 1) while being written and sequence + 1 once written. A reader copies the record
+ * and checks the word on both sides of the copy, so a record overwritten while it was read is skipped
+ * rather than torn. For that check to hold, the record itself is written with ordered stores and read with
+ * volatile loads - plain accesses could move across the published word. Writers racing for the same slot
+ * a whole ring apart are not guarded against - the ring is sized so that never happens.
+ */
+final class RecordRing {
+
+	static final int RECORD_LONGS = 4;
+
+	private final int mCapacity;
+	private final int mMask;
+	private final AtomicLongArray mRecords;
+	private final AtomicReferenceArray<Object> mObjects;
+	private final AtomicLongArray mPublished;
+	private final AtomicLong mNextSequence = new AtomicLong();
+
+	/** capacity is a power of two */
+	RecordRing(int capacity, boolean withObjects) {
+		mCapacity = capacity;
+		mMask = capacity - 1;
+		mRecords = new AtomicLongArray(capacity * RECORD_LONGS);
+		mObjects = withObjects ? new AtomicReferenceArray<>(capacity) : null;
+		mPublished = new AtomicLongArray(capacity);
+	}
+
+	void write(long a, long b, long c, long d, Object object) {
+		long sequence = mNextSequence.getAndIncrement();
+		int slot = (int) (sequence & mMask);
+		int offset = slot * RECORD_LONGS;
+		mPublished.set(slot, -(sequence + 1));
+		mRecords.lazySet(offset, a);
+		mRecords.lazySet(offset + 1, b);
+		mRecords.lazySet(offset + 2, c);
+		mRecords.lazySet(offset + 3, d);
+		if (mObjects != null) {
+			mObjects.lazySet(slot, object);
+		}
+		mPublished.lazySet(slot, sequence + 1);
+	}
+
+	/** sequence of the next record to be written - also how many have been */
+	long getNextSequence() {
+		return mNextSequence.get();
+	}
+
+	/** sequence of the oldest record that can still be in the ring */
+	long getFirstSequence() {
+		return Math.max(0, mNextSequence.get() - mCapacity);
+	}
+
+	/**
+	 * copies a record into record, and its reference into object[0] if object is not null - false if it has
+	 * been overwritten, or is still being written
+	 */
+	boolean read(long sequence, long[] record, Object[] object) {
+		int slot = (int) (sequence & mMask);
+		if (mPublished.get(slot) != sequence + 1) {
+			return false;
+		}
+		int offset = slot * RECORD_LONGS;
+		for (int i = 0; i < RECORD_LONGS; i++) {
+			record[i] = mRecords.get(offset + i);
+		}
+		if (object != null) {
+			object[0] = mObjects != null ? mObjects.get(slot) : null;
+		}
+		return mPublished.get(slot) == sequence + 1;
+	}
+
+	/** empties the slots - records written before are not read any more */
+	void clear() {
+		for (int i = 0; i < mCapacity; i++) {
+			mPublished.set(i, 0);
+		}
+	}
+
+}
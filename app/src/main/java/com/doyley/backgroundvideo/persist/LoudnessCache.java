@@ -0,0 +1,75 @@
+package com.doyley.backgroundvideo.persist;
+
+import android.content.SharedPreferences;
+
+import java.util.Map;
+
+/**
+ * Remembers the loudness measured of each video, keyed by its uri, so the next time it is played it can
+ * be normalized from the first sample.
+ *
+ * Entries are kept in the given preferences as "loudness,duration ms,saved at ms". Once there are more
+ * than MAX_ENTRIES the ones saved longest ago are dropped.
+ */
+public class LoudnessCache {
+
+	public static final String PREFERENCES_NAME = "loudness_cache";
+
+	private static final int MAX_ENTRIES = 256;
+
+	private final SharedPreferences mPreferences;
+
+	public LoudnessCache(SharedPreferences preferences) {
+		mPreferences = preferences;
+	}
+
+	/** loudness in LUFS measured of the uri, or NaN if it has not been */
+	public float getLoudness(String uri) {
+		String[] entry = getEntry(uri);
+		return entry == null ? Float.NaN : Float.parseFloat(entry[0]);
+	}
+
+	/** duration in ms of the audio the loudness of the uri was measured over, 0 if it has not been */
+	public long getDurationMs(String uri) {
+		String[] entry = getEntry(uri);
+		return entry == null ? 0 : Long.parseLong(entry[1]);
+	}
+
+	/** keeps a measurement if it was made over more audio than the one kept for the uri, if any */
+	public void put(String uri, float loudnessLufs, long durationMs) {
+		if (Float.isNaN(loudnessLufs) || durationMs <= getDurationMs(uri)) {
+			return;
+		}
+		SharedPreferences.Editor editor = mPreferences.edit();
+		editor.putString(uri, loudnessLufs + "," + durationMs + "," + System.currentTimeMillis());
+		Map<String, ?> entries = mPreferences.getAll();
+		for (int excess = entries.size() + (entries.containsKey(uri) ? 0 : 1) - MAX_ENTRIES; excess > 0; excess--) {
+			String oldestUri = null;
+			long oldestMs = Long.MAX_VALUE;
+			for (Map.Entry<String, ?> entry : entries.entrySet()) {
+				String[] fields = parse(entry.getValue());
+				long savedMs = fields == null ? 0 : Long.parseLong(fields[2]);
+				if (!entry.getKey().equals(uri) && savedMs < oldestMs) {
+					oldestUri = entry.getKey();
+					oldestMs = savedMs;
+				}
+			}
+			editor.remove(oldestUri);
+			entries.remove(oldestUri);
+		}
+		editor.apply();
+	}
+
+	private String[] getEntry(String uri) {
+		return parse(mPreferences.getString(uri, null));
+	}
+
+	private static String[] parse(Object value) {
+		if (!(value instanceof String)) {
+			return null;
+		}
+		String[] fields = ((String) value).split(",");
+		return fields.length == 3 ? fields : null;
+	}
+
+}
@@ -0,0 +1,342 @@
+package com.doyley.backgroundvideo.persist;
+
+import android.os.Handler;
+import android.util.Log;
+
+import com.google.android.exoplayer.util.Util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.CRC32;
+
+/**
+ * Remembers the playback position of every video, keyed by its uri.
+ *
+ * Positions are kept in memory for lookups and appended to a memory mapped journal on a thread of its own,
+ * so recording a position costs the caller a map update. The journal is loaded on that thread too, and
+ * nothing waits for it : a lookup made before it is loaded is answered through a callback once it is, and
+ * what is recorded or removed meanwhile wins over what the journal held. Writes into the mapping survive
+ * the process being killed. Every record carries a checksum and the header holds the end of the last
+ * complete record, so a torn append is simply ignored on the next load. Once most of the journal is
+ * superseded records it is compacted into a fresh file holding one record per video.
+ *
+ * Record layout : key length (short), position in ms (long, -1 removes the key), key (UTF-8), CRC32 of
+ * everything before it (int).
+ */
+public class PositionJournal {
+
+	public interface PositionCallback {
+
+		/** called on the handler the lookup was made with - positionMs is -1 if there is none */
+		void onPosition(String uri, long positionMs);
+	}
+
+	private static final int MAGIC = 0x504a4e4c;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 12;
+	private static final int END_OFFSET_POSITION = 8;
+	private static final int RECORD_OVERHEAD = 2 + 8 + 4;
+	private static final int MAX_KEY_LENGTH = Short.MAX_VALUE;
+	private static final int INITIAL_CAPACITY = 64 * 1024;
+	/** below this the journal is never compacted */
+	private static final int COMPACT_MIN_SIZE = 256 * 1024;
+
+	private final File mFile;
+	private final ExecutorService mExecutor;
+	private final Map<String, Long> mPositions = new HashMap<>();
+	/** guarded by mPositions - videos removed before the load finished, which the load must not bring back */
+	private final Set<String> mRemovedWhileLoading = new HashSet<>();
+	private volatile boolean mLoaded;
+
+	// only touched on the journal thread
+	private final CRC32 mCrc = new CRC32();
+	private RandomAccessFile mRandomAccessFile;
+	private MappedByteBuffer mBuffer;
+	private int mEnd;
+
+	public PositionJournal(File file) {
+		this(file, Util.newSingleThreadExecutor("PositionJournal"));
+	}
+
+	/** executor must run one task at a time, in order */
+	PositionJournal(File file, ExecutorService executor) {
+		mFile = file;
+		mExecutor = executor;
+	}
+
+	/** loads the journal in the background */
+	public void open() {
+		mExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				load();
+				synchronized (mPositions) {
+					mRemovedWhileLoading.clear();
+					mLoaded = true;
+				}
+			}
+		});
+	}
+
+	/** true once the journal is loaded, and {@link #getPositionMs(String)} can answer */
+	public boolean isLoaded() {
+		return mLoaded;
+	}
+
+	/** returns the last recorded position of a video in ms, or -1 if there is none or the journal is not loaded */
+	public long getPositionMs(String uri) {
+		if (!mLoaded) {
+			return -1;
+		}
+		synchronized (mPositions) {
+			Long positionMs = mPositions.get(uri);
+			return positionMs == null ? -1 : positionMs;
+		}
+	}
+
+	/** looks the last recorded position of a video up once the journal is loaded, and posts it to handler */
+	public void getPositionMs(final String uri, final Handler handler, final PositionCallback callback) {
+		try {
+			// queued behind the load
+			mExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					final long positionMs = getPositionMs(uri);
+					handler.post(new Runnable() {
+						@Override
+						public void run() {
+							callback.onPosition(uri, positionMs);
+						}
+					});
+				}
+			});
+		} catch (RuntimeException e) {
+			// closed - the video is being torn down
+			Log.d(this.getClass().getSimpleName(), "getPositionMs : journal closed");
+		}
+	}
+
+	public void record(final String uri, final long positionMs) {
+		synchronized (mPositions) {
+			Long previous = mPositions.put(uri, positionMs);
+			if (previous != null && previous == positionMs) {
+				return;
+			}
+		}
+		append(uri, positionMs);
+	}
+
+	/** forgets a video - it starts from the beginning next time */
+	public void remove(String uri) {
+		synchronized (mPositions) {
+			boolean removed = mPositions.remove(uri) != null;
+			if (!mLoaded) {
+				// the journal may hold it too
+				mRemovedWhileLoading.add(uri);
+			} else if (!removed) {
+				return;
+			}
+		}
+		append(uri, -1);
+	}
+
+	/** writes out what is queued and closes the journal - it cannot be used afterwards */
+	public void close() {
+		mExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				closeFile(true);
+			}
+		});
+		mExecutor.shutdown();
+	}
+
+	private void append(final String uri, final long positionMs) {
+		try {
+			mExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					writeRecord(uri, positionMs);
+				}
+			});
+		} catch (RuntimeException e) {
+			// closed - the position is lost, which only matters this late for a video being torn down anyway
+			Log.d(this.getClass().getSimpleName(), "append : journal closed");
+		}
+	}
+
+	/** runs on the journal thread */
+	private void load() {
+		try {
+			boolean exists = mFile.exists();
+			mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+			int capacity = Math.max(INITIAL_CAPACITY, (int) mRandomAccessFile.length());
+			map(capacity);
+			if (!exists || mBuffer.getInt(0) != MAGIC || mBuffer.getInt(4) != VERSION) {
+				reset();
+				return;
+			}
+			int end = Math.min(mBuffer.getInt(END_OFFSET_POSITION), capacity);
+			int position = HEADER_SIZE;
+			int recordCount = 0;
+			Map<String, Long> positions = new HashMap<>();
+			while (position + RECORD_OVERHEAD <= end) {
+				int keyLength = mBuffer.getShort(position);
+				int recordLength = RECORD_OVERHEAD + keyLength;
+				if (keyLength < 0 || position + recordLength > end
+						|| computeCrc(position, recordLength - 4) != mBuffer.getInt(position + recordLength - 4)) {
+					break;
+				}
+				long positionMs = mBuffer.getLong(position + 2);
+				byte[] key = new byte[keyLength];
+				for (int i = 0; i < keyLength; i++) {
+					key[i] = mBuffer.get(position + 10 + i);
+				}
+				String uri = new String(key, "UTF-8");
+				if (positionMs < 0) {
+					positions.remove(uri);
+				} else {
+					positions.put(uri, positionMs);
+				}
+				position += recordLength;
+				recordCount++;
+			}
+			mEnd = position;
+			synchronized (mPositions) {
+				// anything recorded or removed while we were loading is newer
+				for (Map.Entry<String, Long> entry : positions.entrySet()) {
+					String uri = entry.getKey();
+					if (!mPositions.containsKey(uri) && !mRemovedWhileLoading.contains(uri)) {
+						mPositions.put(uri, entry.getValue());
+					}
+				}
+			}
+			Log.d(this.getClass().getSimpleName(), "load : records = " + recordCount + ", videos = "
+					+ positions.size() + ", bytes = " + mEnd);
+		} catch (IOException e) {
+			Log.e(this.getClass().getSimpleName(), "load : unable to open journal", e);
+			closeFile(false);
+		}
+	}
+
+	/** runs on the journal thread */
+	private void writeRecord(String uri, long positionMs) {
+		if (mBuffer == null) {
+			return;
+		}
+		try {
+			byte[] key = uri.getBytes("UTF-8");
+			if (key.length > MAX_KEY_LENGTH) {
+				return;
+			}
+			int recordLength = RECORD_OVERHEAD + key.length;
+			if (mEnd + recordLength > mBuffer.capacity()) {
+				makeRoom(recordLength);
+			}
+			putRecord(key, positionMs);
+		} catch (IOException e) {
+			Log.e(this.getClass().getSimpleName(), "writeRecord : unable to make room in the journal", e);
+			closeFile(false);
+		}
+	}
+
+	/** runs on the journal thread - compacts the journal if it is mostly superseded records, else grows it */
+	private void makeRoom(int recordLength) throws IOException {
+		if (mEnd > COMPACT_MIN_SIZE) {
+			Map<String, Long> positions;
+			synchronized (mPositions) {
+				positions = new HashMap<>(mPositions);
+			}
+			long liveBytes = 0;
+			for (String uri : positions.keySet()) {
+				liveBytes += RECORD_OVERHEAD + uri.getBytes("UTF-8").length;
+			}
+			if (liveBytes * 2 < mEnd - HEADER_SIZE) {
+				compact(positions, liveBytes);
+			}
+		}
+		if (mEnd + recordLength > mBuffer.capacity()) {
+			map(Math.max(mBuffer.capacity() * 2, mEnd + recordLength));
+		}
+	}
+
+	/** runs on the journal thread - rewrites the journal with one record per video */
+	private void compact(Map<String, Long> positions, long liveBytes) throws IOException {
+		File compactFile = new File(mFile.getPath() + ".compact");
+		// the old journal stays intact until the new one replaces it
+		closeFile(true);
+		mRandomAccessFile = new RandomAccessFile(compactFile, "rw");
+		mRandomAccessFile.setLength(0);
+		map((int) Math.max(INITIAL_CAPACITY, HEADER_SIZE + liveBytes * 2));
+		reset();
+		for (Map.Entry<String, Long> entry : positions.entrySet()) {
+			putRecord(entry.getKey().getBytes("UTF-8"), entry.getValue());
+		}
+		mBuffer.force();
+		if (!compactFile.renameTo(mFile)) {
+			throw new IOException("unable to replace " + mFile);
+		}
+		Log.d(this.getClass().getSimpleName(), "compact : videos = " + positions.size() + ", bytes = " + mEnd);
+	}
+
+	/** runs on the journal thread - there must be room for the record */
+	private void putRecord(byte[] key, long positionMs) {
+		int recordLength = RECORD_OVERHEAD + key.length;
+		mBuffer.putShort(mEnd, (short) key.length);
+		mBuffer.putLong(mEnd + 2, positionMs);
+		for (int i = 0; i < key.length; i++) {
+			mBuffer.put(mEnd + 10 + i, key[i]);
+		}
+		mBuffer.putInt(mEnd + recordLength - 4, computeCrc(mEnd, recordLength - 4));
+		mEnd += recordLength;
+		// the end offset goes last - it is what makes the record part of the journal
+		mBuffer.putInt(END_OFFSET_POSITION, mEnd);
+	}
+
+	/** runs on the journal thread - starts an empty journal in the mapped file */
+	private void reset() {
+		mBuffer.putInt(0, MAGIC);
+		mBuffer.putInt(4, VERSION);
+		mBuffer.putInt(END_OFFSET_POSITION, HEADER_SIZE);
+		mEnd = HEADER_SIZE;
+	}
+
+	private void map(int capacity) throws IOException {
+		if (mRandomAccessFile.length() < capacity) {
+			mRandomAccessFile.setLength(capacity);
+		}
+		mBuffer = mRandomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+	}
+
+	private int computeCrc(int position, int length) {
+		mCrc.reset();
+		for (int i = 0; i < length; i++) {
+			mCrc.update(mBuffer.get(position + i));
+		}
+		return (int) mCrc.getValue();
+	}
+
+	private void closeFile(boolean force) {
+		if (mBuffer != null && force) {
+			mBuffer.force();
+		}
+		mBuffer = null;
+		if (mRandomAccessFile != null) {
+			try {
+				mRandomAccessFile.close();
+			} catch (IOException e) {
+				// nothing left to do with it
+			}
+			mRandomAccessFile = null;
+		}
+	}
+
+}
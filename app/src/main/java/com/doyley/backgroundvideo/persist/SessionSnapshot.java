@@ -0,0 +1,387 @@
+package com.doyley.backgroundvideo.persist;
+
+import android.util.Log;
+
+import com.doyley.backgroundvideo.model.VideoMetadata;
+import com.google.android.exoplayer.util.Util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.CRC32;
+
+/**
+ * A small binary snapshot of the playback session, so it can be rebuilt after the process was killed.
+ *
+ * The snapshot is written incrementally. The session section - the video and the profile it is played
+ * with - is only rewritten when a video is loaded, into a new file that then replaces the old one. Position
+ * and paused state, which change all the time, live in two fixed size slots that are written alternately,
+ * so a torn write always leaves the previous state intact. Each part carries its own checksum. All writes
+ * happen on a thread of their own.
+ *
+ * Layout : magic (int), version (int), two state slots, then the session section - its length (int),
+ * the session and a CRC32 (int).
+ */
+public class SessionSnapshot {
+
+	private static final int MAGIC = 0x53455353;
+	private static final int VERSION = 4;
+	private static final int STATE_OFFSET = 8;
+	// sequence, position, saved at, paused, crc
+	private static final int STATE_SIZE = 8 + 8 + 8 + 1 + 4;
+	private static final int SESSION_OFFSET = STATE_OFFSET + 2 * STATE_SIZE;
+
+	/** a restored session */
+	public static final class Session {
+
+		private final VideoMetadata mMetadata;
+		private final Profile mProfile;
+		private final long mPositionMs;
+		private final boolean mPaused;
+		private final long mSavedAtMs;
+
+		private Session(VideoMetadata metadata, Profile profile, long positionMs, boolean paused, long savedAtMs) {
+			mMetadata = metadata;
+			mProfile = profile;
+			mPositionMs = positionMs;
+			mPaused = paused;
+			mSavedAtMs = savedAtMs;
+		}
+
+		public VideoMetadata getMetadata() {
+			return mMetadata;
+		}
+
+		public Profile getProfile() {
+			return mProfile;
+		}
+
+		public long getPositionMs() {
+			return mPositionMs;
+		}
+
+		public boolean isPaused() {
+			return mPaused;
+		}
+
+		/** wall clock time of the last state write */
+		public long getSavedAtMs() {
+			return mSavedAtMs;
+		}
+	}
+
+	/** how the video is played - the options it was loaded with */
+	public static final class Profile {
+
+		private final int mSampleExtractorType;
+		private final boolean mWarmVideo;
+		private final boolean mMemoryMappedInput;
+		private final boolean mReadAheadInput;
+		private final boolean mBufferedAudio;
+		private final boolean mNormalizeLoudness;
+		private final String mSubtitleUri;
+		private final long mBackgroundIdleTimeoutMs;
+
+		public Profile(int sampleExtractorType, boolean warmVideo, boolean memoryMappedInput, boolean readAheadInput,
+		               boolean bufferedAudio, boolean normalizeLoudness, String subtitleUri,
+		               long backgroundIdleTimeoutMs) {
+			mSampleExtractorType = sampleExtractorType;
+			mWarmVideo = warmVideo;
+			mMemoryMappedInput = memoryMappedInput;
+			mReadAheadInput = readAheadInput;
+			mBufferedAudio = bufferedAudio;
+			mNormalizeLoudness = normalizeLoudness;
+			mSubtitleUri = subtitleUri;
+			mBackgroundIdleTimeoutMs = backgroundIdleTimeoutMs;
+		}
+
+		public int getSampleExtractorType() {
+			return mSampleExtractorType;
+		}
+
+		public boolean isWarmVideo() {
+			return mWarmVideo;
+		}
+
+		public boolean isMemoryMappedInput() {
+			return mMemoryMappedInput;
+		}
+
+		public boolean isReadAheadInput() {
+			return mReadAheadInput;
+		}
+
+		public boolean isBufferedAudio() {
+			return mBufferedAudio;
+		}
+
+		public boolean isNormalizeLoudness() {
+			return mNormalizeLoudness;
+		}
+
+		/** as asked for - null if none was, not the sidecar that may have been found */
+		public String getSubtitleUri() {
+			return mSubtitleUri;
+		}
+
+		public long getBackgroundIdleTimeoutMs() {
+			return mBackgroundIdleTimeoutMs;
+		}
+	}
+
+	private final File mFile;
+	private final ExecutorService mExecutor;
+
+	// only touched on the snapshot thread
+	private final ByteBuffer mStateBuffer = ByteBuffer.allocate(STATE_SIZE);
+	private RandomAccessFile mRandomAccessFile;
+	private long mSequence;
+
+	public SessionSnapshot(File file) {
+		this(file, Util.newSingleThreadExecutor("SessionSnapshot"));
+	}
+
+	/** executor must run one task at a time, in order */
+	SessionSnapshot(File file, ExecutorService executor) {
+		mFile = file;
+		mExecutor = executor;
+	}
+
+	/**
+	 * reads the saved session, or returns null if there is none or it is damaged. runs on the caller's
+	 * thread - the file is a few hundred bytes
+	 */
+	public Session read() {
+		if (!mFile.exists()) {
+			return null;
+		}
+		RandomAccessFile file = null;
+		try {
+			file = new RandomAccessFile(mFile, "r");
+			byte[] data = new byte[(int) file.length()];
+			file.readFully(data);
+			ByteBuffer buffer = ByteBuffer.wrap(data);
+			if (data.length < SESSION_OFFSET + 8 || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+				return null;
+			}
+			int sessionLength = buffer.getInt(SESSION_OFFSET);
+			int crcOffset = SESSION_OFFSET + 4 + sessionLength;
+			if (sessionLength < 0 || crcOffset + 4 > data.length
+					|| crc(data, SESSION_OFFSET, 4 + sessionLength) != buffer.getInt(crcOffset)) {
+				return null;
+			}
+			DataInputStream session = new DataInputStream(new ByteArrayInputStream(data, SESSION_OFFSET + 4,
+					sessionLength));
+			VideoMetadata metadata = new VideoMetadata(readString(session), readString(session), readString(session),
+					session.readLong(), readString(session), readString(session), session.readBoolean(),
+					session.readBoolean(), false);
+			Profile profile = new Profile(session.readInt(), session.readBoolean(), session.readBoolean(),
+					session.readBoolean(), session.readBoolean(), session.readBoolean(), readString(session),
+					session.readLong());
+
+			// the valid slot with the highest sequence holds the latest state
+			int stateOffset = -1;
+			long sequence = -1;
+			for (int slot = 0; slot < 2; slot++) {
+				int offset = STATE_OFFSET + slot * STATE_SIZE;
+				long slotSequence = buffer.getLong(offset);
+				if (slotSequence > sequence
+						&& crc(data, offset, STATE_SIZE - 4) == buffer.getInt(offset + STATE_SIZE - 4)) {
+					stateOffset = offset;
+					sequence = slotSequence;
+				}
+			}
+			if (stateOffset == -1) {
+				return new Session(metadata, profile, 0, true, 0);
+			}
+			boolean paused = buffer.get(stateOffset + 24) != 0;
+			metadata.setPaused(paused);
+			return new Session(metadata, profile, buffer.getLong(stateOffset + 8), paused,
+					buffer.getLong(stateOffset + 16));
+		} catch (IOException e) {
+			Log.e(this.getClass().getSimpleName(), "read : unable to read snapshot", e);
+			return null;
+		} finally {
+			if (file != null) {
+				try {
+					file.close();
+				} catch (IOException e) {
+					// nothing left to do with it
+				}
+			}
+		}
+	}
+
+	/** starts a new session - the state slots are reset to the given position */
+	public void writeSession(VideoMetadata metadata, Profile profile, long positionMs) {
+		final byte[] session;
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+			DataOutputStream output = new DataOutputStream(bytes);
+			writeString(output, metadata.getVideoUri());
+			writeString(output, metadata.getTitle());
+			writeString(output, metadata.getArtist());
+			output.writeLong(metadata.getDuration());
+			writeString(output, metadata.getImageUrl());
+			writeString(output, metadata.getClickUrl());
+			output.writeBoolean(metadata.isNextEnabled());
+			output.writeBoolean(metadata.isPrevEnabled());
+			output.writeInt(profile.getSampleExtractorType());
+			output.writeBoolean(profile.isWarmVideo());
+			output.writeBoolean(profile.isMemoryMappedInput());
+			output.writeBoolean(profile.isReadAheadInput());
+			output.writeBoolean(profile.isBufferedAudio());
+			output.writeBoolean(profile.isNormalizeLoudness());
+			writeString(output, profile.getSubtitleUri());
+			output.writeLong(profile.getBackgroundIdleTimeoutMs());
+			output.flush();
+			session = bytes.toByteArray();
+		} catch (IOException e) {
+			// a byte array stream does not throw
+			throw new IllegalStateException(e);
+		}
+		final boolean paused = metadata.isPaused();
+		final long position = positionMs;
+		mExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				writeSessionSection(session, position, paused);
+			}
+		});
+	}
+
+	/** records the latest state of the session - only one state slot is written */
+	public void writeState(final long positionMs, final boolean paused) {
+		mExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					if (openFile()) {
+						writeStateSlot(positionMs, paused);
+					}
+				} catch (IOException e) {
+					Log.e(SessionSnapshot.class.getSimpleName(), "writeState : unable to write snapshot", e);
+				}
+			}
+		});
+	}
+
+	/** the session ended the way it was meant to - nothing to restore */
+	public void clear() {
+		mExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				closeFile();
+				if (mFile.exists() && !mFile.delete()) {
+					Log.e(SessionSnapshot.class.getSimpleName(), "clear : unable to delete " + mFile);
+				}
+			}
+		});
+	}
+
+	public void close() {
+		mExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				closeFile();
+			}
+		});
+		mExecutor.shutdown();
+	}
+
+	/** runs on the snapshot thread */
+	private void writeSessionSection(byte[] session, long positionMs, boolean paused) {
+		File newFile = new File(mFile.getPath() + ".new");
+		try {
+			// the old snapshot stays intact until the new one replaces it
+			closeFile();
+			mRandomAccessFile = new RandomAccessFile(newFile, "rw");
+			FileChannel channel = mRandomAccessFile.getChannel();
+			ByteBuffer buffer = ByteBuffer.allocate(SESSION_OFFSET + 4 + session.length + 4);
+			buffer.putInt(MAGIC).putInt(VERSION);
+			buffer.position(SESSION_OFFSET);
+			buffer.putInt(session.length).put(session);
+			buffer.putInt(crc(buffer.array(), SESSION_OFFSET, 4 + session.length));
+			buffer.flip();
+			mRandomAccessFile.setLength(0);
+			channel.write(buffer, 0);
+			mSequence = 0;
+			writeStateSlot(positionMs, paused);
+			channel.force(false);
+			closeFile();
+			if (!newFile.renameTo(mFile)) {
+				throw new IOException("unable to replace " + mFile);
+			}
+			mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+		} catch (IOException e) {
+			Log.e(this.getClass().getSimpleName(), "writeSession : unable to write snapshot", e);
+			closeFile();
+			newFile.delete();
+		}
+	}
+
+	/** runs on the snapshot thread */
+	private void writeStateSlot(long positionMs, boolean paused) throws IOException {
+		mSequence++;
+		mStateBuffer.clear();
+		mStateBuffer.putLong(mSequence).putLong(positionMs).putLong(System.currentTimeMillis())
+				.put((byte) (paused ? 1 : 0));
+		mStateBuffer.putInt(crc(mStateBuffer.array(), 0, STATE_SIZE - 4));
+		mStateBuffer.flip();
+		int slot = (int) (mSequence & 1);
+		mRandomAccessFile.getChannel().write(mStateBuffer, STATE_OFFSET + slot * STATE_SIZE);
+	}
+
+	/** runs on the snapshot thread - reopens a snapshot written before the process restarted */
+	private boolean openFile() throws IOException {
+		if (mRandomAccessFile != null) {
+			return true;
+		}
+		if (!mFile.exists()) {
+			// no session to update
+			return false;
+		}
+		mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+		ByteBuffer sequences = ByteBuffer.allocate(2 * STATE_SIZE);
+		mRandomAccessFile.getChannel().read(sequences, STATE_OFFSET);
+		mSequence = Math.max(sequences.getLong(0), sequences.getLong(STATE_SIZE));
+		return true;
+	}
+
+	/** runs on the snapshot thread */
+	private void closeFile() {
+		if (mRandomAccessFile != null) {
+			try {
+				mRandomAccessFile.close();
+			} catch (IOException e) {
+				// nothing left to do with it
+			}
+			mRandomAccessFile = null;
+		}
+	}
+
+	private int crc(byte[] data, int offset, int length) {
+		CRC32 crc = new CRC32();
+		crc.update(data, offset, length);
+		return (int) crc.getValue();
+	}
+
+	private static void writeString(DataOutputStream output, String value) throws IOException {
+		output.writeBoolean(value != null);
+		if (value != null) {
+			output.writeUTF(value);
+		}
+	}
+
+	private static String readString(DataInputStream input) throws IOException {
+		return input.readBoolean() ? input.readUTF() : null;
+	}
+
+}
@@ -4,30 +4,58 @@ import android.content.Context;
 import android.media.MediaCodec;
 import android.net.Uri;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
 import android.util.SparseArray;
 import android.view.Surface;
 import android.view.SurfaceView;
 
+import com.doyley.backgroundvideo.audio.AudioTrackOutput;
+import com.doyley.backgroundvideo.audio.BufferedAudioSink;
+import com.doyley.backgroundvideo.audio.DirectAudioSink;
+import com.doyley.backgroundvideo.audio.LoudnessNormalizer;
+import com.doyley.backgroundvideo.audio.TimeStretcher;
+import com.doyley.backgroundvideo.dash.DashSampleSourceBuilder;
+import com.doyley.backgroundvideo.extractor.Mp4SampleExtractor;
+import com.doyley.backgroundvideo.source.InputSource;
+import com.doyley.backgroundvideo.hls.HlsPlaylistTracker;
+import com.doyley.backgroundvideo.hls.HlsSampleSourceBuilder;
+import com.doyley.backgroundvideo.log.EventLog;
+import com.doyley.backgroundvideo.log.PlaybackTrace;
+import com.doyley.backgroundvideo.qoe.AvSyncMonitor;
+import com.doyley.backgroundvideo.renderer.AudioTrackSelectingSource;
+import com.doyley.backgroundvideo.renderer.SubtitleTrackRenderer;
+import com.doyley.backgroundvideo.renderer.TimeStretchAudioTrackRenderer;
+import com.doyley.backgroundvideo.renderer.WarmVideoTrackRenderer;
+import com.doyley.backgroundvideo.text.SubtitleFile;
+import com.doyley.backgroundvideo.upstream.IoScheduler;
+import com.doyley.backgroundvideo.upstream.MeasuredBufferPool;
+import com.doyley.backgroundvideo.upstream.SlidingWindowBandwidthMeter;
+import com.google.android.exoplayer.DummyTrackRenderer;
 import com.google.android.exoplayer.ExoPlaybackException;
 import com.google.android.exoplayer.ExoPlayer;
-import com.google.android.exoplayer.MediaCodecAudioTrackRenderer;
 import com.google.android.exoplayer.MediaCodecTrackRenderer;
 import com.google.android.exoplayer.MediaCodecVideoTrackRenderer;
+import com.google.android.exoplayer.SampleSource;
+import com.google.android.exoplayer.TrackRenderer;
 import com.google.android.exoplayer.VideoSurfaceView;
 import com.google.android.exoplayer.audio.AudioTrack;
 import com.google.android.exoplayer.source.DefaultSampleSource;
 import com.google.android.exoplayer.source.FrameworkSampleExtractor;
+import com.google.android.exoplayer.source.SampleExtractor;
+import com.google.android.exoplayer.text.TextRenderer;
 
-import java.io.FileDescriptor;
+import java.io.File;
 import java.io.FileInputStream;
 
-public class VideoExoPlayerImpl implements VideoPlayer, ExoPlayer.Listener, MediaCodecVideoTrackRenderer.EventListener, MediaCodecAudioTrackRenderer.EventListener {
+public class VideoExoPlayerImpl implements VideoPlayer, ExoPlayer.Listener, MediaCodecVideoTrackRenderer.EventListener,
+		TimeStretchAudioTrackRenderer.EventListener, TextRenderer {
 
 
-	public static final int RENDERER_COUNT = 2;
+	public static final int RENDERER_COUNT = 3;
 	public static final int TYPE_VIDEO = 0;
 	public static final int TYPE_AUDIO = 1;
+	public static final int TYPE_TEXT = 2;
 
 	public static final SparseArray<VideoPlaybackState> PLAYBACK_STATES;
 
@@ -42,59 +70,450 @@ public class VideoExoPlayerImpl implements VideoPlayer, ExoPlayer.Listener, Medi
 
 	private final Handler mMainHandler;
 	private final Handler mBackgroundHandler;
-	private ExoPlayer mExoPlayer;
+	// volatile so getPlayingPosition can be called from the stall watchdog's thread
+	private volatile ExoPlayer mExoPlayer;
 	private final VideoPlayerListener mVideoPlayerListener;
-	private MediaCodecAudioTrackRenderer mAudioTrackRenderer;
-	private MediaCodecVideoTrackRenderer mVideoTrackRenderer;
+	private TrackRenderer mAudioTrackRenderer;
+	private WarmVideoTrackRenderer mVideoTrackRenderer;
+	private SubtitleTrackRenderer mTextTrackRenderer;
 	private Context mContext;
 	private SurfaceView mSurfaceView;
 	private boolean mPlayerPrepared;
+	// a rebuffer is a drop from ready back to buffering while playing, not one caused by a seek
+	private int mLastPlaybackState;
+	private boolean mSeekPending;
+	private long mRebufferStartMs = -1;
 
 	private int mWidth;
 	private int mHeight;
 	private float mPixelWidthHeightRatio;
 	private FileInputStream mInputStream;
+	private int mSampleExtractorType = EXTRACTOR_FRAMEWORK;
+	private boolean mWarmVideoEnabled;
+	private long mStartPositionMs;
+	// the setting the current video renderer was built with
+	private boolean mRendererWarmMode;
+	private final SlidingWindowBandwidthMeter mBandwidthMeter;
+	private DashSampleSourceBuilder mDashSampleSourceBuilder;
+	private HlsSampleSourceBuilder mHlsSampleSourceBuilder;
+	private MeasuredBufferPool mBufferPool;
+	private boolean mBackgroundResourcesReleased;
+	private boolean mVideoEnabled;
+	// repeats the last initialize call - for reinitializeSource and rebuild
+	private Runnable mInitializer;
+	private boolean mReinitializing;
+	private boolean mReusePlayer;
+	private boolean mVideoEnabledOnPrepare;
+	// decoder fallbacks - see fallBackDecoder
+	private boolean mMp4ExtractorInUse;
+	private boolean mAudioOnly;
+	private float mPlaybackSpeed = 1f;
+	private boolean mBufferedAudioEnabled;
+	// only while the audio renderer writes through one - read from other threads for its counters
+	private volatile BufferedAudioSink mBufferedAudioSink;
+	// one per media, so what it measured survives reinitializes
+	private volatile LoudnessNormalizer mLoudnessNormalizer;
+	// one per media, like the normalizer, so it is indexed once
+	private SubtitleFile mSubtitleFile;
+	// kept across reinitializes, back to the first track for new media
+	private int mAudioTrack;
+	// read from other threads for the list of tracks
+	private volatile AudioTrackSelectingSource mAudioTrackSource;
+	private AvSyncMonitor mSyncMonitor;
 
 	public VideoExoPlayerImpl(Context context, VideoPlayerListener videoPlayerListener, Handler mainHandler, Handler backgroundHandler) {
 		mContext = context;
 		mVideoPlayerListener = videoPlayerListener;
 		mMainHandler = mainHandler;
 		mBackgroundHandler = backgroundHandler;
+		// estimates carry over between sessions so the first segments are not picked blind
+		mBandwidthMeter = new SlidingWindowBandwidthMeter(
+				context.getSharedPreferences(SlidingWindowBandwidthMeter.PREFERENCES_NAME, Context.MODE_PRIVATE));
 	}
 
 	@Override
-	public void initialize(final FileDescriptor fileDescriptor) {
-		Log.d(this.getClass().getSimpleName(), "initialize : " + fileDescriptor);
-		initialize(new FrameworkSampleExtractor(fileDescriptor, 0, 0x7ffffffffffffffL));
+	public void initialize(final InputSource inputSource) {
+		mInitializer = new Runnable() {
+			@Override
+			public void run() {
+				initialize(inputSource);
+			}
+		};
+		if (EventLog.ENABLED) {
+			EventLog.log(EventLog.PLAYER_INITIALIZE, EventLog.intern(inputSource.toString()), inputSource.getType());
+		}
+		if (inputSource.getType() == InputSource.TYPE_PARTIAL_DOWNLOAD) {
+			// the framework cannot read around the holes - there is nothing to fall back to
+			mMp4ExtractorInUse = false;
+			initialize(createMp4ExtractorFactory(inputSource));
+		} else if (mSampleExtractorType == EXTRACTOR_MP4 && Mp4SampleExtractor.sniff(inputSource)) {
+			mMp4ExtractorInUse = true;
+			initialize(createMp4ExtractorFactory(inputSource));
+		} else {
+			mMp4ExtractorInUse = false;
+			// the framework reads the descriptor itself, so its reads do not show up in the input's counters
+			initialize(new AudioTrackSelectingSource.ExtractorFactory() {
+				@Override
+				public SampleExtractor createExtractor() {
+					return new FrameworkSampleExtractor(inputSource.getFileDescriptor(), inputSource.getStartOffset(),
+							inputSource.getLength());
+				}
+			});
+		}
 	}
 
 	@Override
 	public void initialize(final String videoUri) {
-		Log.d(this.getClass().getSimpleName(), "initialize : " + videoUri);
-		initialize(new FrameworkSampleExtractor(mContext, Uri.parse(videoUri), null));
+		mInitializer = new Runnable() {
+			@Override
+			public void run() {
+				initialize(videoUri);
+			}
+		};
+		if (EventLog.ENABLED) {
+			EventLog.log(EventLog.PLAYER_INITIALIZE, EventLog.intern(videoUri), -1);
+		}
+		mMp4ExtractorInUse = false;
+		initialize(new AudioTrackSelectingSource.ExtractorFactory() {
+			@Override
+			public SampleExtractor createExtractor() {
+				return new FrameworkSampleExtractor(mContext, Uri.parse(videoUri), null);
+			}
+		});
 
 	}
 
-	private void initialize(FrameworkSampleExtractor frameworkSampleExtractor) {
+	@Override
+	public void setSampleExtractorType(int extractorType) {
+		mSampleExtractorType = extractorType;
+	}
 
-		if (mExoPlayer != null) {
-			mExoPlayer.release();
-			mExoPlayer = null;
+	@Override
+	public void setStartPosition(long positionMs) {
+		mStartPositionMs = positionMs;
+	}
+
+	@Override
+	public void setLateStartPosition(long positionMs) {
+		if (mVideoTrackRenderer == null) {
+			// the sources are still being built - the prepare picks it up
+			mStartPositionMs = positionMs;
+		} else if (mExoPlayer != null) {
+			mExoPlayer.seekTo(positionMs);
+		}
+	}
+
+	@Override
+	public void setWarmVideoEnabled(boolean warmVideoEnabled) {
+		mWarmVideoEnabled = warmVideoEnabled;
+	}
+
+	@Override
+	public void setBufferedAudioEnabled(boolean bufferedAudioEnabled) {
+		mBufferedAudioEnabled = bufferedAudioEnabled;
+	}
+
+	@Override
+	public String getAudioSinkDebugString() {
+		BufferedAudioSink sink = mBufferedAudioSink;
+		return sink != null ? sink.getDebugString() : null;
+	}
+
+	@Override
+	public void setPlaybackSpeed(float speed) {
+		mPlaybackSpeed = Math.max(TimeStretcher.MIN_SPEED, Math.min(TimeStretcher.MAX_SPEED, speed));
+		if (mVideoTrackRenderer != null) {
+			sendPlaybackSpeed();
+		}
+	}
+
+	@Override
+	public float getPlaybackSpeed() {
+		return mPlaybackSpeed;
+	}
+
+	@Override
+	public void setLoudnessNormalization(boolean enabled, float knownLoudnessLufs, long knownDurationMs) {
+		mLoudnessNormalizer = enabled ? new LoudnessNormalizer(knownLoudnessLufs, knownDurationMs) : null;
+	}
+
+	@Override
+	public LoudnessNormalizer getLoudnessNormalizer() {
+		return mLoudnessNormalizer;
+	}
+
+	@Override
+	public void setSubtitleUri(String subtitleUri) {
+		if (mSubtitleFile != null) {
+			mSubtitleFile.release();
+			mSubtitleFile = null;
+		}
+		File file = subtitleUri != null ? SubtitleFile.toFile(subtitleUri) : null;
+		if (file != null) {
+			mSubtitleFile = new SubtitleFile(file);
+		} else if (subtitleUri != null) {
+			Log.w(this.getClass().getSimpleName(), "setSubtitleUri : only local files are supported - " + subtitleUri);
+		}
+	}
+
+	@Override
+	public void setAvSyncMonitor(AvSyncMonitor syncMonitor) {
+		mSyncMonitor = syncMonitor;
+	}
+
+	@Override
+	public String[] getAudioTracks() {
+		AudioTrackSelectingSource source = mAudioTrackSource;
+		return source != null ? source.getMimeTypes() : new String[0];
+	}
+
+	@Override
+	public int getSelectedAudioTrack() {
+		AudioTrackSelectingSource source = mAudioTrackSource;
+		return source != null ? source.getSelectedAudioTrack() : mAudioTrack;
+	}
+
+	@Override
+	public void selectAudioTrack(int audioTrack) {
+		mAudioTrack = audioTrack;
+		AudioTrackSelectingSource source = mAudioTrackSource;
+		if (source == null) {
+			return;
+		}
+		final TrackRenderer renderer = mAudioTrackRenderer;
+		// the source the audio moves to is prepared off the playback thread first - it may be network media
+		source.prepareOwnSource(IoScheduler.getInstance(), new Runnable() {
+			@Override
+			public void run() {
+				mMainHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						// the latest selection, unless the renderers were replaced meanwhile
+						if (mAudioTrackRenderer == renderer && mExoPlayer != null) {
+							mExoPlayer.sendMessage(renderer, TimeStretchAudioTrackRenderer.MSG_SELECT_AUDIO_TRACK,
+									mAudioTrack);
+						}
+					}
+				});
+			}
+		});
+	}
+
+	@Override
+	public boolean isVideoWarm() {
+		return mVideoTrackRenderer != null && mVideoTrackRenderer.isWarm();
+	}
+
+	@Override
+	public void initializeDash(final String manifestUri) {
+		mInitializer = new Runnable() {
+			@Override
+			public void run() {
+				initializeDash(manifestUri);
+			}
+		};
+		if (EventLog.ENABLED) {
+			EventLog.log(EventLog.PLAYER_INITIALIZE, EventLog.intern(manifestUri), -1);
+		}
+		createPlayer();
+		mBufferPool = new MeasuredBufferPool(DashSampleSourceBuilder.BUFFER_SEGMENT_SIZE);
+		mDashSampleSourceBuilder = new DashSampleSourceBuilder(manifestUri, mBandwidthMeter, mBufferPool);
+		mDashSampleSourceBuilder.build(mMainHandler.getLooper(), new DashSampleSourceBuilder.Callback() {
+			// the builder is kept until the player is torn down - a retry builds from its manifest again
+			@Override
+			public void onSampleSources(SampleSource videoSource, SampleSource audioSource) {
+				prepareRenderers(videoSource, audioSource, null, null);
+			}
+
+			@Override
+			public void onSampleSourcesError(Exception e) {
+				mVideoPlayerListener.onMediaError(e);
+			}
+		});
+	}
+
+	@Override
+	public void initializeHls(final String playlistUri) {
+		mInitializer = new Runnable() {
+			@Override
+			public void run() {
+				initializeHls(playlistUri);
+			}
+		};
+		if (EventLog.ENABLED) {
+			EventLog.log(EventLog.PLAYER_INITIALIZE, EventLog.intern(playlistUri), -1);
+		}
+		createPlayer();
+		// the builder lives as long as the player - it keeps tracking the playlist for the prefetcher
+		mHlsSampleSourceBuilder = new HlsSampleSourceBuilder(playlistUri, mBandwidthMeter,
+				new HlsPlaylistTracker.PlaybackPositionProvider() {
+					@Override
+					public long getPlaybackPositionUs() {
+						return mExoPlayer != null ? mExoPlayer.getCurrentPosition() * 1000 : 0;
+					}
+				});
+		mHlsSampleSourceBuilder.build(mMainHandler.getLooper(), new HlsSampleSourceBuilder.Callback() {
+			@Override
+			public void onSampleSource(SampleSource sampleSource) {
+				prepareRenderers(sampleSource, sampleSource, null, null);
+			}
+
+			@Override
+			public void onSampleSourceError(Exception e) {
+				mVideoPlayerListener.onMediaError(e);
+			}
+		});
+	}
+
+	/** the factory makes the extractor of the shared source, and any the audio moves to on a track switch */
+	private void initialize(AudioTrackSelectingSource.ExtractorFactory extractorFactory) {
+		createPlayer();
+		DefaultSampleSource sampleSource = new DefaultSampleSource(extractorFactory.createExtractor(), RENDERER_COUNT);
+		prepareRenderers(sampleSource, sampleSource, extractorFactory, sampleSource);
+	}
+
+	private static AudioTrackSelectingSource.ExtractorFactory createMp4ExtractorFactory(final InputSource inputSource) {
+		// reads are positional, so several extractors can share the input
+		return new AudioTrackSelectingSource.ExtractorFactory() {
+			@Override
+			public SampleExtractor createExtractor() {
+				return new Mp4SampleExtractor(inputSource);
+			}
+		};
+	}
+
+	private void createPlayer() {
+
+		releaseSampleSourceBuilders();
+		mBufferPool = null;
+		mBackgroundResourcesReleased = false;
+		if (!mReinitializing) {
+			mAudioOnly = false;
+			mAudioTrack = 0;
 		}
+		resetPlayer(mReinitializing, mReusePlayer);
+	}
+
+	/** drops the renderers and brings the player back to idle, or replaces it, ready for the next prepare */
+	private void resetPlayer(boolean reinitializing, boolean reusePlayer) {
+		// a reinitialized video comes back the way it was shown, a new one waits to be foregrounded
+		mVideoEnabledOnPrepare = reinitializing && mVideoEnabled;
 		mPlayerPrepared = false;
+		mLastPlaybackState = ExoPlayer.STATE_IDLE;
+		mSeekPending = false;
+		mRebufferStartMs = -1;
+		mVideoTrackRenderer = null;
+		mAudioTrackRenderer = null;
+		mAudioTrackSource = null;
+		mTextTrackRenderer = null;
+		if (mExoPlayer != null && reusePlayer) {
+			// back to idle - the next prepare takes the new renderers
+			mExoPlayer.stop();
+			return;
+		}
+		if (mExoPlayer != null) {
+			mExoPlayer.removeListener(this);
+			if (reinitializing) {
+				// a stuck playback thread would block release - keep it off the main thread
+				final ExoPlayer stalledPlayer = mExoPlayer;
+				mBackgroundHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						stalledPlayer.release();
+					}
+				});
+			} else {
+				mExoPlayer.release();
+			}
+		}
 		// ...initialize the MediaPlayer here...
-		mExoPlayer = ExoPlayer.Factory.newInstance(RENDERER_COUNT, 1000, 5000);
-		mExoPlayer.addListener(this);
-		DefaultSampleSource videoSource = new DefaultSampleSource(frameworkSampleExtractor, 2);
-		mVideoTrackRenderer = new MediaCodecVideoTrackRenderer(videoSource, null, true,
-				MediaCodec.VIDEO_SCALING_MODE_SCALE_TO_FIT, 0, null, mBackgroundHandler, this, 50);
-		mAudioTrackRenderer = new MediaCodecAudioTrackRenderer(videoSource, mBackgroundHandler, this);
+		ExoPlayer exoPlayer = ExoPlayer.Factory.newInstance(RENDERER_COUNT, 1000, 5000);
+		exoPlayer.addListener(this);
+		mExoPlayer = exoPlayer;
+	}
+
+	private void reinitialize(long positionMs, boolean reusePlayer) {
+		if (mExoPlayer == null || mInitializer == null) {
+			return;
+		}
+		boolean playWhenReady = mExoPlayer.getPlayWhenReady();
+		mStartPositionMs = positionMs;
+		mReinitializing = true;
+		mReusePlayer = reusePlayer;
+		try {
+			mInitializer.run();
+		} finally {
+			mReinitializing = false;
+			mReusePlayer = false;
+		}
+		mExoPlayer.setPlayWhenReady(playWhenReady);
+	}
 
-		mExoPlayer.prepare(mVideoTrackRenderer, mAudioTrackRenderer);
+	/**
+	 * audioSource may be null when there is no audio track - the audio renderer is then a dummy. extractorFactory
+	 * is null for sources that are not read by an extractor, and switching their audio track seeks them
+	 * entirely. textSource is null for sources that do not carry text tracks, leaving only a subtitle file if
+	 * there is one.
+	 */
+	private void prepareRenderers(SampleSource videoSource, SampleSource audioSource,
+	                              AudioTrackSelectingSource.ExtractorFactory extractorFactory, SampleSource textSource) {
+
+		mRendererWarmMode = mWarmVideoEnabled;
+		mVideoTrackRenderer = new WarmVideoTrackRenderer(videoSource, mRendererWarmMode,
+				MediaCodec.VIDEO_SCALING_MODE_SCALE_TO_FIT, 0, mSyncMonitor, mBackgroundHandler, this, 50);
+		mBufferedAudioSink = audioSource != null && mBufferedAudioEnabled
+				? new BufferedAudioSink(new AudioTrackOutput()) : null;
+		mAudioTrackSource = audioSource != null
+				? new AudioTrackSelectingSource(audioSource, extractorFactory, mAudioTrack) : null;
+		mAudioTrackRenderer = audioSource != null
+				? new TimeStretchAudioTrackRenderer(mAudioTrackSource,
+						mBufferedAudioSink != null ? mBufferedAudioSink : new DirectAudioSink(), mLoudnessNormalizer,
+						mBackgroundHandler, this)
+				: new DummyTrackRenderer();
+		mTextTrackRenderer = new SubtitleTrackRenderer(textSource, mSubtitleFile, IoScheduler.getInstance(), this,
+				mMainHandler.getLooper());
+
+		mExoPlayer.prepare(mVideoTrackRenderer, mAudioTrackRenderer, mTextTrackRenderer);
+		if (mPlaybackSpeed != 1f) {
+			sendPlaybackSpeed();
+		}
+		if (mStartPositionMs > 0) {
+			// queued behind the prepare, so the renderers start from here rather than from zero
+			mExoPlayer.seekTo(mStartPositionMs);
+			mStartPositionMs = 0;
+		}
 
-		mExoPlayer.setRendererEnabled(TYPE_VIDEO, false);
+		setVideoRendererEnabled(mVideoEnabledOnPrepare && !mAudioOnly);
 		mExoPlayer.setRendererEnabled(TYPE_AUDIO, true);
 
+		if (mSurfaceView != null) {
+			attachSurface(mSurfaceView);
+		}
+	}
+
+	private void sendPlaybackSpeed() {
+		if (!(mAudioTrackRenderer instanceof TimeStretchAudioTrackRenderer)) {
+			// without audio the player's own clock runs at normal speed - so does the video
+			return;
+		}
+		mExoPlayer.sendMessage(mAudioTrackRenderer, TimeStretchAudioTrackRenderer.MSG_SET_PLAYBACK_SPEED, mPlaybackSpeed);
+		mExoPlayer.sendMessage(mVideoTrackRenderer, WarmVideoTrackRenderer.MSG_SET_PLAYBACK_SPEED, mPlaybackSpeed);
+	}
+
+	private void setVideoRendererEnabled(boolean enabled) {
+		mVideoEnabled = enabled;
+		mExoPlayer.setRendererEnabled(TYPE_VIDEO, enabled);
+	}
+
+	private void releaseSampleSourceBuilders() {
+		if (mDashSampleSourceBuilder != null) {
+			mDashSampleSourceBuilder.cancel();
+			mDashSampleSourceBuilder = null;
+		}
+		if (mHlsSampleSourceBuilder != null) {
+			mHlsSampleSourceBuilder.release();
+			mHlsSampleSourceBuilder = null;
+		}
 	}
 
 	@Override
@@ -115,16 +534,59 @@ public class VideoExoPlayerImpl implements VideoPlayer, ExoPlayer.Listener, Medi
 	public void setBackgrounded(boolean backgrounded) {
 		if (isMediaPlayerActive()) {
 			if (backgrounded) {
-				mExoPlayer.setRendererEnabled(TYPE_VIDEO, false);
-			} else {
-				mExoPlayer.setRendererEnabled(TYPE_VIDEO, true);
+				// a warm renderer stays enabled and keeps decoding once its surface is taken away
+				if (!mRendererWarmMode) {
+					setVideoRendererEnabled(false);
+				}
+			} else if (!mAudioOnly) {
+				setVideoRendererEnabled(true);
 			}
 		}
 	}
 
+	@Override
+	public long releaseBackgroundResources() {
+		if (!isMediaPlayerActive() || mBackgroundResourcesReleased) {
+			return 0;
+		}
+		mBackgroundResourcesReleased = true;
+		// a disabled video renderer has already let go of its codec - make sure it is disabled
+		setVideoRendererEnabled(false);
+		long releasedBytes = 0;
+		if (mBufferPool != null) {
+			// the disabled video source returned its buffers to the pool, drop them
+			releasedBytes += mBufferPool.releasePooledBuffers();
+		}
+		if (mHlsSampleSourceBuilder != null) {
+			releasedBytes += mHlsSampleSourceBuilder.suspendPrefetching();
+		}
+		return releasedBytes;
+	}
+
+	@Override
+	public void reacquireBackgroundResources() {
+		if (!mBackgroundResourcesReleased) {
+			return;
+		}
+		mBackgroundResourcesReleased = false;
+		if (mHlsSampleSourceBuilder != null) {
+			mHlsSampleSourceBuilder.resumePrefetching();
+		}
+		// nothing else to do up front - enabling the video renderer again restarts its source from the sync
+		// sample at or before the playhead, and the codec and buffers come back with it
+	}
+
 	@Override
 	public void onPlayerStateChanged(boolean playWhenReady, int playbackState) {
+		if (EventLog.ENABLED) {
+			EventLog.log(EventLog.PLAYER_STATE_CHANGED, playbackState, playWhenReady ? 1 : 0);
+		}
+		PlaybackTrace.instant("player state", playbackState);
 		mVideoPlayerListener.onMediaPlaybackInfo(PLAYBACK_STATES.get(playbackState));
+		trackRebuffer(playWhenReady, playbackState);
+		// the player's loaders run outside the scheduler - its prefetches and downloads hold back for them
+		IoScheduler.getInstance().setPlaybackActive(playWhenReady && (playbackState == ExoPlayer.STATE_PREPARING
+				|| playbackState == ExoPlayer.STATE_BUFFERING || playbackState == ExoPlayer.STATE_READY));
 		switch (playbackState) {
 			case ExoPlayer.STATE_BUFFERING:
 				if (!mPlayerPrepared) {
@@ -148,6 +610,24 @@ public class VideoExoPlayerImpl implements VideoPlayer, ExoPlayer.Listener, Medi
 		}
 	}
 
+	/** times drops back to buffering while playing, and tells the DASH format evaluator about them */
+	private void trackRebuffer(boolean playWhenReady, int playbackState) {
+		if (playbackState == ExoPlayer.STATE_BUFFERING && mLastPlaybackState == ExoPlayer.STATE_READY
+				&& playWhenReady && !mSeekPending) {
+			mRebufferStartMs = SystemClock.elapsedRealtime();
+		} else if (playbackState != ExoPlayer.STATE_BUFFERING) {
+			if (playbackState == ExoPlayer.STATE_READY && mRebufferStartMs != -1
+					&& mDashSampleSourceBuilder != null) {
+				mDashSampleSourceBuilder.onRebuffer(SystemClock.elapsedRealtime() - mRebufferStartMs);
+			}
+			mRebufferStartMs = -1;
+			if (playbackState == ExoPlayer.STATE_READY) {
+				mSeekPending = false;
+			}
+		}
+		mLastPlaybackState = playbackState;
+	}
+
 	@Override
 	public void onPlayWhenReadyCommitted() {
 
@@ -160,21 +640,43 @@ public class VideoExoPlayerImpl implements VideoPlayer, ExoPlayer.Listener, Medi
 
 	@Override
 	public void onAudioTrackInitializationError(AudioTrack.InitializationException e) {
-
+		// the player reports it through onPlayerError as well
+		Log.w(this.getClass().getSimpleName(), "onAudioTrackInitializationError", e);
 	}
 
 	@Override
 	public void onAudioTrackWriteError(AudioTrack.WriteException e) {
+		BufferedAudioSink sink = mBufferedAudioSink;
+		Log.w(this.getClass().getSimpleName(), "onAudioTrackWriteError"
+				+ (sink != null ? " : " + sink.getDebugString() : ""), e);
+	}
 
+	@Override
+	public void onAudioTrackSwitched(int audioTrack, long gapMs) {
+		if (EventLog.ENABLED) {
+			EventLog.log(EventLog.AUDIO_TRACK_SWITCHED, audioTrack, gapMs);
+		}
+		mVideoPlayerListener.onMediaAudioTrackSwitched(audioTrack, gapMs);
 	}
 
 	@Override
-	public void onDroppedFrames(int i, long l) {
+	public void onText(String text) {
+		mVideoPlayerListener.onMediaText(text);
+	}
 
+	@Override
+	public void onDroppedFrames(int count, long elapsedMs) {
+		if (EventLog.ENABLED) {
+			EventLog.log(EventLog.DROPPED_FRAMES, count, elapsedMs);
+		}
+		mVideoPlayerListener.onMediaDroppedFrames(count, elapsedMs);
 	}
 
 	@Override
 	public void onVideoSizeChanged(final int width, final int height, final float pixelWidthHeightRatio) {
+		if (EventLog.ENABLED) {
+			EventLog.log(EventLog.VIDEO_SIZE_CHANGED, width, height);
+		}
 
 		mWidth = width;
 		mHeight = height;
@@ -191,12 +693,14 @@ public class VideoExoPlayerImpl implements VideoPlayer, ExoPlayer.Listener, Medi
 
 	@Override
 	public void onDecoderInitializationError(MediaCodecTrackRenderer.DecoderInitializationException e) {
-		mVideoPlayerListener.onMediaError(e);
+		// the renderer throws it on to the player as well - it arrives through onPlayerError as the cause
+		Log.w(this.getClass().getSimpleName(), "onDecoderInitializationError", e);
 	}
 
 	@Override
 	public void onCryptoError(MediaCodec.CryptoException e) {
-		mVideoPlayerListener.onMediaError(e);
+		// as above - onPlayerError follows with this as the cause
+		Log.w(this.getClass().getSimpleName(), "onCryptoError", e);
 	}
 
 	@Override
@@ -207,20 +711,38 @@ public class VideoExoPlayerImpl implements VideoPlayer, ExoPlayer.Listener, Medi
 	@Override
 	public void attachSurface(SurfaceView surfaceView) {
 		mSurfaceView = surfaceView;
+		if (mVideoTrackRenderer == null) {
+			// still waiting for the sample sources - the surface is attached once the renderers exist
+			return;
+		}
 		Surface surface = surfaceView != null ? surfaceView.getHolder().getSurface() : null;
+		PlaybackTrace.begin("attachSurface", surface != null ? 1 : 0);
 		if (surface != null) {
 			mExoPlayer.sendMessage(mVideoTrackRenderer, MediaCodecVideoTrackRenderer.MSG_SET_SURFACE, surface);
 		} else {
 			mExoPlayer.blockingSendMessage(mVideoTrackRenderer, MediaCodecVideoTrackRenderer.MSG_SET_SURFACE, null);
 		}
+		PlaybackTrace.end("attachSurface");
 	}
 
 	@Override
 	public void tearDown() {
+		releaseSampleSourceBuilders();
+		mBandwidthMeter.persist();
+		if (EventLog.ENABLED) {
+			EventLog.log(EventLog.PLAYER_TEAR_DOWN);
+		}
+		if (EventLog.ENABLED) {
+			// builds a string of every class's counters - debug builds only
+			Log.d(this.getClass().getSimpleName(), "tearDown : io " + IoScheduler.getInstance().getDebugString());
+		}
+		IoScheduler.getInstance().setPlaybackActive(false);
+		mInitializer = null;
 		if (mExoPlayer != null) {
 			mExoPlayer.release();
 			mExoPlayer = null;
 		}
+		setSubtitleUri(null);
 	}
 
 	@Override
@@ -248,8 +770,80 @@ public class VideoExoPlayerImpl implements VideoPlayer, ExoPlayer.Listener, Medi
 		return PLAYBACK_STATES.get(mExoPlayer.getPlaybackState());
 	}
 
+	@Override
+	public long getPlayingPosition() {
+		// read once - the player may be torn down on the main thread meanwhile
+		ExoPlayer exoPlayer = mExoPlayer;
+		if (exoPlayer == null || !exoPlayer.getPlayWhenReady() || exoPlayer.getPlaybackState() != ExoPlayer.STATE_READY) {
+			return -1;
+		}
+		return exoPlayer.getCurrentPosition();
+	}
+
+	@Override
+	public void reinitializeSource(long positionMs) {
+		reinitialize(positionMs, true);
+	}
+
+	@Override
+	public void rebuild(long positionMs) {
+		reinitialize(positionMs, false);
+	}
+
+	@Override
+	public void retry(long positionMs) {
+		if (mExoPlayer == null || mInitializer == null) {
+			return;
+		}
+		if (mDashSampleSourceBuilder == null && mHlsSampleSourceBuilder == null) {
+			// a local or progressive source - the input source is kept, and with it what it has read ahead
+			reinitializeSource(positionMs);
+			return;
+		}
+		boolean playWhenReady = mExoPlayer.getPlayWhenReady();
+		if (mStartPositionMs == 0) {
+			// otherwise the source never got as far as being prepared - it still starts where it was asked to
+			mStartPositionMs = positionMs;
+		}
+		// the builder and the buffer pool stay - the sample sources come back through the usual callback
+		resetPlayer(true, true);
+		mExoPlayer.setPlayWhenReady(playWhenReady);
+		if (mDashSampleSourceBuilder != null) {
+			mDashSampleSourceBuilder.rebuild();
+		} else {
+			mHlsSampleSourceBuilder.rebuild();
+		}
+	}
+
+	/**
+	 * The decoder cannot be picked in this version of ExoPlayer, so the fallbacks change what it is fed and
+	 * how : the warm video renderer is turned off, then our mp4 extractor gives way to the framework one, and
+	 * last the video renderer is left disabled so the audio plays on.
+	 */
+	@Override
+	public boolean fallBackDecoder(long positionMs) {
+		if (mExoPlayer == null || mInitializer == null) {
+			return false;
+		}
+		if (mWarmVideoEnabled) {
+			mWarmVideoEnabled = false;
+		} else if (mMp4ExtractorInUse) {
+			mSampleExtractorType = EXTRACTOR_FRAMEWORK;
+		} else if (!mAudioOnly) {
+			mAudioOnly = true;
+		} else {
+			return false;
+		}
+		Log.w(this.getClass().getSimpleName(), "fallBackDecoder : warm video = " + mWarmVideoEnabled
+				+ ", extractor = " + mSampleExtractorType + ", audio only = " + mAudioOnly);
+		reinitializeSource(positionMs);
+		return true;
+	}
+
 	@Override
 	public void seekTo(long position) {
+		mSeekPending = true;
+		mRebufferStartMs = -1;
 		mExoPlayer.seekTo(position);
 	}
 
@@ -3,10 +3,16 @@ package com.doyley.backgroundvideo.player;
 import android.view.Display;
 import android.view.SurfaceView;
 
-import java.io.FileDescriptor;
+import com.doyley.backgroundvideo.audio.LoudnessNormalizer;
+import com.doyley.backgroundvideo.qoe.AvSyncMonitor;
+import com.doyley.backgroundvideo.source.InputSource;
 
 public interface VideoPlayer {
 
+	/** sample extractor used for local files - the platform MediaExtractor or our own mp4 demuxer */
+	public static final int EXTRACTOR_FRAMEWORK = 0;
+	public static final int EXTRACTOR_MP4 = 1;
+
 	public enum VideoPlaybackState {
 		STATE_IDLE,
 		STATE_PREPARING,
@@ -18,14 +24,94 @@ public interface VideoPlayer {
 	public void onPlayerStateChanged(boolean playWhenReady, int playbackState);
 
 
-	void initialize(FileDescriptor fileDescriptor);
+	/** initializes from an open local input - the input stays owned by the caller */
+	void initialize(InputSource inputSource);
 
 	public void initialize(String videoUri);
 
+	/** initializes from a DASH manifest - the player is prepared once the manifest has been fetched */
+	public void initializeDash(String manifestUri);
+
+	/** initializes from an HLS playlist - the player is prepared once the playlist has been fetched */
+	public void initializeHls(String playlistUri);
+
+	public void setSampleExtractorType(int extractorType);
+
+	/** position in ms the next initialize starts playback from, before the first frame is rendered */
+	public void setStartPosition(long positionMs);
+
+	/**
+	 * moves the video just initialized to a position in ms found after the initialize - it starts from there
+	 * if its renderers are not prepared yet, otherwise it seeks there
+	 */
+	public void setLateStartPosition(long positionMs);
+
+	/** keeps the video decoder running on sync samples while backgrounded - applies from the next initialize */
+	public void setWarmVideoEnabled(boolean warmVideoEnabled);
+
+	/**
+	 * writes audio to the output from a thread of its own, through a ring that absorbs hiccups of the
+	 * playback thread - applies from the next initialize
+	 */
+	public void setBufferedAudioEnabled(boolean bufferedAudioEnabled);
+
+	/** fill level, underruns and write latency of the buffered audio, or null if audio is not buffered */
+	public String getAudioSinkDebugString();
+
+	/**
+	 * plays faster or slower than normal, keeping the pitch of the audio - clamped to 0.5 to 4, and kept
+	 * across reinitializes. Media without an audio track always plays at normal speed.
+	 */
+	public void setPlaybackSpeed(float speed);
+
+	public float getPlaybackSpeed();
+
+	/**
+	 * brings the audio to a common loudness - knownLoudnessLufs is what was measured of the media before, over
+	 * knownDurationMs of it, or NaN if nothing was. Applies from the next initialize, and is kept across
+	 * reinitializes of the same media.
+	 */
+	public void setLoudnessNormalization(boolean enabled, float knownLoudnessLufs, long knownDurationMs);
+
+	/**
+	 * a sidecar SRT or WebVTT file to show instead of any text track in the media, or null - applies from
+	 * the next initialize. Only local files are supported.
+	 */
+	public void setSubtitleUri(String subtitleUri);
+
+	/**
+	 * reports how far each video frame is from the audio to the monitor, which can have the video catch up -
+	 * null for neither. Applies from the next initialize.
+	 */
+	public void setAvSyncMonitor(AvSyncMonitor syncMonitor);
+
+	/** mime types of the audio tracks of the current media - empty until it is prepared */
+	public String[] getAudioTracks();
+
+	public int getSelectedAudioTrack();
+
+	/**
+	 * switches to another audio track, as an index into getAudioTracks, at the current position - only the
+	 * audio is flushed, and the video plays on. Kept across reinitializes of the same media.
+	 */
+	public void selectAudioTrack(int audioTrack);
+
+	/** normalizer of the current media, or null if its audio is not normalized - its getters work from any thread */
+	public LoudnessNormalizer getLoudnessNormalizer();
+
+	/** true while the video decoder is being kept warm in the background */
+	public boolean isVideoWarm();
+
 	public boolean isMediaPlayerActive();
 
 	public void setBackgrounded(boolean background);
 
+	/** frees what is only needed for video while in the background - returns the number of bytes released */
+	public long releaseBackgroundResources();
+
+	/** takes back what releaseBackgroundResources freed - called before the video is foregrounded again */
+	public void reacquireBackgroundResources();
+
 	public void attachSurface(SurfaceView surfaceView);
 
 	public void tearDown();
@@ -40,6 +126,27 @@ public interface VideoPlayer {
 
 	public VideoPlaybackState getPlaybackState();
 
+	/** position in ms while the player is ready with playback requested, -1 otherwise - safe from any thread */
+	public long getPlayingPosition();
+
+	/** builds the sample source and renderers again and prepares the same player with them at the given position */
+	public void reinitializeSource(long positionMs);
+
+	/** replaces the player itself, then builds the sample source and renderers again at the given position */
+	public void rebuild(long positionMs);
+
+	/**
+	 * prepares the player again at the given position after an error, keeping what it already has - the
+	 * manifest or playlist, prefetched segments, the input source
+	 */
+	public void retry(long positionMs);
+
+	/**
+	 * prepares the player again at the given position with the next fallback for a decoder that failed to
+	 * initialize - returns false once there is none left
+	 */
+	public boolean fallBackDecoder(long positionMs);
+
 	public void seekTo(long i);
 
 	public void pause();
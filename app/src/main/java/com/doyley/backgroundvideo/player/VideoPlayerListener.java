@@ -7,4 +7,10 @@ public interface VideoPlayerListener {
 	public void onMediaError(Exception exception);
 	public void onMediaDrawnToSurface();
 	public void onAspectRatioChanged();
+	/** the subtitle text to show, null when there is none */
+	public void onMediaText(String text);
+	/** audio of a newly selected track started gapMs after the one before it stopped */
+	public void onMediaAudioTrackSwitched(int audioTrack, long gapMs);
+	/** called on the renderer's thread */
+	public void onMediaDroppedFrames(int count, long elapsedMs);
 }
@@ -0,0 +1,116 @@
+package com.doyley.backgroundvideo.qoe;
+
+import java.util.Locale;
+
+/**
+ * How far video frames are from the audio clock, as the video renderer releases or drops them.
+ *
+ * The drift of a frame is its timestamp less the audio position at the time it was put on screen, in
+ * media time - negative when the video is behind. A frame released on time has no drift, whatever it was
+ * decoded ahead by. Everything is kept in a fixed amount of memory : the last RECENT_FRAMES drifts in a
+ * ring for what is happening now, and histograms of the lateness and earliness of every frame for the
+ * session, which go into its {@link QoeSummary}.
+ *
+ * The renderer already drops frames that are late and holds back frames that are early, which repeats the
+ * one on screen. What the monitor adds is the decision to catch up : when CORRECTION_FRAMES frames in a
+ * row are later than LATE_THRESHOLD_US, decoding them all only to drop them keeps the video behind, and the
+ * renderer is told to skip ahead to the next sync sample. Frames shown that far ahead are counted as
+ * repeats.
+ *
+ * The renderer reports on its playback thread, and everything else happens on others, so all methods are
+ * synchronized.
+ */
+public final class AvSyncMonitor {
+
+	/** video behind the audio by more than this starts to be noticed (ITU-R BT.1359) */
+	public static final long LATE_THRESHOLD_US = 125000;
+	/** and ahead of it, by more than this */
+	public static final long EARLY_THRESHOLD_US = 45000;
+
+	private static final int CORRECTION_FRAMES = 8;
+	private static final int RECENT_FRAMES = 128;
+
+	private final int[] mRecentDriftUs = new int[RECENT_FRAMES];
+	private int mRecentIndex;
+	private int mRecentCount;
+	private int mLateStreak;
+
+	private final LogHistogram mLateMs = new LogHistogram();
+	private final LogHistogram mEarlyMs = new LogHistogram();
+	private long mFrames;
+	private long mDroppedFrames;
+	private long mCatchUps;
+	private long mRepeats;
+
+	/**
+	 * a frame was put on screen, or dropped, driftUs away from the audio clock - returns true if the video has
+	 * been too far behind for too long, and should skip ahead to the next sync sample
+	 */
+	public synchronized boolean onFrame(long driftUs, boolean dropped) {
+		mRecentDriftUs[mRecentIndex] = (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, driftUs));
+		mRecentIndex = (mRecentIndex + 1) % RECENT_FRAMES;
+		mRecentCount = Math.min(mRecentCount + 1, RECENT_FRAMES);
+		mFrames++;
+		if (dropped) {
+			mDroppedFrames++;
+		}
+		if (driftUs < 0) {
+			mLateMs.record(-driftUs / 1000);
+		} else {
+			mEarlyMs.record(driftUs / 1000);
+		}
+		if (!dropped && driftUs > EARLY_THRESHOLD_US) {
+			// it stays on screen until the audio gets to the next one
+			mRepeats++;
+		}
+		if (driftUs >= -LATE_THRESHOLD_US) {
+			mLateStreak = 0;
+			return false;
+		}
+		if (++mLateStreak < CORRECTION_FRAMES) {
+			return false;
+		}
+		mLateStreak = 0;
+		mCatchUps++;
+		return true;
+	}
+
+	/** after a seek or a renderer being enabled - frames before it are not counted as being late for a correction */
+	public synchronized void onDiscontinuity() {
+		mLateStreak = 0;
+	}
+
+	/** for a new session */
+	public synchronized void reset() {
+		mRecentIndex = 0;
+		mRecentCount = 0;
+		mLateStreak = 0;
+		mLateMs.clear();
+		mEarlyMs.clear();
+		mFrames = 0;
+		mDroppedFrames = 0;
+		mCatchUps = 0;
+		mRepeats = 0;
+	}
+
+	synchronized void addTo(QoeSummary summary) {
+		summary.onAvSync(mLateMs, mEarlyMs, mCatchUps, mRepeats);
+	}
+
+	public synchronized String getDebugString() {
+		long sumUs = 0;
+		int minUs = 0;
+		int maxUs = 0;
+		for (int i = 0; i < mRecentCount; i++) {
+			int driftUs = mRecentDriftUs[i];
+			sumUs += driftUs;
+			minUs = i == 0 ? driftUs : Math.min(minUs, driftUs);
+			maxUs = i == 0 ? driftUs : Math.max(maxUs, driftUs);
+		}
+		return String.format(Locale.US, "last %d frames : mean = %.1fms, min = %.1fms, max = %.1fms",
+				mRecentCount, mRecentCount == 0 ? 0 : sumUs / 1000f / mRecentCount, minUs / 1000f, maxUs / 1000f)
+				+ ", session : frames = " + mFrames + ", dropped = " + mDroppedFrames + ", catch ups = " + mCatchUps
+				+ ", repeats = " + mRepeats + "\n  late ms : " + mLateMs + "\n  early ms : " + mEarlyMs;
+	}
+
+}
@@ -0,0 +1,191 @@
+package com.doyley.backgroundvideo.qoe;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A histogram of non-negative values in a fixed amount of memory, whatever the number of samples.
+ *
+ * Values below 8 get a bucket each, above that every power of two is split into 8 buckets, so a value is
+ * known to within 12.5%. Values past 2^40 land in the last bucket. Histograms merge by adding up their
+ * buckets, which is what makes per-session histograms add up to fleet-wide ones. Count, sum, min and max
+ * are exact.
+ *
+ * Serialized form : count, sum, min, max, the number of non-empty buckets and then a (index delta, count)
+ * pair for each of them - all as variable length integers.
+ */
+public final class LogHistogram {
+
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int MAX_EXPONENT = 40;
+	private static final int BUCKET_COUNT = SUB_BUCKETS + (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+	private final long[] mBuckets = new long[BUCKET_COUNT];
+	private long mCount;
+	private long mSum;
+	private long mMin = Long.MAX_VALUE;
+	private long mMax;
+
+	/** negative values are counted as 0 */
+	public void record(long value) {
+		value = Math.max(0, value);
+		mBuckets[getBucketIndex(value)]++;
+		mCount++;
+		mSum += value;
+		mMin = Math.min(mMin, value);
+		mMax = Math.max(mMax, value);
+	}
+
+	public void merge(LogHistogram other) {
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			mBuckets[i] += other.mBuckets[i];
+		}
+		mCount += other.mCount;
+		mSum += other.mSum;
+		mMin = Math.min(mMin, other.mMin);
+		mMax = Math.max(mMax, other.mMax);
+	}
+
+	public void clear() {
+		Arrays.fill(mBuckets, 0);
+		mCount = 0;
+		mSum = 0;
+		mMin = Long.MAX_VALUE;
+		mMax = 0;
+	}
+
+	public long getCount() {
+		return mCount;
+	}
+
+	public long getSum() {
+		return mSum;
+	}
+
+	public long getMin() {
+		return mCount == 0 ? 0 : mMin;
+	}
+
+	public long getMax() {
+		return mMax;
+	}
+
+	public long getMean() {
+		return mCount == 0 ? 0 : mSum / mCount;
+	}
+
+	/** the value below which the given fraction of samples fall - the upper end of its bucket */
+	public long getPercentile(double fraction) {
+		if (mCount == 0) {
+			return 0;
+		}
+		long target = Math.max(1, (long) Math.ceil(fraction * mCount));
+		long seen = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			seen += mBuckets[i];
+			if (seen >= target) {
+				return Math.max(getMin(), Math.min(mMax, getBucketUpperBound(i)));
+			}
+		}
+		return mMax;
+	}
+
+	public void writeTo(DataOutput output) throws IOException {
+		writeVarLong(output, mCount);
+		writeVarLong(output, mSum);
+		writeVarLong(output, getMin());
+		writeVarLong(output, mMax);
+		int used = 0;
+		for (long bucket : mBuckets) {
+			if (bucket != 0) {
+				used++;
+			}
+		}
+		writeVarLong(output, used);
+		int previous = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			if (mBuckets[i] != 0) {
+				writeVarLong(output, i - previous);
+				writeVarLong(output, mBuckets[i]);
+				previous = i;
+			}
+		}
+	}
+
+	public static LogHistogram readFrom(DataInput input) throws IOException {
+		LogHistogram histogram = new LogHistogram();
+		histogram.mCount = readVarLong(input);
+		histogram.mSum = readVarLong(input);
+		long min = readVarLong(input);
+		histogram.mMin = histogram.mCount == 0 ? Long.MAX_VALUE : min;
+		histogram.mMax = readVarLong(input);
+		long used = readVarLong(input);
+		int index = 0;
+		for (long i = 0; i < used; i++) {
+			index += (int) readVarLong(input);
+			if (index < 0 || index >= BUCKET_COUNT) {
+				throw new IOException("bucket " + index + " out of range");
+			}
+			histogram.mBuckets[index] = readVarLong(input);
+		}
+		return histogram;
+	}
+
+	@Override
+	public String toString() {
+		return "n = " + mCount + ", mean = " + getMean() + ", p50 = " + getPercentile(0.5) + ", p90 = "
+				+ getPercentile(0.9) + ", p99 = " + getPercentile(0.99) + ", max = " + mMax;
+	}
+
+	static int getBucketIndex(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		if (exponent > MAX_EXPONENT) {
+			return BUCKET_COUNT - 1;
+		}
+		int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS + subBucket;
+	}
+
+	static long getBucketUpperBound(int index) {
+		if (index == BUCKET_COUNT - 1) {
+			return Long.MAX_VALUE;
+		}
+		return getBucketLowerBound(index + 1) - 1;
+	}
+
+	private static long getBucketLowerBound(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int exponent = (index - SUB_BUCKETS) / SUB_BUCKETS + SUB_BUCKET_BITS;
+		int subBucket = (index - SUB_BUCKETS) % SUB_BUCKETS;
+		return (long) (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+	}
+
+	static void writeVarLong(DataOutput output, long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			output.writeByte((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		output.writeByte((int) value);
+	}
+
+	static long readVarLong(DataInput input) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			byte b = input.readByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("malformed variable length integer");
+	}
+
+}
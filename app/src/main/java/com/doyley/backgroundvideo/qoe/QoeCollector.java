@@ -0,0 +1,215 @@
+package com.doyley.backgroundvideo.qoe;
+
+import android.os.SystemClock;
+
+import com.doyley.backgroundvideo.player.VideoPlayer;
+import com.doyley.backgroundvideo.player.VideoPlayerListener;
+
+/**
+ * Derives playback quality from the player's event stream - the owner of the player forwards its
+ * {@link VideoPlayerListener} callbacks here, along with what the user asked for.
+ *
+ * Startup time runs from the later of the load and the first play request to the first time the player is
+ * ready with a play request standing. A rebuffer is the player going from ready back to buffering while
+ * playing, other than after a seek. Seek latency runs from the request to ready. Everything goes into the
+ * current session's summary, which is merged into the cumulative one when the session ends. So does the
+ * audio/video drift the video renderer reports to {@link #getAvSyncMonitor()}.
+ *
+ * Dropped frames are reported on the renderer's thread, so all methods are synchronized.
+ */
+public class QoeCollector implements VideoPlayerListener {
+
+	private final QoeSummary mCumulative = new QoeSummary();
+	private final AvSyncMonitor mAvSyncMonitor = new AvSyncMonitor();
+	private QoeSummary mSession;
+
+	private boolean mPlayWhenReady;
+	private VideoPlayer.VideoPlaybackState mState = VideoPlayer.VideoPlaybackState.STATE_IDLE;
+	private long mStartupFromMs = -1;
+	private boolean mStarted;
+	private long mSeekFromMs = -1;
+	private long mRebufferFromMs = -1;
+	private long mPlayingFromMs = -1;
+	private int mRebufferCount;
+	private long mRebufferTimeMs;
+	private long mPlayingTimeMs;
+	private long mDroppedFrames;
+	private int mErrorCount;
+
+	/** a video is being loaded - ends the session before it, if any */
+	public synchronized void onSessionStarted() {
+		onSessionEnded();
+		mSession = new QoeSummary();
+		mAvSyncMonitor.reset();
+		mState = VideoPlayer.VideoPlaybackState.STATE_IDLE;
+		mStarted = false;
+		mPlayWhenReady = false;
+		mStartupFromMs = -1;
+		mSeekFromMs = -1;
+		mRebufferFromMs = -1;
+		mPlayingFromMs = -1;
+		mRebufferCount = 0;
+		mRebufferTimeMs = 0;
+		mPlayingTimeMs = 0;
+		mDroppedFrames = 0;
+		mErrorCount = 0;
+	}
+
+	/** closes the current session and returns its summary, or null if there is no session */
+	public synchronized QoeSummary onSessionEnded() {
+		QoeSummary session = mSession;
+		if (session == null) {
+			return null;
+		}
+		long nowMs = now();
+		stopPlayingClock(nowMs);
+		if (mRebufferFromMs != -1) {
+			// the user gave up waiting - that counts
+			endRebuffer(nowMs);
+		}
+		mAvSyncMonitor.addTo(session);
+		session.onSessionEnded(mRebufferCount, mRebufferTimeMs, mPlayingTimeMs, mDroppedFrames, mErrorCount);
+		mCumulative.merge(session);
+		mSession = null;
+		return session;
+	}
+
+	/** called whenever playback is requested or paused - a repeated request is harmless */
+	public synchronized void onPlayWhenReadyChanged(boolean playWhenReady) {
+		long nowMs = now();
+		if (playWhenReady && !mPlayWhenReady && !mStarted && mStartupFromMs == -1) {
+			mStartupFromMs = nowMs;
+		}
+		mPlayWhenReady = playWhenReady;
+		if (playWhenReady) {
+			onStateChanged(nowMs);
+		} else {
+			stopPlayingClock(nowMs);
+			if (mRebufferFromMs != -1) {
+				endRebuffer(nowMs);
+			}
+		}
+	}
+
+	public synchronized void onSeekRequested() {
+		mSeekFromMs = now();
+		if (mRebufferFromMs != -1) {
+			endRebuffer(mSeekFromMs);
+		}
+	}
+
+	/** fed by the video renderer - its drift distribution goes into each session's summary */
+	public AvSyncMonitor getAvSyncMonitor() {
+		return mAvSyncMonitor;
+	}
+
+	/** a copy of everything recorded since the process started, the current session not included */
+	public synchronized QoeSummary getCumulativeSummary() {
+		QoeSummary copy = new QoeSummary();
+		copy.merge(mCumulative);
+		return copy;
+	}
+
+	@Override
+	public synchronized boolean onMediaPlaybackInfo(VideoPlayer.VideoPlaybackState playbackState) {
+		VideoPlayer.VideoPlaybackState previous = mState;
+		mState = playbackState;
+		long nowMs = now();
+		if (mSession != null && playbackState == VideoPlayer.VideoPlaybackState.STATE_BUFFERING
+				&& previous == VideoPlayer.VideoPlaybackState.STATE_READY && mStarted && mPlayWhenReady
+				&& mSeekFromMs == -1 && mRebufferFromMs == -1) {
+			mRebufferFromMs = nowMs;
+		}
+		onStateChanged(nowMs);
+		return true;
+	}
+
+	@Override
+	public void onMediaPrepared(long duration) {
+	}
+
+	@Override
+	public synchronized void onMediaPlaybackCompleted() {
+		mState = VideoPlayer.VideoPlaybackState.STATE_ENDED;
+		stopPlayingClock(now());
+	}
+
+	@Override
+	public synchronized void onMediaError(Exception exception) {
+		mErrorCount++;
+		if (mSession == null) {
+			// an error before anything was loaded still counts, against a session of its own
+			onSessionStarted();
+			mErrorCount = 1;
+			onSessionEnded();
+		}
+	}
+
+	@Override
+	public void onMediaDrawnToSurface() {
+	}
+
+	@Override
+	public void onAspectRatioChanged() {
+	}
+
+	@Override
+	public void onMediaText(String text) {
+	}
+
+	@Override
+	public void onMediaAudioTrackSwitched(int audioTrack, long gapMs) {
+	}
+
+	@Override
+	public synchronized void onMediaDroppedFrames(int count, long elapsedMs) {
+		mDroppedFrames += count;
+	}
+
+	private void onStateChanged(long nowMs) {
+		if (mSession == null) {
+			return;
+		}
+		boolean ready = mState == VideoPlayer.VideoPlaybackState.STATE_READY;
+		if (ready && mPlayWhenReady) {
+			if (!mStarted && mStartupFromMs != -1) {
+				mSession.onStartup(nowMs - mStartupFromMs);
+				mStarted = true;
+			}
+			if (mPlayingFromMs == -1) {
+				mPlayingFromMs = nowMs;
+			}
+		} else {
+			stopPlayingClock(nowMs);
+		}
+		if (ready) {
+			if (mRebufferFromMs != -1) {
+				endRebuffer(nowMs);
+			}
+			if (mSeekFromMs != -1) {
+				mSession.onSeek(nowMs - mSeekFromMs);
+				mSeekFromMs = -1;
+			}
+		}
+	}
+
+	private void endRebuffer(long nowMs) {
+		long durationMs = nowMs - mRebufferFromMs;
+		mRebufferFromMs = -1;
+		mRebufferCount++;
+		mRebufferTimeMs += durationMs;
+		mSession.onRebuffer(durationMs);
+	}
+
+	private void stopPlayingClock(long nowMs) {
+		if (mPlayingFromMs != -1) {
+			mPlayingTimeMs += nowMs - mPlayingFromMs;
+			mPlayingFromMs = -1;
+		}
+	}
+
+	private static long now() {
+		return SystemClock.elapsedRealtime();
+	}
+
+}
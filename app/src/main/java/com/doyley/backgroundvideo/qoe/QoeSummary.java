@@ -0,0 +1,232 @@
+package com.doyley.backgroundvideo.qoe;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Playback quality of one session or of many merged together - they have the same shape, so summaries
+ * from any number of sessions or devices merge into one.
+ *
+ * Serialized form : magic (int), version (byte), the counters as variable length integers, then each
+ * histogram - see {@link LogHistogram}. A single session summary is typically well under 100 bytes.
+ */
+public final class QoeSummary {
+
+	private static final int MAGIC = 0x514f4531;
+	private static final int VERSION = 2;
+
+	private long mSessionCount;
+	private long mErrorCount;
+	private long mPlayingTimeMs;
+	private long mRebufferTimeMs;
+	private long mDroppedFrames;
+	private long mSyncCatchUps;
+	private long mSyncRepeats;
+
+	private final LogHistogram mStartupTimeMs = new LogHistogram();
+	private final LogHistogram mRebufferDurationMs = new LogHistogram();
+	private final LogHistogram mSeekLatencyMs = new LogHistogram();
+	/** one sample per session */
+	private final LogHistogram mRebufferCount = new LogHistogram();
+	/** one sample per session, in per mille of the time spent playing or rebuffering */
+	private final LogHistogram mRebufferRatioPerMille = new LogHistogram();
+	/** one sample per session */
+	private final LogHistogram mDroppedFramesPerSession = new LogHistogram();
+	/** one sample per frame, of how far video was behind the audio - see {@link AvSyncMonitor} */
+	private final LogHistogram mVideoLateMs = new LogHistogram();
+	/** one sample per frame, of how far video was ahead of the audio - 0 for a frame on time */
+	private final LogHistogram mVideoEarlyMs = new LogHistogram();
+
+	void onSessionEnded(int rebufferCount, long rebufferTimeMs, long playingTimeMs, long droppedFrames,
+	                    int errorCount) {
+		mSessionCount++;
+		mErrorCount += errorCount;
+		mPlayingTimeMs += playingTimeMs;
+		mRebufferTimeMs += rebufferTimeMs;
+		mDroppedFrames += droppedFrames;
+		mRebufferCount.record(rebufferCount);
+		long watchedMs = playingTimeMs + rebufferTimeMs;
+		if (watchedMs > 0) {
+			mRebufferRatioPerMille.record(rebufferTimeMs * 1000 / watchedMs);
+		}
+		mDroppedFramesPerSession.record(droppedFrames);
+	}
+
+	void onStartup(long startupTimeMs) {
+		mStartupTimeMs.record(startupTimeMs);
+	}
+
+	void onRebuffer(long durationMs) {
+		mRebufferDurationMs.record(durationMs);
+	}
+
+	void onSeek(long latencyMs) {
+		mSeekLatencyMs.record(latencyMs);
+	}
+
+	void onAvSync(LogHistogram videoLateMs, LogHistogram videoEarlyMs, long catchUps, long repeats) {
+		mVideoLateMs.merge(videoLateMs);
+		mVideoEarlyMs.merge(videoEarlyMs);
+		mSyncCatchUps += catchUps;
+		mSyncRepeats += repeats;
+	}
+
+	public void merge(QoeSummary other) {
+		mSessionCount += other.mSessionCount;
+		mErrorCount += other.mErrorCount;
+		mPlayingTimeMs += other.mPlayingTimeMs;
+		mRebufferTimeMs += other.mRebufferTimeMs;
+		mDroppedFrames += other.mDroppedFrames;
+		mSyncCatchUps += other.mSyncCatchUps;
+		mSyncRepeats += other.mSyncRepeats;
+		mStartupTimeMs.merge(other.mStartupTimeMs);
+		mRebufferDurationMs.merge(other.mRebufferDurationMs);
+		mSeekLatencyMs.merge(other.mSeekLatencyMs);
+		mRebufferCount.merge(other.mRebufferCount);
+		mRebufferRatioPerMille.merge(other.mRebufferRatioPerMille);
+		mDroppedFramesPerSession.merge(other.mDroppedFramesPerSession);
+		mVideoLateMs.merge(other.mVideoLateMs);
+		mVideoEarlyMs.merge(other.mVideoEarlyMs);
+	}
+
+	public long getSessionCount() {
+		return mSessionCount;
+	}
+
+	public long getErrorCount() {
+		return mErrorCount;
+	}
+
+	public long getPlayingTimeMs() {
+		return mPlayingTimeMs;
+	}
+
+	public long getRebufferTimeMs() {
+		return mRebufferTimeMs;
+	}
+
+	/** rebuffering time over the time spent playing or rebuffering, across all sessions */
+	public double getRebufferRatio() {
+		long watchedMs = mPlayingTimeMs + mRebufferTimeMs;
+		return watchedMs == 0 ? 0 : (double) mRebufferTimeMs / watchedMs;
+	}
+
+	public long getDroppedFrames() {
+		return mDroppedFrames;
+	}
+
+	public LogHistogram getStartupTimeMs() {
+		return mStartupTimeMs;
+	}
+
+	public LogHistogram getRebufferDurationMs() {
+		return mRebufferDurationMs;
+	}
+
+	public LogHistogram getSeekLatencyMs() {
+		return mSeekLatencyMs;
+	}
+
+	public LogHistogram getRebufferCount() {
+		return mRebufferCount;
+	}
+
+	public LogHistogram getRebufferRatioPerMille() {
+		return mRebufferRatioPerMille;
+	}
+
+	public LogHistogram getDroppedFramesPerSession() {
+		return mDroppedFramesPerSession;
+	}
+
+	/** times the video skipped ahead to a sync sample to catch up with the audio */
+	public long getSyncCatchUps() {
+		return mSyncCatchUps;
+	}
+
+	/** frames shown far enough ahead of the audio to be held on screen until it caught up */
+	public long getSyncRepeats() {
+		return mSyncRepeats;
+	}
+
+	public LogHistogram getVideoLateMs() {
+		return mVideoLateMs;
+	}
+
+	public LogHistogram getVideoEarlyMs() {
+		return mVideoEarlyMs;
+	}
+
+	public byte[] toByteArray() {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+		DataOutputStream output = new DataOutputStream(bytes);
+		try {
+			output.writeInt(MAGIC);
+			output.writeByte(VERSION);
+			LogHistogram.writeVarLong(output, mSessionCount);
+			LogHistogram.writeVarLong(output, mErrorCount);
+			LogHistogram.writeVarLong(output, mPlayingTimeMs);
+			LogHistogram.writeVarLong(output, mRebufferTimeMs);
+			LogHistogram.writeVarLong(output, mDroppedFrames);
+			LogHistogram.writeVarLong(output, mSyncCatchUps);
+			LogHistogram.writeVarLong(output, mSyncRepeats);
+			mStartupTimeMs.writeTo(output);
+			mRebufferDurationMs.writeTo(output);
+			mSeekLatencyMs.writeTo(output);
+			mRebufferCount.writeTo(output);
+			mRebufferRatioPerMille.writeTo(output);
+			mDroppedFramesPerSession.writeTo(output);
+			mVideoLateMs.writeTo(output);
+			mVideoEarlyMs.writeTo(output);
+			output.flush();
+		} catch (IOException e) {
+			// a byte array stream does not throw
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	public static QoeSummary fromByteArray(byte[] data) throws IOException {
+		DataInputStream input = new DataInputStream(new ByteArrayInputStream(data));
+		if (input.readInt() != MAGIC) {
+			throw new IOException("not a QoE summary");
+		}
+		int version = input.readByte();
+		if (version != VERSION) {
+			throw new IOException("unsupported QoE summary version " + version);
+		}
+		QoeSummary summary = new QoeSummary();
+		summary.mSessionCount = LogHistogram.readVarLong(input);
+		summary.mErrorCount = LogHistogram.readVarLong(input);
+		summary.mPlayingTimeMs = LogHistogram.readVarLong(input);
+		summary.mRebufferTimeMs = LogHistogram.readVarLong(input);
+		summary.mDroppedFrames = LogHistogram.readVarLong(input);
+		summary.mSyncCatchUps = LogHistogram.readVarLong(input);
+		summary.mSyncRepeats = LogHistogram.readVarLong(input);
+		summary.mStartupTimeMs.merge(LogHistogram.readFrom(input));
+		summary.mRebufferDurationMs.merge(LogHistogram.readFrom(input));
+		summary.mSeekLatencyMs.merge(LogHistogram.readFrom(input));
+		summary.mRebufferCount.merge(LogHistogram.readFrom(input));
+		summary.mRebufferRatioPerMille.merge(LogHistogram.readFrom(input));
+		summary.mDroppedFramesPerSession.merge(LogHistogram.readFrom(input));
+		summary.mVideoLateMs.merge(LogHistogram.readFrom(input));
+		summary.mVideoEarlyMs.merge(LogHistogram.readFrom(input));
+		return summary;
+	}
+
+	@Override
+	public String toString() {
+		return "sessions = " + mSessionCount + ", errors = " + mErrorCount + ", playing = " + mPlayingTimeMs
+				+ "ms, rebuffering = " + mRebufferTimeMs + "ms (" + String.format(Locale.US, "%.2f", getRebufferRatio() * 100)
+				+ "%), dropped frames = " + mDroppedFrames + "\n  startup ms : " + mStartupTimeMs
+				+ "\n  rebuffer ms : " + mRebufferDurationMs + "\n  seek ms : " + mSeekLatencyMs
+				+ "\n  rebuffers per session : " + mRebufferCount + "\n  dropped frames per session : "
+				+ mDroppedFramesPerSession + "\n  video late ms : " + mVideoLateMs + "\n  video early ms : "
+				+ mVideoEarlyMs + "\n  sync catch ups = " + mSyncCatchUps + ", repeats = " + mSyncRepeats;
+	}
+
+}
@@ -0,0 +1,184 @@
+package com.doyley.backgroundvideo.remote;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.os.SystemClock;
+
+import com.doyley.backgroundvideo.service.VideoService;
+
+import java.util.Arrays;
+
+/**
+ * Commands sent to {@link IVideoControl} in one call - they are applied in the order they were added.
+ *
+ * It is the one batch format of the app : the player process takes the same batches from
+ * {@link com.doyley.backgroundvideo.service.PlayerProcessClient}, and {@link VideoControlService} hands the
+ * batches it gets on to it unchanged.
+ *
+ * A batch is stamped with the time it is first written to a parcel, so the player can tell how long it took
+ * to reach it. All processes read the same clock.
+ */
+public class VideoCommandBatch implements Parcelable {
+
+	public static final Creator<VideoCommandBatch> CREATOR = new Creator<VideoCommandBatch>() {
+		public VideoCommandBatch createFromParcel(Parcel in) {
+			return new VideoCommandBatch(in);
+		}
+
+		public VideoCommandBatch[] newArray(int size) {
+			return new VideoCommandBatch[size];
+		}
+	};
+
+	public static final int OP_PLAY = 1;
+	public static final int OP_PAUSE = 2;
+	public static final int OP_TOGGLE_PAUSED = 3;
+	/** argument is the position in ms */
+	public static final int OP_SEEK = 4;
+	/** argument is the offset in ms from the current position, may be negative */
+	public static final int OP_SEEK_RELATIVE = 5;
+	public static final int OP_PREVIOUS = 6;
+	public static final int OP_NEXT = 7;
+	public static final int OP_STOP = 8;
+
+	public static final int MAX_SIZE = 256;
+
+	private final long mBatchId;
+	private int mCount;
+	private int[] mOps;
+	private long[] mArgs;
+	private long mSentAtNs;
+	private long mReceivedAtNs;
+
+	public VideoCommandBatch(long batchId) {
+		mBatchId = batchId;
+		mOps = new int[8];
+		mArgs = new long[8];
+	}
+
+	private VideoCommandBatch(Parcel in) {
+		mReceivedAtNs = SystemClock.elapsedRealtimeNanos();
+		mBatchId = in.readLong();
+		mSentAtNs = in.readLong();
+		mCount = in.readInt();
+		if (mCount < 0 || mCount > MAX_SIZE) {
+			throw new IllegalArgumentException("batch of " + mCount + " commands");
+		}
+		mOps = new int[mCount];
+		mArgs = new long[mCount];
+		for (int i = 0; i < mCount; i++) {
+			mOps[i] = in.readInt();
+			mArgs[i] = in.readLong();
+		}
+	}
+
+	/** returns this batch, so commands can be chained */
+	public VideoCommandBatch add(int op, long arg) {
+		if (mCount == MAX_SIZE) {
+			throw new IllegalStateException("batch is full");
+		}
+		if (mCount == mOps.length) {
+			mOps = Arrays.copyOf(mOps, Math.min(mCount * 2, MAX_SIZE));
+			mArgs = Arrays.copyOf(mArgs, mOps.length);
+		}
+		mOps[mCount] = op;
+		mArgs[mCount] = arg;
+		mCount++;
+		return this;
+	}
+
+	public VideoCommandBatch add(int op) {
+		return add(op, 0);
+	}
+
+	public long getBatchId() {
+		return mBatchId;
+	}
+
+	public int size() {
+		return mCount;
+	}
+
+	public int getOp(int index) {
+		return mOps[index];
+	}
+
+	public long getArg(int index) {
+		return mArgs[index];
+	}
+
+	/** elapsed realtime the batch was sent at, in ns - 0 on the side that first sends it */
+	public long getSentAtNs() {
+		return mSentAtNs;
+	}
+
+	/** elapsed realtime the batch was received at, in ns - 0 on the sending side */
+	public long getReceivedAtNs() {
+		return mReceivedAtNs;
+	}
+
+	/** runs on the main thread - applies the commands in order, returns how many of them were not known */
+	public int applyTo(VideoService service) {
+		int rejected = 0;
+		for (int i = 0; i < mCount; i++) {
+			long arg = mArgs[i];
+			switch (mOps[i]) {
+				case OP_PLAY:
+					service.start();
+					break;
+				case OP_PAUSE:
+					service.pause();
+					break;
+				case OP_TOGGLE_PAUSED:
+					if (service.isPlaying()) {
+						service.pause();
+					} else {
+						service.start();
+					}
+					break;
+				case OP_SEEK:
+					service.seekTo(Math.max(0, arg));
+					break;
+				case OP_SEEK_RELATIVE:
+					service.seekTo(Math.max(0, service.getCurrentPosition() + arg));
+					break;
+				case OP_PREVIOUS:
+					service.prev();
+					break;
+				case OP_NEXT:
+					service.next();
+					break;
+				case OP_STOP:
+					service.stop();
+					break;
+				default:
+					rejected++;
+					break;
+			}
+		}
+		return rejected;
+	}
+
+	@Override
+	public int describeContents() {
+		return 0;
+	}
+
+	@Override
+	public void writeToParcel(Parcel dest, int flags) {
+		dest.writeLong(mBatchId);
+		// a batch passed on keeps the time its caller sent it at
+		dest.writeLong(mSentAtNs != 0 ? mSentAtNs : SystemClock.elapsedRealtimeNanos());
+		dest.writeInt(mCount);
+		for (int i = 0; i < mCount; i++) {
+			dest.writeInt(mOps[i]);
+			dest.writeLong(mArgs[i]);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "batch " + mBatchId + " of " + mCount;
+	}
+
+}
@@ -0,0 +1,166 @@
+package com.doyley.backgroundvideo.remote;
+
+import android.app.Service;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.RemoteCallbackList;
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.doyley.backgroundvideo.service.PlayerProcessClient;
+import com.doyley.backgroundvideo.service.PlayerProcessService;
+import com.doyley.backgroundvideo.service.PlayerStatusRegion;
+
+/**
+ * Lets other apps of ours drive playback through {@link IVideoControl} - it is exported, and binding needs
+ * {@link #PERMISSION_CONTROL_PLAYBACK}.
+ *
+ * The player it drives is {@link PlayerProcessService}, which runs in a process of its own. Batches are passed
+ * on to it as they came in, through a {@link PlayerProcessClient}, and it applies each of them on its main
+ * thread in one go, so nothing - a status callback included - sees one half applied. Calls are one-way all the
+ * way, so a caller scrubbing at a high rate never waits on us or on the player.
+ *
+ * Status comes from the player's shared status region. Listeners get it at most once every
+ * {@link #STATUS_INTERVAL_MS}, and only when it changed, whatever the rate of commands - along with the last
+ * batch applied and how long it took from its caller to the player.
+ */
+public class VideoControlService extends Service {
+
+	public static final String PERMISSION_CONTROL_PLAYBACK = "com.doyley.backgroundvideo.permission.CONTROL_PLAYBACK";
+
+	private static final long STATUS_INTERVAL_MS = 100;
+
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+	private final RemoteCallbackList<IVideoControlListener> mListeners = new RemoteCallbackList<>();
+
+	private PlayerProcessClient mPlayerClient;
+
+	// only touched on the main thread
+	private final PlayerStatusRegion.Status mStatus = new PlayerStatusRegion.Status();
+	private boolean mStatusPosted;
+	private int mSentState = -1;
+	private boolean mSentPlaying;
+	private long mSentPositionMs = -1;
+	private long mSentDurationMs = -1;
+	private long mSentBatchId = -1;
+
+	private final IVideoControl.Stub mBinder = new IVideoControl.Stub() {
+
+		@Override
+		public void applyCommands(VideoCommandBatch batch) {
+			if (batch == null) {
+				return;
+			}
+			// the client keeps the batch until the player process is connected
+			mPlayerClient.send(batch);
+			mHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					postStatus();
+				}
+			});
+		}
+
+		@Override
+		public void registerListener(IVideoControlListener listener) {
+			if (listener != null && mListeners.register(listener)) {
+				mHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						// a new listener gets the current status straight away
+						mSentState = -1;
+						postStatus();
+					}
+				});
+			}
+		}
+
+		@Override
+		public void unregisterListener(IVideoControlListener listener) {
+			if (listener != null) {
+				mListeners.unregister(listener);
+			}
+		}
+	};
+
+	private final Runnable mStatusRunnable = new Runnable() {
+		@Override
+		public void run() {
+			mStatusPosted = false;
+			if (mListeners.getRegisteredCallbackCount() == 0) {
+				return;
+			}
+			sendStatusIfChanged();
+			// position moves on while playing, so keep looking for as long as anyone listens
+			mStatusPosted = true;
+			mHandler.postDelayed(this, STATUS_INTERVAL_MS);
+		}
+	};
+
+	@Override
+	public void onCreate() {
+		Log.d(this.getClass().getSimpleName(), "onCreate");
+		super.onCreate();
+		mPlayerClient = new PlayerProcessClient(this);
+		mPlayerClient.bind();
+	}
+
+	@Override
+	public IBinder onBind(Intent intent) {
+		return mBinder;
+	}
+
+	@Override
+	public void onDestroy() {
+		Log.d(this.getClass().getSimpleName(), "onDestroy");
+		mHandler.removeCallbacks(mStatusRunnable);
+		mListeners.kill();
+		mPlayerClient.unbind();
+		super.onDestroy();
+	}
+
+	/** runs on the main thread - the status goes out with the next tick, never more often than that */
+	private void postStatus() {
+		if (!mStatusPosted) {
+			mStatusPosted = true;
+			mHandler.post(mStatusRunnable);
+		}
+	}
+
+	/** runs on the main thread */
+	private void sendStatusIfChanged() {
+		// the last status read stays if the region cannot be read this time
+		mPlayerClient.getStatus(mStatus);
+		int state = mStatus.getState().ordinal();
+		boolean playing = mStatus.isPlaying();
+		long positionMs = mStatus.getPositionMs();
+		long durationMs = mStatus.getDurationMs();
+		long batchId = mStatus.getAppliedBatchId();
+		if (state == mSentState && playing == mSentPlaying && positionMs == mSentPositionMs
+				&& durationMs == mSentDurationMs && batchId == mSentBatchId) {
+			return;
+		}
+		mSentState = state;
+		mSentPlaying = playing;
+		mSentPositionMs = positionMs;
+		mSentDurationMs = durationMs;
+		mSentBatchId = batchId;
+
+		int count = mListeners.beginBroadcast();
+		try {
+			for (int i = 0; i < count; i++) {
+				try {
+					mListeners.getBroadcastItem(i).onStatusChanged(state, playing, positionMs, durationMs,
+							batchId, mStatus.getBatchLatencyUs());
+				} catch (RemoteException e) {
+					// the listener's process is gone - the list drops it
+				}
+			}
+		} finally {
+			mListeners.finishBroadcast();
+		}
+	}
+
+}
@@ -0,0 +1,231 @@
+package com.doyley.backgroundvideo.renderer;
+
+import android.util.Log;
+
+import com.doyley.backgroundvideo.upstream.IoScheduler;
+import com.google.android.exoplayer.MediaFormatHolder;
+import com.google.android.exoplayer.SampleHolder;
+import com.google.android.exoplayer.SampleSource;
+import com.google.android.exoplayer.TrackInfo;
+import com.google.android.exoplayer.source.DefaultSampleSource;
+import com.google.android.exoplayer.source.SampleExtractor;
+import com.google.android.exoplayer.util.MimeTypes;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sample source wrapper that shows an audio renderer one audio track, picked out of all the source has.
+ *
+ * The renderer only ever sees track 0, which is whichever audio track is selected. A different one is
+ * selected while the renderer's source is disabled - see
+ * {@link TimeStretchAudioTrackRenderer#MSG_SELECT_AUDIO_TRACK}, which disables and enables its own side of
+ * the pipeline around it.
+ *
+ * Enabling a track of a {@link DefaultSampleSource} seeks its extractor, and with it every renderer sharing
+ * it. So given a way to make another extractor for the same media, the first switch moves the audio onto
+ * a source of its own, and from then on a switch only seeks that. The shared source keeps its audio track
+ * disabled, so the media is not read for audio twice. That source is prepared on the {@link IoScheduler}
+ * by {@link #prepareOwnSource} before the switch is made - an extractor of network media connects and
+ * reads the header when it prepares. Without a factory, or if that source fails to prepare, the switch
+ * happens on the shared source, and the other renderers see a discontinuity too.
+ *
+ * Calls come from the playback thread, apart from prepareOwnSource and the getters, which can be used from
+ * any thread.
+ */
+public class AudioTrackSelectingSource implements SampleSource {
+
+	/** makes an extractor for the same media as the one the shared source reads, not yet prepared */
+	public interface ExtractorFactory {
+		SampleExtractor createExtractor();
+	}
+
+	private final SampleSource mSharedSource;
+	private final ExtractorFactory mExtractorFactory;
+
+	private SampleSource mSource;
+	// guarded by this - set from the scheduler once prepared, and taken up on the next switch
+	private SampleSource mOwnSource;
+	private IoScheduler.Task mPrepareTask;
+	private boolean mOwnSourceFailed;
+	private boolean mReleased;
+	// indices of the audio tracks in the source, in its order
+	private volatile int[] mAudioTracks = new int[0];
+	private volatile String[] mMimeTypes = new String[0];
+	private volatile int mSelected;
+	private boolean mEnabled;
+
+	/** extractorFactory may be null, audioTrack is an index into the audio tracks as listed by getMimeTypes */
+	public AudioTrackSelectingSource(SampleSource source, ExtractorFactory extractorFactory, int audioTrack) {
+		mSharedSource = source;
+		mSource = source;
+		mExtractorFactory = extractorFactory;
+		mSelected = audioTrack;
+	}
+
+	/** mime types of the audio tracks - empty until prepared */
+	public String[] getMimeTypes() {
+		return mMimeTypes;
+	}
+
+	/** index of the selected track into the audio tracks */
+	public int getSelectedAudioTrack() {
+		return mSelected;
+	}
+
+	/**
+	 * makes sure the source a switch moves the audio to is prepared, then calls onReady from the scheduler -
+	 * or straight away if there is nothing to prepare. A call while a prepare is under way is dropped, the
+	 * one under way calls its own onReady.
+	 */
+	public synchronized void prepareOwnSource(IoScheduler scheduler, final Runnable onReady) {
+		if (mReleased || mPrepareTask != null) {
+			return;
+		}
+		if (mExtractorFactory == null || mOwnSource != null || mOwnSourceFailed) {
+			onReady.run();
+			return;
+		}
+		mPrepareTask = new IoScheduler.Task() {
+			@Override
+			public boolean run() {
+				SampleSource source = new DefaultSampleSource(mExtractorFactory.createExtractor(), 1);
+				boolean prepared;
+				try {
+					prepared = source.prepare();
+				} catch (IOException e) {
+					Log.w(AudioTrackSelectingSource.this.getClass().getSimpleName(),
+							"unable to prepare audio source", e);
+					prepared = false;
+				}
+				synchronized (AudioTrackSelectingSource.this) {
+					mPrepareTask = null;
+					if (prepared && !mReleased) {
+						mOwnSource = source;
+						source = null;
+					} else {
+						mOwnSourceFailed = true;
+					}
+				}
+				if (source != null) {
+					source.release();
+				}
+				if (!isCanceled()) {
+					onReady.run();
+				}
+				return false;
+			}
+		};
+		scheduler.submit(IoScheduler.PRIORITY_PLAYBACK, mPrepareTask);
+	}
+
+	/** selects an audio track, as an index into the audio tracks - only while the track is disabled */
+	public void selectAudioTrack(int audioTrack) {
+		if (mEnabled) {
+			throw new IllegalStateException("audio track selected while enabled");
+		}
+		if (mAudioTracks.length == 0) {
+			// not prepared yet - checked against the tracks once they are known
+			mSelected = audioTrack;
+			return;
+		}
+		if (audioTrack == mSelected || audioTrack < 0 || audioTrack >= mAudioTracks.length) {
+			return;
+		}
+		synchronized (this) {
+			if (mOwnSource != null) {
+				mSource = mOwnSource;
+			}
+		}
+		mSelected = audioTrack;
+	}
+
+	@Override
+	public boolean prepare() throws IOException {
+		if (!mSharedSource.prepare()) {
+			return false;
+		}
+		if (mAudioTracks.length == 0) {
+			List<Integer> audioTracks = new ArrayList<>();
+			for (int i = 0; i < mSharedSource.getTrackCount(); i++) {
+				if (MimeTypes.isAudio(mSharedSource.getTrackInfo(i).mimeType)) {
+					audioTracks.add(i);
+				}
+			}
+			int[] tracks = new int[audioTracks.size()];
+			String[] mimeTypes = new String[tracks.length];
+			for (int i = 0; i < tracks.length; i++) {
+				tracks[i] = audioTracks.get(i);
+				mimeTypes[i] = mSharedSource.getTrackInfo(tracks[i]).mimeType;
+			}
+			if (mSelected < 0 || mSelected >= tracks.length) {
+				mSelected = 0;
+			}
+			mAudioTracks = tracks;
+			mMimeTypes = mimeTypes;
+		}
+		return true;
+	}
+
+	@Override
+	public int getTrackCount() {
+		return mAudioTracks.length > 0 ? 1 : 0;
+	}
+
+	@Override
+	public TrackInfo getTrackInfo(int track) {
+		return mSource.getTrackInfo(mAudioTracks[mSelected]);
+	}
+
+	@Override
+	public void enable(int track, long positionUs) {
+		mEnabled = true;
+		mSource.enable(mAudioTracks[mSelected], positionUs);
+	}
+
+	@Override
+	public void disable(int track) {
+		mEnabled = false;
+		mSource.disable(mAudioTracks[mSelected]);
+	}
+
+	@Override
+	public boolean continueBuffering(long positionUs) throws IOException {
+		return mSource.continueBuffering(positionUs);
+	}
+
+	@Override
+	public int readData(int track, long playbackPositionUs, MediaFormatHolder formatHolder,
+	                    SampleHolder sampleHolder, boolean onlyReadDiscontinuity) throws IOException {
+		return mSource.readData(mAudioTracks[mSelected], playbackPositionUs, formatHolder, sampleHolder,
+				onlyReadDiscontinuity);
+	}
+
+	@Override
+	public void seekToUs(long positionUs) {
+		mSource.seekToUs(positionUs);
+	}
+
+	@Override
+	public long getBufferedPositionUs() {
+		return mSource.getBufferedPositionUs();
+	}
+
+	@Override
+	public void release() {
+		// the shared source counts the releases of everything reading from it
+		mSharedSource.release();
+		synchronized (this) {
+			mReleased = true;
+			if (mPrepareTask != null) {
+				mPrepareTask.cancel();
+			}
+			if (mOwnSource != null) {
+				mOwnSource.release();
+				mOwnSource = null;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,363 @@
+package com.doyley.backgroundvideo.renderer;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.util.Log;
+
+import com.doyley.backgroundvideo.text.CueIndex;
+import com.doyley.backgroundvideo.text.SubtitleFile;
+import com.doyley.backgroundvideo.text.SubtitleParser;
+import com.doyley.backgroundvideo.upstream.IoScheduler;
+import com.google.android.exoplayer.ExoPlaybackException;
+import com.google.android.exoplayer.MediaFormatHolder;
+import com.google.android.exoplayer.SampleHolder;
+import com.google.android.exoplayer.SampleSource;
+import com.google.android.exoplayer.TrackRenderer;
+import com.google.android.exoplayer.text.TextRenderer;
+import com.google.android.exoplayer.util.MimeTypes;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Shows subtitles from a sidecar {@link SubtitleFile}, or else from a text track in the media.
+ *
+ * Either way the cues end up in a {@link CueIndex}. A sidecar file is indexed in the background from the
+ * moment the renderer is prepared and the renderer is not ready until the cues at the playback position
+ * are in. Cues of an embedded track - WebVTT, SubRip or 3GPP timed text - are read from the sample source
+ * as it goes, each one lasting until the next, and the index starts again after a seek.
+ *
+ * The text shown is worked out from the player's clock, but only when it can have changed: the index says
+ * when the next cue starts or ends, and until then a frame costs a comparison. When the cues do change the
+ * new text goes to the {@link TextRenderer} on its own looper - null when there is nothing to show.
+ * Texts of a sidecar file are asked for as the cues before them are shown, so they are in memory by the
+ * time they are needed, and nothing is read from the file on the playback thread. One that is not - right
+ * after a seek - is shown as soon as it has been read.
+ */
+public class SubtitleTrackRenderer extends TrackRenderer implements Handler.Callback {
+
+	private static final int MSG_TEXT = 0;
+	private static final int MAX_CUES_SHOWN = 4;
+	private static final int MAX_SAMPLES_PER_WORK = 8;
+	private static final int INITIAL_SAMPLE_SIZE = 16 * 1024;
+	private static final String MIME_TYPE_3GPP_TIMED_TEXT = "text/3gpp-tt";
+	private static final String MIME_TYPE_SUBRIP = "application/x-subrip";
+	private static final int BOX_HEADER_SIZE = 8;
+	private static final int TYPE_VTTC = 0x76747463;
+	private static final int TYPE_PAYL = 0x7061796c;
+	private static final int TYPE_VTTE = 0x76747465;
+
+	private final SampleSource mSource;
+	private final SubtitleFile mSidecar;
+	private final IoScheduler mScheduler;
+	private final TextRenderer mTextRenderer;
+	private final Handler mTextHandler;
+
+	// embedded track
+	private final CueIndex mEmbeddedIndex = new CueIndex();
+	private final List<String> mEmbeddedTexts = new ArrayList<>();
+	private final MediaFormatHolder mFormatHolder = new MediaFormatHolder();
+	private SampleHolder mSampleHolder;
+	private byte[] mSampleBytes;
+	private int mTrackIndex = -1;
+	private String mTrackMimeType;
+	private long mTrackDurationUs;
+	private boolean mInputEnded;
+
+	private CueIndex mIndex;
+	private long mCurrentPositionUs;
+	private final long[] mActiveKeys = new long[MAX_CUES_SHOWN];
+	private final long[] mShownKeys = new long[MAX_CUES_SHOWN];
+	private int mShownCount;
+	// waiting on the sidecar for the text of a cue shown
+	private boolean mTextPending;
+	private int mTextVersion;
+	// the cues shown hold from here until the next change, unless more cues are indexed in the meantime
+	private long mShownFromUs;
+	private long mNextChangeUs;
+	private int mIndexSize;
+	private final StringBuilder mText = new StringBuilder();
+
+	/**
+	 * source may be null when there is nothing in the media to look for text in, sidecar when there is no
+	 * subtitle file - with neither the renderer is ignored. The source is released with the renderer, the
+	 * sidecar is not.
+	 */
+	public SubtitleTrackRenderer(SampleSource source, SubtitleFile sidecar, IoScheduler scheduler,
+	                             TextRenderer textRenderer, Looper textRendererLooper) {
+		mSource = source;
+		mSidecar = sidecar;
+		mScheduler = scheduler;
+		mTextRenderer = textRenderer;
+		mTextHandler = new Handler(textRendererLooper, this);
+	}
+
+	@Override
+	protected int doPrepare() throws ExoPlaybackException {
+		if (mSidecar != null) {
+			mSidecar.load(mScheduler);
+			mIndex = mSidecar.getIndex();
+			return STATE_PREPARED;
+		}
+		if (mSource == null) {
+			return STATE_IGNORE;
+		}
+		try {
+			if (!mSource.prepare()) {
+				return STATE_UNPREPARED;
+			}
+		} catch (IOException e) {
+			throw new ExoPlaybackException(e);
+		}
+		for (int i = 0; i < mSource.getTrackCount(); i++) {
+			String mimeType = mSource.getTrackInfo(i).mimeType;
+			if (MimeTypes.TEXT_VTT.equals(mimeType) || MIME_TYPE_3GPP_TIMED_TEXT.equals(mimeType)
+					|| MIME_TYPE_SUBRIP.equals(mimeType)) {
+				mTrackIndex = i;
+				mTrackMimeType = mimeType;
+				mTrackDurationUs = mSource.getTrackInfo(i).durationUs;
+				mIndex = mEmbeddedIndex;
+				return STATE_PREPARED;
+			}
+		}
+		return STATE_IGNORE;
+	}
+
+	@Override
+	protected void onEnabled(long positionUs, boolean joining) {
+		if (mTrackIndex != -1) {
+			mSource.enable(mTrackIndex, positionUs);
+			mSampleHolder = new SampleHolder(SampleHolder.BUFFER_REPLACEMENT_MODE_NORMAL);
+			// the framework extractor does not grow the buffer - it has to be there already
+			mSampleHolder.replaceBuffer(INITIAL_SAMPLE_SIZE);
+		}
+		seekToInternal(positionUs);
+	}
+
+	@Override
+	protected void seekTo(long positionUs) {
+		if (mTrackIndex != -1) {
+			mSource.seekToUs(positionUs);
+		}
+		seekToInternal(positionUs);
+	}
+
+	@Override
+	protected void doSomeWork(long positionUs, long elapsedRealtimeUs) throws ExoPlaybackException {
+		mCurrentPositionUs = positionUs;
+		if (mTrackIndex != -1) {
+			try {
+				mSource.continueBuffering(positionUs);
+				readSamples(positionUs);
+			} catch (IOException e) {
+				throw new ExoPlaybackException(e);
+			}
+		}
+		int indexSize = mIndex.size();
+		if (positionUs < mShownFromUs || positionUs >= mNextChangeUs || indexSize != mIndexSize) {
+			mIndexSize = indexSize;
+			updateText(positionUs);
+		} else if (mTextPending && mSidecar.getTextVersion() != mTextVersion) {
+			showText(mShownCount);
+		}
+	}
+
+	@Override
+	protected void onDisabled() {
+		if (mTrackIndex != -1) {
+			mSource.disable(mTrackIndex);
+		}
+		mSampleHolder = null;
+		showText(0);
+	}
+
+	@Override
+	protected void onReleased() {
+		if (mSource != null) {
+			// the source counts its renderers - it goes once they have all released it
+			mSource.release();
+		}
+	}
+
+	@Override
+	protected long getCurrentPositionUs() {
+		return mCurrentPositionUs;
+	}
+
+	@Override
+	protected long getDurationUs() {
+		return mTrackIndex != -1 ? mTrackDurationUs : MATCH_LONGEST_US;
+	}
+
+	@Override
+	protected long getBufferedPositionUs() {
+		// text is small - it never holds back how much is buffered
+		return END_OF_TRACK_US;
+	}
+
+	@Override
+	protected boolean isEnded() {
+		return mTrackIndex != -1 ? mInputEnded : mIndex.isComplete();
+	}
+
+	@Override
+	protected boolean isReady() {
+		// playback waits for a sidecar to be indexed up to the position, not for an embedded track
+		return mTrackIndex != -1 || mIndex.isIndexedTo(mCurrentPositionUs);
+	}
+
+	@Override
+	public boolean handleMessage(Message message) {
+		// runs on the text renderer's looper
+		if (message.what == MSG_TEXT) {
+			mTextRenderer.onText((String) message.obj);
+			return true;
+		}
+		return false;
+	}
+
+	private void seekToInternal(long positionUs) {
+		mCurrentPositionUs = positionUs;
+		mInputEnded = false;
+		if (mTrackIndex != -1) {
+			// samples come again from the new position
+			mEmbeddedIndex.clear();
+			mEmbeddedTexts.clear();
+		}
+		mShownFromUs = Long.MAX_VALUE;
+		mNextChangeUs = Long.MIN_VALUE;
+	}
+
+	/** looks the cues at positionUs up, and shows them if they are not the ones showing already */
+	private void updateText(long positionUs) {
+		int count = mIndex.getActiveCues(positionUs, mActiveKeys);
+		mShownFromUs = positionUs;
+		mNextChangeUs = mIndex.getNextChangeUs(positionUs);
+		if (mSidecar != null) {
+			mSidecar.prefetchText(mActiveKeys, count);
+			if (mNextChangeUs != Long.MAX_VALUE) {
+				// the ones after the next change - read by the time it comes
+				mSidecar.prefetchText(mActiveKeys, mIndex.getActiveCues(mNextChangeUs, mActiveKeys));
+				count = mIndex.getActiveCues(positionUs, mActiveKeys);
+			}
+		}
+		if (count == mShownCount && equals(mActiveKeys, mShownKeys, count)) {
+			return;
+		}
+		System.arraycopy(mActiveKeys, 0, mShownKeys, 0, count);
+		showText(count);
+	}
+
+	private void showText(int count) {
+		if (count == 0 && mShownCount == 0) {
+			return;
+		}
+		mShownCount = count;
+		mTextPending = false;
+		String text = null;
+		if (count > 0) {
+			mText.setLength(0);
+			if (mSidecar != null) {
+				// before the lookups, so a text read in the meantime is not missed
+				mTextVersion = mSidecar.getTextVersion();
+			}
+			for (int i = 0; i < count; i++) {
+				String cueText = mSidecar != null ? mSidecar.getText(mShownKeys[i])
+						: mEmbeddedTexts.get((int) mShownKeys[i]);
+				if (cueText == null) {
+					// not read yet - shown once it has been
+					mTextPending = true;
+					return;
+				}
+				if (cueText.length() > 0) {
+					if (mText.length() > 0) {
+						mText.append('\n');
+					}
+					mText.append(cueText);
+				}
+			}
+			text = mText.toString();
+		}
+		mTextHandler.obtainMessage(MSG_TEXT, text).sendToTarget();
+	}
+
+	/** reads what the source has of the text track - each sample ends the cue before it */
+	private void readSamples(long positionUs) throws IOException {
+		for (int i = 0; i < MAX_SAMPLES_PER_WORK && !mInputEnded; i++) {
+			mSampleHolder.data.clear();
+			int result = mSource.readData(mTrackIndex, positionUs, mFormatHolder, mSampleHolder, false);
+			if (result == SampleSource.END_OF_STREAM) {
+				mInputEnded = true;
+			} else if (result == SampleSource.SAMPLE_READ) {
+				mEmbeddedIndex.closeLast(mSampleHolder.timeUs);
+				String text = decodeSample(mSampleHolder.data, mSampleHolder.size);
+				if (text.length() > 0) {
+					mEmbeddedTexts.add(text);
+					mEmbeddedIndex.add(mSampleHolder.timeUs, CueIndex.OPEN_END_US, mEmbeddedTexts.size() - 1);
+				}
+			} else if (result != SampleSource.FORMAT_READ) {
+				return;
+			}
+		}
+	}
+
+	/** text of a sample as it should be shown, empty if it clears the screen */
+	private String decodeSample(ByteBuffer data, int size) {
+		if (mSampleBytes == null || mSampleBytes.length < size) {
+			mSampleBytes = new byte[size];
+		}
+		data.position(0);
+		data.get(mSampleBytes, 0, size);
+		int offset = 0;
+		int length = size;
+		if (MIME_TYPE_3GPP_TIMED_TEXT.equals(mTrackMimeType)) {
+			// a 16 bit length, then the text - styles after it are not shown
+			offset = 2;
+			length = size >= offset ? Math.min(size - offset, ((mSampleBytes[0] & 0xff) << 8) | (mSampleBytes[1] & 0xff)) : 0;
+		} else if (MimeTypes.TEXT_VTT.equals(mTrackMimeType) && size >= BOX_HEADER_SIZE
+				&& (readInt(4) == TYPE_VTTC || readInt(4) == TYPE_VTTE)) {
+			// WebVTT in MP4 - the cue text is in a payl box inside a vttc box, a vtte box is an empty cue
+			length = 0;
+			if (readInt(4) == TYPE_VTTC) {
+				int end = Math.min(size, readInt(0));
+				for (int box = BOX_HEADER_SIZE; box + BOX_HEADER_SIZE <= end;
+				     box += Math.max(readInt(box), BOX_HEADER_SIZE)) {
+					if (readInt(box + 4) == TYPE_PAYL) {
+						offset = box + BOX_HEADER_SIZE;
+						length = Math.min(readInt(box), end - box) - BOX_HEADER_SIZE;
+						break;
+					}
+				}
+			}
+		}
+		if (length <= 0) {
+			return "";
+		}
+		try {
+			return SubtitleParser.toDisplayText(new String(mSampleBytes, offset, length, "UTF-8"));
+		} catch (UnsupportedEncodingException e) {
+			// every platform has UTF-8
+			Log.e(this.getClass().getSimpleName(), "decodeSample", e);
+			return "";
+		}
+	}
+
+	private int readInt(int offset) {
+		return ((mSampleBytes[offset] & 0xff) << 24) | ((mSampleBytes[offset + 1] & 0xff) << 16)
+				| ((mSampleBytes[offset + 2] & 0xff) << 8) | (mSampleBytes[offset + 3] & 0xff);
+	}
+
+	private static boolean equals(long[] a, long[] b, int count) {
+		for (int i = 0; i < count; i++) {
+			if (a[i] != b[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+}
@@ -0,0 +1,184 @@
+package com.doyley.backgroundvideo.renderer;
+
+import com.google.android.exoplayer.C;
+import com.google.android.exoplayer.MediaFormatHolder;
+import com.google.android.exoplayer.SampleHolder;
+import com.google.android.exoplayer.SampleSource;
+import com.google.android.exoplayer.TrackInfo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Sample source wrapper that can hold back everything but sync samples.
+ *
+ * While filtering, non-sync samples are read and thrown away and a copy of the last sync sample passed
+ * on is kept. That copy can be replayed once, after which samples keep being filtered until the next
+ * sync sample so the decoder is never fed a frame whose references it has not seen.
+ *
+ * All calls come from the playback thread of the renderer that owns the wrapper.
+ */
+public class SyncSampleFilteringSource implements SampleSource {
+
+	private static final int MODE_PASS_THROUGH = 0;
+	private static final int MODE_SYNC_ONLY = 1;
+	private static final int MODE_REPLAY = 2;
+	private static final int MODE_UNTIL_NEXT_SYNC = 3;
+
+	private final SampleSource mSource;
+
+	private int mMode = MODE_PASS_THROUGH;
+	private byte[] mSyncSample = new byte[0];
+	private int mSyncSampleSize;
+	private long mSyncSampleTimeUs = -1;
+	private int mSyncSampleFlags;
+
+	private int mDroppedSampleCount;
+
+	public SyncSampleFilteringSource(SampleSource source) {
+		mSource = source;
+	}
+
+	/** starts passing on sync samples only */
+	public void filterToSyncSamples() {
+		mMode = MODE_SYNC_ONLY;
+		mSyncSampleTimeUs = -1;
+	}
+
+	/**
+	 * stops filtering. the last sync sample is read again first if there is one, and returned with its
+	 * timestamp - otherwise -1 is returned and samples are dropped until the next sync sample
+	 */
+	public long replayLastSyncSample() {
+		if (mMode == MODE_PASS_THROUGH) {
+			return -1;
+		}
+		mMode = mSyncSampleTimeUs != -1 ? MODE_REPLAY : MODE_UNTIL_NEXT_SYNC;
+		return mSyncSampleTimeUs;
+	}
+
+	/** drops samples until the next sync sample, from which it passes everything on again */
+	public void skipToNextSyncSample() {
+		mMode = MODE_UNTIL_NEXT_SYNC;
+		mSyncSampleTimeUs = -1;
+	}
+
+	/** stops filtering - after a seek the source restarts on a sync sample by itself */
+	public void passThrough() {
+		mMode = MODE_PASS_THROUGH;
+		mSyncSampleTimeUs = -1;
+	}
+
+	public boolean isFiltering() {
+		return mMode != MODE_PASS_THROUGH;
+	}
+
+	public int getDroppedSampleCount() {
+		return mDroppedSampleCount;
+	}
+
+	@Override
+	public int readData(int track, long playbackPositionUs, MediaFormatHolder formatHolder,
+	                    SampleHolder sampleHolder, boolean onlyReadDiscontinuity) throws IOException {
+		if (mMode == MODE_REPLAY && !onlyReadDiscontinuity) {
+			mMode = MODE_UNTIL_NEXT_SYNC;
+			if (sampleHolder.data != null && sampleHolder.data.remaining() >= mSyncSampleSize) {
+				sampleHolder.data.put(mSyncSample, 0, mSyncSampleSize);
+				sampleHolder.size = mSyncSampleSize;
+				sampleHolder.timeUs = mSyncSampleTimeUs;
+				sampleHolder.flags = mSyncSampleFlags;
+				sampleHolder.decodeOnly = false;
+				return SAMPLE_READ;
+			}
+		}
+
+		while (true) {
+			int start = sampleHolder.data != null ? sampleHolder.data.position() : 0;
+			int result = mSource.readData(track, playbackPositionUs, formatHolder, sampleHolder,
+					onlyReadDiscontinuity);
+			if (result != SAMPLE_READ || mMode == MODE_PASS_THROUGH) {
+				return result;
+			}
+			boolean sync = (sampleHolder.flags & C.SAMPLE_FLAG_SYNC) != 0;
+			if (sync) {
+				if (mMode == MODE_UNTIL_NEXT_SYNC) {
+					mMode = MODE_PASS_THROUGH;
+				} else {
+					retainSyncSample(sampleHolder.data, start, sampleHolder);
+				}
+				return result;
+			}
+			// throw the sample away and try the next one
+			mDroppedSampleCount++;
+			sampleHolder.size = 0;
+			if (sampleHolder.data != null) {
+				sampleHolder.data.position(start);
+			}
+		}
+	}
+
+	private void retainSyncSample(ByteBuffer data, int start, SampleHolder sampleHolder) {
+		if (data == null) {
+			return;
+		}
+		int size = sampleHolder.size;
+		if (mSyncSample.length < size) {
+			mSyncSample = new byte[size];
+		}
+		ByteBuffer view = data.duplicate();
+		view.position(start);
+		view.get(mSyncSample, 0, size);
+		mSyncSampleSize = size;
+		mSyncSampleTimeUs = sampleHolder.timeUs;
+		mSyncSampleFlags = sampleHolder.flags;
+	}
+
+	@Override
+	public boolean prepare() throws IOException {
+		return mSource.prepare();
+	}
+
+	@Override
+	public int getTrackCount() {
+		return mSource.getTrackCount();
+	}
+
+	@Override
+	public TrackInfo getTrackInfo(int track) {
+		return mSource.getTrackInfo(track);
+	}
+
+	@Override
+	public void enable(int track, long positionUs) {
+		passThrough();
+		mSource.enable(track, positionUs);
+	}
+
+	@Override
+	public void disable(int track) {
+		passThrough();
+		mSource.disable(track);
+	}
+
+	@Override
+	public boolean continueBuffering(long positionUs) throws IOException {
+		return mSource.continueBuffering(positionUs);
+	}
+
+	@Override
+	public void seekToUs(long positionUs) {
+		passThrough();
+		mSource.seekToUs(positionUs);
+	}
+
+	@Override
+	public long getBufferedPositionUs() {
+		return mSource.getBufferedPositionUs();
+	}
+
+	@Override
+	public void release() {
+		mSource.release();
+	}
+
+}
@@ -0,0 +1,476 @@
+package com.doyley.backgroundvideo.renderer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Handler;
+import android.os.SystemClock;
+
+import com.doyley.backgroundvideo.audio.AudioSink;
+import com.doyley.backgroundvideo.audio.DirectAudioSink;
+import com.doyley.backgroundvideo.audio.LoudnessNormalizer;
+import com.doyley.backgroundvideo.audio.TimeStretcher;
+import com.google.android.exoplayer.ExoPlaybackException;
+import com.google.android.exoplayer.MediaCodecAudioTrackRenderer;
+import com.google.android.exoplayer.MediaCodecTrackRenderer;
+import com.google.android.exoplayer.SampleSource;
+import com.google.android.exoplayer.audio.AudioTrack;
+import com.google.android.exoplayer.util.MimeTypes;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Audio renderer that can play faster or slower without changing the pitch.
+ *
+ * It does what {@link MediaCodecAudioTrackRenderer} does - which keeps its audio track to itself - with the
+ * decoded PCM going through a {@link TimeStretcher} whenever the speed is not 1. The audio track is given
+ * timestamps on an output timeline, which runs at the speed of the audio actually written, so it never
+ * sees a gap. After every write the output time and the media time it got up to are kept as a checkpoint,
+ * and the playback position - this renderer is the player's clock - is the track's position mapped back to
+ * media time through them. The video renderer follows that clock and scales its frame release times by
+ * the same speed, see {@link WarmVideoTrackRenderer#MSG_SET_PLAYBACK_SPEED}.
+ *
+ * At speed 1, once whatever was being stretched has been written, buffers go to the track untouched -
+ * unless the renderer has a {@link LoudnessNormalizer}, which works on samples rather than bytes, in which
+ * case they are normalized and go through the stretcher, which at speed 1 copies them straight through.
+ *
+ * The track is an {@link AudioSink} - ExoPlayer's AudioTrack, written from the playback thread, unless
+ * the renderer is given another.
+ *
+ * Given an {@link AudioTrackSelectingSource}, the renderer can switch to another audio track in place, see
+ * {@link #MSG_SELECT_AUDIO_TRACK}. Only its own side of the pipeline is taken down and brought back - the
+ * clock holds at the position of the switch until audio of the new track reaches the sink, which is the
+ * gap reported to {@link EventListener#onAudioTrackSwitched}.
+ */
+public class TimeStretchAudioTrackRenderer extends MediaCodecTrackRenderer {
+
+	public static final int MSG_SET_VOLUME = MediaCodecAudioTrackRenderer.MSG_SET_VOLUME;
+	/** message is a Float */
+	public static final int MSG_SET_PLAYBACK_SPEED = 100;
+	/** message is an Integer, the index of the audio track into those of the source */
+	public static final int MSG_SELECT_AUDIO_TRACK = 101;
+
+	public interface EventListener extends MediaCodecAudioTrackRenderer.EventListener {
+
+		/** audio of a newly selected track reached the sink gapMs after the previous track was stopped */
+		void onAudioTrackSwitched(int audioTrack, long gapMs);
+
+	}
+
+	private static final int CHECKPOINT_COUNT = 64;
+	private static final int OUTPUT_BUFFER_FRAMES = 4096;
+
+	private final EventListener mEventListener;
+	private final AudioSink mAudioSink;
+	private final AudioTrackSelectingSource mTrackSource;
+	private final LoudnessNormalizer mNormalizer;
+	private int mAudioSessionId;
+	private long mCurrentPositionUs;
+
+	private float mSpeed = 1f;
+	private TimeStretcher mStretcher;
+	private int mSampleRate;
+	private int mFrameSize;
+	private ByteBuffer mOutputBuffer;
+	// decoded samples on their way to the normalizer
+	private short[] mSamples;
+	// stretched output not taken by the track yet, and the media time it gets up to
+	private int mOutputSize;
+	private long mOutputMediaEndUs;
+	// media time at the end of the input queued to the stretcher
+	private long mInputMediaEndUs;
+
+	// the output timeline starts at the media time of the first buffer after a seek, -1 until then
+	private long mOutputStartUs = -1;
+	private long mOutputFrames;
+
+	private final long[] mCheckpointOutputUs = new long[CHECKPOINT_COUNT];
+	private final long[] mCheckpointMediaUs = new long[CHECKPOINT_COUNT];
+	private int mCheckpointStart;
+	private int mCheckpointCount;
+
+	// when the track being switched away from was stopped, -1 if no switch is waiting for audio
+	private long mSwitchStartedMs = -1;
+
+	public TimeStretchAudioTrackRenderer(SampleSource source, Handler eventHandler, EventListener eventListener) {
+		this(source, new DirectAudioSink(), null, eventHandler, eventListener);
+	}
+
+	/** normalizer may be null, for audio that is played at the loudness it comes at */
+	public TimeStretchAudioTrackRenderer(SampleSource source, AudioSink audioSink, LoudnessNormalizer normalizer,
+	                                     Handler eventHandler, EventListener eventListener) {
+		super(source, null, true, eventHandler, eventListener);
+		mAudioSink = audioSink;
+		mTrackSource = source instanceof AudioTrackSelectingSource ? (AudioTrackSelectingSource) source : null;
+		mNormalizer = normalizer;
+		mEventListener = eventListener;
+	}
+
+	@Override
+	protected boolean isTimeSource() {
+		return true;
+	}
+
+	@Override
+	protected boolean handlesMimeType(String mimeType) {
+		return MimeTypes.isAudio(mimeType) && super.handlesMimeType(mimeType);
+	}
+
+	@Override
+	protected void onEnabled(long positionUs, boolean joining) {
+		super.onEnabled(positionUs, joining);
+		mCurrentPositionUs = Long.MIN_VALUE;
+		resetTimeline();
+	}
+
+	@Override
+	protected void onOutputFormatChanged(MediaFormat format) {
+		mAudioSink.reconfigure(format);
+		int channelCount = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+		mSampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+		mFrameSize = 2 * channelCount;
+		if (mStretcher == null || mStretcher.getChannels() != channelCount) {
+			mOutputBuffer = ByteBuffer.allocateDirect(OUTPUT_BUFFER_FRAMES * mFrameSize).order(ByteOrder.nativeOrder());
+		}
+		mStretcher = new TimeStretcher(mSampleRate, channelCount);
+		mStretcher.setSpeed(mSpeed);
+		mOutputSize = 0;
+		if (mNormalizer != null) {
+			mNormalizer.configure(mSampleRate, channelCount);
+		}
+	}
+
+	/** called when the track gets its audio session - the id is 0 until then */
+	protected void onAudioSessionId(int audioSessionId) {
+	}
+
+	@Override
+	protected void onStarted() {
+		super.onStarted();
+		mAudioSink.play();
+	}
+
+	@Override
+	protected void onStopped() {
+		mAudioSink.pause();
+		super.onStopped();
+	}
+
+	@Override
+	protected boolean isEnded() {
+		return super.isEnded() && mOutputSize == 0 && (mStretcher == null
+				|| (mStretcher.getInputFramesPending() == 0 && mStretcher.getOutputFramesAvailable() == 0))
+				&& (!mAudioSink.hasPendingData() || !mAudioSink.hasEnoughDataToBeginPlayback());
+	}
+
+	@Override
+	protected boolean isReady() {
+		return mAudioSink.hasPendingData()
+				|| (super.isReady() && getSourceState() == SOURCE_STATE_READY_READ_MAY_FAIL);
+	}
+
+	@Override
+	protected long getCurrentPositionUs() {
+		long outputUs = mAudioSink.getCurrentPositionUs(isEnded());
+		if (outputUs == AudioSink.CURRENT_POSITION_NOT_SET) {
+			mCurrentPositionUs = Math.max(mCurrentPositionUs, super.getCurrentPositionUs());
+		} else {
+			mCurrentPositionUs = Math.max(mCurrentPositionUs, toMediaTimeUs(outputUs));
+		}
+		return mCurrentPositionUs;
+	}
+
+	@Override
+	protected void onDisabled() {
+		mAudioSessionId = 0;
+		mSwitchStartedMs = -1;
+		try {
+			mAudioSink.reset();
+			resetTimeline();
+		} finally {
+			super.onDisabled();
+		}
+	}
+
+	@Override
+	protected void seekTo(long positionUs) throws ExoPlaybackException {
+		super.seekTo(positionUs);
+		mAudioSink.reset();
+		mCurrentPositionUs = Long.MIN_VALUE;
+		resetTimeline();
+	}
+
+	@Override
+	protected void doSomeWork(long positionUs, long elapsedRealtimeUs) throws ExoPlaybackException {
+		super.doSomeWork(positionUs, elapsedRealtimeUs);
+		if (!mAudioSink.isInitialized() || mStretcher == null) {
+			return;
+		}
+		if (super.isEnded() && mStretcher.getInputFramesPending() > 0) {
+			// no more input is coming to push the tail through
+			mStretcher.flush();
+		}
+		// stretched output can be left over while the codec has nothing new
+		writeStretchedOutput();
+	}
+
+	@Override
+	protected boolean processOutputBuffer(long positionUs, long elapsedRealtimeUs, MediaCodec codec,
+	                                      ByteBuffer buffer, MediaCodec.BufferInfo bufferInfo, int bufferIndex,
+	                                      boolean shouldSkip) throws ExoPlaybackException {
+		if (shouldSkip) {
+			codec.releaseOutputBuffer(bufferIndex, false);
+			codecCounters.skippedOutputBufferCount++;
+			mAudioSink.handleDiscontinuity();
+			resetTimeline();
+			return true;
+		}
+
+		if (!mAudioSink.isInitialized()) {
+			try {
+				if (mAudioSessionId != AudioSink.SESSION_ID_NOT_SET) {
+					mAudioSink.initialize(mAudioSessionId);
+				} else {
+					mAudioSessionId = mAudioSink.initialize(AudioSink.SESSION_ID_NOT_SET);
+					onAudioSessionId(mAudioSessionId);
+				}
+			} catch (AudioTrack.InitializationException e) {
+				notifyAudioTrackInitializationError(e);
+				throw new ExoPlaybackException(e);
+			}
+			if (getState() == STATE_STARTED) {
+				mAudioSink.play();
+			}
+		}
+
+		boolean passThrough = mSpeed == 1f && mNormalizer == null;
+		if (passThrough && mStretcher.getInputFramesPending() > 0) {
+			// back to normal speed - let the rest of the stretched audio out before going around the stretcher
+			mStretcher.flush();
+		}
+		if (!writeStretchedOutput()) {
+			// the track is full - the buffer waits
+			return false;
+		}
+
+		long bufferDurationUs = framesToUs(bufferInfo.size / mFrameSize);
+		if (mOutputStartUs == -1) {
+			mOutputStartUs = bufferInfo.presentationTimeUs;
+			addCheckpoint(mOutputStartUs, bufferInfo.presentationTimeUs);
+		}
+		if (passThrough) {
+			int frames = bufferInfo.size / mFrameSize;
+			if (!writeToTrack(buffer, bufferInfo.offset, bufferInfo.size, frames,
+					bufferInfo.presentationTimeUs + bufferDurationUs)) {
+				return false;
+			}
+		} else {
+			// samples are read in the buffer's byte order, which for PCM from the codec is native
+			buffer.order(ByteOrder.nativeOrder());
+			if (mNormalizer != null) {
+				int frames = readSamples(buffer, bufferInfo.offset, bufferInfo.size);
+				mNormalizer.process(mSamples, 0, frames);
+				mStretcher.queueInput(mSamples, 0, frames);
+			} else {
+				mStretcher.queueInput(buffer, bufferInfo.offset, bufferInfo.size);
+			}
+			mInputMediaEndUs = bufferInfo.presentationTimeUs + bufferDurationUs;
+			writeStretchedOutput();
+		}
+		codec.releaseOutputBuffer(bufferIndex, false);
+		codecCounters.renderedOutputBufferCount++;
+		return true;
+	}
+
+	@Override
+	public void handleMessage(int messageType, Object message) throws ExoPlaybackException {
+		// runs on the ExoPlayer playback thread
+		if (messageType == MSG_SET_VOLUME) {
+			mAudioSink.setVolume((Float) message);
+		} else if (messageType == MSG_SET_PLAYBACK_SPEED) {
+			mSpeed = (Float) message;
+			if (mStretcher != null) {
+				mStretcher.setSpeed(mSpeed);
+			}
+		} else if (messageType == MSG_SELECT_AUDIO_TRACK) {
+			selectAudioTrack((Integer) message);
+		} else {
+			super.handleMessage(messageType, message);
+		}
+	}
+
+	/**
+	 * switches the source to another audio track at the current position - the codec and the sink are let
+	 * go of as on a disable, and taken up again for the new track, while the rest of the player plays on
+	 */
+	private void selectAudioTrack(int audioTrack) throws ExoPlaybackException {
+		if (mTrackSource == null || audioTrack == mTrackSource.getSelectedAudioTrack()) {
+			return;
+		}
+		int state = getState();
+		boolean enabled = state == STATE_ENABLED || state == STATE_STARTED;
+		long positionUs = enabled ? getCurrentPositionUs() : 0;
+		long switchStartedMs = SystemClock.elapsedRealtime();
+		if (enabled) {
+			onDisabled();
+		}
+		mTrackSource.selectAudioTrack(audioTrack);
+		if (enabled) {
+			onEnabled(positionUs, false);
+			// the new track starts at the sample at or before the position - the clock does not go back to it
+			mCurrentPositionUs = positionUs;
+			mSwitchStartedMs = switchStartedMs;
+		}
+	}
+
+	/** copies size bytes of PCM at offset in the buffer into mSamples - returns the number of frames */
+	private int readSamples(ByteBuffer buffer, int offset, int size) {
+		int frames = size / mFrameSize;
+		int count = frames * mFrameSize / 2;
+		if (mSamples == null || mSamples.length < count) {
+			mSamples = new short[count];
+		}
+		short[] samples = mSamples;
+		for (int i = 0; i < count; i++) {
+			samples[i] = buffer.getShort(offset + 2 * i);
+		}
+		return frames;
+	}
+
+	/** writes what the stretcher has for the track - returns false if the track is full before it is all in */
+	private boolean writeStretchedOutput() throws ExoPlaybackException {
+		while (true) {
+			if (mOutputSize == 0) {
+				if (mStretcher.getOutputFramesAvailable() == 0) {
+					return true;
+				}
+				mOutputSize = mStretcher.readOutput(mOutputBuffer);
+				// what the stretcher still holds has not been played out of the media yet
+				mOutputMediaEndUs = mInputMediaEndUs - framesToUs(mStretcher.getInputFramesPending())
+						- (long) (framesToUs(mStretcher.getOutputFramesAvailable()) * mStretcher.getSpeed());
+			}
+			if (!writeToTrack(mOutputBuffer, 0, mOutputSize, mOutputSize / mFrameSize, mOutputMediaEndUs)) {
+				return false;
+			}
+			mOutputSize = 0;
+		}
+	}
+
+	/**
+	 * hands the track a buffer, stamped with its place on the output timeline - returns true once the track
+	 * has taken all of it, which can take several calls with the same buffer
+	 */
+	private boolean writeToTrack(ByteBuffer buffer, int offset, int size, int frames, long mediaEndUs)
+			throws ExoPlaybackException {
+		long outputUs = mOutputStartUs + framesToUs(mOutputFrames);
+		int result;
+		try {
+			result = mAudioSink.handleBuffer(buffer, offset, size, outputUs);
+		} catch (AudioTrack.WriteException e) {
+			notifyAudioTrackWriteError(e);
+			throw new ExoPlaybackException(e);
+		}
+		if ((result & AudioSink.RESULT_POSITION_DISCONTINUITY) != 0) {
+			mCurrentPositionUs = Long.MIN_VALUE;
+		}
+		if ((result & AudioSink.RESULT_BUFFER_CONSUMED) == 0) {
+			return false;
+		}
+		mOutputFrames += frames;
+		addCheckpoint(mOutputStartUs + framesToUs(mOutputFrames), mediaEndUs);
+		if (mSwitchStartedMs != -1) {
+			notifyAudioTrackSwitched(mTrackSource.getSelectedAudioTrack(),
+					SystemClock.elapsedRealtime() - mSwitchStartedMs);
+			mSwitchStartedMs = -1;
+		}
+		return true;
+	}
+
+	private void addCheckpoint(long outputUs, long mediaUs) {
+		int index;
+		if (mCheckpointCount == CHECKPOINT_COUNT) {
+			index = mCheckpointStart;
+			mCheckpointStart = (mCheckpointStart + 1) % CHECKPOINT_COUNT;
+		} else {
+			index = (mCheckpointStart + mCheckpointCount++) % CHECKPOINT_COUNT;
+		}
+		mCheckpointOutputUs[index] = outputUs;
+		// estimates of the media time must not run backwards
+		mCheckpointMediaUs[index] = mCheckpointCount > 1
+				? Math.max(mediaUs, mCheckpointMediaUs[(index + CHECKPOINT_COUNT - 1) % CHECKPOINT_COUNT]) : mediaUs;
+	}
+
+	/** media time at a point of the output timeline, interpolated between the checkpoints either side of it */
+	private long toMediaTimeUs(long outputUs) {
+		if (mCheckpointCount == 0) {
+			return outputUs;
+		}
+		for (int i = mCheckpointCount - 1; i >= 0; i--) {
+			int index = (mCheckpointStart + i) % CHECKPOINT_COUNT;
+			long checkpointOutputUs = mCheckpointOutputUs[index];
+			if (checkpointOutputUs <= outputUs) {
+				if (i == mCheckpointCount - 1) {
+					return mCheckpointMediaUs[index];
+				}
+				int next = (index + 1) % CHECKPOINT_COUNT;
+				long spanUs = mCheckpointOutputUs[next] - checkpointOutputUs;
+				return spanUs == 0 ? mCheckpointMediaUs[next] : mCheckpointMediaUs[index]
+						+ (mCheckpointMediaUs[next] - mCheckpointMediaUs[index]) * (outputUs - checkpointOutputUs) / spanUs;
+			}
+		}
+		// older than anything kept - only just after a seek, before the track has caught up
+		return mCheckpointMediaUs[mCheckpointStart];
+	}
+
+	private void resetTimeline() {
+		if (mStretcher != null) {
+			mStretcher.reset();
+		}
+		if (mNormalizer != null) {
+			mNormalizer.onDiscontinuity();
+		}
+		mOutputSize = 0;
+		mOutputStartUs = -1;
+		mOutputFrames = 0;
+		mCheckpointStart = 0;
+		mCheckpointCount = 0;
+	}
+
+	private long framesToUs(long frames) {
+		return frames * 1000000L / mSampleRate;
+	}
+
+	private void notifyAudioTrackInitializationError(final AudioTrack.InitializationException e) {
+		if (eventHandler != null && mEventListener != null) {
+			eventHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					mEventListener.onAudioTrackInitializationError(e);
+				}
+			});
+		}
+	}
+
+	private void notifyAudioTrackSwitched(final int audioTrack, final long gapMs) {
+		if (eventHandler != null && mEventListener != null) {
+			eventHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					mEventListener.onAudioTrackSwitched(audioTrack, gapMs);
+				}
+			});
+		}
+	}
+
+	private void notifyAudioTrackWriteError(final AudioTrack.WriteException e) {
+		if (eventHandler != null && mEventListener != null) {
+			eventHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					mEventListener.onAudioTrackWriteError(e);
+				}
+			});
+		}
+	}
+
+}
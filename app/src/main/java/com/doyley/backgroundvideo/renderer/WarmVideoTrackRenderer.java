@@ -0,0 +1,260 @@
+package com.doyley.backgroundvideo.renderer;
+
+import android.media.MediaCodec;
+import android.media.MediaCrypto;
+import android.media.MediaFormat;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.view.Surface;
+
+import com.doyley.backgroundvideo.log.EventLog;
+import com.doyley.backgroundvideo.log.PlaybackTrace;
+import com.doyley.backgroundvideo.qoe.AvSyncMonitor;
+import com.google.android.exoplayer.ExoPlaybackException;
+import com.google.android.exoplayer.MediaCodecVideoTrackRenderer;
+import com.google.android.exoplayer.SampleSource;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Video renderer that can keep its decoder running while there is no surface.
+ *
+ * With warm mode on, losing the surface does not leave the renderer without a codec - a codec is
+ * configured without an output surface and fed sync samples only, its output dropped as it falls due.
+ * The source therefore stays on the video track at the playhead. When a surface is attached the codec is
+ * configured onto it (API 21 cannot move a running codec to a new surface) and the last sync sample is
+ * decoded again and shown straight away, instead of the screen staying black until the next one arrives.
+ * Playback carries on normally from the following sync sample.
+ *
+ * With warm mode off the renderer behaves exactly like its superclass.
+ *
+ * At a playback speed other than 1 the clock - the audio renderer - runs at that speed, so the time until
+ * a frame is due is scaled by it before the release time is worked out.
+ *
+ * Given an {@link AvSyncMonitor}, every frame released or dropped is reported to it with how far it was
+ * from the audio clock, and when the monitor says the video has fallen too far behind, the source skips to
+ * the next sync sample rather than the decoder working through frames that will only be dropped. Frames
+ * before the position the renderer was enabled or seeked to are not reported - working through those
+ * from the sync sample before it is how the video gets there.
+ */
+public class WarmVideoTrackRenderer extends MediaCodecVideoTrackRenderer {
+
+	/** message is a Float */
+	public static final int MSG_SET_PLAYBACK_SPEED = TimeStretchAudioTrackRenderer.MSG_SET_PLAYBACK_SPEED;
+
+	private final SyncSampleFilteringSource mSource;
+	private final boolean mWarmMode;
+	private final Handler mEventHandler;
+	private final EventListener mEventListener;
+	private final SpeedReleaseTimeHelper mReleaseTimeHelper;
+	private final AvSyncMonitor mSyncMonitor;
+
+	private Surface mSurface;
+	private volatile boolean mWarm;
+	private long mReplayTimeUs = -1;
+	// frames before this are on the way from the sync sample to where playback starts
+	private long mJoiningPositionUs;
+	private boolean mFirstFrame;
+
+	/** syncMonitor may be null */
+	public WarmVideoTrackRenderer(SampleSource source, boolean warmMode, int videoScalingMode,
+	                              long allowedJoiningTimeMs, AvSyncMonitor syncMonitor, Handler eventHandler,
+	                              EventListener eventListener, int maxDroppedFrameCountToNotify) {
+		this(new SyncSampleFilteringSource(source), warmMode, videoScalingMode, allowedJoiningTimeMs,
+				new SpeedReleaseTimeHelper(), syncMonitor, eventHandler, eventListener, maxDroppedFrameCountToNotify);
+	}
+
+	private WarmVideoTrackRenderer(SyncSampleFilteringSource source, boolean warmMode, int videoScalingMode,
+	                               long allowedJoiningTimeMs, SpeedReleaseTimeHelper releaseTimeHelper,
+	                               AvSyncMonitor syncMonitor, Handler eventHandler, EventListener eventListener,
+	                               int maxDroppedFrameCountToNotify) {
+		super(source, null, true, videoScalingMode, allowedJoiningTimeMs, releaseTimeHelper, eventHandler,
+				eventListener, maxDroppedFrameCountToNotify);
+		mSource = source;
+		mReleaseTimeHelper = releaseTimeHelper;
+		mSyncMonitor = syncMonitor;
+		mWarmMode = warmMode;
+		mEventHandler = eventHandler;
+		mEventListener = eventListener;
+	}
+
+	/** true while the decoder is kept running without a surface */
+	public boolean isWarm() {
+		return mWarm;
+	}
+
+	@Override
+	public void handleMessage(int messageType, Object message) throws ExoPlaybackException {
+		// runs on the ExoPlayer playback thread
+		PlaybackTrace.begin("renderer message", messageType);
+		try {
+			handleRendererMessage(messageType, message);
+		} finally {
+			PlaybackTrace.end("renderer message");
+		}
+	}
+
+	private void handleRendererMessage(int messageType, Object message) throws ExoPlaybackException {
+		if (messageType == MSG_SET_PLAYBACK_SPEED) {
+			mReleaseTimeHelper.mSpeed = (Float) message;
+			return;
+		}
+		if (messageType == MSG_SET_SURFACE) {
+			Surface surface = (Surface) message;
+			if (mWarmMode && surface == null && mSurface != null) {
+				mSource.filterToSyncSamples();
+				mWarm = true;
+			} else if (surface != null && mWarm) {
+				mReplayTimeUs = mSource.replayLastSyncSample();
+				mWarm = false;
+			}
+			mSurface = surface;
+		}
+		// setting the surface releases the codec and creates the next one through shouldInitCodec
+		super.handleMessage(messageType, message);
+	}
+
+	@Override
+	protected boolean shouldInitCodec() {
+		if (mWarm && mSurface == null) {
+			return !codecInitialized() && haveFormat();
+		}
+		return super.shouldInitCodec();
+	}
+
+	@Override
+	protected void configureCodec(MediaCodec codec, MediaFormat format, MediaCrypto crypto) {
+		if (mSurface == null) {
+			// output stays in the codec's own buffers - we only ever drop it
+			codec.configure(format, null, crypto, 0);
+			return;
+		}
+		super.configureCodec(codec, format, crypto);
+	}
+
+	@Override
+	protected boolean isReady() {
+		if (mWarm || mSource.isFiltering()) {
+			// nothing the superclass counts as a first frame is rendered while warm or while waiting for the
+			// sync sample after a replay, so its check would hold up playback
+			return haveFormat() && getSourceState() != SOURCE_STATE_NOT_READY;
+		}
+		return super.isReady();
+	}
+
+	@Override
+	protected void onEnabled(long positionUs, boolean joining) {
+		super.onEnabled(positionUs, joining);
+		onDiscontinuity(positionUs);
+	}
+
+	@Override
+	public void onDisabled() {
+		mWarm = false;
+		mReplayTimeUs = -1;
+		super.onDisabled();
+	}
+
+	@Override
+	protected void seekTo(long positionUs) throws ExoPlaybackException {
+		PlaybackTrace.instant("renderer seek", positionUs);
+		// the source restarts from a sync sample by itself
+		mReplayTimeUs = -1;
+		super.seekTo(positionUs);
+		onDiscontinuity(positionUs);
+	}
+
+	private void onDiscontinuity(long positionUs) {
+		mJoiningPositionUs = positionUs;
+		mFirstFrame = true;
+		if (mSyncMonitor != null) {
+			mSyncMonitor.onDiscontinuity();
+		}
+	}
+
+	@Override
+	protected boolean processOutputBuffer(long positionUs, long elapsedRealtimeUs, MediaCodec codec,
+	                                      ByteBuffer buffer, MediaCodec.BufferInfo bufferInfo, int bufferIndex,
+	                                      boolean shouldSkip) {
+		if (mReplayTimeUs != -1 && bufferInfo.presentationTimeUs == mReplayTimeUs) {
+			// the replayed sync sample is behind the playhead and would be dropped as late - show it anyway
+			mReplayTimeUs = -1;
+			codec.releaseOutputBuffer(bufferIndex, true);
+			codecCounters.renderedOutputBufferCount++;
+			notifyDrawnToSurface();
+			return true;
+		}
+		if (mWarm) {
+			if (shouldSkip || bufferInfo.presentationTimeUs <= positionUs) {
+				codec.releaseOutputBuffer(bufferIndex, false);
+				codecCounters.skippedOutputBufferCount++;
+				return true;
+			}
+			// hold on to it until it falls due, which keeps the decoder from running ahead of playback
+			return false;
+		}
+		if (mSyncMonitor == null || shouldSkip || bufferInfo.presentationTimeUs < mJoiningPositionUs) {
+			return super.processOutputBuffer(positionUs, elapsedRealtimeUs, codec, buffer, bufferInfo, bufferIndex,
+					shouldSkip);
+		}
+		// as the superclass works it out, less the release time adjustment, so in media time
+		long earlyUs = bufferInfo.presentationTimeUs - positionUs
+				- (SystemClock.elapsedRealtime() * 1000 - elapsedRealtimeUs);
+		int renderedCount = codecCounters.renderedOutputBufferCount;
+		int droppedCount = codecCounters.droppedOutputBufferCount;
+		if (!super.processOutputBuffer(positionUs, elapsedRealtimeUs, codec, buffer, bufferInfo, bufferIndex,
+				shouldSkip)) {
+			return false;
+		}
+		boolean dropped = codecCounters.droppedOutputBufferCount != droppedCount;
+		if (dropped || codecCounters.renderedOutputBufferCount != renderedCount) {
+			// a first frame goes on screen at once, the others are released at their time unless they are late
+			long driftUs = dropped || mFirstFrame ? earlyUs : Math.min(earlyUs, 0);
+			mFirstFrame &= dropped;
+			if (mSyncMonitor.onFrame(driftUs, dropped)) {
+				if (EventLog.ENABLED) {
+					EventLog.log(EventLog.AV_SYNC_CATCH_UP, driftUs / 1000, bufferInfo.presentationTimeUs / 1000);
+				}
+				mSource.skipToNextSyncSample();
+			}
+		}
+		return true;
+	}
+
+	private void notifyDrawnToSurface() {
+		if (mEventHandler == null || mEventListener == null) {
+			return;
+		}
+		final Surface surface = mSurface;
+		mEventHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				mEventListener.onDrawnToSurface(surface);
+			}
+		});
+	}
+
+	/** brings release times closer or pushes them out by the playback speed - only used on the playback thread */
+	private static class SpeedReleaseTimeHelper implements FrameReleaseTimeHelper {
+
+		private float mSpeed = 1f;
+
+		@Override
+		public void enable() {
+		}
+
+		@Override
+		public void disable() {
+		}
+
+		@Override
+		public long adjustReleaseTime(long framePresentationTimeUs, long unadjustedReleaseTimeNs) {
+			if (mSpeed == 1f) {
+				return unadjustedReleaseTimeNs;
+			}
+			long nowNs = System.nanoTime();
+			return nowNs + (long) ((unadjustedReleaseTimeNs - nowNs) / mSpeed);
+		}
+	}
+
+}
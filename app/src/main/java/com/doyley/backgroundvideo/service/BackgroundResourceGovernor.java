@@ -0,0 +1,152 @@
+package com.doyley.backgroundvideo.service;
+
+import android.content.ComponentCallbacks2;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.doyley.backgroundvideo.player.VideoPlayer;
+
+/**
+ * Decides when the player gives up what it only holds for video while nobody is watching.
+ *
+ * Once the video has been in the background for the idle timeout - or straight away when the system
+ * reports memory pressure - the player is asked to release its background resources. They are taken back
+ * as soon as a surface returns, and the time from then until the first frame is drawn is recorded as the
+ * foreground latency - separately for a video decoder that was kept warm and one that starts cold.
+ */
+public class BackgroundResourceGovernor {
+
+	public static final long DEFAULT_IDLE_TIMEOUT_MS = 30000;
+
+	private final Handler mHandler;
+
+	private VideoPlayer mVideoPlayer;
+	private long mIdleTimeoutMs = DEFAULT_IDLE_TIMEOUT_MS;
+	private boolean mBackgrounded;
+	private boolean mResourcesReleased;
+
+	private long mForegroundRequestTimeMs = -1;
+	private boolean mForegroundAfterRelease;
+	private boolean mForegroundWarm;
+	private long mReleasedBytes;
+	private long mLastWarmForegroundLatencyMs = -1;
+	private long mLastColdForegroundLatencyMs = -1;
+
+	private final Runnable mIdleRunnable = new Runnable() {
+		@Override
+		public void run() {
+			releaseResources("idle");
+		}
+	};
+
+	/** handler is where the idle timeout runs - the player is called from there too */
+	public BackgroundResourceGovernor(Handler handler) {
+		mHandler = handler;
+	}
+
+	public synchronized void setVideoPlayer(VideoPlayer videoPlayer) {
+		mVideoPlayer = videoPlayer;
+		mResourcesReleased = false;
+		mForegroundRequestTimeMs = -1;
+		if (mBackgrounded) {
+			restartIdleTimeout();
+		}
+	}
+
+	public synchronized void setIdleTimeoutMs(long idleTimeoutMs) {
+		mIdleTimeoutMs = idleTimeoutMs;
+		if (mBackgrounded && !mResourcesReleased) {
+			restartIdleTimeout();
+		}
+	}
+
+	public synchronized void onBackgrounded() {
+		mBackgrounded = true;
+		mForegroundRequestTimeMs = -1;
+		restartIdleTimeout();
+	}
+
+	/** called before the video renderer is re-enabled so what was released is back in time */
+	public synchronized void onForegrounded() {
+		mBackgrounded = false;
+		mHandler.removeCallbacks(mIdleRunnable);
+		mForegroundAfterRelease = mResourcesReleased;
+		mForegroundWarm = mVideoPlayer != null && mVideoPlayer.isVideoWarm();
+		if (mResourcesReleased && mVideoPlayer != null) {
+			mVideoPlayer.reacquireBackgroundResources();
+		}
+		mResourcesReleased = false;
+		mForegroundRequestTimeMs = SystemClock.elapsedRealtime();
+	}
+
+	public synchronized void onTrimMemory(int level) {
+		if (mBackgrounded && isMemoryPressure(level)) {
+			releaseResources("trim memory " + level);
+		}
+	}
+
+	/** called when a frame has been drawn to the surface - closes the foreground latency measurement */
+	public synchronized void onFirstFrameDrawn() {
+		if (mForegroundRequestTimeMs == -1) {
+			return;
+		}
+		long latencyMs = SystemClock.elapsedRealtime() - mForegroundRequestTimeMs;
+		mForegroundRequestTimeMs = -1;
+		if (mForegroundWarm) {
+			mLastWarmForegroundLatencyMs = latencyMs;
+		} else {
+			mLastColdForegroundLatencyMs = latencyMs;
+		}
+		Log.d(this.getClass().getSimpleName(), "onFirstFrameDrawn : foreground latency ms = " + latencyMs
+				+ ", warm = " + mForegroundWarm + ", after release = " + mForegroundAfterRelease);
+	}
+
+	public synchronized void stop() {
+		mHandler.removeCallbacks(mIdleRunnable);
+		mVideoPlayer = null;
+		mBackgrounded = false;
+		mResourcesReleased = false;
+		mForegroundRequestTimeMs = -1;
+	}
+
+	/** total bytes the player reported released since the governor was created */
+	public synchronized long getReleasedBytes() {
+		return mReleasedBytes;
+	}
+
+	/** time from the last return to the foreground with a warm decoder until a frame was drawn, or -1 */
+	public synchronized long getLastWarmForegroundLatencyMs() {
+		return mLastWarmForegroundLatencyMs;
+	}
+
+	/** time from the last return to the foreground with a cold decoder until a frame was drawn, or -1 */
+	public synchronized long getLastColdForegroundLatencyMs() {
+		return mLastColdForegroundLatencyMs;
+	}
+
+	private synchronized void releaseResources(String reason) {
+		if (!mBackgrounded || mResourcesReleased || mVideoPlayer == null || !mVideoPlayer.isMediaPlayerActive()) {
+			return;
+		}
+		mHandler.removeCallbacks(mIdleRunnable);
+		mResourcesReleased = true;
+		long releasedBytes = mVideoPlayer.releaseBackgroundResources();
+		mReleasedBytes += releasedBytes;
+		Log.d(this.getClass().getSimpleName(), "releaseResources : " + reason + ", released bytes = "
+				+ releasedBytes);
+	}
+
+	private void restartIdleTimeout() {
+		mHandler.removeCallbacks(mIdleRunnable);
+		mHandler.postDelayed(mIdleRunnable, mIdleTimeoutMs);
+	}
+
+	private static boolean isMemoryPressure(int level) {
+		// UI_HIDDEN only means our activity went away, which the idle timeout already covers
+		return level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW
+				|| level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL
+				|| level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND;
+	}
+
+}
@@ -0,0 +1,72 @@
+package com.doyley.backgroundvideo.service;
+
+/**
+ * Latency of the command batches applied by {@link PlayerProcessService}, in microseconds.
+ *
+ * Transit is the time from the caller writing a batch to it being unmarshalled on a binder thread of the player
+ * process - a batch passed on by {@link com.doyley.backgroundvideo.remote.VideoControlService} is timed from
+ * when its caller sent it. Applied is the time until the player has applied it, which adds the wait for the
+ * main thread. Only used on the main thread.
+ */
+class CallLatencyStats {
+
+	private long mCallCount;
+	private long mCommandCount;
+	private long mRejectedCount;
+	private long mMaxBatchSize;
+	private long mTotalTransitUs;
+	private long mMaxTransitUs;
+	private long mTotalAppliedUs;
+	private long mMaxAppliedUs;
+
+	void onBatchApplied(int commandCount, int rejectedCount, long transitUs, long appliedUs) {
+		mCallCount++;
+		mCommandCount += commandCount;
+		mRejectedCount += rejectedCount;
+		mMaxBatchSize = Math.max(mMaxBatchSize, commandCount);
+		mTotalTransitUs += transitUs;
+		mMaxTransitUs = Math.max(mMaxTransitUs, transitUs);
+		mTotalAppliedUs += appliedUs;
+		mMaxAppliedUs = Math.max(mMaxAppliedUs, appliedUs);
+	}
+
+	long getCallCount() {
+		return mCallCount;
+	}
+
+	long getCommandCount() {
+		return mCommandCount;
+	}
+
+	long getRejectedCount() {
+		return mRejectedCount;
+	}
+
+	long getMaxBatchSize() {
+		return mMaxBatchSize;
+	}
+
+	long getAverageTransitUs() {
+		return mCallCount == 0 ? 0 : mTotalTransitUs / mCallCount;
+	}
+
+	long getMaxTransitUs() {
+		return mMaxTransitUs;
+	}
+
+	long getAverageAppliedUs() {
+		return mCallCount == 0 ? 0 : mTotalAppliedUs / mCallCount;
+	}
+
+	long getMaxAppliedUs() {
+		return mMaxAppliedUs;
+	}
+
+	String getDebugString() {
+		return "calls = " + mCallCount + ", commands = " + mCommandCount + ", rejected = " + mRejectedCount
+				+ ", max batch = " + mMaxBatchSize
+				+ ", transit avg/max = " + getAverageTransitUs() + "/" + mMaxTransitUs + "us"
+				+ ", applied avg/max = " + getAverageAppliedUs() + "/" + mMaxAppliedUs + "us";
+	}
+
+}
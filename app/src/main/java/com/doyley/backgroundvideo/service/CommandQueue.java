@@ -0,0 +1,77 @@
+package com.doyley.backgroundvideo.service;
+
+import android.util.Log;
+
+import com.doyley.backgroundvideo.remote.VideoCommandBatch;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The commands of a {@link PlayerProcessClient} waiting to be sent.
+ *
+ * Commands are gathered into a batch until it is ended, and a seek right after a seek replaces it. Ended
+ * batches wait to be taken - up to {@link PlayerProcessClient#MAX_PENDING_BATCHES} of them, the oldest are
+ * dropped first.
+ *
+ * Not thread safe.
+ */
+class CommandQueue {
+
+	private final int[] mOps = new int[VideoCommandBatch.MAX_SIZE];
+	private final long[] mArgs = new long[VideoCommandBatch.MAX_SIZE];
+	private int mCount;
+	private final List<VideoCommandBatch> mPendingBatches = new ArrayList<>();
+	private long mNextBatchId;
+
+	/** adds a command to the current batch - returns false if the batch is full, and nothing was added */
+	boolean add(int op, long arg) {
+		if (op == VideoCommandBatch.OP_SEEK && mCount > 0 && mOps[mCount - 1] == VideoCommandBatch.OP_SEEK) {
+			mArgs[mCount - 1] = arg;
+			return true;
+		}
+		if (mCount == mOps.length) {
+			return false;
+		}
+		mOps[mCount] = op;
+		mArgs[mCount] = arg;
+		mCount++;
+		return true;
+	}
+
+	/** ends the current batch, if it has any commands - the next ones go into a new one */
+	void endBatch() {
+		if (mCount == 0) {
+			return;
+		}
+		VideoCommandBatch batch = new VideoCommandBatch(mNextBatchId++);
+		for (int i = 0; i < mCount; i++) {
+			batch.add(mOps[i], mArgs[i]);
+		}
+		mCount = 0;
+		addPendingBatch(batch);
+	}
+
+	/** ends the current batch, and queues a batch made elsewhere after it */
+	void addBatch(VideoCommandBatch batch) {
+		endBatch();
+		addPendingBatch(batch);
+	}
+
+	/** ends the current batch, and returns every batch waiting, oldest first - none are left waiting */
+	List<VideoCommandBatch> takeBatches() {
+		endBatch();
+		List<VideoCommandBatch> batches = new ArrayList<>(mPendingBatches);
+		mPendingBatches.clear();
+		return batches;
+	}
+
+	private void addPendingBatch(VideoCommandBatch batch) {
+		if (mPendingBatches.size() == PlayerProcessClient.MAX_PENDING_BATCHES) {
+			// still not connected - the oldest batch goes
+			Log.w(this.getClass().getSimpleName(), "addPendingBatch : dropping " + mPendingBatches.remove(0));
+		}
+		mPendingBatches.add(batch);
+	}
+
+}
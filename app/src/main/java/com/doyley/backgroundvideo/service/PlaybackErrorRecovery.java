@@ -0,0 +1,214 @@
+package com.doyley.backgroundvideo.service;
+
+import android.media.MediaCodec;
+import android.os.Handler;
+import android.util.Log;
+
+import com.doyley.backgroundvideo.player.VideoPlayer;
+import com.google.android.exoplayer.MediaCodecTrackRenderer;
+import com.google.android.exoplayer.ParserException;
+import com.google.android.exoplayer.audio.AudioTrack;
+import com.google.android.exoplayer.upstream.HttpDataSource;
+import com.google.android.exoplayer.util.Clock;
+import com.google.android.exoplayer.util.SystemClock;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Decides what becomes of a playback error, rather than ending the session on the first one.
+ *
+ * Errors are classified by their cause. Transient ones - timeouts, dropped connections, server errors, an
+ * audio output that is busy for a moment - are retried from where playback was, after a backoff that doubles
+ * with every attempt and is jittered so that clients failing together do not come back together. A retry
+ * keeps what the player already has, see {@link VideoPlayer#retry(long)}. A decoder that fails to initialize
+ * gets the player's next fallback. Anything else - and a transient error that outlasts the retries - ends the
+ * session.
+ *
+ * An error long enough after the previous one starts a new streak, with the attempts counted from zero.
+ * Everything here runs on the main thread, except for the getters.
+ */
+public class PlaybackErrorRecovery {
+
+	public static final int ERROR_TRANSIENT = 0;
+	public static final int ERROR_DECODER_INIT = 1;
+	public static final int ERROR_FATAL = 2;
+
+	public static final int OUTCOME_RETRY_RECOVERED = 0;
+	public static final int OUTCOME_FALLBACK_RECOVERED = 1;
+	public static final int OUTCOME_RETRIES_EXHAUSTED = 2;
+	public static final int OUTCOME_NO_FALLBACK_LEFT = 3;
+	public static final int OUTCOME_FATAL = 4;
+
+	private static final String[] ERROR_NAMES = {"transient", "decoder init", "fatal"};
+	private static final String[] OUTCOME_NAMES = {"retry recovered", "fallback recovered", "retries exhausted",
+			"no fallback left", "fatal"};
+
+	public static final int MAX_RETRIES = 5;
+	private static final long INITIAL_BACKOFF_MS = 1000;
+	private static final long MAX_BACKOFF_MS = 30000;
+	private static final long STREAK_RESET_MS = 60000;
+
+	private final Handler mHandler;
+	private final Clock mClock;
+	private final Random mRandom = new Random();
+
+	private VideoPlayer mVideoPlayer;
+	private int mAttempt;
+	private long mLastErrorMs = -1;
+	// the kind of recovery waiting for the player to be ready again, or -1
+	private int mPendingRecovery = -1;
+	private long mRetryPositionMs;
+
+	private final int[] mErrorCounts = new int[ERROR_NAMES.length];
+	private final int[] mOutcomeCounts = new int[OUTCOME_NAMES.length];
+	private int mRetryCount;
+	private int mFallbackCount;
+
+	private final Runnable mRetryRunnable = new Runnable() {
+		@Override
+		public void run() {
+			synchronized (PlaybackErrorRecovery.this) {
+				if (mVideoPlayer != null) {
+					mVideoPlayer.retry(mRetryPositionMs);
+				}
+			}
+		}
+	};
+
+	/** handler is where the retries run - the player is called from there */
+	public PlaybackErrorRecovery(Handler handler) {
+		this(handler, new SystemClock());
+	}
+
+	public PlaybackErrorRecovery(Handler handler, Clock clock) {
+		mHandler = handler;
+		mClock = clock;
+	}
+
+	public synchronized void setVideoPlayer(VideoPlayer videoPlayer) {
+		mHandler.removeCallbacks(mRetryRunnable);
+		mVideoPlayer = videoPlayer;
+		mAttempt = 0;
+		mLastErrorMs = -1;
+		mPendingRecovery = -1;
+	}
+
+	public synchronized void stop() {
+		setVideoPlayer(null);
+	}
+
+	/**
+	 * called with every error and where playback was when it happened - returns true if the player is being
+	 * recovered, false if the session should end
+	 */
+	public synchronized boolean onError(Exception error, long positionMs) {
+		int errorClass = classify(error);
+		mErrorCounts[errorClass]++;
+		long nowMs = mClock.elapsedRealtime();
+		if (mLastErrorMs == -1 || nowMs - mLastErrorMs > STREAK_RESET_MS) {
+			mAttempt = 0;
+		}
+		mLastErrorMs = nowMs;
+		if (mVideoPlayer == null || !mVideoPlayer.isMediaPlayerActive()) {
+			errorClass = ERROR_FATAL;
+		}
+
+		switch (errorClass) {
+			case ERROR_TRANSIENT:
+				if (mAttempt == MAX_RETRIES) {
+					return giveUp(OUTCOME_RETRIES_EXHAUSTED);
+				}
+				long delayMs = getBackoffMs(mAttempt++);
+				Log.w(this.getClass().getSimpleName(), "onError : retry " + mAttempt + " in " + delayMs
+						+ "ms at " + positionMs + "ms", error);
+				mRetryCount++;
+				mPendingRecovery = OUTCOME_RETRY_RECOVERED;
+				mRetryPositionMs = positionMs;
+				mHandler.removeCallbacks(mRetryRunnable);
+				mHandler.postDelayed(mRetryRunnable, delayMs);
+				return true;
+			case ERROR_DECODER_INIT:
+				if (!mVideoPlayer.fallBackDecoder(positionMs)) {
+					return giveUp(OUTCOME_NO_FALLBACK_LEFT);
+				}
+				mFallbackCount++;
+				mPendingRecovery = OUTCOME_FALLBACK_RECOVERED;
+				return true;
+			default:
+				return giveUp(OUTCOME_FATAL);
+		}
+	}
+
+	/** called when the player is ready - closes the recovery in progress, if any, as a success */
+	public synchronized void onPlaybackReady() {
+		if (mPendingRecovery != -1) {
+			mOutcomeCounts[mPendingRecovery]++;
+			mPendingRecovery = -1;
+		}
+	}
+
+	public synchronized int getErrorCount(int errorClass) {
+		return mErrorCounts[errorClass];
+	}
+
+	public synchronized int getOutcomeCount(int outcome) {
+		return mOutcomeCounts[outcome];
+	}
+
+	public synchronized int getRetryCount() {
+		return mRetryCount;
+	}
+
+	public synchronized int getFallbackCount() {
+		return mFallbackCount;
+	}
+
+	public synchronized String getDebugString() {
+		StringBuilder builder = new StringBuilder("retries = ").append(mRetryCount).append(", fallbacks = ")
+				.append(mFallbackCount);
+		for (int i = 0; i < ERROR_NAMES.length; i++) {
+			builder.append(", ").append(ERROR_NAMES[i]).append(" errors = ").append(mErrorCounts[i]);
+		}
+		for (int i = 0; i < OUTCOME_NAMES.length; i++) {
+			builder.append(", ").append(OUTCOME_NAMES[i]).append(" = ").append(mOutcomeCounts[i]);
+		}
+		return builder.toString();
+	}
+
+	/** what can be done about an error - decided by the first cause in its chain that says */
+	public static int classify(Throwable error) {
+		for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+			if (cause instanceof MediaCodecTrackRenderer.DecoderInitializationException) {
+				return ERROR_DECODER_INIT;
+			}
+			if (cause instanceof MediaCodec.CryptoException || cause instanceof ParserException) {
+				// the content is what it is - asking again gets the same
+				return ERROR_FATAL;
+			}
+			if (cause instanceof HttpDataSource.InvalidResponseCodeException) {
+				int responseCode = ((HttpDataSource.InvalidResponseCodeException) cause).responseCode;
+				return responseCode >= 500 || responseCode == 408 || responseCode == 429
+						? ERROR_TRANSIENT : ERROR_FATAL;
+			}
+			if (cause instanceof IOException || cause instanceof AudioTrack.InitializationException) {
+				return ERROR_TRANSIENT;
+			}
+		}
+		return ERROR_FATAL;
+	}
+
+	private boolean giveUp(int outcome) {
+		mOutcomeCounts[outcome]++;
+		mPendingRecovery = -1;
+		mHandler.removeCallbacks(mRetryRunnable);
+		return false;
+	}
+
+	/** half the backoff for the attempt, plus a random part of the other half */
+	long getBackoffMs(int attempt) {
+		long backoffMs = Math.min(MAX_BACKOFF_MS, INITIAL_BACKOFF_MS << attempt);
+		return backoffMs / 2 + (long) (mRandom.nextDouble() * (backoffMs / 2));
+	}
+
+}
@@ -0,0 +1,80 @@
+package com.doyley.backgroundvideo.service;
+
+import android.os.Binder;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Parcel;
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.doyley.backgroundvideo.remote.VideoCommandBatch;
+
+import java.io.IOException;
+
+/**
+ * The binder {@link PlayerProcessService} hands to clients in other processes of the app.
+ *
+ * Commands arrive as a {@link VideoCommandBatch}, in a single one-way transaction, so the caller never waits
+ * for the player process. A batch is applied on the main thread in one go, in the order it was sent. The only
+ * two-way call hands out the status region, once per connection.
+ *
+ * Batch layout : interface token, then the batch as it writes itself to a parcel.
+ */
+class PlayerCommandBinder extends Binder {
+
+	static final String DESCRIPTOR = "com.doyley.backgroundvideo.service.PlayerCommandBinder";
+
+	static final int TRANSACTION_COMMANDS = IBinder.FIRST_CALL_TRANSACTION;
+	static final int TRANSACTION_GET_STATUS_REGION = IBinder.FIRST_CALL_TRANSACTION + 1;
+
+	private final PlayerProcessService mService;
+	private final Handler mHandler;
+
+	PlayerCommandBinder(PlayerProcessService service, Handler handler) {
+		mService = service;
+		mHandler = handler;
+	}
+
+	@Override
+	protected boolean onTransact(int code, Parcel data, Parcel reply, int flags) throws RemoteException {
+		switch (code) {
+			case TRANSACTION_COMMANDS:
+				data.enforceInterface(DESCRIPTOR);
+				final VideoCommandBatch batch;
+				try {
+					batch = VideoCommandBatch.CREATOR.createFromParcel(data);
+				} catch (IllegalArgumentException e) {
+					// a broken client
+					Log.e(this.getClass().getSimpleName(), "onTransact : dropping batch", e);
+					return true;
+				}
+				mHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						mService.onCommandBatchApplied(batch, batch.applyTo(mService));
+					}
+				});
+				return true;
+			case TRANSACTION_GET_STATUS_REGION:
+				data.enforceInterface(DESCRIPTOR);
+				ParcelFileDescriptor region = mService.openStatusRegion();
+				reply.writeNoException();
+				if (region == null) {
+					reply.writeInt(0);
+				} else {
+					reply.writeInt(1);
+					reply.writeFileDescriptor(region.getFileDescriptor());
+					try {
+						region.close();
+					} catch (IOException e) {
+						// the reply holds its own copy of the descriptor
+					}
+				}
+				return true;
+			default:
+				return super.onTransact(code, data, reply, flags);
+		}
+	}
+
+}
@@ -0,0 +1,218 @@
+package com.doyley.backgroundvideo.service;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Parcel;
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.doyley.backgroundvideo.remote.VideoCommandBatch;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Drives a {@link PlayerProcessService} from another process of the app.
+ *
+ * Commands are queued and sent together in one one-way transaction once the calling looper message is done,
+ * or as soon as the queue is full - so a burst of commands costs a single binder call and the caller never
+ * waits on the player process. A seek right after a seek replaces it. A batch made elsewhere is sent as it is
+ * with {@link #send(VideoCommandBatch)}, in order with the queued commands. Commands issued before the service
+ * is connected are sent once it is - up to {@link #MAX_PENDING_BATCHES} batches of them, the oldest go first.
+ *
+ * Status is read from the region the service shares - see {@link #getStatus(PlayerStatusRegion.Status)}.
+ */
+public class PlayerProcessClient {
+
+	public static final int MAX_PENDING_BATCHES = 16;
+
+	private final Context mContext;
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+	private final Object mLock = new Object();
+
+	// guarded by mLock
+	private final CommandQueue mQueue = new CommandQueue();
+	private boolean mFlushPosted;
+	private IBinder mBinder;
+
+	private volatile PlayerStatusRegion mStatusRegion;
+	private boolean mBound;
+
+	private final ServiceConnection mServiceConnection = new ServiceConnection() {
+
+		@Override
+		public void onServiceConnected(ComponentName name, IBinder service) {
+			Log.d(PlayerProcessClient.class.getSimpleName(), "onServiceConnected");
+			mStatusRegion = mapStatusRegion(service);
+			synchronized (mLock) {
+				mBinder = service;
+			}
+			flush();
+		}
+
+		@Override
+		public void onServiceDisconnected(ComponentName name) {
+			Log.d(PlayerProcessClient.class.getSimpleName(), "onServiceDisconnected");
+			synchronized (mLock) {
+				mBinder = null;
+			}
+			// the last status stays readable until we reconnect
+		}
+	};
+
+	private final Runnable mFlushRunnable = new Runnable() {
+		@Override
+		public void run() {
+			flush();
+		}
+	};
+
+	public PlayerProcessClient(Context context) {
+		mContext = context.getApplicationContext();
+	}
+
+	public static Intent getIntent(Context context, String action) {
+		Intent intent = new Intent(action);
+		intent.setClass(context, PlayerProcessService.class);
+		return intent;
+	}
+
+	public boolean bind() {
+		if (!mBound) {
+			mBound = mContext.bindService(new Intent(mContext, PlayerProcessService.class), mServiceConnection,
+					Context.BIND_AUTO_CREATE);
+		}
+		return mBound;
+	}
+
+	/** sends what is queued and lets go of the service */
+	public void unbind() {
+		flush();
+		if (mBound) {
+			mContext.unbindService(mServiceConnection);
+			mBound = false;
+		}
+		synchronized (mLock) {
+			mBinder = null;
+		}
+	}
+
+	public void play() {
+		enqueue(VideoCommandBatch.OP_PLAY, 0);
+	}
+
+	public void pause() {
+		enqueue(VideoCommandBatch.OP_PAUSE, 0);
+	}
+
+	public void togglePaused() {
+		enqueue(VideoCommandBatch.OP_TOGGLE_PAUSED, 0);
+	}
+
+	public void seekTo(long positionMs) {
+		enqueue(VideoCommandBatch.OP_SEEK, positionMs);
+	}
+
+	public void previous() {
+		enqueue(VideoCommandBatch.OP_PREVIOUS, 0);
+	}
+
+	public void next() {
+		enqueue(VideoCommandBatch.OP_NEXT, 0);
+	}
+
+	public void stop() {
+		enqueue(VideoCommandBatch.OP_STOP, 0);
+	}
+
+	/** copies the latest status into status - returns false if there is none to read yet */
+	public boolean getStatus(PlayerStatusRegion.Status status) {
+		PlayerStatusRegion statusRegion = mStatusRegion;
+		return statusRegion != null && statusRegion.read(status);
+	}
+
+	/** sends a batch after the commands queued so far */
+	public void send(VideoCommandBatch batch) {
+		synchronized (mLock) {
+			mQueue.addBatch(batch);
+			flush();
+		}
+	}
+
+	/** sends the queued commands now, if the service is connected */
+	public void flush() {
+		synchronized (mLock) {
+			mFlushPosted = false;
+			if (mBinder == null) {
+				return;
+			}
+			for (VideoCommandBatch batch : mQueue.takeBatches()) {
+				Parcel data = Parcel.obtain();
+				try {
+					data.writeInterfaceToken(PlayerCommandBinder.DESCRIPTOR);
+					batch.writeToParcel(data, 0);
+					mBinder.transact(PlayerCommandBinder.TRANSACTION_COMMANDS, data, null, IBinder.FLAG_ONEWAY);
+				} catch (RemoteException e) {
+					// the player process died - it is restarted with its session, the commands are lost
+					Log.e(this.getClass().getSimpleName(), "flush : dropping " + batch, e);
+				} finally {
+					data.recycle();
+				}
+			}
+		}
+	}
+
+	private void enqueue(int op, long arg) {
+		synchronized (mLock) {
+			if (!mQueue.add(op, arg)) {
+				mQueue.endBatch();
+				flush();
+				mQueue.add(op, arg);
+			}
+			if (!mFlushPosted) {
+				mFlushPosted = true;
+				mHandler.post(mFlushRunnable);
+			}
+		}
+	}
+
+	private PlayerStatusRegion mapStatusRegion(IBinder service) {
+		Parcel data = Parcel.obtain();
+		Parcel reply = Parcel.obtain();
+		ParcelFileDescriptor descriptor = null;
+		try {
+			data.writeInterfaceToken(PlayerCommandBinder.DESCRIPTOR);
+			service.transact(PlayerCommandBinder.TRANSACTION_GET_STATUS_REGION, data, reply, 0);
+			reply.readException();
+			if (reply.readInt() == 0) {
+				return null;
+			}
+			descriptor = reply.readFileDescriptor();
+			FileInputStream input = new FileInputStream(descriptor.getFileDescriptor());
+			// the mapping outlives the descriptor
+			return new PlayerStatusRegion(input.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+					PlayerStatusRegion.SIZE));
+		} catch (RemoteException | IOException e) {
+			Log.e(this.getClass().getSimpleName(), "mapStatusRegion : status is not available", e);
+			return null;
+		} finally {
+			data.recycle();
+			reply.recycle();
+			if (descriptor != null) {
+				try {
+					descriptor.close();
+				} catch (IOException e) {
+					// nothing left to do with it
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,208 @@
+package com.doyley.backgroundvideo.service;
+
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.doyley.backgroundvideo.player.VideoPlayer;
+import com.doyley.backgroundvideo.remote.VideoCommandBatch;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+
+/**
+ * {@link VideoService} running in a process of its own, away from the garbage collections and allocations
+ * of the UI, so audio output is not held up by them.
+ *
+ * Clients talk to it through {@link PlayerProcessClient} - commands are sent as one-way batches and
+ * the playback status is read from a shared memory region the service keeps up to date. Videos are
+ * loaded with the same intents as the in-process service. {@link VideoService.LocalBinder} stays the
+ * way to use the player from within the app process.
+ *
+ * Both services can run at the same time, so this one keeps its state - position journal, session snapshot,
+ * downloads, preferences - apart from the in-process one : its files dir is a directory of the app's files
+ * dir, and its preferences names are prefixed. Each process is then the only one writing its files.
+ */
+public class PlayerProcessService extends VideoService {
+
+	private static final String STATUS_REGION_NAME = "player.status";
+	private static final String FILES_DIR_NAME = "player";
+	private static final String PREFERENCES_PREFIX = "player_";
+	private static final long STATUS_UPDATE_INTERVAL_MS = 200;
+
+	private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+	private PlayerCommandBinder mCommandBinder;
+	private File mStatusFile;
+	private RandomAccessFile mStatusRandomAccessFile;
+	private PlayerStatusRegion mStatusRegion;
+	private File mFilesDir;
+
+	// only touched on the main thread
+	private final CallLatencyStats mLatencyStats = new CallLatencyStats();
+	private boolean mStatusUpdatesPosted;
+	private VideoPlayer.VideoPlaybackState mWrittenState;
+	private boolean mWrittenPlaying;
+	private long mWrittenPositionMs;
+	private long mWrittenBufferedPositionMs;
+	private long mWrittenDurationMs;
+
+	private final Runnable mStatusRunnable = new Runnable() {
+		@Override
+		public void run() {
+			mStatusUpdatesPosted = false;
+			writeStatus();
+		}
+	};
+
+	@Override
+	public void onCreate() {
+		super.onCreate();
+		mCommandBinder = new PlayerCommandBinder(this, mMainHandler);
+		mStatusFile = new File(getCacheDir(), STATUS_REGION_NAME);
+		try {
+			mStatusRandomAccessFile = new RandomAccessFile(mStatusFile, "rw");
+			mStatusRandomAccessFile.setLength(PlayerStatusRegion.SIZE);
+			mStatusRegion = new PlayerStatusRegion(mStatusRandomAccessFile.getChannel().map(
+					FileChannel.MapMode.READ_WRITE, 0, PlayerStatusRegion.SIZE));
+			mStatusRegion.initialize();
+			writeStatus();
+		} catch (IOException e) {
+			// clients fall back to asking for nothing - commands still work
+			Log.e(this.getClass().getSimpleName(), "onCreate : unable to map status region", e);
+			closeStatusRegion();
+		}
+	}
+
+	@Override
+	public IBinder onBind(Intent intent) {
+		return mCommandBinder;
+	}
+
+	@Override
+	public void onDestroy() {
+		Log.d(this.getClass().getSimpleName(), "onDestroy : " + mLatencyStats.getDebugString());
+		super.onDestroy();
+		writeStatus();
+		closeStatusRegion();
+		mMainHandler.removeCallbacks(mStatusRunnable);
+	}
+
+	@Override
+	public synchronized File getFilesDir() {
+		if (mFilesDir == null) {
+			File filesDir = new File(super.getFilesDir(), FILES_DIR_NAME);
+			if (!filesDir.isDirectory() && !filesDir.mkdirs()) {
+				Log.e(this.getClass().getSimpleName(), "getFilesDir : unable to create " + filesDir);
+			}
+			mFilesDir = filesDir;
+		}
+		return mFilesDir;
+	}
+
+	@Override
+	public SharedPreferences getSharedPreferences(String name, int mode) {
+		return super.getSharedPreferences(PREFERENCES_PREFIX + name, mode);
+	}
+
+	@Override
+	public boolean onMediaPlaybackInfo(VideoPlayer.VideoPlaybackState playbackState) {
+		boolean handled = super.onMediaPlaybackInfo(playbackState);
+		writeStatus();
+		return handled;
+	}
+
+	@Override
+	public void start() {
+		super.start();
+		writeStatus();
+	}
+
+	@Override
+	public void pause() {
+		super.pause();
+		writeStatus();
+	}
+
+	/** returns a read only descriptor of the status region, or null if there is none */
+	ParcelFileDescriptor openStatusRegion() {
+		if (mStatusRegion == null) {
+			return null;
+		}
+		try {
+			return ParcelFileDescriptor.open(mStatusFile, ParcelFileDescriptor.MODE_READ_ONLY);
+		} catch (IOException e) {
+			Log.e(this.getClass().getSimpleName(), "openStatusRegion : unable to open status region", e);
+			return null;
+		}
+	}
+
+	/** runs on the main thread, after each batch */
+	void onCommandBatchApplied(VideoCommandBatch batch, int rejectedCount) {
+		long transitUs = (batch.getReceivedAtNs() - batch.getSentAtNs()) / 1000;
+		long latencyUs = (SystemClock.elapsedRealtimeNanos() - batch.getSentAtNs()) / 1000;
+		mLatencyStats.onBatchApplied(batch.size(), rejectedCount, transitUs, latencyUs);
+		if (rejectedCount > 0) {
+			Log.w(this.getClass().getSimpleName(), "onCommandBatchApplied : " + rejectedCount
+					+ " unknown commands in " + batch);
+		}
+		if (mStatusRegion != null) {
+			mStatusRegion.writeCounters(mLatencyStats.getCallCount(), mLatencyStats.getCommandCount(),
+					mLatencyStats.getRejectedCount(), mLatencyStats.getMaxBatchSize(), batch.getBatchId(), latencyUs);
+		}
+		writeStatus();
+	}
+
+	/**
+	 * runs on the main thread - writes the status if it changed, and keeps updating it while the position or the
+	 * buffered position move on their own : while playing, preparing or buffering
+	 */
+	private void writeStatus() {
+		if (mStatusRegion == null) {
+			return;
+		}
+		VideoPlayer.VideoPlaybackState state = getCurrentState();
+		boolean playing = isPlaying();
+		long positionMs = getCurrentPosition();
+		long durationMs = getDuration();
+		long bufferedPositionMs = durationMs * getBufferPercentage() / 100;
+		if (state != mWrittenState || playing != mWrittenPlaying || positionMs != mWrittenPositionMs
+				|| bufferedPositionMs != mWrittenBufferedPositionMs || durationMs != mWrittenDurationMs) {
+			mStatusRegion.write(state, playing, positionMs, bufferedPositionMs, durationMs,
+					SystemClock.elapsedRealtime());
+			mWrittenState = state;
+			mWrittenPlaying = playing;
+			mWrittenPositionMs = positionMs;
+			mWrittenBufferedPositionMs = bufferedPositionMs;
+			mWrittenDurationMs = durationMs;
+		}
+		boolean moving = playing || state == VideoPlayer.VideoPlaybackState.STATE_PREPARING
+				|| state == VideoPlayer.VideoPlaybackState.STATE_BUFFERING;
+		if (moving && !mStatusUpdatesPosted) {
+			mStatusUpdatesPosted = true;
+			mMainHandler.postDelayed(mStatusRunnable, STATUS_UPDATE_INTERVAL_MS);
+		} else if (!moving && mStatusUpdatesPosted) {
+			mStatusUpdatesPosted = false;
+			mMainHandler.removeCallbacks(mStatusRunnable);
+		}
+	}
+
+	private void closeStatusRegion() {
+		mStatusRegion = null;
+		if (mStatusRandomAccessFile != null) {
+			try {
+				mStatusRandomAccessFile.close();
+			} catch (IOException e) {
+				// nothing left to do with it
+			}
+			mStatusRandomAccessFile = null;
+		}
+	}
+
+}
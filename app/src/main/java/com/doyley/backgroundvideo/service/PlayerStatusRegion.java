@@ -0,0 +1,226 @@
+package com.doyley.backgroundvideo.service;
+
+import com.doyley.backgroundvideo.player.VideoPlayer;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * Playback status shared between the player process and its clients through a memory mapped file, so a client
+ * reads state and position without an IPC round trip.
+ *
+ * There is a single writer - the player process main thread. Readers never block it : the region is guarded by
+ * a sequence number that is odd while a write is in progress, and a read that overlapped a write is retried.
+ * Nothing orders the plain buffer accesses of one process against those of the other - a volatile field only
+ * fences the process it lives in - so the sequence number alone could pass a torn copy. Each write ends with a
+ * checksum of the fields, and a copy is only taken if it matches.
+ *
+ * Layout : magic (int), sequence (int), state (int), playing (int), position, buffered position, duration and
+ * update time in ms (longs), then the command counters, the id of the last batch applied and its latency in us
+ * (longs), then a CRC32 of everything from the state on (int).
+ */
+public class PlayerStatusRegion {
+
+	static final int SIZE = 100;
+
+	private static final int MAGIC = 0x50535452;
+	private static final int MAGIC_OFFSET = 0;
+	private static final int SEQUENCE_OFFSET = 4;
+	private static final int STATE_OFFSET = 8;
+	private static final int PLAYING_OFFSET = 12;
+	private static final int POSITION_OFFSET = 16;
+	private static final int BUFFERED_POSITION_OFFSET = 24;
+	private static final int DURATION_OFFSET = 32;
+	private static final int UPDATED_AT_OFFSET = 40;
+	private static final int BATCH_COUNT_OFFSET = 48;
+	private static final int COMMAND_COUNT_OFFSET = 56;
+	private static final int REJECTED_COUNT_OFFSET = 64;
+	private static final int MAX_BATCH_SIZE_OFFSET = 72;
+	private static final int APPLIED_BATCH_ID_OFFSET = 80;
+	private static final int BATCH_LATENCY_OFFSET = 88;
+	private static final int CHECKSUM_OFFSET = 96;
+	private static final int MAX_READ_ATTEMPTS = 100;
+
+	/** a copy of the region - reused by the reader, so one thread at a time reads into it */
+	public static final class Status {
+
+		private VideoPlayer.VideoPlaybackState mState = VideoPlayer.VideoPlaybackState.STATE_IDLE;
+		private boolean mPlaying;
+		private long mPositionMs;
+		private long mBufferedPositionMs;
+		private long mDurationMs;
+		private long mUpdatedAtMs;
+		private long mBatchCount;
+		private long mCommandCount;
+		private long mRejectedCount;
+		private long mMaxBatchSize;
+		private long mAppliedBatchId = -1;
+		private long mBatchLatencyUs;
+
+		// what the region is copied into before it is checked
+		private final byte[] mCopy = new byte[SIZE];
+		private final ByteBuffer mCopyBuffer = ByteBuffer.wrap(mCopy);
+		private final CRC32 mCrc = new CRC32();
+
+		public VideoPlayer.VideoPlaybackState getState() {
+			return mState;
+		}
+
+		public boolean isPlaying() {
+			return mPlaying;
+		}
+
+		public long getPositionMs() {
+			return mPositionMs;
+		}
+
+		public long getBufferedPositionMs() {
+			return mBufferedPositionMs;
+		}
+
+		public long getDurationMs() {
+			return mDurationMs;
+		}
+
+		/** elapsed realtime of the last change written - the clock is shared by both processes */
+		public long getUpdatedAtMs() {
+			return mUpdatedAtMs;
+		}
+
+		public long getBatchCount() {
+			return mBatchCount;
+		}
+
+		public long getCommandCount() {
+			return mCommandCount;
+		}
+
+		public long getRejectedCount() {
+			return mRejectedCount;
+		}
+
+		public long getMaxBatchSize() {
+			return mMaxBatchSize;
+		}
+
+		/** id of the last batch applied, -1 if there was none */
+		public long getAppliedBatchId() {
+			return mAppliedBatchId;
+		}
+
+		/** from the last batch applied being sent to it being applied */
+		public long getBatchLatencyUs() {
+			return mBatchLatencyUs;
+		}
+
+		@Override
+		public String toString() {
+			return mState + (mPlaying ? " playing " : " ") + mPositionMs + "/" + mDurationMs + "ms, buffered "
+					+ mBufferedPositionMs + "ms, batches = " + mBatchCount + ", commands = " + mCommandCount
+					+ ", rejected = " + mRejectedCount + ", max batch = " + mMaxBatchSize;
+		}
+	}
+
+	private final MappedByteBuffer mBuffer;
+
+	// only touched by the writer
+	private final byte[] mWriteCopy = new byte[SIZE];
+	private final CRC32 mWriteCrc = new CRC32();
+
+	PlayerStatusRegion(MappedByteBuffer buffer) {
+		mBuffer = buffer;
+	}
+
+	/** the writer stamps the region before anyone maps it */
+	void initialize() {
+		mBuffer.putInt(SEQUENCE_OFFSET, 0);
+		mBuffer.putLong(APPLIED_BATCH_ID_OFFSET, -1);
+		mBuffer.putInt(CHECKSUM_OFFSET, checksum(mBuffer, mWriteCopy, mWriteCrc));
+		mBuffer.putInt(MAGIC_OFFSET, MAGIC);
+	}
+
+	void write(VideoPlayer.VideoPlaybackState state, boolean playing, long positionMs, long bufferedPositionMs,
+	           long durationMs, long updatedAtMs) {
+		int sequence = beginWrite();
+		mBuffer.putInt(STATE_OFFSET, state.ordinal());
+		mBuffer.putInt(PLAYING_OFFSET, playing ? 1 : 0);
+		mBuffer.putLong(POSITION_OFFSET, positionMs);
+		mBuffer.putLong(BUFFERED_POSITION_OFFSET, bufferedPositionMs);
+		mBuffer.putLong(DURATION_OFFSET, durationMs);
+		mBuffer.putLong(UPDATED_AT_OFFSET, updatedAtMs);
+		endWrite(sequence);
+	}
+
+	void writeCounters(long batchCount, long commandCount, long rejectedCount, long maxBatchSize,
+	                   long appliedBatchId, long batchLatencyUs) {
+		int sequence = beginWrite();
+		mBuffer.putLong(BATCH_COUNT_OFFSET, batchCount);
+		mBuffer.putLong(COMMAND_COUNT_OFFSET, commandCount);
+		mBuffer.putLong(REJECTED_COUNT_OFFSET, rejectedCount);
+		mBuffer.putLong(MAX_BATCH_SIZE_OFFSET, maxBatchSize);
+		mBuffer.putLong(APPLIED_BATCH_ID_OFFSET, appliedBatchId);
+		mBuffer.putLong(BATCH_LATENCY_OFFSET, batchLatencyUs);
+		endWrite(sequence);
+	}
+
+	/** copies the region into status - returns false if the writer kept it busy, status is then left as it was */
+	public boolean read(Status status) {
+		if (mBuffer.getInt(MAGIC_OFFSET) != MAGIC) {
+			return false;
+		}
+		VideoPlayer.VideoPlaybackState[] states = VideoPlayer.VideoPlaybackState.values();
+		ByteBuffer copy = status.mCopyBuffer;
+		for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt++) {
+			int sequence = mBuffer.getInt(SEQUENCE_OFFSET);
+			if ((sequence & 1) != 0) {
+				Thread.yield();
+				continue;
+			}
+			if (checksum(mBuffer, status.mCopy, status.mCrc) != copy.getInt(CHECKSUM_OFFSET)) {
+				// torn by a write
+				continue;
+			}
+			int state = copy.getInt(STATE_OFFSET);
+			if (state < 0 || state >= states.length) {
+				continue;
+			}
+			status.mState = states[state];
+			status.mPlaying = copy.getInt(PLAYING_OFFSET) != 0;
+			status.mPositionMs = copy.getLong(POSITION_OFFSET);
+			status.mBufferedPositionMs = copy.getLong(BUFFERED_POSITION_OFFSET);
+			status.mDurationMs = copy.getLong(DURATION_OFFSET);
+			status.mUpdatedAtMs = copy.getLong(UPDATED_AT_OFFSET);
+			status.mBatchCount = copy.getLong(BATCH_COUNT_OFFSET);
+			status.mCommandCount = copy.getLong(COMMAND_COUNT_OFFSET);
+			status.mRejectedCount = copy.getLong(REJECTED_COUNT_OFFSET);
+			status.mMaxBatchSize = copy.getLong(MAX_BATCH_SIZE_OFFSET);
+			status.mAppliedBatchId = copy.getLong(APPLIED_BATCH_ID_OFFSET);
+			status.mBatchLatencyUs = copy.getLong(BATCH_LATENCY_OFFSET);
+			return true;
+		}
+		return false;
+	}
+
+	private int beginWrite() {
+		int sequence = mBuffer.getInt(SEQUENCE_OFFSET) + 1;
+		mBuffer.putInt(SEQUENCE_OFFSET, sequence);
+		return sequence;
+	}
+
+	private void endWrite(int sequence) {
+		mBuffer.putInt(CHECKSUM_OFFSET, checksum(mBuffer, mWriteCopy, mWriteCrc));
+		mBuffer.putInt(SEQUENCE_OFFSET, sequence + 1);
+	}
+
+	/** copies the fields and their checksum out of buffer, and returns the checksum of the copied fields */
+	private static int checksum(ByteBuffer buffer, byte[] copy, CRC32 crc) {
+		for (int i = STATE_OFFSET; i < SIZE; i++) {
+			copy[i] = buffer.get(i);
+		}
+		crc.reset();
+		crc.update(copy, STATE_OFFSET, CHECKSUM_OFFSET - STATE_OFFSET);
+		return (int) crc.getValue();
+	}
+
+}
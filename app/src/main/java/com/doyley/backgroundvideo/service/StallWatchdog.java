@@ -0,0 +1,215 @@
+package com.doyley.backgroundvideo.service;
+
+import android.os.Handler;
+
+import com.doyley.backgroundvideo.log.EventLog;
+import com.doyley.backgroundvideo.player.VideoPlayer;
+import com.doyley.backgroundvideo.qoe.LogHistogram;
+import com.google.android.exoplayer.util.Clock;
+import com.google.android.exoplayer.util.SystemClock;
+
+/**
+ * Notices playback that has frozen - the player says it is ready and playing, yet its position does not
+ * move - and works up a ladder of recoveries until it moves again.
+ *
+ * The position is sampled on the background thread. Once it has not moved for the stall threshold, the
+ * first recovery is run, and each time the player is still not moving a threshold after a recovery the
+ * next one is : a seek to where playback stopped, a new sample source on the same player, a new player.
+ * If that does not help either, the stall is given up on. The recoveries themselves run on the main thread.
+ *
+ * Pausing or seeking abandons a stall in progress - the owner of the player calls {@link #reset()}. The time
+ * to recover runs from the last time the position moved until it moves again.
+ */
+public class StallWatchdog {
+
+	public static final long DEFAULT_STALL_THRESHOLD_MS = 4000;
+	private static final long SAMPLE_INTERVAL_MS = 500;
+
+	public static final int RECOVERY_SEEK = 0;
+	public static final int RECOVERY_REINITIALIZE_SOURCE = 1;
+	public static final int RECOVERY_REBUILD_PLAYER = 2;
+	/** every recovery has been tried - the session cannot go on */
+	public static final int RECOVERY_GIVE_UP = 3;
+
+	public interface Recovery {
+
+		/** called on the main thread - positionMs is where playback stopped */
+		public void recover(int level, long positionMs);
+	}
+
+	private final Handler mSampleHandler;
+	private final Handler mRecoveryHandler;
+	private final Recovery mRecovery;
+	private final Clock mClock;
+
+	private VideoPlayer mVideoPlayer;
+	private long mStallThresholdMs = DEFAULT_STALL_THRESHOLD_MS;
+
+	private long mLastPositionMs = -1;
+	private long mLastMoveMs;
+	private long mStallStartMs = -1;
+	private long mStallPositionMs;
+	private long mLastRecoveryMs;
+	private int mNextLevel;
+
+	private int mStallCount;
+	private int mRecoveredCount;
+	private int mGivenUpCount;
+	private final int[] mRecoveryCounts = new int[RECOVERY_GIVE_UP];
+	private final int[] mRecoveredByLevel = new int[RECOVERY_GIVE_UP];
+	private final LogHistogram mTimeToRecoverMs = new LogHistogram();
+
+	private final Runnable mSampleRunnable = new Runnable() {
+		@Override
+		public void run() {
+			sample();
+		}
+	};
+
+	/** sampleHandler is where the position is sampled, recoveryHandler where the recoveries run */
+	public StallWatchdog(Handler sampleHandler, Handler recoveryHandler, Recovery recovery) {
+		this(sampleHandler, recoveryHandler, recovery, new SystemClock());
+	}
+
+	public StallWatchdog(Handler sampleHandler, Handler recoveryHandler, Recovery recovery, Clock clock) {
+		mSampleHandler = sampleHandler;
+		mRecoveryHandler = recoveryHandler;
+		mRecovery = recovery;
+		mClock = clock;
+	}
+
+	/** starts watching the player - its position must be safe to read from the sample handler's thread */
+	public synchronized void setVideoPlayer(VideoPlayer videoPlayer) {
+		mVideoPlayer = videoPlayer;
+		reset();
+		mSampleHandler.removeCallbacks(mSampleRunnable);
+		if (videoPlayer != null) {
+			mSampleHandler.postDelayed(mSampleRunnable, SAMPLE_INTERVAL_MS);
+		}
+	}
+
+	public synchronized void setStallThresholdMs(long stallThresholdMs) {
+		mStallThresholdMs = stallThresholdMs;
+	}
+
+	/** forgets where playback was and abandons a stall in progress - for pauses and seeks */
+	public synchronized void reset() {
+		mLastPositionMs = -1;
+		mStallStartMs = -1;
+		mNextLevel = 0;
+	}
+
+	public synchronized void stop() {
+		setVideoPlayer(null);
+	}
+
+	public synchronized int getStallCount() {
+		return mStallCount;
+	}
+
+	public synchronized int getRecoveredCount() {
+		return mRecoveredCount;
+	}
+
+	public synchronized int getGivenUpCount() {
+		return mGivenUpCount;
+	}
+
+	/** how many times the given recovery has been run */
+	public synchronized int getRecoveryCount(int level) {
+		return mRecoveryCounts[level];
+	}
+
+	/** time from the last move of the position until it moved again, for every stall recovered from */
+	public synchronized LogHistogram getTimeToRecoverMs() {
+		LogHistogram copy = new LogHistogram();
+		copy.merge(mTimeToRecoverMs);
+		return copy;
+	}
+
+	public synchronized String getDebugString() {
+		return "stalls = " + mStallCount + ", recovered = " + mRecoveredCount
+				+ " (seek " + mRecoveredByLevel[RECOVERY_SEEK]
+				+ ", source " + mRecoveredByLevel[RECOVERY_REINITIALIZE_SOURCE]
+				+ ", player " + mRecoveredByLevel[RECOVERY_REBUILD_PLAYER]
+				+ "), given up = " + mGivenUpCount + ", time to recover ms : " + mTimeToRecoverMs;
+	}
+
+	/** runs on the sample handler - package visible so tests can drive it */
+	synchronized void sample() {
+		if (mVideoPlayer == null) {
+			return;
+		}
+		mSampleHandler.postDelayed(mSampleRunnable, SAMPLE_INTERVAL_MS);
+		long nowMs = mClock.elapsedRealtime();
+		long positionMs = mVideoPlayer.getPlayingPosition();
+		if (positionMs == -1) {
+			// not meant to be moving - unless a recovery is still bringing it back
+			mLastPositionMs = -1;
+			if (mStallStartMs == -1) {
+				return;
+			}
+		} else if (positionMs != mLastPositionMs) {
+			boolean moved = mLastPositionMs != -1;
+			mLastPositionMs = positionMs;
+			mLastMoveMs = nowMs;
+			if (moved && mStallStartMs != -1) {
+				onRecovered(nowMs);
+			}
+			if (moved || mStallStartMs == -1) {
+				return;
+			}
+		}
+
+		if (mStallStartMs == -1) {
+			if (nowMs - mLastMoveMs >= mStallThresholdMs) {
+				mStallStartMs = mLastMoveMs;
+				mStallPositionMs = mLastPositionMs;
+				mStallCount++;
+				if (EventLog.ENABLED) {
+					EventLog.log(EventLog.STALL_DETECTED, mStallPositionMs, nowMs - mStallStartMs);
+				}
+				runRecovery(nowMs);
+			}
+		} else if (nowMs - mLastRecoveryMs >= mStallThresholdMs) {
+			runRecovery(nowMs);
+		}
+	}
+
+	private void runRecovery(long nowMs) {
+		final int level = mNextLevel++;
+		final long positionMs = mStallPositionMs;
+		mLastRecoveryMs = nowMs;
+		// the recovery moves the player on its own - only a move after it counts
+		mLastPositionMs = -1;
+		if (EventLog.ENABLED) {
+			EventLog.log(EventLog.STALL_RECOVERY, level, positionMs);
+		}
+		if (level == RECOVERY_GIVE_UP) {
+			mGivenUpCount++;
+			mStallStartMs = -1;
+			mNextLevel = 0;
+		} else {
+			mRecoveryCounts[level]++;
+		}
+		mRecoveryHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				mRecovery.recover(level, positionMs);
+			}
+		});
+	}
+
+	private void onRecovered(long nowMs) {
+		long timeToRecoverMs = nowMs - mStallStartMs;
+		mTimeToRecoverMs.record(timeToRecoverMs);
+		mRecoveredCount++;
+		mRecoveredByLevel[mNextLevel - 1]++;
+		if (EventLog.ENABLED) {
+			EventLog.log(EventLog.STALL_RECOVERED, timeToRecoverMs, mNextLevel - 1);
+		}
+		mStallStartMs = -1;
+		mNextLevel = 0;
+	}
+
+}
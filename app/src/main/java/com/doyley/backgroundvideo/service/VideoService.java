@@ -9,21 +9,42 @@ import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.Display;
 import android.view.KeyEvent;
 import android.view.Surface;
 
 import com.doyley.backgroundvideo.activity.VideoPlayerActivity;
+import com.doyley.backgroundvideo.audio.LoudnessNormalizer;
+import com.doyley.backgroundvideo.dash.DashSampleSourceBuilder;
+import com.doyley.backgroundvideo.download.Download;
+import com.doyley.backgroundvideo.download.DownloadManager;
+import com.doyley.backgroundvideo.hls.HlsSampleSourceBuilder;
+import com.doyley.backgroundvideo.log.EventLog;
+import com.doyley.backgroundvideo.log.PlaybackTrace;
 import com.doyley.backgroundvideo.model.VideoMetadata;
+import com.doyley.backgroundvideo.persist.LoudnessCache;
+import com.doyley.backgroundvideo.persist.PositionJournal;
+import com.doyley.backgroundvideo.persist.SessionSnapshot;
 import com.doyley.backgroundvideo.player.VideoExoPlayerImpl;
 import com.doyley.backgroundvideo.player.VideoPlayer;
 import com.doyley.backgroundvideo.player.VideoPlayerListener;
+import com.doyley.backgroundvideo.qoe.QoeCollector;
+import com.doyley.backgroundvideo.qoe.QoeSummary;
+import com.doyley.backgroundvideo.source.InputSource;
+import com.doyley.backgroundvideo.source.InputSourceFactory;
+import com.doyley.backgroundvideo.source.ReadAheadInputSource;
+import com.doyley.backgroundvideo.text.SubtitleFile;
+import com.doyley.backgroundvideo.upstream.IoScheduler;
 import com.doyley.backgroundvideo.view.MediaController;
 import com.google.android.exoplayer.VideoSurfaceView;
 
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -41,10 +62,39 @@ public class VideoService extends Service implements MediaController.MediaPlayer
 	public static final String ACTION_LOAD_VIDEO = VIDEO_SERVICE_URI + ".action.player.LOAD_VIDEO";
 	public static final String ACTION_START_VIDEO = VIDEO_SERVICE_URI + ".action.player.START_VIDEO";
 	public static final String ACTION_DISCARD_VIDEO = VIDEO_SERVICE_URI + ".action.player.DISCARD_VIDEO";
+	public static final String ACTION_DOWNLOAD_VIDEO = VIDEO_SERVICE_URI + ".action.player.DOWNLOAD_VIDEO";
+	public static final String ACTION_CANCEL_DOWNLOAD = VIDEO_SERVICE_URI + ".action.player.CANCEL_DOWNLOAD";
+	/** starts recording a playback trace, dropping what was recorded before */
+	public static final String ACTION_START_TRACE = VIDEO_SERVICE_URI + ".action.trace.START";
+	/** stops tracing and writes the trace to EXTRA_TRACE_FILE, or to the app's files if it is not set */
+	public static final String ACTION_EXPORT_TRACE = VIDEO_SERVICE_URI + ".action.trace.EXPORT";
+	/** sets the playback speed to EXTRA_PLAYBACK_SPEED, for this video and the ones after it */
+	public static final String ACTION_SET_PLAYBACK_SPEED = VIDEO_SERVICE_URI + ".action.player.SET_PLAYBACK_SPEED";
+	/** switches the current video to the audio track at EXTRA_AUDIO_TRACK */
+	public static final String ACTION_SELECT_AUDIO_TRACK = VIDEO_SERVICE_URI + ".action.player.SELECT_AUDIO_TRACK";
 	public static final String ACTION_RESUME_VIEWING_VIDEO = VIDEO_SERVICE_URI + ".action.player.ACTION_RESUME_VIEWING_VIDEO";
 
 	public static final String EXTRA_WITH_ACTIVITY = "EXTRA_WITH_ACTIVITY";
 	public static final String EXTRA_VIDEO_METADATA = "EXTRA_VIDEO_METADATA";
+	public static final String EXTRA_SAMPLE_EXTRACTOR = "EXTRA_SAMPLE_EXTRACTOR";
+	public static final String EXTRA_BACKGROUND_IDLE_TIMEOUT_MS = "EXTRA_BACKGROUND_IDLE_TIMEOUT_MS";
+	public static final String EXTRA_WARM_VIDEO = "EXTRA_WARM_VIDEO";
+	public static final String EXTRA_MEMORY_MAPPED_INPUT = "EXTRA_MEMORY_MAPPED_INPUT";
+	public static final String EXTRA_READ_AHEAD_INPUT = "EXTRA_READ_AHEAD_INPUT";
+	public static final String EXTRA_BUFFERED_AUDIO = "EXTRA_BUFFERED_AUDIO";
+	public static final String EXTRA_NORMALIZE_LOUDNESS = "EXTRA_NORMALIZE_LOUDNESS";
+	/** a local SRT or WebVTT file - without one, a file next to a local video with its name is looked for */
+	public static final String EXTRA_SUBTITLE_URI = "EXTRA_SUBTITLE_URI";
+	public static final String EXTRA_TRACE_FILE = "EXTRA_TRACE_FILE";
+	public static final String EXTRA_PLAYBACK_SPEED = "EXTRA_PLAYBACK_SPEED";
+	public static final String EXTRA_AUDIO_TRACK = "EXTRA_AUDIO_TRACK";
+
+	private static final String POSITION_JOURNAL_NAME = "positions.journal";
+	private static final long POSITION_RECORD_INTERVAL_MS = 5000;
+	/** a position found after the video started only moves it if it has not played further than this */
+	private static final long LATE_START_MAX_PLAYED_MS = 3000;
+	private static final String SESSION_SNAPSHOT_NAME = "session.snapshot";
+	private static final String TRACE_FILE_NAME = "playback-trace.json";
 
 	private LocalBinder mLocalBinder = new LocalBinder();
 	private Handler mBackgroundHandler;
@@ -55,10 +105,35 @@ public class VideoService extends Service implements MediaController.MediaPlayer
 	private boolean mStartRequested;
 	private boolean mActivityRequested;
 	private VideoMetadata mMetadata;
+	private int mSampleExtractorType = VideoPlayer.EXTRACTOR_FRAMEWORK;
+	private boolean mWarmVideo;
+	private boolean mMemoryMappedInput;
+	private boolean mReadAheadInput;
+	private boolean mBufferedAudio;
+	private boolean mNormalizeLoudness;
+	private String mSubtitleUri;
+	private float mPlaybackSpeed = 1f;
+	private long mBackgroundIdleTimeoutMs = BackgroundResourceGovernor.DEFAULT_IDLE_TIMEOUT_MS;
+	private BackgroundResourceGovernor mResourceGovernor;
+	private StallWatchdog mStallWatchdog;
+	private PlaybackErrorRecovery mErrorRecovery;
+	private DownloadManager mDownloadManager;
+	private PositionJournal mPositionJournal;
+	private SessionSnapshot mSessionSnapshot;
+	private LoudnessCache mLoudnessCache;
+	// the media the player's loudness normalizer is measuring
+	private String mLoudnessUri;
+	// set while a session restored after the process died is coming back up
+	private long mRestoreStartMs = -1;
+	private long mRestoreLatencyMs = -1;
+	private long mPendingStartPositionMs = -1;
+	// counts loads, so a position looked up for an earlier one is not applied to a later one
+	private int mLoadCount;
+	private final QoeCollector mQoeCollector = new QoeCollector();
 
 	private VideoPlayer mVideoPlayer;
 	private Surface mSurface;
-	private FileInputStream mInputStream;
+	private InputSource mInputSource;
 
 	// Local binder pattern...
 	public class LocalBinder extends Binder {
@@ -87,88 +162,232 @@ public class VideoService extends Service implements MediaController.MediaPlayer
 
 	@Override
 	public boolean onMediaPlaybackInfo(VideoPlayer.VideoPlaybackState playbackState) {
-		Log.d(this.getClass().getSimpleName(), "onMediaPlaybackInfo - state = " + playbackState);
+		if (EventLog.ENABLED) {
+			EventLog.log(EventLog.PLAYBACK_INFO, playbackState.ordinal(), isPlaying() ? 1 : 0);
+		}
+		if (mRestoreStartMs != -1 && playbackState == VideoPlayer.VideoPlaybackState.STATE_READY
+				&& (isPlaying() || mMetadata.isPaused())) {
+			// a paused session is back as soon as it is ready to play
+			mRestoreLatencyMs = SystemClock.elapsedRealtime() - mRestoreStartMs;
+			mRestoreStartMs = -1;
+			if (EventLog.ENABLED) {
+				EventLog.log(EventLog.SESSION_RESTORED, mRestoreLatencyMs);
+			}
+		}
+		if (playbackState == VideoPlayer.VideoPlaybackState.STATE_READY) {
+			mErrorRecovery.onPlaybackReady();
+		}
+		mQoeCollector.onMediaPlaybackInfo(playbackState);
+		PlaybackTrace.begin("dispatch onMediaPlayerInfo");
 		synchronized (mVideoServiceListenersMutex) {
 			for (VideoServiceListener listener : mVideoServiceListeners) {
 				listener.onMediaPlayerInfo(playbackState);
 			}
 		}
+		PlaybackTrace.end("dispatch onMediaPlayerInfo");
 		return true;
 	}
 
 	@Override
 	public void onMediaPlaybackCompleted() {
-		Log.d(this.getClass().getSimpleName(), "onMediaPlaybackCompleted");
+		if (EventLog.ENABLED) {
+			EventLog.log(EventLog.PLAYBACK_COMPLETED);
+		}
+		mQoeCollector.onMediaPlaybackCompleted();
 
+		PlaybackTrace.begin("dispatch onCompletion");
 		synchronized (mVideoServiceListenersMutex) {
 			for (VideoServiceListener listener : mVideoServiceListeners) {
 				listener.onCompletion();
 			}
 		}
+		PlaybackTrace.end("dispatch onCompletion");
 		tearDown();
 	}
 
 	@Override
 	public void onMediaPrepared(final long duration) {
-		Log.d(this.getClass().getSimpleName(), "onMediaPrepared");
+		if (EventLog.ENABLED) {
+			EventLog.log(EventLog.MEDIA_PREPARED, duration);
+		}
 
+		PlaybackTrace.begin("dispatch onPrepared");
 		synchronized (mVideoServiceListenersMutex) {
 			for (VideoServiceListener listener : mVideoServiceListeners) {
 				listener.onPrepared();
 			}
 		}
+		PlaybackTrace.end("dispatch onPrepared");
 
 		// only start if a start has been requested - if not, wait for an intent to start
 		if (mStartRequested) {
-			Log.d(this.getClass().getSimpleName(), " - start requested so try start now");
 			beginVideo();
 		}
 	}
 
 	@Override
 	public void onMediaDrawnToSurface() {
-		Log.d(this.getClass().getSimpleName(), "onMediaDrawnToSurface");
+		if (EventLog.ENABLED) {
+			EventLog.log(EventLog.DRAWN_TO_SURFACE);
+		}
+		mResourceGovernor.onFirstFrameDrawn();
 	}
 
 	public void onAspectRatioChanged() {
-		Log.d(this.getClass().getSimpleName(), "onVideoSizeChanged");
+		if (EventLog.ENABLED) {
+			EventLog.log(EventLog.ASPECT_RATIO_CHANGED);
+		}
 
+		PlaybackTrace.begin("dispatch notifyAspectRatioChange");
 		synchronized (mVideoServiceListenersMutex) {
 			for (VideoServiceListener listener : mVideoServiceListeners) {
 				listener.notifyAspectRatioChange();
 			}
 		}
+		PlaybackTrace.end("dispatch notifyAspectRatioChange");
 
 	}
 
+	@Override
+	public void onMediaText(String text) {
+		synchronized (mVideoServiceListenersMutex) {
+			for (VideoServiceListener listener : mVideoServiceListeners) {
+				listener.onText(text);
+			}
+		}
+	}
+
+	@Override
+	public void onMediaAudioTrackSwitched(int audioTrack, long gapMs) {
+		mQoeCollector.onMediaAudioTrackSwitched(audioTrack, gapMs);
+	}
+
+	@Override
+	public void onMediaDroppedFrames(int count, long elapsedMs) {
+		mQoeCollector.onMediaDroppedFrames(count, elapsedMs);
+	}
+
 	public void onMediaError(Exception e) {
 		Log.e(this.getClass().getSimpleName(), "onMediaError", e);
+		mQoeCollector.onMediaError(e);
+		if (mErrorRecovery.onError(e, isMediaPlayerActive() ? mVideoPlayer.getCurrentPosition() : 0)) {
+			// the session goes on - listeners hear about it through the playback state
+			return;
+		}
+		PlaybackTrace.begin("dispatch onError");
 		synchronized (mVideoServiceListenersMutex) {
 			for (VideoServiceListener listener : mVideoServiceListeners) {
 				listener.onError();
 			}
 		}
+		PlaybackTrace.end("dispatch onError");
 		tearDown();
 	}
 
 	/** END VideoPlayerListener callbacks */
 
+	private final Runnable mRecordPositionRunnable = new Runnable() {
+		@Override
+		public void run() {
+			if (isPlaying()) {
+				recordPosition();
+			}
+			mHandler.postDelayed(this, POSITION_RECORD_INTERVAL_MS);
+		}
+	};
+
+	private final StallWatchdog.Recovery mStallRecovery = new StallWatchdog.Recovery() {
+		@Override
+		public void recover(int level, long positionMs) {
+			if (!isMediaPlayerActive()) {
+				return;
+			}
+			Log.w(VideoService.class.getSimpleName(), "playback stalled at " + positionMs + "ms - recovery " + level);
+			switch (level) {
+				case StallWatchdog.RECOVERY_SEEK:
+					mVideoPlayer.seekTo(positionMs);
+					break;
+				case StallWatchdog.RECOVERY_REINITIALIZE_SOURCE:
+					mVideoPlayer.reinitializeSource(positionMs);
+					break;
+				case StallWatchdog.RECOVERY_REBUILD_PLAYER:
+					mVideoPlayer.rebuild(positionMs);
+					break;
+				default:
+					onMediaError(new IllegalStateException("playback stalled at " + positionMs + "ms"));
+					break;
+			}
+		}
+	};
+
+	private final DownloadManager.Listener mDownloadListener = new DownloadManager.Listener() {
+
+		@Override
+		public void onDownloadProgress(Download download) {
+			if (EventLog.ENABLED) {
+				EventLog.log(EventLog.DOWNLOAD_PROGRESS, download.getDownloadedBytes(), download.getTotalLength());
+			}
+		}
+
+		@Override
+		public void onDownloadCompleted(Download download) {
+			if (EventLog.ENABLED) {
+				EventLog.log(EventLog.DOWNLOAD_COMPLETED, EventLog.intern(download.getUri()));
+			}
+		}
+
+		@Override
+		public void onDownloadFailed(Download download, IOException e) {
+			Log.e(VideoService.class.getSimpleName(), "onDownloadFailed - " + download.getUri(), e);
+		}
+	};
+
 	/** START Service lifecycle methods */
 
 	@Override
 	public void onCreate() {
-		Log.d(this.getClass().getSimpleName(), "onCreate");
+		if (EventLog.ENABLED) {
+			EventLog.log(EventLog.SERVICE_CREATE);
+		}
 		super.onCreate();
 
 		// Background handler for doing media playback stuff - should never be done on main thread
 		HandlerThread handlerThread = new HandlerThread("background");
 		handlerThread.start();
 		mBackgroundHandler = new Handler(handlerThread.getLooper());
+		mResourceGovernor = new BackgroundResourceGovernor(mHandler);
+		mStallWatchdog = new StallWatchdog(mBackgroundHandler, mHandler, mStallRecovery);
+		mErrorRecovery = new PlaybackErrorRecovery(mHandler);
+		mDownloadManager = new DownloadManager(new File(getFilesDir(), "downloads"), IoScheduler.getInstance(),
+				DashSampleSourceBuilder.USER_AGENT, mDownloadListener);
+		mPositionJournal = new PositionJournal(new File(getFilesDir(), POSITION_JOURNAL_NAME));
+		mPositionJournal.open();
+		mSessionSnapshot = new SessionSnapshot(new File(getFilesDir(), SESSION_SNAPSHOT_NAME));
+		mLoudnessCache = new LoudnessCache(getSharedPreferences(LoudnessCache.PREFERENCES_NAME, MODE_PRIVATE));
 	}
 
 	@Override
 	public int onStartCommand(Intent intent, int flags, int startId) {
-		Log.d(this.getClass().getSimpleName(), "onStartCommand - action = " + intent.getAction());
+		PlaybackTrace.begin("onStartCommand", startId);
+		try {
+			return handleStartCommand(intent, startId);
+		} finally {
+			PlaybackTrace.end("onStartCommand");
+		}
+	}
+
+	private int handleStartCommand(Intent intent, int startId) {
+		if (intent == null) {
+			// restarted after the process was killed with a session running
+			if (EventLog.ENABLED) {
+				EventLog.log(EventLog.SERVICE_RESTART, mMetadata == null ? 1 : 0);
+			}
+			restoreSession();
+			return mMetadata != null ? START_STICKY : START_NOT_STICKY;
+		}
+		if (EventLog.ENABLED) {
+			EventLog.log(EventLog.START_COMMAND, EventLog.intern(intent.getAction()), startId);
+		}
 
 		String action = intent.getAction();
 		if (action != null) {
@@ -177,9 +396,8 @@ public class VideoService extends Service implements MediaController.MediaPlayer
 					mActivityRequested = intent.getBooleanExtra(EXTRA_WITH_ACTIVITY, false);
 					mStartRequested = true;
 					if (!isPlayerPrepared()) {
-						Log.d(this.getClass().getSimpleName(), "video is not prepared - call load first");
-						VideoMetadata metadata = intent.getParcelableExtra(EXTRA_VIDEO_METADATA);
-						mMetadata = metadata;
+						// video is not prepared - call load first
+						readLoadOptions(intent);
 						loadVideo();
 					}
 					beginVideo();
@@ -187,8 +405,7 @@ public class VideoService extends Service implements MediaController.MediaPlayer
 				case ACTION_LOAD_VIDEO:
 					mActivityRequested = false;
 					mStartRequested = false;
-					VideoMetadata metadata = intent.getParcelableExtra(EXTRA_VIDEO_METADATA);
-					mMetadata = metadata;
+					readLoadOptions(intent);
 					loadVideo();
 					break;
 				case ACTION_RESUME_VIEWING_VIDEO:
@@ -199,6 +416,21 @@ public class VideoService extends Service implements MediaController.MediaPlayer
 				case ACTION_DISCARD_VIDEO:
 					stop();
 					break;
+				case ACTION_DOWNLOAD_VIDEO:
+					VideoMetadata downloadMetadata = intent.getParcelableExtra(EXTRA_VIDEO_METADATA);
+					mDownloadManager.start(downloadMetadata.getVideoUri());
+					break;
+				case ACTION_CANCEL_DOWNLOAD:
+					VideoMetadata cancelMetadata = intent.getParcelableExtra(EXTRA_VIDEO_METADATA);
+					mDownloadManager.cancel(cancelMetadata.getVideoUri());
+					break;
+				case ACTION_START_TRACE:
+					PlaybackTrace.start();
+					break;
+				case ACTION_EXPORT_TRACE:
+					String traceFile = intent.getStringExtra(EXTRA_TRACE_FILE);
+					exportTrace(traceFile != null ? new File(traceFile) : new File(getFilesDir(), TRACE_FILE_NAME));
+					break;
 				case ACTION_MEDIA_BUTTON:
 					handleCommandMediaButton(intent);
 					break;
@@ -217,10 +449,33 @@ public class VideoService extends Service implements MediaController.MediaPlayer
 				case ACTION_PLAYER_PLAY:
 					start();
 					break;
+				case ACTION_SET_PLAYBACK_SPEED:
+					setPlaybackSpeed(intent.getFloatExtra(EXTRA_PLAYBACK_SPEED, 1f));
+					break;
+				case ACTION_SELECT_AUDIO_TRACK:
+					selectAudioTrack(intent.getIntExtra(EXTRA_AUDIO_TRACK, 0));
+					break;
 			}
 		}
 
-		return START_NOT_STICKY;
+		// while there is a session the system brings the service back if it kills the process
+		return mMetadata != null ? START_STICKY : START_NOT_STICKY;
+	}
+
+	/** the video and how to play it, from the extras of a start or load intent */
+	private void readLoadOptions(Intent intent) {
+		mMetadata = intent.getParcelableExtra(EXTRA_VIDEO_METADATA);
+		mSampleExtractorType = intent.getIntExtra(EXTRA_SAMPLE_EXTRACTOR, VideoPlayer.EXTRACTOR_FRAMEWORK);
+		mWarmVideo = intent.getBooleanExtra(EXTRA_WARM_VIDEO, false);
+		mMemoryMappedInput = intent.getBooleanExtra(EXTRA_MEMORY_MAPPED_INPUT,
+				mSampleExtractorType == VideoPlayer.EXTRACTOR_MP4);
+		mReadAheadInput = intent.getBooleanExtra(EXTRA_READ_AHEAD_INPUT, false);
+		mBufferedAudio = intent.getBooleanExtra(EXTRA_BUFFERED_AUDIO, false);
+		mNormalizeLoudness = intent.getBooleanExtra(EXTRA_NORMALIZE_LOUDNESS, false);
+		mSubtitleUri = intent.getStringExtra(EXTRA_SUBTITLE_URI);
+		mBackgroundIdleTimeoutMs = intent.getLongExtra(EXTRA_BACKGROUND_IDLE_TIMEOUT_MS,
+				BackgroundResourceGovernor.DEFAULT_IDLE_TIMEOUT_MS);
+		mResourceGovernor.setIdleTimeoutMs(mBackgroundIdleTimeoutMs);
 	}
 
 	@Override
@@ -239,9 +494,28 @@ public class VideoService extends Service implements MediaController.MediaPlayer
 		return false;
 	}
 
+	@Override
+	public void onTrimMemory(int level) {
+		if (EventLog.ENABLED) {
+			EventLog.log(EventLog.TRIM_MEMORY, level);
+		}
+		super.onTrimMemory(level);
+		mResourceGovernor.onTrimMemory(level);
+	}
+
 	@Override
 	public void onDestroy() {
-		Log.d(this.getClass().getSimpleName(), "onDestroy");
+		if (EventLog.ENABLED) {
+			EventLog.log(EventLog.SERVICE_DESTROY);
+		}
+		mResourceGovernor.stop();
+		mStallWatchdog.stop();
+		mErrorRecovery.stop();
+		// whatever reached the disk is picked up again by the next download request
+		mDownloadManager.release();
+		mHandler.removeCallbacks(mRecordPositionRunnable);
+		mPositionJournal.close();
+		mSessionSnapshot.close();
 
 		// Just to be sure...
 		if (mVideoPlayer != null) {
@@ -254,26 +528,56 @@ public class VideoService extends Service implements MediaController.MediaPlayer
 		super.onDestroy();
 	}
 
+	@Override
+	protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+		if (EventLog.ENABLED) {
+			EventLog.dump(writer);
+		} else {
+			writer.println("event log is not in this build");
+		}
+		writer.println("QoE : " + getQoeSummary());
+		writer.println("a/v sync : " + mQoeCollector.getAvSyncMonitor().getDebugString());
+		writer.println("stall watchdog : " + mStallWatchdog.getDebugString());
+		writer.println("error recovery : " + mErrorRecovery.getDebugString());
+		String audioSink = mVideoPlayer != null ? mVideoPlayer.getAudioSinkDebugString() : null;
+		if (audioSink != null) {
+			writer.println("audio sink : " + audioSink);
+		}
+		if (isMediaPlayerActive()) {
+			writer.println("audio tracks : " + Arrays.toString(mVideoPlayer.getAudioTracks()) + ", selected = "
+					+ mVideoPlayer.getSelectedAudioTrack());
+		}
+		LoudnessNormalizer normalizer = mVideoPlayer != null ? mVideoPlayer.getLoudnessNormalizer() : null;
+		if (normalizer != null) {
+			writer.println("loudness : " + normalizer.getDebugString());
+		}
+	}
+
 	/** END Service lifecycle methods */
 
 	/** START MediaController implementation */
 
 	@Override
 	public void start() {
-		Log.d(this.getClass().getSimpleName(), "start");
+		if (EventLog.ENABLED) {
+			EventLog.log(EventLog.START, isPlayerPrepared() ? 1 : 0);
+		}
 
 		mStartRequested = true;
 		if (isPlayerPrepared()) {
-			Log.d(this.getClass().getSimpleName(), "- actually starting");
 			mVideoPlayer.start();
 			mStartRequested = false;
+			mQoeCollector.onPlayWhenReadyChanged(true);
 			mMetadata.setPaused(false);
+			recordPosition();
 
+			PlaybackTrace.begin("dispatch onPlaying");
 			synchronized (mVideoServiceListenersMutex) {
 				for (VideoServiceListener listener : mVideoServiceListeners) {
 					listener.onPlaying(true);
 				}
 			}
+			PlaybackTrace.end("dispatch onPlaying");
 		}
 	}
 
@@ -316,20 +620,27 @@ public class VideoService extends Service implements MediaController.MediaPlayer
 	public void pause() {
 		if (isMediaPlayerActive()) {
 			mVideoPlayer.pause();
+			mQoeCollector.onPlayWhenReadyChanged(false);
+			mStallWatchdog.reset();
 
 			mMetadata.setPaused(true);
+			recordPosition();
 
+			PlaybackTrace.begin("dispatch onPlaying");
 			synchronized (mVideoServiceListenersMutex) {
 				for (VideoServiceListener listener : mVideoServiceListeners) {
 					listener.onPlaying(false);
 				}
 			}
+			PlaybackTrace.end("dispatch onPlaying");
 		}
 	}
 
 	@Override
 	public void seekTo(long i) {
 		if (isPlayerPrepared()) {
+			mQoeCollector.onSeekRequested();
+			mStallWatchdog.reset();
 			mVideoPlayer.seekTo(i);
 		}
 	}
@@ -338,12 +649,43 @@ public class VideoService extends Service implements MediaController.MediaPlayer
 	public void prev() {
 		if (isPlayerPrepared()) {
 			// go back to start
+			mQoeCollector.onSeekRequested();
+			mStallWatchdog.reset();
 			mVideoPlayer.seekTo(0);
 		}
 	}
 
+	/** plays faster or slower, keeping the pitch - see {@link VideoPlayer#setPlaybackSpeed(float)} */
+	public void setPlaybackSpeed(float speed) {
+		mPlaybackSpeed = speed;
+		if (mVideoPlayer != null) {
+			mVideoPlayer.setPlaybackSpeed(speed);
+		}
+	}
+
+	public float getPlaybackSpeed() {
+		return mVideoPlayer != null ? mVideoPlayer.getPlaybackSpeed() : mPlaybackSpeed;
+	}
+
+	/** mime types of the audio tracks of the current video - empty until it is prepared */
+	public String[] getAudioTracks() {
+		return isMediaPlayerActive() ? mVideoPlayer.getAudioTracks() : new String[0];
+	}
+
+	public int getSelectedAudioTrack() {
+		return isMediaPlayerActive() ? mVideoPlayer.getSelectedAudioTrack() : 0;
+	}
+
+	/** switches audio track in place - see {@link VideoPlayer#selectAudioTrack(int)} */
+	public void selectAudioTrack(int audioTrack) {
+		if (isMediaPlayerActive()) {
+			mVideoPlayer.selectAudioTrack(audioTrack);
+		}
+	}
+
 	public void stop() {
 		if (isPlayerPrepared()) {
+			recordPosition();
 			mVideoPlayer.stop();
 			onMediaPlaybackCompleted();
 		}
@@ -352,6 +694,7 @@ public class VideoService extends Service implements MediaController.MediaPlayer
 	@Override
 	public void next() {
 		if (isPlayerPrepared()) {
+			recordPosition();
 			mVideoPlayer.stop();
 			onMediaPlaybackCompleted();
 		}
@@ -375,34 +718,97 @@ public class VideoService extends Service implements MediaController.MediaPlayer
 	 *
 	 */
 	private void loadVideo() {
-		Log.d(this.getClass().getSimpleName(), "loadVideo - metadata = " + mMetadata);
-
+		PlaybackTrace.begin("loadVideo");
 		// This is important or else the service might get shut down when we unbind
-		startService(new Intent(this, VideoService.class));
+		startService(new Intent(this, getClass()));
 
 		if (mVideoPlayer == null) {
 			mVideoPlayer = new VideoExoPlayerImpl(this, this, mHandler, mBackgroundHandler);
 		}
-
-		if (mMetadata.getVideoUri().startsWith("http:")) {
-			mVideoPlayer.initialize(mMetadata.getVideoUri());
+		mVideoPlayer.setSampleExtractorType(mSampleExtractorType);
+		mVideoPlayer.setWarmVideoEnabled(mWarmVideo);
+		mVideoPlayer.setPlaybackSpeed(mPlaybackSpeed);
+		mVideoPlayer.setBufferedAudioEnabled(mBufferedAudio);
+		mVideoPlayer.setAvSyncMonitor(mQoeCollector.getAvSyncMonitor());
+		// what was measured of the last media is kept before its normalizer goes
+		saveLoudness();
+		String videoUri = mMetadata.getVideoUri();
+		mVideoPlayer.setLoudnessNormalization(mNormalizeLoudness, mLoudnessCache.getLoudness(videoUri),
+				mLoudnessCache.getDurationMs(videoUri));
+		mLoudnessUri = mNormalizeLoudness ? videoUri : null;
+		String subtitleUri = mSubtitleUri;
+		if (subtitleUri == null) {
+			File sidecar = SubtitleFile.findSidecar(videoUri);
+			subtitleUri = sidecar != null ? sidecar.getPath() : null;
+		}
+		mVideoPlayer.setSubtitleUri(subtitleUri);
+		mResourceGovernor.setVideoPlayer(mVideoPlayer);
+		mStallWatchdog.setVideoPlayer(mVideoPlayer);
+		mErrorRecovery.setVideoPlayer(mVideoPlayer);
+
+		long startPositionMs = mPendingStartPositionMs;
+		mPendingStartPositionMs = -1;
+		mLoadCount++;
+		if (startPositionMs == -1) {
+			if (mPositionJournal.isLoaded()) {
+				startPositionMs = mPositionJournal.getPositionMs(mMetadata.getVideoUri());
+			} else {
+				// the video starts from the beginning, and moves once the journal is in
+				lookUpStartPosition(mMetadata.getVideoUri());
+			}
+		}
+		if (EventLog.ENABLED) {
+			EventLog.log(EventLog.LOAD_VIDEO, EventLog.intern(mMetadata.getVideoUri()), startPositionMs);
+		}
+		mVideoPlayer.setStartPosition(startPositionMs);
+		mQoeCollector.onSessionStarted();
+		// startup time counts from here if playback was asked for along with the load
+		mQoeCollector.onPlayWhenReadyChanged(mStartRequested);
+		mSessionSnapshot.writeSession(mMetadata, new SessionSnapshot.Profile(mSampleExtractorType, mWarmVideo,
+				mMemoryMappedInput, mReadAheadInput, mBufferedAudio, mNormalizeLoudness, mSubtitleUri,
+				mBackgroundIdleTimeoutMs),
+				Math.max(startPositionMs, 0));
+		mHandler.removeCallbacks(mRecordPositionRunnable);
+		mHandler.postDelayed(mRecordPositionRunnable, POSITION_RECORD_INTERVAL_MS);
+
+		if (DashSampleSourceBuilder.isDashManifest(mMetadata.getVideoUri())) {
+			mVideoPlayer.initializeDash(mMetadata.getVideoUri());
+		} else if (HlsSampleSourceBuilder.isHlsPlaylist(mMetadata.getVideoUri())) {
+			mVideoPlayer.initializeHls(mMetadata.getVideoUri());
+		} else if (mMetadata.getVideoUri().startsWith("http:")) {
+			InputSource downloaded = mDownloadManager.getInputSource(mMetadata.getVideoUri());
+			if (downloaded == null) {
+				mVideoPlayer.initialize(mMetadata.getVideoUri());
+			} else {
+				try {
+					downloaded.open();
+					mInputSource = downloaded;
+					mVideoPlayer.initialize(mInputSource);
+				} catch (IOException ex) {
+					Log.e(this.getClass().getSimpleName(), "unable to open download - streaming instead : ", ex);
+					mVideoPlayer.initialize(mMetadata.getVideoUri());
+				}
+			}
 		} else {
 			try {
-				File file = new File(mMetadata.getVideoUri());
-				mInputStream = new FileInputStream(file);
-				mVideoPlayer.initialize(mInputStream.getFD());
+				mInputSource = InputSourceFactory.create(this, mMetadata.getVideoUri(), mMemoryMappedInput);
+				if (mReadAheadInput && mInputSource.getType() != InputSource.TYPE_MAPPED_FILE) {
+					// for slow storage - a mapped file faults its pages in on the reading thread whatever we do
+					mInputSource = new ReadAheadInputSource(mInputSource);
+				}
+				mInputSource.open();
+				mVideoPlayer.initialize(mInputSource);
 			} catch (Exception ex) {
 				Log.e(this.getClass().getSimpleName(), "unable to load file : ", ex);
 				tearDown();
 			}
 
 		}
-
+		PlaybackTrace.end("loadVideo");
 	}
 
 	/** resets the surface aspect ratio - called when the display has changed */
 	public void resetSurfaceAspectRatio() {
-		Log.d(this.getClass().getSimpleName(), "resetSurfaceAspectRatio");
 		mVideoPlayer.resetSurfaceAspectRatio();
 	}
 
@@ -416,10 +822,18 @@ public class VideoService extends Service implements MediaController.MediaPlayer
 
 	/** called to send the video into the foreground or the background */
 	public void setBackgrounded(boolean backgrounded, VideoSurfaceView surfaceView) {
-		Log.d(this.getClass().getSimpleName(), "setBackgrounded : " + backgrounded);
+		if (EventLog.ENABLED) {
+			EventLog.log(EventLog.SET_BACKGROUNDED, backgrounded ? 1 : 0);
+		}
 		if (isMediaPlayerActive()) {
+			if (!backgrounded) {
+				mResourceGovernor.onForegrounded();
+			}
 			mVideoPlayer.setBackgrounded(backgrounded);
 			setForegroundSurface(surfaceView);
+			if (backgrounded) {
+				mResourceGovernor.onBackgrounded();
+			}
 		}
 	}
 
@@ -441,21 +855,26 @@ public class VideoService extends Service implements MediaController.MediaPlayer
 	 */
 	private void beginVideo() {
 
-		Log.d(this.getClass().getSimpleName(), "beginVideo : mActivityRequested = " + mActivityRequested);
+		if (EventLog.ENABLED) {
+			EventLog.log(EventLog.BEGIN_VIDEO, mActivityRequested ? 1 : 0, mStartRequested ? 1 : 0);
+		}
+		PlaybackTrace.begin("beginVideo");
 		if (mStartRequested) {
 			start();
 		}
 		// only start if prepared - if not prepared the prepared method will call this method when both
 		// prepared and a start has been requested.
 		if (mActivityRequested && isPlayerPrepared()) {
-			Log.d(this.getClass().getSimpleName(), " - starting activity");
 			startVideoActivity(mMetadata.getTitle());
 			mActivityRequested = false;
 		}
+		PlaybackTrace.end("beginVideo");
 	}
 
 	private void startVideoActivity(String videoTitle) {
-		Log.d(this.getClass().getSimpleName(), "startVideoActivity");
+		if (EventLog.ENABLED) {
+			EventLog.log(EventLog.START_ACTIVITY);
+		}
 		Intent intent = new Intent(this, VideoPlayerActivity.class);
 		intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
 		intent.putExtra(VideoPlayerActivity.EXTRA_TITLE, videoTitle);
@@ -490,31 +909,54 @@ public class VideoService extends Service implements MediaController.MediaPlayer
 	 * Tell existing MediaPlayer which Surface to use
 	 */
 	private void setForegroundSurface(final VideoSurfaceView surfaceView) {
-		Log.d(this.getClass().getSimpleName(), "setForegroundSurface : " + surfaceView);
+		if (EventLog.ENABLED) {
+			EventLog.log(EventLog.SET_SURFACE, surfaceView != null ? 1 : 0);
+		}
 
+		PlaybackTrace.begin("setForegroundSurface", surfaceView != null ? 1 : 0);
 		mSurface = surfaceView != null ? surfaceView.getHolder().getSurface() : null;
 
 		if (isMediaPlayerActive()) {
 			mVideoPlayer.attachSurface(surfaceView);
 		}
+		PlaybackTrace.end("setForegroundSurface");
 	}
 
 	private void tearDown() {
-		Log.d(this.getClass().getSimpleName(), "tearDown");
+		if (EventLog.ENABLED) {
+			EventLog.log(EventLog.TEAR_DOWN);
+		}
 
-		if (mInputStream != null) {
+		mHandler.removeCallbacks(mRecordPositionRunnable);
+		recordPosition();
+		saveLoudness();
+		// the session is over - there is nothing to bring back
+		mSessionSnapshot.clear();
+		mRestoreStartMs = -1;
+		QoeSummary session = mQoeCollector.onSessionEnded();
+		if (session != null) {
+			Log.d(this.getClass().getSimpleName(), "session QoE (" + session.toByteArray().length + " bytes) : "
+					+ session);
+		}
+
+		if (mInputSource != null) {
+			Log.d(this.getClass().getSimpleName(), "input source counters : "
+					+ mInputSource.getCounters().getDebugString());
 			try {
-				mInputStream.close();
+				mInputSource.close();
 			} catch (Exception ex) {
 				// not much we can do - already tearing down
-				Log.e(this.getClass().getSimpleName(), "problem closing inputstream : ", ex);
+				Log.e(this.getClass().getSimpleName(), "problem closing input source : ", ex);
 			}
-			mInputStream = null;
+			mInputSource = null;
 		}
 		synchronized (mVideoServiceListenersMutex) {
 			mVideoServiceListeners.clear();
 		}
 
+		mResourceGovernor.stop();
+		mStallWatchdog.stop();
+		mErrorRecovery.stop();
 		if (mVideoPlayer != null) {
 			mVideoPlayer.tearDown();
 			mVideoPlayer = null;
@@ -525,6 +967,109 @@ public class VideoService extends Service implements MediaController.MediaPlayer
 
 	}
 
+	/** finds where the video was left once the position journal is loaded, and moves it there */
+	private void lookUpStartPosition(String videoUri) {
+		final int loadCount = mLoadCount;
+		mPositionJournal.getPositionMs(videoUri, mHandler, new PositionJournal.PositionCallback() {
+			@Override
+			public void onPosition(String uri, long positionMs) {
+				if (loadCount != mLoadCount || positionMs <= 0 || mMetadata == null || !isMediaPlayerActive()
+						|| mVideoPlayer.getCurrentPosition() > LATE_START_MAX_PLAYED_MS) {
+					// another video, nothing recorded, or the user has moved on already
+					return;
+				}
+				if (EventLog.ENABLED) {
+					EventLog.log(EventLog.LOAD_VIDEO, EventLog.intern(uri), positionMs);
+				}
+				mVideoPlayer.setLateStartPosition(positionMs);
+				mSessionSnapshot.writeState(positionMs, mMetadata.isPaused());
+			}
+		});
+	}
+
+	/** remembers where the current video is - a video played to the end is forgotten so it starts over */
+	private void recordPosition() {
+		if (mMetadata == null || !isMediaPlayerActive()) {
+			return;
+		}
+		if (mVideoPlayer.getPlaybackState() == VideoPlayer.VideoPlaybackState.STATE_ENDED) {
+			mPositionJournal.remove(mMetadata.getVideoUri());
+			return;
+		}
+		long positionMs = mVideoPlayer.getCurrentPosition();
+		if (positionMs > 0) {
+			mPositionJournal.record(mMetadata.getVideoUri(), positionMs);
+			mSessionSnapshot.writeState(positionMs, mMetadata.isPaused());
+		}
+	}
+
+	/** keeps the loudness measured of the media the normalizer was on, for the next time it is played */
+	private void saveLoudness() {
+		LoudnessNormalizer normalizer = mVideoPlayer != null ? mVideoPlayer.getLoudnessNormalizer() : null;
+		if (normalizer != null && mLoudnessUri != null) {
+			mLoudnessCache.put(mLoudnessUri, normalizer.getLoudness(), normalizer.getLoudnessDurationMs());
+		}
+		mLoudnessUri = null;
+	}
+
+	/** rebuilds the session saved before the process died and prepares it at the saved position */
+	private void restoreSession() {
+		if (mMetadata != null) {
+			return;
+		}
+		long restoreStartMs = SystemClock.elapsedRealtime();
+		SessionSnapshot.Session session = mSessionSnapshot.read();
+		if (session == null) {
+			stopSelf();
+			return;
+		}
+		if (EventLog.ENABLED) {
+			EventLog.log(EventLog.RESTORE_SESSION, EventLog.intern(session.getMetadata().getVideoUri()), session.getPositionMs());
+		}
+		SessionSnapshot.Profile profile = session.getProfile();
+		mMetadata = session.getMetadata();
+		mSampleExtractorType = profile.getSampleExtractorType();
+		mWarmVideo = profile.isWarmVideo();
+		mMemoryMappedInput = profile.isMemoryMappedInput();
+		mReadAheadInput = profile.isReadAheadInput();
+		mBufferedAudio = profile.isBufferedAudio();
+		mNormalizeLoudness = profile.isNormalizeLoudness();
+		mSubtitleUri = profile.getSubtitleUri();
+		mBackgroundIdleTimeoutMs = profile.getBackgroundIdleTimeoutMs();
+		mResourceGovernor.setIdleTimeoutMs(mBackgroundIdleTimeoutMs);
+		mActivityRequested = false;
+		mStartRequested = !session.isPaused();
+		mPendingStartPositionMs = session.getPositionMs();
+		mRestoreStartMs = restoreStartMs;
+		loadVideo();
+	}
+
+	/** how long the last restored session took from the restart until it was audible, or -1 */
+	public long getRestoreLatencyMs() {
+		return mRestoreLatencyMs;
+	}
+
+	/** playback quality of every session played since the process started - see {@link QoeSummary#toByteArray()} */
+	public QoeSummary getQoeSummary() {
+		return mQoeCollector.getCumulativeSummary();
+	}
+
+	/** stops tracing and writes the trace out on the background thread */
+	private void exportTrace(final File file) {
+		PlaybackTrace.stop();
+		mBackgroundHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					int count = PlaybackTrace.export(file);
+					Log.i(VideoService.class.getSimpleName(), "exportTrace : " + count + " events to " + file);
+				} catch (IOException e) {
+					Log.e(VideoService.class.getSimpleName(), "exportTrace : unable to write " + file, e);
+				}
+			}
+		});
+	}
+
 	private void quitLooperSafely(Handler handler) {
 		handler.getLooper().quitSafely();
 	}
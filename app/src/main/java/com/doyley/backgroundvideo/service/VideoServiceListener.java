@@ -15,4 +15,7 @@ public interface VideoServiceListener {
 	void onError();
 
 	void notifyAspectRatioChange();
+
+	/** subtitle text to show over the video, null to show none */
+	void onText(String text);
 }
@@ -0,0 +1,41 @@
+package com.doyley.backgroundvideo.source;
+
+import android.content.res.AssetFileDescriptor;
+
+import java.io.IOException;
+
+/**
+ * Base for inputs that come as an {@link AssetFileDescriptor} - a descriptor with the media somewhere
+ * inside it.
+ */
+abstract class AssetFileInputSource extends DescriptorInputSource {
+
+	private AssetFileDescriptor mAssetFileDescriptor;
+
+	protected AssetFileInputSource(int type, int readAheadSize) {
+		super(type, readAheadSize);
+	}
+
+	protected abstract AssetFileDescriptor openAssetFileDescriptor() throws IOException;
+
+	@Override
+	public void open() throws IOException {
+		mAssetFileDescriptor = openAssetFileDescriptor();
+		if (mAssetFileDescriptor == null) {
+			throw new IOException("no file descriptor for " + this);
+		}
+		long length = mAssetFileDescriptor.getLength();
+		setDescriptor(mAssetFileDescriptor.getFileDescriptor(), mAssetFileDescriptor.getStartOffset(),
+				length == AssetFileDescriptor.UNKNOWN_LENGTH ? -1 : length);
+	}
+
+	@Override
+	public void close() throws IOException {
+		super.close();
+		if (mAssetFileDescriptor != null) {
+			mAssetFileDescriptor.close();
+			mAssetFileDescriptor = null;
+		}
+	}
+
+}
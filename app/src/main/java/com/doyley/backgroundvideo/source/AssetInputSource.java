@@ -0,0 +1,35 @@
+package com.doyley.backgroundvideo.source;
+
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+
+import java.io.IOException;
+
+/**
+ * A file in the apk's assets. It must be stored uncompressed, or there is no descriptor to hand out.
+ */
+public class AssetInputSource extends AssetFileInputSource {
+
+	/** assets are small and already in the page cache more often than not */
+	public static final int READ_AHEAD_SIZE = 128 * 1024;
+
+	private final AssetManager mAssetManager;
+	private final String mPath;
+
+	public AssetInputSource(AssetManager assetManager, String path) {
+		super(TYPE_ASSET, READ_AHEAD_SIZE);
+		mAssetManager = assetManager;
+		mPath = path;
+	}
+
+	@Override
+	protected AssetFileDescriptor openAssetFileDescriptor() throws IOException {
+		return mAssetManager.openFd(mPath);
+	}
+
+	@Override
+	public String toString() {
+		return "asset " + mPath;
+	}
+
+}
@@ -0,0 +1,35 @@
+package com.doyley.backgroundvideo.source;
+
+import android.content.ContentResolver;
+import android.content.res.AssetFileDescriptor;
+import android.net.Uri;
+
+import java.io.FileNotFoundException;
+
+/**
+ * A content:// uri, read through the file descriptor its provider hands out.
+ */
+public class ContentInputSource extends AssetFileInputSource {
+
+	public static final int READ_AHEAD_SIZE = 512 * 1024;
+
+	private final ContentResolver mContentResolver;
+	private final Uri mUri;
+
+	public ContentInputSource(ContentResolver contentResolver, Uri uri) {
+		super(TYPE_CONTENT, READ_AHEAD_SIZE);
+		mContentResolver = contentResolver;
+		mUri = uri;
+	}
+
+	@Override
+	protected AssetFileDescriptor openAssetFileDescriptor() throws FileNotFoundException {
+		return mContentResolver.openAssetFileDescriptor(mUri, "r");
+	}
+
+	@Override
+	public String toString() {
+		return mUri.toString();
+	}
+
+}
@@ -0,0 +1,109 @@
+package com.doyley.backgroundvideo.source;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Base for inputs backed by a file descriptor - reads go through a {@link FileChannel} at an absolute
+ * position, so readers on different threads never disturb each other's file position.
+ */
+abstract class DescriptorInputSource implements InputSource {
+
+	private final int mType;
+	private final int mReadAheadSize;
+	private final InputSourceCounters mCounters = new InputSourceCounters();
+
+	private FileDescriptor mFileDescriptor;
+	private FileChannel mChannel;
+	private long mStartOffset;
+	private long mLength;
+
+	protected DescriptorInputSource(int type, int readAheadSize) {
+		mType = type;
+		mReadAheadSize = readAheadSize;
+	}
+
+	/**
+	 * called by subclasses from {@link #open()} once they have a descriptor. length may be negative if it
+	 * is not known, in which case everything from the start offset to the end of the file is used
+	 */
+	protected final void setDescriptor(FileDescriptor fileDescriptor, long startOffset, long length)
+			throws IOException {
+		mFileDescriptor = fileDescriptor;
+		mChannel = new FileInputStream(fileDescriptor).getChannel();
+		mStartOffset = startOffset;
+		mLength = length >= 0 ? length : mChannel.size() - startOffset;
+	}
+
+	protected final FileChannel getChannel() {
+		return mChannel;
+	}
+
+	@Override
+	public int getType() {
+		return mType;
+	}
+
+	@Override
+	public FileDescriptor getFileDescriptor() {
+		return mFileDescriptor;
+	}
+
+	@Override
+	public long getStartOffset() {
+		return mStartOffset;
+	}
+
+	@Override
+	public long getLength() {
+		return mLength;
+	}
+
+	@Override
+	public int read(ByteBuffer target, long position) throws IOException {
+		if (position >= mLength) {
+			return -1;
+		}
+		long startNs = System.nanoTime();
+		int limit = target.limit();
+		long remaining = mLength - position;
+		if (target.remaining() > remaining) {
+			// never read past the media into whatever follows it in the descriptor
+			target.limit(target.position() + (int) remaining);
+		}
+		int read;
+		try {
+			read = mChannel.read(target, mStartOffset + position);
+		} finally {
+			target.limit(limit);
+		}
+		mCounters.onRead(read, System.nanoTime() - startNs);
+		return read;
+	}
+
+	@Override
+	public ByteBuffer getMappedBuffer() {
+		return null;
+	}
+
+	@Override
+	public int getReadAheadSize() {
+		return mReadAheadSize;
+	}
+
+	@Override
+	public InputSourceCounters getCounters() {
+		return mCounters;
+	}
+
+	@Override
+	public void close() throws IOException {
+		// the channel shares the descriptor, which subclasses close
+		mChannel = null;
+		mFileDescriptor = null;
+	}
+
+}
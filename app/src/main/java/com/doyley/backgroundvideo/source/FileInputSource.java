@@ -0,0 +1,46 @@
+package com.doyley.backgroundvideo.source;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * A plain file on local storage, read positionally through its channel.
+ */
+public class FileInputSource extends DescriptorInputSource {
+
+	public static final int READ_AHEAD_SIZE = 256 * 1024;
+
+	private final File mFile;
+
+	private FileInputStream mInputStream;
+
+	public FileInputSource(File file) {
+		this(file, TYPE_FILE, READ_AHEAD_SIZE);
+	}
+
+	protected FileInputSource(File file, int type, int readAheadSize) {
+		super(type, readAheadSize);
+		mFile = file;
+	}
+
+	public File getFile() {
+		return mFile;
+	}
+
+	@Override
+	public void open() throws IOException {
+		mInputStream = new FileInputStream(mFile);
+		setDescriptor(mInputStream.getFD(), 0, mInputStream.getChannel().size());
+	}
+
+	@Override
+	public void close() throws IOException {
+		super.close();
+		if (mInputStream != null) {
+			mInputStream.close();
+			mInputStream = null;
+		}
+	}
+
+}
@@ -0,0 +1,52 @@
+package com.doyley.backgroundvideo.source;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A local media input - a file, a content:// uri or an asset packed in the apk.
+ *
+ * Every kind ends up as a file descriptor with the media at some offset into it, which is what the
+ * extractors need. Reads are positional, relative to the start of the media, and safe to make from
+ * several threads.
+ */
+public interface InputSource {
+
+	public static final int TYPE_FILE = 0;
+	public static final int TYPE_MAPPED_FILE = 1;
+	public static final int TYPE_CONTENT = 2;
+	public static final int TYPE_ASSET = 3;
+	/** only readable through {@link #read(ByteBuffer, long)} - the descriptor has holes */
+	public static final int TYPE_PARTIAL_DOWNLOAD = 4;
+
+	/** opens the input - nothing else may be called before */
+	public void open() throws IOException;
+
+	public int getType();
+
+	public FileDescriptor getFileDescriptor();
+
+	/** where the media starts in the file descriptor - assets live somewhere inside the apk */
+	public long getStartOffset();
+
+	/** the real length of the media in bytes */
+	public long getLength();
+
+	/**
+	 * reads up to target.remaining() bytes from the given position into target and returns the number of
+	 * bytes read, or -1 at the end of the media
+	 */
+	public int read(ByteBuffer target, long position) throws IOException;
+
+	/** the whole media mapped into memory, or null if this input is not mapped - the buffer is shared */
+	public ByteBuffer getMappedBuffer();
+
+	/** how far ahead of the reader it is worth fetching for this kind of input */
+	public int getReadAheadSize();
+
+	public InputSourceCounters getCounters();
+
+	public void close() throws IOException;
+
+}
@@ -0,0 +1,37 @@
+package com.doyley.backgroundvideo.source;
+
+/**
+ * Read statistics of an {@link InputSource}.
+ */
+public final class InputSourceCounters {
+
+	private long mReadCount;
+	private long mBytesRead;
+	private long mReadTimeNs;
+
+	public synchronized void onRead(int bytes, long elapsedNs) {
+		mReadCount++;
+		if (bytes > 0) {
+			mBytesRead += bytes;
+		}
+		mReadTimeNs += elapsedNs;
+	}
+
+	public synchronized long getReadCount() {
+		return mReadCount;
+	}
+
+	public synchronized long getBytesRead() {
+		return mBytesRead;
+	}
+
+	/** bytes per second over the time actually spent reading, or 0 before the first read */
+	public synchronized long getThroughput() {
+		return mReadTimeNs == 0 ? 0 : mBytesRead * 1000000000L / mReadTimeNs;
+	}
+
+	public synchronized String getDebugString() {
+		return "reads = " + mReadCount + ", bytes = " + mBytesRead + ", throughput = " + getThroughput() + " B/s";
+	}
+
+}
@@ -0,0 +1,39 @@
+package com.doyley.backgroundvideo.source;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.net.Uri;
+
+import java.io.File;
+
+/**
+ * Picks the {@link InputSource} for a local uri.
+ */
+public final class InputSourceFactory {
+
+	private static final String ASSET_PREFIX = "asset:///";
+	private static final String ANDROID_ASSET_PREFIX = "file:///android_asset/";
+	private static final String FILE_PREFIX = "file://";
+
+	private InputSourceFactory() {
+	}
+
+	/**
+	 * content:// uris, asset:/// or file:///android_asset/ paths and plain files or paths. memoryMapped
+	 * only applies to plain files
+	 */
+	public static InputSource create(Context context, String uri, boolean memoryMapped) {
+		if (uri.startsWith(ContentResolver.SCHEME_CONTENT + ":")) {
+			return new ContentInputSource(context.getContentResolver(), Uri.parse(uri));
+		}
+		if (uri.startsWith(ASSET_PREFIX)) {
+			return new AssetInputSource(context.getAssets(), uri.substring(ASSET_PREFIX.length()));
+		}
+		if (uri.startsWith(ANDROID_ASSET_PREFIX)) {
+			return new AssetInputSource(context.getAssets(), uri.substring(ANDROID_ASSET_PREFIX.length()));
+		}
+		File file = new File(uri.startsWith(FILE_PREFIX) ? Uri.parse(uri).getPath() : uri);
+		return memoryMapped ? new MappedFileInputSource(file) : new FileInputSource(file);
+	}
+
+}
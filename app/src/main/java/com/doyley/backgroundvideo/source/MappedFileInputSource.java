@@ -0,0 +1,63 @@
+package com.doyley.backgroundvideo.source;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A local file mapped into memory, so reads are copies out of the page cache without a system call.
+ *
+ * A mapping is limited to 2GB - bigger files fall back to positional reads like a {@link FileInputSource}.
+ */
+public class MappedFileInputSource extends FileInputSource {
+
+	public static final int READ_AHEAD_SIZE = 1024 * 1024;
+
+	private MappedByteBuffer mMappedBuffer;
+
+	public MappedFileInputSource(File file) {
+		super(file, TYPE_MAPPED_FILE, READ_AHEAD_SIZE);
+	}
+
+	@Override
+	public void open() throws IOException {
+		super.open();
+		if (getLength() <= Integer.MAX_VALUE) {
+			mMappedBuffer = getChannel().map(FileChannel.MapMode.READ_ONLY, 0, getLength());
+		}
+	}
+
+	@Override
+	public int read(ByteBuffer target, long position) throws IOException {
+		if (mMappedBuffer == null) {
+			return super.read(target, position);
+		}
+		if (position >= getLength()) {
+			return -1;
+		}
+		long startNs = System.nanoTime();
+		// a duplicate keeps the shared buffer's position untouched, so readers don't need to lock
+		ByteBuffer source = mMappedBuffer.duplicate();
+		source.position((int) position);
+		int read = Math.min(source.remaining(), target.remaining());
+		source.limit(source.position() + read);
+		target.put(source);
+		getCounters().onRead(read, System.nanoTime() - startNs);
+		return read;
+	}
+
+	@Override
+	public ByteBuffer getMappedBuffer() {
+		return mMappedBuffer;
+	}
+
+	@Override
+	public void close() throws IOException {
+		// the mapping goes away with the buffer once it is collected
+		mMappedBuffer = null;
+		super.close();
+	}
+
+}
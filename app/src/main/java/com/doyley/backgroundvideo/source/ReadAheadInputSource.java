@@ -0,0 +1,384 @@
+package com.doyley.backgroundvideo.source;
+
+import android.util.Log;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads an {@link InputSource} ahead of its reader on a dedicated thread, so latency spikes of slow
+ * storage are absorbed before the extractor asks for the data.
+ *
+ * The input is split into fixed size blocks. The extractor reads each track of interleaved media from a
+ * cursor of its own, so there is a window of blocks per read stream, up to {@link #MAX_STREAMS} of them,
+ * each with its own ring of direct buffers. A read goes to the window it falls in, and moves that window
+ * along. A read outside every window is taken as a seek - the least recently read window moves there and
+ * filling starts again from the new position. A window starts at the upstream's read-ahead size and doubles
+ * every time a read has to wait for its block, as long as all of them together stay within
+ * {@link #MAX_WINDOW_SIZE}. The thread fills the window that is furthest behind its reader first.
+ */
+public class ReadAheadInputSource implements InputSource {
+
+	public static final int BLOCK_SIZE = 64 * 1024;
+	public static final int MAX_WINDOW_SIZE = 8 * 1024 * 1024;
+	/** video, audio and a text track, plus one for the extractor looking at the index */
+	public static final int MAX_STREAMS = 4;
+
+	/** a wait longer than this for a block counts as a stall */
+	private static final long STALL_THRESHOLD_NS = 5000000;
+	private static final int MAX_BLOCKS = MAX_WINDOW_SIZE / BLOCK_SIZE;
+
+	/** the blocks kept ahead of one reader - block b is in slot b % blocks while the window covers it */
+	private static final class Window {
+		final ByteBuffer[] slotBuffers = new ByteBuffer[MAX_BLOCKS];
+		// or -1 while the slot holds nothing usable
+		final long[] slotBlocks = new long[MAX_BLOCKS];
+		final int[] slotLengths = new int[MAX_BLOCKS];
+		boolean started;
+		// a failed read of the window - it is not filled again until its reader has been told
+		IOException error;
+		long firstBlock;
+		int blocks;
+		long lastReadSequence;
+
+		Window(int blocks) {
+			this.blocks = blocks;
+			for (int i = 0; i < MAX_BLOCKS; i++) {
+				slotBlocks[i] = -1;
+			}
+		}
+
+		int slot(long block) {
+			return (int) (block % blocks);
+		}
+
+		boolean holds(long block) {
+			return slotBlocks[slot(block)] == block;
+		}
+
+		boolean covers(long block) {
+			return block >= firstBlock && block < firstBlock + blocks;
+		}
+	}
+
+	private final InputSource mUpstream;
+	private final InputSourceCounters mCounters = new InputSourceCounters();
+	private final Object mLock = new Object();
+	private final Window[] mWindows = new Window[MAX_STREAMS];
+
+	private Thread mThread;
+	private long mLength;
+	private long mBlockCount;
+	private long mReadSequence;
+	private boolean mClosed;
+
+	private int mStallCount;
+	private int mSeekCount;
+
+	public ReadAheadInputSource(InputSource upstream) {
+		mUpstream = upstream;
+	}
+
+	@Override
+	public void open() throws IOException {
+		mUpstream.open();
+		mLength = mUpstream.getLength();
+		mBlockCount = (mLength + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		int windowBlocks = Math.max(2, Math.min(MAX_BLOCKS / MAX_STREAMS, mUpstream.getReadAheadSize() / BLOCK_SIZE));
+		for (int i = 0; i < MAX_STREAMS; i++) {
+			mWindows[i] = new Window(windowBlocks);
+		}
+		mThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				fillLoop();
+			}
+		}, "ReadAheadInputSource");
+		mThread.start();
+	}
+
+	@Override
+	public int getType() {
+		return mUpstream.getType();
+	}
+
+	@Override
+	public FileDescriptor getFileDescriptor() {
+		return mUpstream.getFileDescriptor();
+	}
+
+	@Override
+	public long getStartOffset() {
+		return mUpstream.getStartOffset();
+	}
+
+	@Override
+	public long getLength() {
+		return mLength;
+	}
+
+	@Override
+	public int read(ByteBuffer target, long position) throws IOException {
+		if (position >= mLength) {
+			return -1;
+		}
+		long startNs = System.nanoTime();
+		long block = position / BLOCK_SIZE;
+		int read;
+		synchronized (mLock) {
+			Window window = findWindow(block);
+			boolean seek = window == null;
+			if (seek) {
+				window = seekWindow(block);
+			}
+			moveWindow(window, block);
+			long waitStartNs = System.nanoTime();
+			while (!window.holds(block)) {
+				if (mClosed) {
+					throw new IOException("closed");
+				}
+				if (window.error != null) {
+					// the next read tries again
+					IOException error = window.error;
+					window.error = null;
+					mLock.notifyAll();
+					throw error;
+				}
+				try {
+					mLock.wait();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException();
+				}
+			}
+			int slot = window.slot(block);
+			int offset = (int) (position - block * BLOCK_SIZE);
+			read = Math.min(window.slotLengths[slot] - offset, target.remaining());
+			ByteBuffer source = window.slotBuffers[slot].duplicate();
+			source.position(offset);
+			source.limit(offset + read);
+			target.put(source);
+			// waiting after a seek is expected - only a sequential reader catching up is a stall
+			if (!seek && System.nanoTime() - waitStartNs > STALL_THRESHOLD_NS) {
+				onStall(window);
+			}
+		}
+		mCounters.onRead(read, System.nanoTime() - startNs);
+		return read;
+	}
+
+	@Override
+	public ByteBuffer getMappedBuffer() {
+		return null;
+	}
+
+	/** the largest window of the streams */
+	@Override
+	public int getReadAheadSize() {
+		synchronized (mLock) {
+			int blocks = 0;
+			for (Window window : mWindows) {
+				blocks = Math.max(blocks, window.blocks);
+			}
+			return blocks * BLOCK_SIZE;
+		}
+	}
+
+	/** counts what the reader was served - the upstream counters show the actual storage reads */
+	@Override
+	public InputSourceCounters getCounters() {
+		return mCounters;
+	}
+
+	public InputSourceCounters getUpstreamCounters() {
+		return mUpstream.getCounters();
+	}
+
+	public int getStallCount() {
+		synchronized (mLock) {
+			return mStallCount;
+		}
+	}
+
+	public int getSeekCount() {
+		synchronized (mLock) {
+			return mSeekCount;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		synchronized (mLock) {
+			mClosed = true;
+			mLock.notifyAll();
+		}
+		if (mThread != null) {
+			// an interrupt would close the upstream channel under us - at most one block read to wait for
+			try {
+				mThread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			mThread = null;
+		}
+		Log.d(this.getClass().getSimpleName(), "close : stalls = " + mStallCount + ", seeks = " + mSeekCount
+				+ ", window = " + getReadAheadSize());
+		mUpstream.close();
+	}
+
+	@Override
+	public String toString() {
+		return "read ahead " + mUpstream;
+	}
+
+	/** called with the lock held - the window a read of the block belongs to, or null if it is a seek */
+	private Window findWindow(long block) {
+		for (Window window : mWindows) {
+			// up to one block past the end, which is where a sequential reader goes next
+			if (window.started && block >= window.firstBlock && block <= window.firstBlock + window.blocks) {
+				return window;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * called with the lock held - gives a seek the window that has not been used yet, or else the one read
+	 * least recently. Only a seek of a stream already being read counts, not the first read of a new one.
+	 */
+	private Window seekWindow(long block) {
+		Window victim = null;
+		for (Window window : mWindows) {
+			if (!window.started) {
+				victim = window;
+				break;
+			}
+			if (victim == null || window.lastReadSequence < victim.lastReadSequence) {
+				victim = window;
+			}
+		}
+		if (victim.started) {
+			mSeekCount++;
+		}
+		victim.started = true;
+		victim.error = null;
+		victim.firstBlock = block;
+		mLock.notifyAll();
+		return victim;
+	}
+
+	/** called with the lock held - keeps the block being read inside the window, one block behind it kept */
+	private void moveWindow(Window window, long block) {
+		window.lastReadSequence = ++mReadSequence;
+		long firstBlock = Math.max(window.firstBlock, block - 1);
+		if (firstBlock != window.firstBlock) {
+			window.firstBlock = firstBlock;
+			mLock.notifyAll();
+		}
+	}
+
+	/** called with the lock held */
+	private void onStall(Window window) {
+		mStallCount++;
+		int totalBlocks = 0;
+		for (Window other : mWindows) {
+			totalBlocks += other.blocks;
+		}
+		int blocks = Math.min(window.blocks * 2, window.blocks + MAX_BLOCKS - totalBlocks);
+		if (blocks > window.blocks) {
+			// slots are laid out by the window size - blocks already read in are read again
+			window.blocks = blocks;
+			for (int i = 0; i < MAX_BLOCKS; i++) {
+				window.slotBlocks[i] = -1;
+			}
+			Log.d(this.getClass().getSimpleName(), "onStall : window = " + blocks * BLOCK_SIZE);
+			mLock.notifyAll();
+		}
+	}
+
+	/**
+	 * called with the lock held - the window to fill next, the one with the fewest blocks ready ahead of its
+	 * reader, and puts its block in block[0]. null if every window is full
+	 */
+	private Window nextWindowToFill(long[] block) {
+		Window next = null;
+		long nextAhead = Long.MAX_VALUE;
+		for (Window window : mWindows) {
+			if (!window.started || window.error != null) {
+				continue;
+			}
+			long lastBlock = Math.min(window.firstBlock + window.blocks, mBlockCount);
+			for (long b = window.firstBlock; b < lastBlock; b++) {
+				if (!window.holds(b)) {
+					if (b - window.firstBlock < nextAhead) {
+						next = window;
+						nextAhead = b - window.firstBlock;
+						block[0] = b;
+					}
+					break;
+				}
+			}
+		}
+		return next;
+	}
+
+	private void fillLoop() {
+		long[] nextBlock = new long[1];
+		while (true) {
+			Window window;
+			long block;
+			int slot;
+			int blocks;
+			ByteBuffer buffer;
+			synchronized (mLock) {
+				window = null;
+				while (!mClosed && (window = nextWindowToFill(nextBlock)) == null) {
+					try {
+						mLock.wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if (mClosed) {
+					return;
+				}
+				block = nextBlock[0];
+				blocks = window.blocks;
+				slot = window.slot(block);
+				// nobody reads the slot while it is being filled
+				window.slotBlocks[slot] = -1;
+				if (window.slotBuffers[slot] == null) {
+					window.slotBuffers[slot] = ByteBuffer.allocateDirect(BLOCK_SIZE);
+				}
+				buffer = window.slotBuffers[slot];
+			}
+
+			buffer.clear();
+			IOException error = null;
+			try {
+				long position = block * BLOCK_SIZE;
+				while (buffer.hasRemaining()) {
+					int read = mUpstream.read(buffer, position + buffer.position());
+					if (read < 0) {
+						break;
+					}
+				}
+			} catch (IOException e) {
+				error = e;
+			}
+
+			synchronized (mLock) {
+				if (error != null) {
+					window.error = error;
+				} else if (window.covers(block) && window.blocks == blocks) {
+					// a seek may have moved the window away, or a stall grown it, while the block was read
+					window.slotBlocks[slot] = block;
+					window.slotLengths[slot] = buffer.position();
+				}
+				mLock.notifyAll();
+			}
+		}
+	}
+
+}
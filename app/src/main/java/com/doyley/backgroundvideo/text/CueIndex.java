@@ -0,0 +1,145 @@
+package com.doyley.backgroundvideo.text;
+
+import java.util.Arrays;
+
+/**
+ * Subtitle cues by time, in primitive arrays, for finding the ones showing at a position.
+ *
+ * Cues are kept sorted by start time along with a running maximum of their end times. The cues showing
+ * at a position are found by a binary search for the last one starting at or before it, then a walk back
+ * that stops as soon as the running maximum says nothing further back is still showing - O(log n) plus
+ * the cues overlapping the position. A cue carries a key that the owner of the index turns into its text,
+ * so an index of tens of thousands of cues is a few arrays of longs.
+ *
+ * Cues can be added while the index is in use - a parser streaming a file adds them from its own thread.
+ * Every method locks, and none of the lookups allocate.
+ */
+public final class CueIndex {
+
+	/** end time of a cue that lasts until the next one starts */
+	public static final long OPEN_END_US = Long.MAX_VALUE;
+
+	private static final int INITIAL_CAPACITY = 256;
+
+	private long[] mStartUs = new long[INITIAL_CAPACITY];
+	private long[] mEndUs = new long[INITIAL_CAPACITY];
+	private long[] mMaxEndUs = new long[INITIAL_CAPACITY];
+	private long[] mKeys = new long[INITIAL_CAPACITY];
+	private int mCount;
+	private boolean mComplete;
+
+	/** adds a cue - in start order this is an append, otherwise the cue is moved into place */
+	public synchronized void add(long startUs, long endUs, long key) {
+		if (mCount == mStartUs.length) {
+			int capacity = mCount * 2;
+			mStartUs = Arrays.copyOf(mStartUs, capacity);
+			mEndUs = Arrays.copyOf(mEndUs, capacity);
+			mMaxEndUs = Arrays.copyOf(mMaxEndUs, capacity);
+			mKeys = Arrays.copyOf(mKeys, capacity);
+		}
+		// after any cue starting at the same time, so cues that start together keep their order
+		int index = upperBound(startUs);
+		int moved = mCount - index;
+		if (moved > 0) {
+			System.arraycopy(mStartUs, index, mStartUs, index + 1, moved);
+			System.arraycopy(mEndUs, index, mEndUs, index + 1, moved);
+			System.arraycopy(mKeys, index, mKeys, index + 1, moved);
+		}
+		mStartUs[index] = startUs;
+		mEndUs[index] = endUs;
+		mKeys[index] = key;
+		mCount++;
+		updateMaxEnd(index);
+	}
+
+	/** ends the last cue at endUs if it was still open */
+	public synchronized void closeLast(long endUs) {
+		int last = mCount - 1;
+		if (last >= 0 && mEndUs[last] == OPEN_END_US) {
+			mEndUs[last] = Math.max(endUs, mStartUs[last]);
+			updateMaxEnd(last);
+		}
+	}
+
+	public synchronized void clear() {
+		mCount = 0;
+		mComplete = false;
+	}
+
+	/** marks the index as holding every cue there is going to be */
+	public synchronized void setComplete() {
+		mComplete = true;
+	}
+
+	public synchronized boolean isComplete() {
+		return mComplete;
+	}
+
+	public synchronized int size() {
+		return mCount;
+	}
+
+	/**
+	 * true if every cue starting at or before positionUs is in the index - assuming cues are added in start
+	 * order, which they are from any sane file
+	 */
+	public synchronized boolean isIndexedTo(long positionUs) {
+		return mComplete || (mCount > 0 && mStartUs[mCount - 1] > positionUs);
+	}
+
+	/**
+	 * puts the keys of the cues showing at positionUs into keys, in start order - returns how many, at most
+	 * keys.length of the latest starting ones
+	 */
+	public synchronized int getActiveCues(long positionUs, long[] keys) {
+		int count = 0;
+		for (int i = upperBound(positionUs) - 1; i >= 0 && mMaxEndUs[i] > positionUs && count < keys.length; i--) {
+			if (mEndUs[i] > positionUs) {
+				keys[count++] = mKeys[i];
+			}
+		}
+		// found latest first
+		for (int i = 0, j = count - 1; i < j; i++, j--) {
+			long key = keys[i];
+			keys[i] = keys[j];
+			keys[j] = key;
+		}
+		return count;
+	}
+
+	/** the first time after positionUs at which a cue starts or ends, Long.MAX_VALUE if there is none indexed */
+	public synchronized long getNextChangeUs(long positionUs) {
+		int next = upperBound(positionUs);
+		long changeUs = next < mCount ? mStartUs[next] : Long.MAX_VALUE;
+		for (int i = next - 1; i >= 0 && mMaxEndUs[i] > positionUs; i--) {
+			if (mEndUs[i] > positionUs && mEndUs[i] < changeUs) {
+				changeUs = mEndUs[i];
+			}
+		}
+		return changeUs;
+	}
+
+	/** index of the first cue starting after timeUs */
+	private int upperBound(long timeUs) {
+		int low = 0;
+		int high = mCount;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (mStartUs[mid] <= timeUs) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	private void updateMaxEnd(int from) {
+		long maxEndUs = from > 0 ? mMaxEndUs[from - 1] : Long.MIN_VALUE;
+		for (int i = from; i < mCount; i++) {
+			maxEndUs = Math.max(maxEndUs, mEndUs[i]);
+			mMaxEndUs[i] = maxEndUs;
+		}
+	}
+
+}
@@ -0,0 +1,237 @@
+package com.doyley.backgroundvideo.text;
+
+import android.util.Log;
+
+import com.doyley.backgroundvideo.upstream.IoScheduler;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A sidecar SRT or WebVTT file for a video, loaded lazily.
+ *
+ * Nothing is read until {@link #load} is called, and then the file is indexed on the {@link IoScheduler} a
+ * batch of cues at a time - the index can be used from the first batch on, and a file of tens of thousands
+ * of cues never holds up playback while the rest of it is read. Only timings go into the {@link CueIndex};
+ * the text of a cue is read back from the file on the scheduler too, once it is asked for by
+ * {@link #prefetchText} - a renderer asks for the cues coming up before they are shown, and only ever
+ * looks them up in memory. The last TEXT_CACHE_SIZE of them are kept. One file serves the renderers of
+ * every reinitialize of its video, so it is only indexed once.
+ */
+public class SubtitleFile {
+
+	private static final String[] EXTENSIONS = {".srt", ".vtt"};
+	private static final int CUES_PER_BATCH = 1000;
+	private static final String FILE_SCHEME = "file://";
+	private static final int TEXT_CACHE_SIZE = 64;
+
+	private final File mFile;
+	private final CueIndex mIndex = new CueIndex();
+	private IoScheduler.Task mLoadTask;
+	private boolean mReleased;
+
+	// texts read so far, least recently used first
+	private final Map<Long, String> mTexts = new LinkedHashMap<Long, String>(TEXT_CACHE_SIZE, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, String> eldest) {
+			return size() > TEXT_CACHE_SIZE;
+		}
+	};
+	private final ArrayDeque<Long> mPendingTexts = new ArrayDeque<>();
+	private IoScheduler mTextScheduler;
+	private IoScheduler.Task mTextTask;
+	private volatile int mTextVersion;
+	// only used by the text task
+	private RandomAccessFile mTextFile;
+	private byte[] mTextBuffer = new byte[256];
+
+	public SubtitleFile(File file) {
+		mFile = file;
+	}
+
+	/** the file at a file uri or path, or null if the uri is not a local file */
+	public static File toFile(String uri) {
+		if (uri.startsWith(FILE_SCHEME)) {
+			return new File(uri.substring(FILE_SCHEME.length()));
+		}
+		return uri.startsWith("/") ? new File(uri) : null;
+	}
+
+	/** a subtitle file next to a local video, with the same name, or null if there is none */
+	public static File findSidecar(String videoUri) {
+		File video = toFile(videoUri);
+		if (video == null) {
+			return null;
+		}
+		String path = video.getPath();
+		int extension = path.lastIndexOf('.');
+		String base = extension > path.lastIndexOf('/') ? path.substring(0, extension) : path;
+		for (String sidecarExtension : EXTENSIONS) {
+			File sidecar = new File(base + sidecarExtension);
+			if (sidecar.isFile()) {
+				return sidecar;
+			}
+		}
+		return null;
+	}
+
+	public CueIndex getIndex() {
+		return mIndex;
+	}
+
+	/** starts indexing the file on the scheduler, if that has not been started already */
+	public synchronized void load(IoScheduler scheduler) {
+		if (mLoadTask != null || mReleased) {
+			return;
+		}
+		mTextScheduler = scheduler;
+		mLoadTask = new IoScheduler.Task() {
+
+			private InputStream mInput;
+			private SubtitleParser mParser;
+
+			@Override
+			public boolean run() {
+				try {
+					if (mParser == null) {
+						mInput = new FileInputStream(mFile);
+						mParser = new SubtitleParser(mInput, mIndex);
+					}
+					while (!shouldYield()) {
+						if (!mParser.parse(CUES_PER_BATCH)) {
+							Log.d(SubtitleFile.this.getClass().getSimpleName(), "indexed " + mIndex.size()
+									+ " cues of " + mFile);
+							close();
+							return false;
+						}
+					}
+					if (isCanceled()) {
+						close();
+						return false;
+					}
+					// preempted - run again from where the parser got to
+					return true;
+				} catch (IOException e) {
+					// what was indexed is still shown
+					Log.e(SubtitleFile.this.getClass().getSimpleName(), "unable to read " + mFile, e);
+					mIndex.setComplete();
+					close();
+					return false;
+				}
+			}
+
+			private void close() {
+				if (mInput != null) {
+					try {
+						mInput.close();
+					} catch (IOException e) {
+						// nothing more is read from it
+					}
+				}
+			}
+		};
+		scheduler.submit(IoScheduler.PRIORITY_PLAYBACK, mLoadTask);
+	}
+
+	/** the text of a cue in the index, ready to be shown - null if it has not been read yet */
+	public synchronized String getText(long key) {
+		return mTexts.get(key);
+	}
+
+	/** goes up each time a text asked for has been read, so a text that was missing can be looked up again */
+	public int getTextVersion() {
+		return mTextVersion;
+	}
+
+	/** reads the texts of cues in the index on the scheduler, unless they have been already */
+	public synchronized void prefetchText(long[] keys, int count) {
+		if (mReleased || mTextScheduler == null) {
+			return;
+		}
+		for (int i = 0; i < count; i++) {
+			if (!mTexts.containsKey(keys[i]) && !mPendingTexts.contains(keys[i])) {
+				mPendingTexts.add(keys[i]);
+			}
+		}
+		if (mTextTask != null || mPendingTexts.isEmpty()) {
+			return;
+		}
+		mTextTask = new IoScheduler.Task() {
+			@Override
+			public boolean run() {
+				while (!shouldYield()) {
+					long key;
+					synchronized (SubtitleFile.this) {
+						if (mReleased || mPendingTexts.isEmpty()) {
+							mTextTask = null;
+							if (mReleased) {
+								closeTextFile();
+							}
+							return false;
+						}
+						key = mPendingTexts.peek();
+					}
+					String text = readText(key);
+					synchronized (SubtitleFile.this) {
+						mPendingTexts.remove(key);
+						mTexts.put(key, text);
+					}
+					mTextVersion++;
+				}
+				// preempted - run again for what is left
+				return true;
+			}
+		};
+		mTextScheduler.submit(IoScheduler.PRIORITY_PLAYBACK, mTextTask);
+	}
+
+	private String readText(long key) {
+		int length = SubtitleParser.getTextLength(key);
+		if (length > mTextBuffer.length) {
+			mTextBuffer = new byte[length];
+		}
+		try {
+			if (mTextFile == null) {
+				mTextFile = new RandomAccessFile(mFile, "r");
+			}
+			mTextFile.seek(SubtitleParser.getTextOffset(key));
+			mTextFile.readFully(mTextBuffer, 0, length);
+			return SubtitleParser.toDisplayText(new String(mTextBuffer, 0, length, "UTF-8"));
+		} catch (IOException e) {
+			Log.w(this.getClass().getSimpleName(), "unable to read cue text from " + mFile, e);
+			return "";
+		}
+	}
+
+	private void closeTextFile() {
+		if (mTextFile != null) {
+			try {
+				mTextFile.close();
+			} catch (IOException e) {
+				// nothing more is read from it
+			}
+			mTextFile = null;
+		}
+	}
+
+	/** stops indexing and closes the file - called once the video is done with */
+	public synchronized void release() {
+		mReleased = true;
+		if (mLoadTask != null) {
+			mLoadTask.cancel();
+		}
+		mPendingTexts.clear();
+		mTexts.clear();
+		if (mTextTask == null) {
+			closeTextFile();
+		}
+		// otherwise the text task closes the file once it is done with it
+	}
+
+}
@@ -0,0 +1,257 @@
+package com.doyley.backgroundvideo.text;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Streams the cues of an SRT or WebVTT file into a {@link CueIndex}, a batch at a time.
+ *
+ * Both formats are a timing line with "-->" in it followed by lines of text up to a blank line, which is
+ * all the parser looks for - cue numbers, identifiers, the WEBVTT header and NOTE blocks fall by the way.
+ * Lines are scanned as bytes straight out of a fixed buffer and a cue's text is not read at all: its key
+ * in the index is where the text is in the file, see {@link #getTextOffset} and {@link #getTextLength}, for
+ * reading it back when the cue is shown. So indexing allocates nothing beyond the index itself.
+ */
+public final class SubtitleParser {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int MAX_TIMING_LINE_LENGTH = 256;
+	private static final int KEY_LENGTH_BITS = 20;
+	private static final int MAX_TEXT_LENGTH = (1 << KEY_LENGTH_BITS) - 1;
+	private static final byte[] BYTE_ORDER_MARK = {(byte) 0xef, (byte) 0xbb, (byte) 0xbf};
+
+	private final InputStream mInput;
+	private final CueIndex mIndex;
+	private final byte[] mBuffer = new byte[BUFFER_SIZE];
+	private int mBufferPosition;
+	private int mBufferLimit;
+	// file offset of mBuffer[0]
+	private long mBufferOffset;
+	private boolean mInputEnded;
+
+	// the start of the current line, enough of it to hold a timing line
+	private final byte[] mLine = new byte[MAX_TIMING_LINE_LENGTH];
+	private int mLineLength;
+	private long mLineOffset;
+	private long mLineEnd;
+	private boolean mLineBlank;
+
+	// the cue being read - its text runs from the first line after the timing line to the last before a blank
+	private long mCueStartUs = -1;
+	private long mCueEndUs;
+	private long mTextOffset = -1;
+	private long mTextEnd;
+
+	public SubtitleParser(InputStream input, CueIndex index) {
+		mInput = input;
+		mIndex = index;
+	}
+
+	/** adds up to maxCues cues to the index - returns false once the input is done, and the index complete */
+	public boolean parse(int maxCues) throws IOException {
+		int added = 0;
+		while (added < maxCues) {
+			if (!readLine()) {
+				if (endCue()) {
+					added++;
+				}
+				mIndex.setComplete();
+				return false;
+			}
+			if (mLineBlank) {
+				if (endCue()) {
+					added++;
+				}
+			} else if (indexOfArrow() != -1) {
+				if (endCue()) {
+					added++;
+				}
+				parseTiming();
+			} else if (mCueStartUs != -1) {
+				if (mTextOffset == -1) {
+					mTextOffset = mLineOffset;
+				}
+				mTextEnd = mLineEnd;
+			}
+		}
+		return true;
+	}
+
+	public static long getTextOffset(long key) {
+		return key >>> KEY_LENGTH_BITS;
+	}
+
+	public static int getTextLength(long key) {
+		return (int) (key & MAX_TEXT_LENGTH);
+	}
+
+	/** cue text as it should be shown - markup like {@code <i>}, {@code <c.yellow>} or {@code {\an8}} removed */
+	public static String toDisplayText(String text) {
+		StringBuilder builder = new StringBuilder(text.length());
+		for (int i = 0, length = text.length(); i < length; i++) {
+			char c = text.charAt(i);
+			int close;
+			if (c == '<' && (close = text.indexOf('>', i)) != -1) {
+				i = close;
+			} else if (c == '{' && text.startsWith("{\\", i) && (close = text.indexOf('}', i)) != -1) {
+				i = close;
+			} else if (c == '&' && text.startsWith("&amp;", i)) {
+				builder.append('&');
+				i += 4;
+			} else if (c == '&' && text.startsWith("&lt;", i)) {
+				builder.append('<');
+				i += 3;
+			} else if (c == '&' && text.startsWith("&gt;", i)) {
+				builder.append('>');
+				i += 3;
+			} else if (c == '&' && text.startsWith("&nbsp;", i)) {
+				builder.append(' ');
+				i += 5;
+			} else if (c != '\r') {
+				builder.append(c);
+			}
+		}
+		return builder.toString().trim();
+	}
+
+	/** adds the cue being read, if it has any text - returns true if it did */
+	private boolean endCue() {
+		boolean added = false;
+		if (mCueStartUs != -1 && mTextOffset != -1) {
+			long length = Math.min(mTextEnd - mTextOffset, MAX_TEXT_LENGTH);
+			mIndex.add(mCueStartUs, mCueEndUs, (mTextOffset << KEY_LENGTH_BITS) | length);
+			added = true;
+		}
+		mCueStartUs = -1;
+		mTextOffset = -1;
+		return added;
+	}
+
+	private void parseTiming() {
+		int arrow = indexOfArrow();
+		long startUs = parseTimestamp(skipSpaces(0), arrow);
+		long endUs = parseTimestamp(skipSpaces(arrow + 3), mLineLength);
+		if (startUs != -1 && endUs != -1) {
+			mCueStartUs = startUs;
+			mCueEndUs = Math.max(startUs, endUs);
+		}
+	}
+
+	/** [hh:]mm:ss[.,]fff from the line, up to the first character that cannot be part of one - -1 if invalid */
+	private long parseTimestamp(int from, int to) {
+		long seconds = 0;
+		int groups = 0;
+		int i = from;
+		while (true) {
+			int digitsStart = i;
+			long value = 0;
+			while (i < to && mLine[i] >= '0' && mLine[i] <= '9') {
+				value = value * 10 + mLine[i++] - '0';
+			}
+			if (i == digitsStart) {
+				return -1;
+			}
+			seconds = seconds * 60 + value;
+			groups++;
+			if (i < to && mLine[i] == ':') {
+				i++;
+			} else {
+				break;
+			}
+		}
+		if (groups < 2 || groups > 3) {
+			return -1;
+		}
+		long timeUs = seconds * 1000000;
+		if (i < to && (mLine[i] == '.' || mLine[i] == ',')) {
+			i++;
+			long scale = 100000;
+			while (i < to && mLine[i] >= '0' && mLine[i] <= '9') {
+				timeUs += (mLine[i++] - '0') * scale;
+				scale /= 10;
+			}
+		}
+		return timeUs;
+	}
+
+	private int indexOfArrow() {
+		for (int i = 0; i + 2 < mLineLength; i++) {
+			if (mLine[i] == '-' && mLine[i + 1] == '-' && mLine[i + 2] == '>') {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private int skipSpaces(int i) {
+		while (i < mLineLength && (mLine[i] == ' ' || mLine[i] == '\t')) {
+			i++;
+		}
+		return i;
+	}
+
+	/**
+	 * reads the next line - mLineOffset and mLineEnd are where it is in the file without its line break,
+	 * mLine holds its first bytes and mLineBlank says whether it is only whitespace. Returns false at the end.
+	 */
+	private boolean readLine() throws IOException {
+		if (!fillBuffer()) {
+			return false;
+		}
+		mLineOffset = mBufferOffset + mBufferPosition;
+		int length = 0;
+		boolean blank = true;
+		byte last = 0;
+		while (fillBuffer()) {
+			byte b = mBuffer[mBufferPosition++];
+			if (b == '\n') {
+				break;
+			}
+			if (length < MAX_TIMING_LINE_LENGTH) {
+				// the rest of a line too long to be a timing line only matters for its extent
+				mLine[length] = b;
+			}
+			length++;
+			if (b != ' ' && b != '\t' && b != '\r') {
+				blank = false;
+			}
+			last = b;
+		}
+		if (last == '\r') {
+			length--;
+		}
+		if (mLineOffset == 0 && length >= BYTE_ORDER_MARK.length && mLine[0] == BYTE_ORDER_MARK[0]
+				&& mLine[1] == BYTE_ORDER_MARK[1] && mLine[2] == BYTE_ORDER_MARK[2]) {
+			length -= BYTE_ORDER_MARK.length;
+			System.arraycopy(mLine, BYTE_ORDER_MARK.length, mLine, 0, Math.min(length, MAX_TIMING_LINE_LENGTH
+					- BYTE_ORDER_MARK.length));
+			mLineOffset = BYTE_ORDER_MARK.length;
+			blank = length == 0;
+		}
+		mLineEnd = mLineOffset + length;
+		mLineLength = Math.min(length, MAX_TIMING_LINE_LENGTH);
+		mLineBlank = blank;
+		return true;
+	}
+
+	/** makes sure there is something in the buffer - returns false at the end of the input */
+	private boolean fillBuffer() throws IOException {
+		if (mBufferPosition < mBufferLimit) {
+			return true;
+		}
+		if (mInputEnded) {
+			return false;
+		}
+		mBufferOffset += mBufferLimit;
+		mBufferPosition = 0;
+		mBufferLimit = 0;
+		int read = mInput.read(mBuffer, 0, BUFFER_SIZE);
+		if (read <= 0) {
+			mInputEnded = true;
+			return false;
+		}
+		mBufferLimit = read;
+		return true;
+	}
+
+}
@@ -0,0 +1,356 @@
+package com.doyley.backgroundvideo.upstream;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the app's background I/O on a shared set of workers, in priority classes - active playback first,
+ * then prefetch and finally background downloads.
+ *
+ * Each class has its own limit of concurrently running tasks, and one worker is always kept back for
+ * playback, so the reads feeding the current video never queue behind anything else. When playback work
+ * arrives and every worker is busy, the lowest priority running task is asked to yield - tasks check
+ * {@link Task#shouldYield()} between reads and simply return, and are put back at the head of their class
+ * to be run again. The time tasks spend queued is recorded per class.
+ *
+ * Most of what feeds the player - ExoPlayer's chunk loaders and extractor reads - runs on the player's own
+ * loader threads, outside the scheduler. So the player marks playback active with
+ * {@link #setPlaybackActive}, and while it is the other classes run one task at a time each, leaving the
+ * network and storage to it. Tasks above that limit when playback starts are asked to yield. A task can
+ * also be submitted after a delay, for a retry, without holding a worker while it waits, and moved up to a
+ * higher class with {@link #promote} wherever it is - queued, waiting out a delay or running.
+ */
+public final class IoScheduler {
+
+	public static final int PRIORITY_PLAYBACK = 0;
+	public static final int PRIORITY_PREFETCH = 1;
+	public static final int PRIORITY_DOWNLOAD = 2;
+
+	private static final int PRIORITY_COUNT = 3;
+	private static final int DEFAULT_WORKER_COUNT = 4;
+	private static final int[] DEFAULT_MAX_CONCURRENCY = {4, 2, 2};
+	/** limit of every class but playback while playback is active */
+	private static final int PLAYBACK_ACTIVE_MAX_CONCURRENCY = 1;
+
+	private static IoScheduler sInstance;
+
+	/**
+	 * A unit of I/O. run() should return early once {@link #shouldYield()} is true, and say so by returning
+	 * true - if that was a preemption rather than a cancel, the task is run again later and picks up from
+	 * wherever it keeps its progress. A task that got to the end of its work returns false, and is never run
+	 * again, whatever it was asked after its last check.
+	 */
+	public abstract static class Task {
+
+		private IoScheduler mScheduler;
+		private int mPriority;
+		private long mEnqueueTimeNs;
+		private volatile boolean mCanceled;
+		private volatile boolean mPreempted;
+
+		/** returns true if it stopped early because it was asked to yield, false once it is done */
+		public abstract boolean run();
+
+		public final boolean shouldYield() {
+			return mCanceled || mPreempted;
+		}
+
+		public final boolean isCanceled() {
+			return mCanceled;
+		}
+
+		public final boolean isPreempted() {
+			return mPreempted;
+		}
+
+		/**
+		 * returns true if the task was still queued, in which case it will never run - a running task is
+		 * asked to yield and not run again
+		 */
+		public final boolean cancel() {
+			mCanceled = true;
+			return mScheduler != null && mScheduler.remove(this);
+		}
+	}
+
+	private final Object mLock = new Object();
+	private final int mWorkerCount;
+	private final int[] mMaxConcurrency;
+	private final List<ArrayDeque<Task>> mQueues = new ArrayList<>();
+	private final List<Task> mRunningTasks = new ArrayList<>();
+	private final List<Task> mDelayedTasks = new ArrayList<>();
+	private ScheduledExecutorService mTimer;
+	private final int[] mRunningCounts = new int[PRIORITY_COUNT];
+	private boolean mPlaybackActive;
+
+	private final long[] mQueueDelayTotalNs = new long[PRIORITY_COUNT];
+	private final long[] mQueueDelayMaxNs = new long[PRIORITY_COUNT];
+	private final int[] mDispatchCounts = new int[PRIORITY_COUNT];
+	private final int[] mPreemptionCounts = new int[PRIORITY_COUNT];
+
+	/** the process wide scheduler - everything that does background I/O should share it */
+	public static synchronized IoScheduler getInstance() {
+		if (sInstance == null) {
+			sInstance = new IoScheduler(DEFAULT_WORKER_COUNT, DEFAULT_MAX_CONCURRENCY);
+		}
+		return sInstance;
+	}
+
+	/** maxConcurrency holds the limit of running tasks for each priority class */
+	public IoScheduler(int workerCount, int[] maxConcurrency) {
+		mWorkerCount = workerCount;
+		mMaxConcurrency = maxConcurrency.clone();
+		for (int i = 0; i < PRIORITY_COUNT; i++) {
+			mQueues.add(new ArrayDeque<Task>());
+		}
+		for (int i = 0; i < workerCount; i++) {
+			Thread worker = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					workerLoop();
+				}
+			}, "IoScheduler:" + i);
+			worker.setDaemon(true);
+			worker.start();
+		}
+	}
+
+	public void submit(int priority, Task task) {
+		synchronized (mLock) {
+			task.mScheduler = this;
+			task.mPriority = priority;
+			task.mEnqueueTimeNs = System.nanoTime();
+			mQueues.get(priority).addLast(task);
+			if (!canDispatch(priority) && mRunningCounts[priority] < getMaxConcurrency(priority)) {
+				// held up by lower priority work only
+				preemptBelow(priority);
+			}
+			mLock.notifyAll();
+		}
+	}
+
+	/** submits the task once delayMs have passed - until then it is not queued, and can be cancelled */
+	public void submitDelayed(int priority, final Task task, long delayMs) {
+		ScheduledExecutorService timer;
+		synchronized (mLock) {
+			task.mScheduler = this;
+			task.mPriority = priority;
+			mDelayedTasks.add(task);
+			if (mTimer == null) {
+				mTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable, "IoScheduler:timer");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+			}
+			timer = mTimer;
+		}
+		timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				int taskPriority;
+				synchronized (mLock) {
+					if (!mDelayedTasks.remove(task)) {
+						// cancelled meanwhile
+						return;
+					}
+					// promoted meanwhile, maybe
+					taskPriority = task.mPriority;
+				}
+				submit(taskPriority, task);
+			}
+		}, delayMs, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * moves a submitted task up to a higher priority class - to the end of that queue if it is queued, or
+	 * counted in that class from now on if it is running, so it is no longer asked to yield to it. Does
+	 * nothing for a task that is done, or already at that priority or above.
+	 */
+	public void promote(Task task, int priority) {
+		synchronized (mLock) {
+			if (task.mScheduler != this || priority >= task.mPriority || task.mCanceled) {
+				return;
+			}
+			if (mQueues.get(task.mPriority).remove(task)) {
+				task.mPriority = priority;
+				mQueues.get(priority).addLast(task);
+				if (!canDispatch(priority) && mRunningCounts[priority] < getMaxConcurrency(priority)) {
+					preemptBelow(priority);
+				}
+			} else if (mRunningTasks.contains(task)) {
+				mRunningCounts[task.mPriority]--;
+				mRunningCounts[priority]++;
+				task.mPriority = priority;
+				// a yield asked of the old class does not hold in the new one
+				task.mPreempted = false;
+			} else if (mDelayedTasks.contains(task)) {
+				task.mPriority = priority;
+			}
+			mLock.notifyAll();
+		}
+	}
+
+	/** called by the player as it starts and stops loading for playback - see the class comment */
+	public void setPlaybackActive(boolean playbackActive) {
+		synchronized (mLock) {
+			if (playbackActive == mPlaybackActive) {
+				return;
+			}
+			mPlaybackActive = playbackActive;
+			if (playbackActive) {
+				int[] running = new int[PRIORITY_COUNT];
+				for (Task task : mRunningTasks) {
+					if (task.mPriority != PRIORITY_PLAYBACK && !task.mPreempted
+							&& ++running[task.mPriority] > PLAYBACK_ACTIVE_MAX_CONCURRENCY) {
+						task.mPreempted = true;
+						mPreemptionCounts[task.mPriority]++;
+					}
+				}
+			}
+			mLock.notifyAll();
+		}
+	}
+
+	public long getAverageQueueDelayMs(int priority) {
+		synchronized (mLock) {
+			int count = mDispatchCounts[priority];
+			return count == 0 ? 0 : mQueueDelayTotalNs[priority] / count / 1000000;
+		}
+	}
+
+	public long getMaxQueueDelayMs(int priority) {
+		synchronized (mLock) {
+			return mQueueDelayMaxNs[priority] / 1000000;
+		}
+	}
+
+	/** number of tasks of the class that were asked to yield to higher priority work */
+	public int getPreemptionCount(int priority) {
+		synchronized (mLock) {
+			return mPreemptionCounts[priority];
+		}
+	}
+
+	public int getQueuedCount(int priority) {
+		synchronized (mLock) {
+			return mQueues.get(priority).size();
+		}
+	}
+
+	public String getDebugString() {
+		StringBuilder builder = new StringBuilder();
+		synchronized (mLock) {
+			builder.append("playback active = ").append(mPlaybackActive).append(", ");
+			for (int i = 0; i < PRIORITY_COUNT; i++) {
+				if (i > 0) {
+					builder.append(", ");
+				}
+				builder.append(i).append(" : queued = ").append(mQueues.get(i).size())
+						.append(", running = ").append(mRunningCounts[i])
+						.append(", avg delay ms = ").append(getAverageQueueDelayMs(i))
+						.append(", max delay ms = ").append(getMaxQueueDelayMs(i))
+						.append(", preempted = ").append(mPreemptionCounts[i]);
+			}
+		}
+		return builder.toString();
+	}
+
+	private boolean remove(Task task) {
+		synchronized (mLock) {
+			return mQueues.get(task.mPriority).remove(task) || mDelayedTasks.remove(task);
+		}
+	}
+
+	/** called with the lock held */
+	private boolean canDispatch(int priority) {
+		if (mRunningTasks.size() >= mWorkerCount || mRunningCounts[priority] >= getMaxConcurrency(priority)) {
+			return false;
+		}
+		// everything but playback leaves one worker free
+		return priority == PRIORITY_PLAYBACK
+				|| mRunningTasks.size() - mRunningCounts[PRIORITY_PLAYBACK] < mWorkerCount - 1;
+	}
+
+	/** called with the lock held */
+	private int getMaxConcurrency(int priority) {
+		return mPlaybackActive && priority != PRIORITY_PLAYBACK
+				? Math.min(PLAYBACK_ACTIVE_MAX_CONCURRENCY, mMaxConcurrency[priority]) : mMaxConcurrency[priority];
+	}
+
+	/** called with the lock held - asks the lowest priority running task below the given class to yield */
+	private void preemptBelow(int priority) {
+		Task victim = null;
+		for (Task task : mRunningTasks) {
+			if (task.mPriority > priority && !task.mPreempted && (victim == null || task.mPriority > victim.mPriority)) {
+				victim = task;
+			}
+		}
+		if (victim != null) {
+			victim.mPreempted = true;
+			mPreemptionCounts[victim.mPriority]++;
+		}
+	}
+
+	/** called with the lock held */
+	private Task nextTask() {
+		for (int i = 0; i < PRIORITY_COUNT; i++) {
+			if (!mQueues.get(i).isEmpty() && canDispatch(i)) {
+				return mQueues.get(i).pollFirst();
+			}
+		}
+		return null;
+	}
+
+	private void workerLoop() {
+		while (true) {
+			Task task;
+			synchronized (mLock) {
+				while ((task = nextTask()) == null) {
+					try {
+						mLock.wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				int priority = task.mPriority;
+				long delayNs = System.nanoTime() - task.mEnqueueTimeNs;
+				mQueueDelayTotalNs[priority] += delayNs;
+				mQueueDelayMaxNs[priority] = Math.max(mQueueDelayMaxNs[priority], delayNs);
+				mDispatchCounts[priority]++;
+				mRunningCounts[priority]++;
+				mRunningTasks.add(task);
+			}
+
+			boolean yielded = false;
+			try {
+				yielded = task.run();
+			} catch (RuntimeException e) {
+				Log.e(this.getClass().getSimpleName(), "task failed : ", e);
+			}
+
+			synchronized (mLock) {
+				mRunningTasks.remove(task);
+				mRunningCounts[task.mPriority]--;
+				// a task that finished is done, even if it was asked to yield after its last check
+				if (yielded && !task.mCanceled) {
+					task.mPreempted = false;
+					task.mEnqueueTimeNs = System.nanoTime();
+					mQueues.get(task.mPriority).addFirst(task);
+				}
+				mLock.notifyAll();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,70 @@
+package com.doyley.backgroundvideo.upstream;
+
+import com.google.android.exoplayer.upstream.Allocation;
+import com.google.android.exoplayer.upstream.Allocator;
+import com.google.android.exoplayer.upstream.BufferPool;
+
+/**
+ * {@link BufferPool} that also knows how much memory sits unused in its recycled buffers.
+ *
+ * The pool only creates a buffer when it has no recycled one left, so the number it holds is the highest
+ * number ever handed out at once, minus what trimming dropped. We follow that from the calls that pass
+ * through here - the load control asks for the allocated size on every update, which is often enough to
+ * see the peaks.
+ */
+public class MeasuredBufferPool implements Allocator {
+
+	private final BufferPool mBufferPool;
+	private final int mBufferLength;
+
+	private int mHeldBufferCount;
+
+	public MeasuredBufferPool(int bufferLength) {
+		mBufferPool = new BufferPool(bufferLength);
+		mBufferLength = bufferLength;
+	}
+
+	@Override
+	public synchronized Allocation allocate(int size) {
+		Allocation allocation = mBufferPool.allocate(size);
+		updateHeldBufferCount();
+		return allocation;
+	}
+
+	@Override
+	public synchronized void trim(int targetSize) {
+		int allocatedBufferCount = updateHeldBufferCount();
+		mBufferPool.trim(targetSize);
+		// mirrors BufferPool.trim - recycled buffers beyond the target are dropped
+		int targetBufferCount = (targetSize + mBufferLength - 1) / mBufferLength;
+		int keptRecycledCount = Math.max(0, targetBufferCount - allocatedBufferCount);
+		mHeldBufferCount = allocatedBufferCount + Math.min(mHeldBufferCount - allocatedBufferCount, keptRecycledCount);
+	}
+
+	@Override
+	public synchronized int getAllocatedSize() {
+		int allocatedSize = mBufferPool.getAllocatedSize();
+		mHeldBufferCount = Math.max(mHeldBufferCount, allocatedSize / mBufferLength);
+		return allocatedSize;
+	}
+
+	/** bytes held in recycled buffers that nobody is using */
+	public synchronized long getPooledSize() {
+		int allocatedBufferCount = updateHeldBufferCount();
+		return (long) (mHeldBufferCount - allocatedBufferCount) * mBufferLength;
+	}
+
+	/** drops every recycled buffer and returns the number of bytes released */
+	public synchronized long releasePooledBuffers() {
+		long pooledSize = getPooledSize();
+		trim(0);
+		return pooledSize - getPooledSize();
+	}
+
+	private int updateHeldBufferCount() {
+		int allocatedBufferCount = mBufferPool.getAllocatedSize() / mBufferLength;
+		mHeldBufferCount = Math.max(mHeldBufferCount, allocatedBufferCount);
+		return allocatedBufferCount;
+	}
+
+}
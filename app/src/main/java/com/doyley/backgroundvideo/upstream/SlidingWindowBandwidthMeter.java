@@ -0,0 +1,136 @@
+package com.doyley.backgroundvideo.upstream;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.google.android.exoplayer.upstream.BandwidthMeter;
+import com.google.android.exoplayer.upstream.TransferListener;
+import com.google.android.exoplayer.util.Clock;
+import com.google.android.exoplayer.util.SystemClock;
+
+/**
+ * Bandwidth meter fed with the transfer events of our data sources.
+ *
+ * Throughput is the weighted median of a sliding window of transfer samples, each weighted by the square
+ * root of its byte count so short transfers count for less. Time to first byte - from the transfer start
+ * to the first bytes arriving - gets a window of its own. Both estimates are written to the given
+ * preferences now and then, and a new meter starts from the stored values until it has measured
+ * something itself.
+ *
+ * Like the library meter, overlapping transfers are measured together as a single transfer.
+ */
+public class SlidingWindowBandwidthMeter implements BandwidthMeter, TransferListener {
+
+	public static final String PREFERENCES_NAME = "bandwidth_meter";
+
+	private static final String KEY_BITRATE_ESTIMATE = "bitrate_estimate";
+	private static final String KEY_TTFB_ESTIMATE_MS = "ttfb_estimate_ms";
+
+	private static final int MAX_BITRATE_SAMPLES = 64;
+	private static final int MAX_BITRATE_WEIGHT = 2000;
+	private static final int MAX_TTFB_SAMPLES = 16;
+	private static final float PERCENTILE = 0.5f;
+	private static final long PERSIST_INTERVAL_MS = 10000;
+
+	private final SharedPreferences mPreferences;
+	private final Clock mClock;
+	private final WeightedPercentileWindow mBitrateWindow;
+	private final WeightedPercentileWindow mTtfbWindow;
+
+	private int mStreamCount;
+	private long mTransferStartTimeMs;
+	private long mBytesAccumulator;
+	private boolean mAwaitingFirstByte;
+
+	private long mBitrateEstimate;
+	private long mTtfbEstimateMs;
+	private long mLastPersistTimeMs;
+	private boolean mEstimateChanged;
+
+	public SlidingWindowBandwidthMeter(SharedPreferences preferences) {
+		this(preferences, new SystemClock());
+	}
+
+	public SlidingWindowBandwidthMeter(SharedPreferences preferences, Clock clock) {
+		mPreferences = preferences;
+		mClock = clock;
+		mBitrateWindow = new WeightedPercentileWindow(MAX_BITRATE_SAMPLES, MAX_BITRATE_WEIGHT);
+		mTtfbWindow = new WeightedPercentileWindow(MAX_TTFB_SAMPLES, MAX_TTFB_SAMPLES);
+		mBitrateEstimate = preferences.getLong(KEY_BITRATE_ESTIMATE, NO_ESTIMATE);
+		mTtfbEstimateMs = preferences.getLong(KEY_TTFB_ESTIMATE_MS, NO_ESTIMATE);
+		mLastPersistTimeMs = mClock.elapsedRealtime();
+	}
+
+	@Override
+	public synchronized long getBitrateEstimate() {
+		return mBitrateEstimate;
+	}
+
+	/** the estimated time to first byte in milliseconds, or {@link #NO_ESTIMATE} */
+	public synchronized long getTimeToFirstByteEstimateMs() {
+		return mTtfbEstimateMs;
+	}
+
+	@Override
+	public synchronized void onTransferStart() {
+		if (mStreamCount == 0) {
+			mTransferStartTimeMs = mClock.elapsedRealtime();
+			// with a single transfer in flight the first bytes can be attributed to it
+			mAwaitingFirstByte = true;
+		}
+		mStreamCount++;
+	}
+
+	@Override
+	public synchronized void onBytesTransferred(int bytes) {
+		if (mAwaitingFirstByte) {
+			mAwaitingFirstByte = false;
+			long ttfbMs = mClock.elapsedRealtime() - mTransferStartTimeMs;
+			mTtfbWindow.addSample(1, ttfbMs);
+			mTtfbEstimateMs = (long) mTtfbWindow.getPercentile(PERCENTILE);
+			mEstimateChanged = true;
+		}
+		mBytesAccumulator += bytes;
+	}
+
+	@Override
+	public synchronized void onTransferEnd() {
+		if (mStreamCount <= 0) {
+			return;
+		}
+		long nowMs = mClock.elapsedRealtime();
+		long elapsedMs = nowMs - mTransferStartTimeMs;
+		if (elapsedMs > 0 && mBytesAccumulator > 0) {
+			float bitsPerSecond = mBytesAccumulator * 8000f / elapsedMs;
+			mBitrateWindow.addSample((int) Math.sqrt(mBytesAccumulator), bitsPerSecond);
+			mBitrateEstimate = (long) mBitrateWindow.getPercentile(PERCENTILE);
+			mEstimateChanged = true;
+		}
+		mStreamCount--;
+		mAwaitingFirstByte = false;
+		if (mStreamCount > 0) {
+			mTransferStartTimeMs = nowMs;
+		}
+		mBytesAccumulator = 0;
+
+		if (nowMs - mLastPersistTimeMs >= PERSIST_INTERVAL_MS) {
+			persist();
+		}
+	}
+
+	/** writes the current estimates to the preferences if they changed since the last write */
+	public synchronized void persist() {
+		mLastPersistTimeMs = mClock.elapsedRealtime();
+		if (!mEstimateChanged) {
+			return;
+		}
+		mEstimateChanged = false;
+		mPreferences.edit()
+				.putLong(KEY_BITRATE_ESTIMATE, mBitrateEstimate)
+				.putLong(KEY_TTFB_ESTIMATE_MS, mTtfbEstimateMs)
+				.apply();
+		Log.d(this.getClass().getSimpleName(), "persist : bitrate = " + mBitrateEstimate
+				+ ", ttfb ms = " + mTtfbEstimateMs);
+	}
+
+}
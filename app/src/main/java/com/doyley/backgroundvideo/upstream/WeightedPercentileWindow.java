@@ -0,0 +1,106 @@
+package com.doyley.backgroundvideo.upstream;
+
+/**
+ * Weighted percentile over a sliding window of samples.
+ *
+ * The window holds at most a fixed number of samples and a maximum total weight - the oldest samples
+ * are trimmed first, the last of them partially. Samples live in primitive arrays used as a ring in
+ * arrival order, next to an index of the same slots in ascending value order that is kept sorted by
+ * insertion. Adding a sample is linear in the window size and allocates nothing, which is cheap for the
+ * few dozen samples we keep.
+ *
+ * Not thread safe.
+ */
+public class WeightedPercentileWindow {
+
+	private final int mMaxWeight;
+
+	private final float[] mValues;
+	private final int[] mWeights;
+	// ring slots in ascending value order
+	private final int[] mValueOrder;
+
+	private int mOldest;
+	private int mCount;
+	private int mTotalWeight;
+
+	public WeightedPercentileWindow(int maxSamples, int maxWeight) {
+		mMaxWeight = maxWeight;
+		mValues = new float[maxSamples];
+		mWeights = new int[maxSamples];
+		mValueOrder = new int[maxSamples];
+	}
+
+	public void addSample(int weight, float value) {
+		if (weight <= 0) {
+			return;
+		}
+		if (mCount == mValues.length) {
+			removeOldest();
+		}
+
+		int slot = (mOldest + mCount) % mValues.length;
+		mValues[slot] = value;
+		mWeights[slot] = weight;
+		mTotalWeight += weight;
+
+		int position = mCount;
+		while (position > 0 && mValues[mValueOrder[position - 1]] > value) {
+			mValueOrder[position] = mValueOrder[position - 1];
+			position--;
+		}
+		mValueOrder[position] = slot;
+		mCount++;
+
+		while (mTotalWeight > mMaxWeight) {
+			int excess = mTotalWeight - mMaxWeight;
+			if (mWeights[mOldest] <= excess) {
+				removeOldest();
+			} else {
+				mWeights[mOldest] -= excess;
+				mTotalWeight -= excess;
+			}
+		}
+	}
+
+	/** the value at the given weighted percentile (0 to 1), or Float.NaN if there are no samples */
+	public float getPercentile(float percentile) {
+		if (mCount == 0) {
+			return Float.NaN;
+		}
+		float desiredWeight = percentile * mTotalWeight;
+		int accumulatedWeight = 0;
+		for (int i = 0; i < mCount; i++) {
+			int slot = mValueOrder[i];
+			accumulatedWeight += mWeights[slot];
+			if (accumulatedWeight >= desiredWeight) {
+				return mValues[slot];
+			}
+		}
+		return mValues[mValueOrder[mCount - 1]];
+	}
+
+	public int getSampleCount() {
+		return mCount;
+	}
+
+	public void clear() {
+		mOldest = 0;
+		mCount = 0;
+		mTotalWeight = 0;
+	}
+
+	private void removeOldest() {
+		int slot = mOldest;
+		mOldest = (mOldest + 1) % mValues.length;
+		mCount--;
+		mTotalWeight -= mWeights[slot];
+
+		int position = 0;
+		while (mValueOrder[position] != slot) {
+			position++;
+		}
+		System.arraycopy(mValueOrder, position + 1, mValueOrder, position, mCount - position);
+	}
+
+}
@@ -0,0 +1,203 @@
+package com.doyley.backgroundvideo.audio;
+
+import com.google.android.exoplayer.audio.AudioTrack;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives the sink from the test thread the way the renderer does, against a {@link FakeAudioOutput} the test
+ * plays out by hand - the sink's writer thread is the real one.
+ */
+public class BufferedAudioSinkTest {
+
+	private static final int SAMPLE_RATE = 44100;
+	private static final int CHANNEL_COUNT = 2;
+	private static final int FRAME_SIZE = 2 * CHANNEL_COUNT;
+	private static final int OUTPUT_CAPACITY = 16384;
+	// 50ms
+	private static final int BUFFER_SIZE = 2205 * FRAME_SIZE;
+	private static final long BUFFER_DURATION_US = 50000;
+	private static final long TIMEOUT_MS = 5000;
+
+	private FakeAudioOutput mOutput;
+	private BufferedAudioSink mSink;
+
+	@Before
+	public void setUp() throws AudioTrack.InitializationException {
+		mOutput = new FakeAudioOutput(OUTPUT_CAPACITY, OUTPUT_CAPACITY);
+		mSink = new BufferedAudioSink(mOutput);
+		mSink.configure(SAMPLE_RATE, CHANNEL_COUNT);
+		assertEquals(7, mSink.initialize(7));
+		assertTrue(mSink.isInitialized());
+		assertEquals(SAMPLE_RATE, mOutput.getSampleRate());
+	}
+
+	@After
+	public void tearDown() {
+		mSink.reset();
+	}
+
+	@Test
+	public void everyByteReachesTheOutputInOrder() throws Exception {
+		mSink.play();
+		ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE + 100);
+		int bufferCount = 60;
+		byte[] expected = new byte[bufferCount * BUFFER_SIZE];
+		for (int i = 0; i < bufferCount; i++) {
+			for (int j = 0; j < BUFFER_SIZE; j++) {
+				byte value = (byte) (i * 31 + j);
+				buffer.put(100 + j, value);
+				expected[i * BUFFER_SIZE + j] = value;
+			}
+			int result;
+			while (((result = mSink.handleBuffer(buffer, 100, BUFFER_SIZE, i * BUFFER_DURATION_US))
+					& AudioSink.RESULT_BUFFER_CONSUMED) == 0) {
+				// the ring is full - the device plays some and the writer moves more on
+				assertEquals(0, result & AudioSink.RESULT_POSITION_DISCONTINUITY);
+				mOutput.playFrames(1024);
+				Thread.sleep(1);
+			}
+			assertEquals(0, result & AudioSink.RESULT_POSITION_DISCONTINUITY);
+		}
+		while (mOutput.getWrittenSize() < expected.length) {
+			mOutput.playAll();
+			waitForWrittenSize(Math.min(expected.length, (int) (mOutput.getPlayedFrames() * FRAME_SIZE) + 1));
+		}
+		assertArrayEquals(expected, mOutput.getWritten());
+		assertTrue(mSink.hasPendingData());
+		mOutput.playAll();
+		assertTrue(!mSink.hasPendingData());
+		// running dry at the end of the stream is not an underrun
+		Thread.sleep(20);
+		assertEquals(0, mSink.getUnderrunCount());
+	}
+
+	@Test
+	public void underrunIsCountedWhenAudioComesAgain() throws Exception {
+		mSink.play();
+		ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		handleWholeBuffer(buffer, 0);
+		waitForWrittenSize(BUFFER_SIZE);
+		mOutput.playAll();
+		// the writer finds the ring empty with everything played
+		Thread.sleep(20);
+		assertEquals(0, mSink.getUnderrunCount());
+
+		handleWholeBuffer(buffer, BUFFER_DURATION_US);
+		waitForWrittenSize(2 * BUFFER_SIZE);
+		long deadlineMs = System.currentTimeMillis() + TIMEOUT_MS;
+		while (mSink.getUnderrunCount() == 0 && System.currentTimeMillis() < deadlineMs) {
+			Thread.sleep(1);
+		}
+		assertEquals(1, mSink.getUnderrunCount());
+	}
+
+	@Test(expected = AudioTrack.WriteException.class)
+	public void writeErrorIsThrownOnTheNextBuffer() throws Exception {
+		mOutput.setWriteErrorCode(-6);
+		ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		long deadlineMs = System.currentTimeMillis() + TIMEOUT_MS;
+		for (int i = 0; System.currentTimeMillis() < deadlineMs; i++) {
+			handleWholeBuffer(buffer, i * BUFFER_DURATION_US);
+			Thread.sleep(5);
+		}
+	}
+
+	@Test
+	public void timestampJumpIsADiscontinuity() throws Exception {
+		ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		assertEquals(0, handleWholeBuffer(buffer, 1000000) & AudioSink.RESULT_POSITION_DISCONTINUITY);
+		// a little off is left alone
+		assertEquals(0, handleWholeBuffer(buffer, 1000000 + BUFFER_DURATION_US + 10000)
+				& AudioSink.RESULT_POSITION_DISCONTINUITY);
+		assertTrue((handleWholeBuffer(buffer, 5000000) & AudioSink.RESULT_POSITION_DISCONTINUITY) != 0);
+		// and after a seek the next buffer always resyncs
+		mSink.handleDiscontinuity();
+		assertTrue((handleWholeBuffer(buffer, 5000000 + BUFFER_DURATION_US + 10000)
+				& AudioSink.RESULT_POSITION_DISCONTINUITY) != 0);
+		assertEquals(0, handleWholeBuffer(buffer, 5000000 + 2 * BUFFER_DURATION_US + 10000)
+				& AudioSink.RESULT_POSITION_DISCONTINUITY);
+	}
+
+	@Test
+	public void positionFollowsPlayedFramesAndNeverPassesWhatWasWritten() throws Exception {
+		assertEquals(AudioSink.CURRENT_POSITION_NOT_SET, mSink.getCurrentPositionUs(false));
+		ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		handleWholeBuffer(buffer, 2000000);
+		waitForWrittenSize(BUFFER_SIZE);
+		assertEquals(2000000, mSink.getCurrentPositionUs(false));
+
+		mSink.play();
+		mOutput.playFrames(SAMPLE_RATE / 100);
+		assertEquals(2010000, mSink.getCurrentPositionUs(false));
+		mOutput.playAll();
+		mSink.pause();
+		mSink.play();
+		assertEquals(2000000 + BUFFER_DURATION_US, mSink.getCurrentPositionUs(false));
+		// run on with the system clock between samples, but not past the end of the audio
+		Thread.sleep(10);
+		assertEquals(2000000 + BUFFER_DURATION_US, mSink.getCurrentPositionUs(false));
+	}
+
+	@Test
+	public void fillAndWriteLatencyAreReported() throws Exception {
+		assertTrue(!mSink.hasEnoughDataToBeginPlayback());
+		// four blocks go through to the output, the rest stay in the ring
+		ByteBuffer buffer = ByteBuffer.allocate(10 * 4096);
+		handleWholeBuffer(buffer, 0);
+		assertTrue(mSink.hasEnoughDataToBeginPlayback());
+		waitForWrittenSize(OUTPUT_CAPACITY);
+		long deadlineMs = System.currentTimeMillis() + TIMEOUT_MS;
+		while (mSink.getWriteLatencyUs().getCount() < 4 && System.currentTimeMillis() < deadlineMs) {
+			Thread.sleep(1);
+		}
+		assertEquals(4, mSink.getWriteLatencyUs().getCount());
+		// 6 of the 22 blocks of half a second
+		assertEquals(6 * 1000 / 22, mSink.getFillPerMille());
+	}
+
+	@Test
+	public void resetStopsTheWriterAndReleasesTheOutput() throws Exception {
+		mSink.play();
+		mSink.setVolume(0.5f);
+		assertEquals(0.5f, mOutput.getVolume(), 0);
+		handleWholeBuffer(ByteBuffer.allocate(BUFFER_SIZE), 0);
+		mSink.reset();
+		assertTrue(!mSink.isInitialized());
+		assertEquals(1, mOutput.getReleaseCount());
+		assertEquals(0, mSink.getFillPerMille());
+		assertEquals(AudioSink.CURRENT_POSITION_NOT_SET, mSink.getCurrentPositionUs(false));
+		// resetting twice does nothing more
+		mSink.reset();
+		assertEquals(1, mOutput.getReleaseCount());
+
+		mSink.initialize(0);
+		handleWholeBuffer(ByteBuffer.allocate(BUFFER_SIZE), 3000000);
+		waitForWrittenSize(BUFFER_SIZE);
+		assertEquals(3000000, mSink.getCurrentPositionUs(false));
+	}
+
+	/** hands the whole of buffer to the sink, which has to have room for it - returns the result */
+	private int handleWholeBuffer(ByteBuffer buffer, long presentationTimeUs) throws AudioTrack.WriteException {
+		int result = mSink.handleBuffer(buffer, 0, buffer.capacity(), presentationTimeUs);
+		assertTrue((result & AudioSink.RESULT_BUFFER_CONSUMED) != 0);
+		return result;
+	}
+
+	private void waitForWrittenSize(int size) throws InterruptedException {
+		long deadlineMs = System.currentTimeMillis() + TIMEOUT_MS;
+		while (mOutput.getWrittenSize() < size && System.currentTimeMillis() < deadlineMs) {
+			Thread.sleep(1);
+		}
+		assertTrue(mOutput.getWrittenSize() >= size);
+	}
+
+}
@@ -0,0 +1,125 @@
+package com.doyley.backgroundvideo.audio;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An {@link AudioOutput} that keeps everything written to it and plays only when the test says so - like a
+ * track it holds capacity bytes that have not been played yet, and takes no more than that.
+ */
+public class FakeAudioOutput implements AudioOutput {
+
+	private final int mCapacity;
+	private final int mStartThreshold;
+	private final ByteArrayOutputStream mWritten = new ByteArrayOutputStream();
+
+	private int mSampleRate;
+	private int mFrameSize;
+	private long mPlayedFrames;
+	private boolean mPlaying;
+	private int mWriteErrorCode;
+	private int mReleaseCount;
+	private float mVolume = 1f;
+
+	public FakeAudioOutput(int capacity, int startThreshold) {
+		mCapacity = capacity;
+		mStartThreshold = startThreshold;
+	}
+
+	@Override
+	public synchronized int open(int sampleRate, int channelCount, int sessionId) {
+		mSampleRate = sampleRate;
+		mFrameSize = 2 * channelCount;
+		mWritten.reset();
+		mPlayedFrames = 0;
+		return sessionId == 0 ? 1 : sessionId;
+	}
+
+	@Override
+	public int getStartThreshold() {
+		return mStartThreshold;
+	}
+
+	@Override
+	public synchronized int write(ByteBuffer data, int size) {
+		if (mWriteErrorCode != 0) {
+			return mWriteErrorCode;
+		}
+		int free = (int) (mCapacity - (mWritten.size() - mPlayedFrames * mFrameSize));
+		int length = Math.min(size, free);
+		for (int i = 0; i < length; i++) {
+			mWritten.write(data.get());
+		}
+		return length;
+	}
+
+	@Override
+	public synchronized long getPlayedFrames() {
+		return mPlayedFrames;
+	}
+
+	@Override
+	public synchronized void play() {
+		mPlaying = true;
+	}
+
+	@Override
+	public synchronized void pause() {
+		mPlaying = false;
+	}
+
+	@Override
+	public synchronized void setVolume(float volume) {
+		mVolume = volume;
+	}
+
+	@Override
+	public synchronized void release() {
+		mReleaseCount++;
+	}
+
+	/** plays up to frames of what has been written, if playing - returns the frames played */
+	public synchronized long playFrames(long frames) {
+		if (!mPlaying) {
+			return 0;
+		}
+		long played = Math.min(frames, mWritten.size() / mFrameSize - mPlayedFrames);
+		mPlayedFrames += played;
+		return played;
+	}
+
+	/** plays everything written so far, if playing */
+	public synchronized long playAll() {
+		return playFrames(Long.MAX_VALUE);
+	}
+
+	/** makes every write from now on fail with the given code */
+	public synchronized void setWriteErrorCode(int errorCode) {
+		mWriteErrorCode = errorCode;
+	}
+
+	public synchronized int getWrittenSize() {
+		return mWritten.size();
+	}
+
+	public synchronized byte[] getWritten() {
+		return mWritten.toByteArray();
+	}
+
+	public synchronized int getSampleRate() {
+		return mSampleRate;
+	}
+
+	public synchronized boolean isPlaying() {
+		return mPlaying;
+	}
+
+	public synchronized int getReleaseCount() {
+		return mReleaseCount;
+	}
+
+	public synchronized float getVolume() {
+		return mVolume;
+	}
+
+}
@@ -0,0 +1,42 @@
+package com.doyley.backgroundvideo.audio;
+
+import com.doyley.backgroundvideo.benchmark.Benchmark;
+
+/** what measuring and normalizing cost per sample, on a minute of stereo */
+public class LoudnessMeterBenchmark extends Benchmark {
+
+	private static final int SAMPLE_RATE = 48000;
+	private static final int BLOCK_FRAMES = 1024;
+	private static final int SECONDS = 60;
+
+	@Override
+	protected void measure() throws Exception {
+		final short[] samples = LoudnessMeterTest.createTone(1000, -23, SECONDS, 2);
+		long meterNs = bestNs(new Run() {
+			@Override
+			public long run() {
+				LoudnessMeter meter = LoudnessMeterTest.createMeter(2);
+				LoudnessMeterTest.measure(meter, samples, 2);
+				return meter.getGatedDurationMs();
+			}
+		});
+
+		// normalized in place, so on a copy
+		final short[] normalized = new short[samples.length];
+		long normalizerNs = bestNs(new Run() {
+			@Override
+			public long run() {
+				System.arraycopy(samples, 0, normalized, 0, samples.length);
+				LoudnessNormalizer normalizer = new LoudnessNormalizer(Float.NaN, 0);
+				normalizer.configure(SAMPLE_RATE, 2);
+				for (int offset = 0; offset < normalized.length; offset += BLOCK_FRAMES * 2) {
+					normalizer.process(normalized, offset, Math.min(BLOCK_FRAMES, (normalized.length - offset) / 2));
+				}
+				return normalized[normalized.length - 1];
+			}
+		});
+		report("meter : %.2fns per sample, normalizer : %.2fns per sample", (double) meterNs / samples.length,
+				(double) normalizerNs / samples.length);
+	}
+
+}
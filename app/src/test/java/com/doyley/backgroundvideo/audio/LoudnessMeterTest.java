@@ -0,0 +1,172 @@
+package com.doyley.backgroundvideo.audio;
+
+import org.junit.Test;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The stereo cases are from the minimum requirements of EBU Tech 3341, with the 1kHz tones made here rather
+ * than read from the reference files.
+ */
+public class LoudnessMeterTest {
+
+	private static final int SAMPLE_RATE = 48000;
+	private static final float TOLERANCE_LU = 0.1f;
+	private static final int BLOCK_FRAMES = 1024;
+
+	@Test
+	public void toneAtMinus23dBFSIsMinus23Lufs() {
+		LoudnessMeter meter = createMeter(2);
+		measure(meter, createTone(1000, -23, 20, 2), 2);
+		assertEquals(-23f, meter.getIntegratedLoudness(), TOLERANCE_LU);
+		assertEquals(-23f, meter.getMomentaryLoudness(), TOLERANCE_LU);
+	}
+
+	@Test
+	public void toneAtMinus33dBFSIsMinus33Lufs() {
+		LoudnessMeter meter = createMeter(2);
+		measure(meter, createTone(1000, -33, 20, 2), 2);
+		assertEquals(-33f, meter.getIntegratedLoudness(), TOLERANCE_LU);
+	}
+
+	@Test
+	public void quietPassagesAreGatedOut() {
+		LoudnessMeter meter = createMeter(2);
+		measure(meter, createTone(1000, -36, 10, 2), 2);
+		measure(meter, createTone(1000, -23, 60, 2), 2);
+		measure(meter, createTone(1000, -36, 10, 2), 2);
+		assertEquals(-23f, meter.getIntegratedLoudness(), TOLERANCE_LU);
+
+		meter = createMeter(2);
+		measure(meter, createTone(1000, -72, 10, 2), 2);
+		measure(meter, createTone(1000, -36, 10, 2), 2);
+		measure(meter, createTone(1000, -23, 60, 2), 2);
+		measure(meter, createTone(1000, -36, 10, 2), 2);
+		measure(meter, createTone(1000, -72, 10, 2), 2);
+		assertEquals(-23f, meter.getIntegratedLoudness(), TOLERANCE_LU);
+	}
+
+	@Test
+	public void loudnessIsTheMeanOfWhatPassesTheGates() {
+		LoudnessMeter meter = createMeter(2);
+		measure(meter, createTone(1000, -26, 20, 2), 2);
+		measure(meter, createTone(1000, -20, 20, 2), 2);
+		measure(meter, createTone(1000, -26, 20, 2), 2);
+		assertEquals(-23f, meter.getIntegratedLoudness(), TOLERANCE_LU);
+		assertEquals(-26f, meter.getMomentaryLoudness(), TOLERANCE_LU);
+	}
+
+	@Test
+	public void silenceHasNoLoudness() {
+		LoudnessMeter meter = createMeter(2);
+		measure(meter, new short[10 * SAMPLE_RATE * 2], 2);
+		assertTrue(Float.isNaN(meter.getIntegratedLoudness()));
+		assertEquals(0, meter.getGatedDurationMs());
+		measure(meter, createTone(1000, -75, 10, 2), 2);
+		assertTrue(Float.isNaN(meter.getIntegratedLoudness()));
+	}
+
+	@Test
+	public void gatedDurationCountsTheBlocksThatPassed() {
+		LoudnessMeter meter = createMeter(2);
+		measure(meter, createTone(1000, -23, 10, 2), 2);
+		// the first block ends 400ms in, then one every 100ms
+		assertEquals(10000 - 300, meter.getGatedDurationMs());
+	}
+
+	@Test
+	public void surroundChannelsCountMoreAndTheLfeNotAtAll() {
+		float[] loudness = new float[6];
+		for (int channel = 0; channel < 6; channel++) {
+			LoudnessMeter meter = createMeter(6);
+			measure(meter, createToneInChannel(1000, -23, 10, 6, channel), 6);
+			loudness[channel] = meter.getIntegratedLoudness();
+		}
+		// one channel is half the energy of the stereo tone
+		float single = -23f - 3.01f;
+		assertEquals(single, loudness[0], TOLERANCE_LU);
+		assertEquals(single, loudness[1], TOLERANCE_LU);
+		assertEquals(single, loudness[2], TOLERANCE_LU);
+		assertTrue(Float.isNaN(loudness[3]));
+		assertEquals(single + 1.49f, loudness[4], TOLERANCE_LU);
+		assertEquals(single + 1.49f, loudness[5], TOLERANCE_LU);
+	}
+
+	@Test
+	public void lowFrequenciesAreWeightedDown() {
+		LoudnessMeter low = createMeter(2);
+		measure(low, createTone(30, -23, 10, 2), 2);
+		LoudnessMeter high = createMeter(2);
+		measure(high, createTone(4000, -23, 10, 2), 2);
+		// the high pass takes a few dB off 30Hz and the shelf adds a few dB at 4kHz
+		assertTrue(low.getIntegratedLoudness() < -25f);
+		assertTrue(high.getIntegratedLoudness() > -21f);
+	}
+
+	@Test
+	public void resetBlockKeepsWhatWasMeasured() {
+		LoudnessMeter meter = createMeter(2);
+		measure(meter, createTone(1000, -23, 10, 2), 2);
+		long durationMs = meter.getGatedDurationMs();
+		meter.resetBlock();
+		assertEquals(-23f, meter.getIntegratedLoudness(), TOLERANCE_LU);
+		assertEquals(durationMs, meter.getGatedDurationMs());
+		measure(meter, createTone(1000, -23, 10, 2), 2);
+		assertEquals(-23f, meter.getIntegratedLoudness(), TOLERANCE_LU);
+		assertEquals(2 * durationMs, meter.getGatedDurationMs());
+	}
+
+	@Test
+	public void blockSizeDoesNotChangeTheResult() {
+		short[] samples = createTone(440, -18, 5, 2);
+		LoudnessMeter whole = createMeter(2);
+		whole.process(samples, 0, samples.length / 2);
+		LoudnessMeter blocks = createMeter(2);
+		int frames = samples.length / 2;
+		for (int offset = 0, size = 1; offset < frames; offset += size, size = size * 3 % 997 + 1) {
+			blocks.process(samples, offset * 2, Math.min(size, frames - offset));
+		}
+		assertEquals(whole.getIntegratedLoudness(), blocks.getIntegratedLoudness(), 0.001f);
+		assertEquals(whole.getGatedDurationMs(), blocks.getGatedDurationMs());
+	}
+
+	static LoudnessMeter createMeter(int channels) {
+		LoudnessMeter meter = new LoudnessMeter();
+		meter.configure(SAMPLE_RATE, channels);
+		return meter;
+	}
+
+	/** measures samples in blocks, the way the renderer hands them over */
+	static void measure(LoudnessMeter meter, short[] samples, int channels) {
+		int frames = samples.length / channels;
+		for (int offset = 0; offset < frames; offset += BLOCK_FRAMES) {
+			meter.process(samples, offset * channels, Math.min(BLOCK_FRAMES, frames - offset));
+		}
+	}
+
+	/** a sine with its peak at level dBFS, in every channel */
+	static short[] createTone(int frequency, float level, int seconds, int channels) {
+		short[] samples = new short[seconds * SAMPLE_RATE * channels];
+		double amplitude = 32768 * Math.pow(10, level / 20);
+		for (int i = 0; i < seconds * SAMPLE_RATE; i++) {
+			short sample = (short) Math.round(amplitude * Math.sin(2 * Math.PI * frequency * i / SAMPLE_RATE));
+			for (int c = 0; c < channels; c++) {
+				samples[i * channels + c] = sample;
+			}
+		}
+		return samples;
+	}
+
+	private static short[] createToneInChannel(int frequency, float level, int seconds, int channels, int channel) {
+		short[] tone = createTone(frequency, level, seconds, channels);
+		for (int i = 0; i < tone.length; i++) {
+			if (i % channels != channel) {
+				tone[i] = 0;
+			}
+		}
+		return tone;
+	}
+
+}
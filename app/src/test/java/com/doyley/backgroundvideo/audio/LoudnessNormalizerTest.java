@@ -0,0 +1,86 @@
+package com.doyley.backgroundvideo.audio;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LoudnessNormalizerTest {
+
+	private static final int SAMPLE_RATE = 48000;
+	private static final int BLOCK_FRAMES = 1024;
+
+	@Test
+	public void quietAudioIsBroughtUpToTheTarget() {
+		LoudnessNormalizer normalizer = createNormalizer(Float.NaN, 0);
+		short[] samples = LoudnessMeterTest.createTone(1000, -26, 30, 2);
+		process(normalizer, samples);
+		assertEquals(-26f, normalizer.getLoudness(), 0.1f);
+		assertEquals(10f, normalizer.getTargetGainDb(), 0.1f);
+
+		// the last few seconds are at the target
+		LoudnessMeter meter = new LoudnessMeter();
+		meter.configure(SAMPLE_RATE, 2);
+		int frames = 5 * SAMPLE_RATE;
+		meter.process(samples, samples.length - frames * 2, frames);
+		assertEquals(LoudnessNormalizer.TARGET_LOUDNESS_LUFS, meter.getIntegratedLoudness(), 0.2f);
+	}
+
+	@Test
+	public void gainStaysAtZeroUntilThereIsAnEstimate() {
+		LoudnessNormalizer normalizer = createNormalizer(Float.NaN, 0);
+		short[] samples = LoudnessMeterTest.createTone(1000, -26, 2, 2);
+		short[] original = samples.clone();
+		process(normalizer, samples);
+		assertTrue(Float.isNaN(normalizer.getLoudness()));
+		assertEquals(0f, normalizer.getTargetGainDb(), 0);
+		for (int i = 0; i < samples.length; i++) {
+			assertEquals(original[i], samples[i]);
+		}
+	}
+
+	@Test
+	public void knownLoudnessIsUsedFromTheFirstSample() {
+		LoudnessNormalizer normalizer = createNormalizer(-22f, 60000);
+		assertEquals(6f, normalizer.getTargetGainDb(), 0.001f);
+		assertEquals(60000, normalizer.getLoudnessDurationMs());
+		short[] samples = new short[] {1000, -1000, 2000, -2000};
+		normalizer.process(samples, 0, 2);
+		assertEquals(1995, samples[0], 2);
+		assertEquals(-1995, samples[1], 2);
+		assertEquals(3991, samples[2], 2);
+
+		// and until more than it was measured over has been measured again
+		short[] tone = LoudnessMeterTest.createTone(1000, -30, 20, 2);
+		process(normalizer, tone);
+		assertEquals(-22f, normalizer.getLoudness(), 0);
+	}
+
+	@Test
+	public void gainIsLimitedAndPeaksDoNotWrap() {
+		LoudnessNormalizer normalizer = createNormalizer(-40f, 60000);
+		assertEquals(12f, normalizer.getTargetGainDb(), 0.001f);
+		short[] samples = LoudnessMeterTest.createTone(1000, -6, 5, 2);
+		short[] original = samples.clone();
+		process(normalizer, samples);
+		for (int i = 0; i < samples.length; i++) {
+			// clamped, never wrapped round to the other sign
+			assertTrue(original[i] == 0 || (original[i] > 0) == (samples[i] > 0));
+			assertTrue(Math.abs(samples[i]) >= Math.abs(original[i]));
+		}
+	}
+
+	private static LoudnessNormalizer createNormalizer(float knownLoudnessLufs, long knownDurationMs) {
+		LoudnessNormalizer normalizer = new LoudnessNormalizer(knownLoudnessLufs, knownDurationMs);
+		normalizer.configure(SAMPLE_RATE, 2);
+		return normalizer;
+	}
+
+	/** normalizes stereo samples in blocks, the way the renderer hands them over */
+	private static void process(LoudnessNormalizer normalizer, short[] samples) {
+		for (int offset = 0; offset < samples.length; offset += BLOCK_FRAMES * 2) {
+			normalizer.process(samples, offset, Math.min(BLOCK_FRAMES, (samples.length - offset) / 2));
+		}
+	}
+
+}
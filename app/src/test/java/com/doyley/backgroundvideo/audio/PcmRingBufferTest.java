@@ -0,0 +1,157 @@
+package com.doyley.backgroundvideo.audio;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PcmRingBufferTest {
+
+	private static final int BLOCK_COUNT = 4;
+	private static final int BLOCK_SIZE = 16;
+
+	@Test
+	public void offerFillsWholeBlocksAndPublishesTheRest() {
+		PcmRingBuffer ring = new PcmRingBuffer(BLOCK_COUNT, BLOCK_SIZE);
+		assertEquals(0, ring.size());
+		assertEquals(null, ring.peek());
+		ByteBuffer source = createSource(100);
+		source.position(3);
+		source.limit(90);
+
+		assertEquals(40, ring.offer(source, 10, 40));
+		// the source is left as it was
+		assertEquals(3, source.position());
+		assertEquals(90, source.limit());
+		assertEquals(3, ring.size());
+		assertBlock(ring.peek(), 10, BLOCK_SIZE);
+		ring.release();
+		assertBlock(ring.peek(), 26, BLOCK_SIZE);
+		ring.release();
+		// a short block is published too, so audio never waits in it
+		assertBlock(ring.peek(), 42, 8);
+		ring.release();
+		assertEquals(0, ring.size());
+		assertEquals(null, ring.peek());
+	}
+
+	@Test
+	public void offerStopsWhenTheRingIsFull() {
+		PcmRingBuffer ring = new PcmRingBuffer(BLOCK_COUNT, BLOCK_SIZE);
+		ByteBuffer source = createSource(200);
+		assertEquals(BLOCK_COUNT * BLOCK_SIZE, ring.offer(source, 0, 200));
+		assertEquals(BLOCK_COUNT, ring.size());
+		assertEquals(0, ring.offer(source, 64, 136));
+
+		ring.release();
+		assertEquals(BLOCK_SIZE, ring.offer(source, 64, 136));
+		assertEquals(BLOCK_COUNT, ring.size());
+	}
+
+	@Test
+	public void blocksComeOutInOrderAcrossTheWrap() {
+		PcmRingBuffer ring = new PcmRingBuffer(BLOCK_COUNT, BLOCK_SIZE);
+		ByteBuffer source = createSource(1000);
+		int offered = 0;
+		int drained = 0;
+		while (drained < 1000) {
+			offered += ring.offer(source, offered, Math.min(3 * BLOCK_SIZE, 1000 - offered));
+			// one block out for every three offered, so the ring runs full and wraps
+			ByteBuffer block = ring.peek();
+			int length = block.remaining();
+			assertBlock(block, drained, length);
+			block.position(block.limit());
+			ring.release();
+			drained += length;
+		}
+		assertEquals(1000, offered);
+		assertEquals(0, ring.size());
+	}
+
+	@Test
+	public void headEnqueueTimeIsWhenTheBlockWasPublished() {
+		PcmRingBuffer ring = new PcmRingBuffer(BLOCK_COUNT, BLOCK_SIZE);
+		long beforeNs = System.nanoTime();
+		ring.offer(createSource(BLOCK_SIZE), 0, BLOCK_SIZE);
+		long afterNs = System.nanoTime();
+		assertTrue(ring.getHeadEnqueueTimeNs() >= beforeNs);
+		assertTrue(ring.getHeadEnqueueTimeNs() <= afterNs);
+	}
+
+	@Test
+	public void clearDropsEveryBlock() {
+		PcmRingBuffer ring = new PcmRingBuffer(BLOCK_COUNT, BLOCK_SIZE);
+		ByteBuffer source = createSource(100);
+		ring.offer(source, 0, 100);
+		ring.clear();
+		assertEquals(0, ring.size());
+		assertEquals(null, ring.peek());
+		assertEquals(BLOCK_COUNT * BLOCK_SIZE, ring.offer(source, 0, 100));
+		assertBlock(ring.peek(), 0, BLOCK_SIZE);
+	}
+
+	@Test
+	public void producerAndConsumerThreadsPassEveryByteInOrder() throws InterruptedException {
+		final int total = 4 * 1024 * 1024;
+		final PcmRingBuffer ring = new PcmRingBuffer(8, 512);
+		final int[] mismatch = new int[] {-1};
+		Thread consumer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				int received = 0;
+				while (received < total) {
+					ByteBuffer block = ring.peek();
+					if (block == null) {
+						Thread.yield();
+						continue;
+					}
+					while (block.hasRemaining()) {
+						if (block.get() != (byte) received && mismatch[0] == -1) {
+							mismatch[0] = received;
+						}
+						received++;
+					}
+					ring.release();
+				}
+			}
+		});
+		consumer.start();
+
+		// a multiple of 256 long, so going round it keeps the bytes counting up
+		ByteBuffer source = createSource(11 * 256);
+		int sent = 0;
+		int offset = 0;
+		while (sent < total) {
+			int size = Math.min(source.capacity() - offset, total - sent);
+			int copied = ring.offer(source, offset, size);
+			if (copied == 0) {
+				Thread.yield();
+			}
+			sent += copied;
+			offset = (offset + copied) % source.capacity();
+		}
+		consumer.join(10000);
+		assertTrue(!consumer.isAlive());
+		assertEquals(-1, mismatch[0]);
+		assertEquals(0, ring.size());
+	}
+
+	/** a buffer where byte i holds (byte) i */
+	private static ByteBuffer createSource(int size) {
+		ByteBuffer source = ByteBuffer.allocate(size);
+		for (int i = 0; i < size; i++) {
+			source.put(i, (byte) i);
+		}
+		return source;
+	}
+
+	private static void assertBlock(ByteBuffer block, int start, int length) {
+		assertEquals(length, block.remaining());
+		for (int i = 0; i < length; i++) {
+			assertEquals((byte) (start + i), block.get(block.position() + i));
+		}
+	}
+
+}
@@ -0,0 +1,43 @@
+package com.doyley.backgroundvideo.audio;
+
+import com.doyley.backgroundvideo.benchmark.Benchmark;
+
+/** frames stretched per second at the speeds a listener picks from */
+public class TimeStretcherBenchmark extends Benchmark {
+
+	private static final int SAMPLE_RATE = 44100;
+	private static final int CHANNELS = 2;
+	private static final int BLOCK_FRAMES = 1024;
+	private static final int SECONDS = 20;
+
+	@Override
+	protected void measure() throws Exception {
+		// whole blocks only
+		final short[] input = TimeStretcherTest.createTone(180,
+				SECONDS * SAMPLE_RATE / BLOCK_FRAMES * BLOCK_FRAMES);
+		final short[] output = new short[BLOCK_FRAMES * CHANNELS * 4];
+		for (float speed : TimeStretcherTest.SPEEDS) {
+			final TimeStretcher stretcher = new TimeStretcher(SAMPLE_RATE, CHANNELS);
+			stretcher.setSpeed(speed);
+			long bestNs = bestNs(new Run() {
+				@Override
+				public long run() {
+					stretcher.reset();
+					long outputFrames = 0;
+					for (int offset = 0; offset < input.length; offset += BLOCK_FRAMES * CHANNELS) {
+						stretcher.queueInput(input, offset, BLOCK_FRAMES);
+						int read;
+						while ((read = stretcher.readOutput(output, 0, output.length / CHANNELS)) > 0) {
+							outputFrames += read;
+						}
+					}
+					return outputFrames;
+				}
+			});
+			double framesPerSecond = input.length / CHANNELS * 1e9 / bestNs;
+			report("speed %.2f : %.1fM frames/s, %.0fx realtime", speed, framesPerSecond / 1e6,
+					framesPerSecond / SAMPLE_RATE);
+		}
+	}
+
+}
@@ -0,0 +1,158 @@
+package com.doyley.backgroundvideo.audio;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TimeStretcherTest {
+
+	private static final int SAMPLE_RATE = 44100;
+	private static final int CHANNELS = 2;
+	private static final int BLOCK_FRAMES = 1024;
+	static final float[] SPEEDS = new float[] {0.5f, 0.75f, 1.25f, 1.5f, 2f, 3f};
+
+	@Test
+	public void normalSpeedPassesTheInputThrough() {
+		short[] input = createNoise(3 * SAMPLE_RATE);
+		TimeStretcher stretcher = new TimeStretcher(SAMPLE_RATE, CHANNELS);
+		short[] output = process(stretcher, input, 1f);
+		assertArrayEquals(input, output);
+	}
+
+	@Test
+	public void outputLengthIsInputLengthOverSpeed() {
+		short[] input = createTone(220, 10 * SAMPLE_RATE);
+		int inputFrames = input.length / CHANNELS;
+		for (float speed : SPEEDS) {
+			TimeStretcher stretcher = new TimeStretcher(SAMPLE_RATE, CHANNELS);
+			int outputFrames = process(stretcher, input, speed).length / CHANNELS;
+			float expected = inputFrames / speed;
+			assertTrue(Math.abs(outputFrames - expected) < expected * 0.02f);
+		}
+	}
+
+	@Test
+	public void pitchIsKept() {
+		short[] input = createTone(220, 10 * SAMPLE_RATE);
+		float inputRate = getZeroCrossingRate(input);
+		for (float speed : SPEEDS) {
+			TimeStretcher stretcher = new TimeStretcher(SAMPLE_RATE, CHANNELS);
+			float outputRate = getZeroCrossingRate(process(stretcher, input, speed));
+			// a resampler would have moved the tone to 220 * speed
+			assertTrue(Math.abs(outputRate - inputRate) < inputRate * 0.05f);
+		}
+	}
+
+	@Test
+	public void byteBuffersGiveTheSameOutputAsShortArrays() {
+		short[] input = createTone(150, 3 * SAMPLE_RATE);
+		TimeStretcher shorts = new TimeStretcher(SAMPLE_RATE, CHANNELS);
+		short[] expected = process(shorts, input, 1.5f);
+
+		TimeStretcher bytes = new TimeStretcher(SAMPLE_RATE, CHANNELS);
+		bytes.setSpeed(1.5f);
+		ByteBuffer pcm = ByteBuffer.allocate(BLOCK_FRAMES * CHANNELS * 2).order(ByteOrder.nativeOrder());
+		ByteBuffer target = ByteBuffer.allocate(4 * BLOCK_FRAMES * CHANNELS * 2).order(ByteOrder.nativeOrder());
+		short[] output = new short[expected.length];
+		int outputSamples = 0;
+		for (int offset = 0; offset < input.length; offset += BLOCK_FRAMES * CHANNELS) {
+			int samples = Math.min(BLOCK_FRAMES * CHANNELS, input.length - offset);
+			pcm.asShortBuffer().put(input, offset, samples);
+			bytes.queueInput(pcm, 0, samples * 2);
+			outputSamples = drain(bytes, target, output, outputSamples);
+		}
+		bytes.flush();
+		outputSamples = drain(bytes, target, output, outputSamples);
+		assertEquals(expected.length, outputSamples);
+		assertArrayEquals(expected, output);
+	}
+
+	@Test
+	public void speedIsClamped() {
+		TimeStretcher stretcher = new TimeStretcher(SAMPLE_RATE, CHANNELS);
+		stretcher.setSpeed(0.1f);
+		assertEquals(TimeStretcher.MIN_SPEED, stretcher.getSpeed(), 0);
+		stretcher.setSpeed(10f);
+		assertEquals(TimeStretcher.MAX_SPEED, stretcher.getSpeed(), 0);
+	}
+
+	@Test
+	public void resetDropsInputAndOutput() {
+		TimeStretcher stretcher = new TimeStretcher(SAMPLE_RATE, CHANNELS);
+		stretcher.setSpeed(2f);
+		short[] input = createTone(220, SAMPLE_RATE);
+		stretcher.queueInput(input, 0, input.length / CHANNELS);
+		assertTrue(stretcher.getOutputFramesAvailable() > 0);
+		assertTrue(stretcher.getInputFramesPending() > 0);
+		stretcher.reset();
+		assertEquals(0, stretcher.getOutputFramesAvailable());
+		assertEquals(0, stretcher.getInputFramesPending());
+		stretcher.flush();
+		assertEquals(0, stretcher.getOutputFramesAvailable());
+	}
+
+	/** all the output of input fed through in blocks at the given speed */
+	private static short[] process(TimeStretcher stretcher, short[] input, float speed) {
+		stretcher.setSpeed(speed);
+		short[] output = new short[(int) (input.length / speed) + 4 * BLOCK_FRAMES * CHANNELS];
+		int outputFrames = 0;
+		for (int offset = 0; offset < input.length; offset += BLOCK_FRAMES * CHANNELS) {
+			int frames = Math.min(BLOCK_FRAMES, (input.length - offset) / CHANNELS);
+			stretcher.queueInput(input, offset, frames);
+			outputFrames += stretcher.readOutput(output, outputFrames * CHANNELS, Integer.MAX_VALUE);
+		}
+		stretcher.flush();
+		outputFrames += stretcher.readOutput(output, outputFrames * CHANNELS, Integer.MAX_VALUE);
+		short[] result = new short[outputFrames * CHANNELS];
+		System.arraycopy(output, 0, result, 0, result.length);
+		return result;
+	}
+
+	private static int drain(TimeStretcher stretcher, ByteBuffer target, short[] output, int outputSamples) {
+		int size;
+		while ((size = stretcher.readOutput(target)) > 0) {
+			for (int i = 0; i < size / 2; i++) {
+				output[outputSamples++] = target.getShort(2 * i);
+			}
+		}
+		return outputSamples;
+	}
+
+	/** zero crossings per frame, of the first channel */
+	private static float getZeroCrossingRate(short[] samples) {
+		int crossings = 0;
+		for (int i = CHANNELS; i < samples.length; i += CHANNELS) {
+			if ((samples[i - CHANNELS] < 0) != (samples[i] < 0)) {
+				crossings++;
+			}
+		}
+		return (float) crossings / (samples.length / CHANNELS);
+	}
+
+	static short[] createTone(int frequency, int frames) {
+		short[] samples = new short[frames * CHANNELS];
+		for (int i = 0; i < frames; i++) {
+			short sample = (short) (10000 * Math.sin(2 * Math.PI * frequency * i / SAMPLE_RATE));
+			for (int c = 0; c < CHANNELS; c++) {
+				samples[i * CHANNELS + c] = sample;
+			}
+		}
+		return samples;
+	}
+
+	private static short[] createNoise(int frames) {
+		Random random = new Random(3);
+		short[] samples = new short[frames * CHANNELS];
+		for (int i = 0; i < samples.length; i++) {
+			samples[i] = (short) random.nextInt(1 << 16);
+		}
+		return samples;
+	}
+
+}
@@ -0,0 +1,63 @@
+package com.doyley.backgroundvideo.benchmark;
+
+import java.util.Locale;
+
+/**
+ * Times the hot paths the unit tests check for correctness. A benchmark has no @Test methods, so the unit
+ * test run leaves it out - {@link #main} runs them all, or the ones whose class names it is given, from the
+ * unit test classpath. Every time measured is the best of a few runs, the first ones warming the JIT up.
+ */
+public abstract class Benchmark {
+
+	private static final int RUNS = 5;
+
+	private static final String[] ALL = {
+			"com.doyley.backgroundvideo.audio.LoudnessMeterBenchmark",
+			"com.doyley.backgroundvideo.audio.TimeStretcherBenchmark",
+			"com.doyley.backgroundvideo.dash.BufferAwareFormatEvaluatorBenchmark",
+			"com.doyley.backgroundvideo.extractor.Mp4SampleExtractorBenchmark",
+			"com.doyley.backgroundvideo.hls.StreamingPlaylistParserBenchmark",
+			"com.doyley.backgroundvideo.source.ReadAheadInputSourceBenchmark",
+			"com.doyley.backgroundvideo.text.CueIndexBenchmark"};
+
+	/** one timed run - returns something computed from its work, so the JIT cannot leave the work out */
+	protected interface Run {
+		long run() throws Exception;
+	}
+
+	private long mSink;
+
+	/** times what the benchmark is about and reports it */
+	protected abstract void measure() throws Exception;
+
+	/** the best time of a few runs, in nanoseconds */
+	protected final long bestNs(Run run) throws Exception {
+		return bestNs(RUNS, run);
+	}
+
+	protected final long bestNs(int runs, Run run) throws Exception {
+		long bestNs = Long.MAX_VALUE;
+		for (int i = 0; i < runs; i++) {
+			long startNs = System.nanoTime();
+			mSink += run.run();
+			bestNs = Math.min(bestNs, System.nanoTime() - startNs);
+		}
+		return bestNs;
+	}
+
+	protected final void report(String format, Object... args) {
+		System.out.println(getClass().getSimpleName() + " : " + String.format(Locale.US, format, args));
+	}
+
+	public static void main(String[] args) throws Exception {
+		for (String name : args.length > 0 ? args : ALL) {
+			Benchmark benchmark = (Benchmark) Class.forName(name).newInstance();
+			benchmark.measure();
+			if (benchmark.mSink == 42) {
+				// never, but the JIT cannot know that
+				System.out.println();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,27 @@
+package com.doyley.backgroundvideo.dash;
+
+import com.doyley.backgroundvideo.benchmark.Benchmark;
+
+/**
+ * The sessions the evaluator tests replay, reported so evaluator changes can be compared - rebuffers,
+ * startup and average bitrate rather than time.
+ */
+public class BufferAwareFormatEvaluatorBenchmark extends Benchmark {
+
+	@Override
+	protected void measure() {
+		report("steady 8Mbps : %s", BufferAwareFormatEvaluatorTest.replay(
+				BufferAwareFormatEvaluatorTest.constantTrace(8000, 400)));
+		report("steady 700kbps : %s", BufferAwareFormatEvaluatorTest.replay(
+				BufferAwareFormatEvaluatorTest.constantTrace(700, 400)));
+		report("6Mbps, 60s at 800kbps : %s", BufferAwareFormatEvaluatorTest.replay(
+				BufferAwareFormatEvaluatorTest.dropTrace()));
+		report("10s at 5Mbps, 10s at 1.5Mbps : %s", BufferAwareFormatEvaluatorTest.replay(
+				BufferAwareFormatEvaluatorTest.fluctuatingTrace()));
+		report("random walk 200kbps-8Mbps : %s", BufferAwareFormatEvaluatorTest.replay(
+				BufferAwareFormatEvaluatorTest.randomWalkTrace()));
+		report("6Mbps, 60s at 150kbps : %s", BufferAwareFormatEvaluatorTest.replay(
+				BufferAwareFormatEvaluatorTest.outageTrace()));
+	}
+
+}
@@ -0,0 +1,340 @@
+package com.doyley.backgroundvideo.dash;
+
+import android.net.Uri;
+
+import com.google.android.exoplayer.MediaFormat;
+import com.google.android.exoplayer.SampleHolder;
+import com.google.android.exoplayer.chunk.Format;
+import com.google.android.exoplayer.chunk.FormatEvaluator;
+import com.google.android.exoplayer.chunk.MediaChunk;
+import com.google.android.exoplayer.upstream.BandwidthMeter;
+import com.google.android.exoplayer.upstream.DataSource;
+import com.google.android.exoplayer.upstream.DataSpec;
+import com.google.android.exoplayer.util.Clock;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays throughput traces against the evaluator in virtual time - segments are fetched one at a time at the
+ * rate the trace gives, playback drains the buffer, and the session reports rebuffer time and average bitrate.
+ */
+public class BufferAwareFormatEvaluatorTest {
+
+	private static final Format[] FORMATS = new Format[] {
+			createFormat(1080, 4000000),
+			createFormat(720, 2500000),
+			createFormat(480, 1200000),
+			createFormat(360, 600000),
+			createFormat(240, 300000)};
+	private static final long CHUNK_DURATION_MS = 4000;
+	private static final long MAX_BUFFER_MS = 30000;
+	private static final int CHUNK_COUNT = 75;
+
+	private static final class FakeClock implements Clock {
+		long nowMs;
+
+		@Override
+		public long elapsedRealtime() {
+			return nowMs;
+		}
+	}
+
+	/** the throughput of the last segment fetched */
+	private static final class LastSegmentBandwidthMeter implements BandwidthMeter {
+		long estimate = NO_ESTIMATE;
+
+		@Override
+		public long getBitrateEstimate() {
+			return estimate;
+		}
+	}
+
+	static final class SessionReport {
+		long startupMs;
+		long rebufferMs;
+		int rebufferCount;
+		int averageBitrate;
+		int switchCount;
+		int evaluatorRebufferCount;
+
+		@Override
+		public String toString() {
+			return String.format(Locale.US, "startup %dms, rebuffers %d (%dms), average bitrate %dkbps, switches %d",
+					startupMs, rebufferCount, rebufferMs, averageBitrate / 1000, switchCount);
+		}
+	}
+
+	@Test
+	public void steadyThroughputSettlesOnTheTopFormat() {
+		SessionReport report = replay(constantTrace(8000, 400));
+		assertEquals(0, report.rebufferCount);
+		assertTrue(report.averageBitrate > 3500000);
+	}
+
+	@Test
+	public void lowThroughputStaysOnTheLowFormats() {
+		SessionReport report = replay(constantTrace(700, 400));
+		assertEquals(0, report.rebufferCount);
+		assertTrue(report.averageBitrate <= 600000);
+	}
+
+	@Test
+	public void throughputDropIsAbsorbedByTheBuffer() {
+		SessionReport report = replay(dropTrace());
+		assertEquals(0, report.rebufferCount);
+	}
+
+	@Test
+	public void fluctuatingThroughput() {
+		SessionReport report = replay(fluctuatingTrace());
+		assertEquals(0, report.rebufferCount);
+	}
+
+	@Test
+	public void randomWalkThroughput() {
+		SessionReport report = replay(randomWalkTrace());
+		// reported for comparison between evaluator changes - a trace this rough may stall now and then
+		assertTrue(report.rebufferMs < 10000);
+	}
+
+	@Test
+	public void outageRebuffersAreReportedToTheEvaluator() {
+		SessionReport report = replay(outageTrace());
+		assertTrue(report.rebufferCount > 0);
+		assertEquals(report.rebufferCount, report.evaluatorRebufferCount);
+	}
+
+	@Test
+	public void rebufferHoldsOffSwitchesUp() {
+		FakeClock clock = new FakeClock();
+		LastSegmentBandwidthMeter bandwidthMeter = new LastSegmentBandwidthMeter();
+		BufferAwareFormatEvaluator evaluator = new BufferAwareFormatEvaluator(bandwidthMeter, clock);
+		evaluator.enable();
+		bandwidthMeter.estimate = 20000000;
+		List<MediaChunk> queue = new ArrayList<>();
+		// 20s buffered of the lowest format
+		for (int i = 0; i < 5; i++) {
+			queue.add(new FakeMediaChunk(FORMATS[FORMATS.length - 1], i * CHUNK_DURATION_MS * 1000,
+					(i + 1) * CHUNK_DURATION_MS * 1000));
+		}
+
+		evaluator.onRebuffer(2000);
+		assertTrue(evaluator.isCautious());
+		FormatEvaluator.Evaluation evaluation = new FormatEvaluator.Evaluation();
+		evaluation.format = FORMATS[FORMATS.length - 1];
+		evaluator.evaluate(queue, 0, FORMATS, evaluation);
+		assertEquals(FORMATS[FORMATS.length - 1], evaluation.format);
+
+		clock.nowMs += BufferAwareFormatEvaluator.REBUFFER_PENALTY_MS + 2000;
+		assertTrue(!evaluator.isCautious());
+		evaluator.evaluate(queue, 0, FORMATS, evaluation);
+		assertEquals(FORMATS[0], evaluation.format);
+		assertEquals(1, evaluator.getRebufferCount());
+	}
+
+	/** trace is the throughput in kbps for each second - the last value holds past its end */
+	static SessionReport replay(int[] trace) {
+		FakeClock clock = new FakeClock();
+		LastSegmentBandwidthMeter bandwidthMeter = new LastSegmentBandwidthMeter();
+		BufferAwareFormatEvaluator evaluator = new BufferAwareFormatEvaluator(bandwidthMeter, clock);
+		evaluator.enable();
+		FormatEvaluator.Evaluation evaluation = new FormatEvaluator.Evaluation();
+		List<MediaChunk> queue = new ArrayList<>();
+		SessionReport report = new SessionReport();
+
+		int nextChunk = 0;
+		Format loadingFormat = null;
+		long loadingStartMs = 0;
+		// kbps is bits per ms
+		long loadingRemainingBits = 0;
+		long positionMs = 0;
+		boolean started = false;
+		long stallStartMs = -1;
+		long bitrateTimeProduct = 0;
+		long playedMs = 0;
+
+		while (positionMs < CHUNK_COUNT * CHUNK_DURATION_MS) {
+			long nowMs = clock.nowMs;
+			long bufferedUntilMs = queue.isEmpty() ? positionMs : queue.get(queue.size() - 1).endTimeUs / 1000;
+
+			if (loadingFormat == null && nextChunk < CHUNK_COUNT && bufferedUntilMs - positionMs < MAX_BUFFER_MS) {
+				evaluation.queueSize = queue.size();
+				evaluator.evaluate(queue, positionMs * 1000, FORMATS, evaluation);
+				while (queue.size() > Math.max(1, evaluation.queueSize)) {
+					// discarded to be fetched again in the new format
+					queue.remove(queue.size() - 1);
+					nextChunk--;
+				}
+				loadingFormat = evaluation.format;
+				loadingStartMs = nowMs;
+				loadingRemainingBits = loadingFormat.bitrate * CHUNK_DURATION_MS / 1000;
+			}
+
+			if (loadingFormat != null) {
+				int index = (int) Math.min(nowMs / 1000, trace.length - 1);
+				loadingRemainingBits -= trace[index];
+				if (loadingRemainingBits <= 0) {
+					long elapsedMs = nowMs + 1 - loadingStartMs;
+					bandwidthMeter.estimate = loadingFormat.bitrate * CHUNK_DURATION_MS / elapsedMs;
+					queue.add(new FakeMediaChunk(loadingFormat, nextChunk * CHUNK_DURATION_MS * 1000,
+							(nextChunk + 1) * CHUNK_DURATION_MS * 1000));
+					nextChunk++;
+					loadingFormat = null;
+				}
+			}
+
+			bufferedUntilMs = queue.isEmpty() ? positionMs : queue.get(queue.size() - 1).endTimeUs / 1000;
+			if (!started) {
+				if (!queue.isEmpty()) {
+					started = true;
+					report.startupMs = nowMs + 1;
+				}
+			} else if (stallStartMs >= 0) {
+				// playback goes on once a segment is there to play
+				if (bufferedUntilMs - positionMs >= CHUNK_DURATION_MS || nextChunk == CHUNK_COUNT) {
+					long stallMs = nowMs - stallStartMs;
+					report.rebufferMs += stallMs;
+					report.rebufferCount++;
+					evaluator.onRebuffer(stallMs);
+					stallStartMs = -1;
+				}
+			} else if (bufferedUntilMs > positionMs) {
+				MediaChunk playing = queue.get(0);
+				bitrateTimeProduct += playing.format.bitrate;
+				playedMs++;
+				positionMs++;
+				if (positionMs * 1000 >= playing.endTimeUs) {
+					queue.remove(0);
+				}
+			} else {
+				stallStartMs = nowMs;
+			}
+			clock.nowMs++;
+		}
+
+		report.averageBitrate = (int) (bitrateTimeProduct / playedMs);
+		report.switchCount = evaluator.getSwitchCount();
+		report.evaluatorRebufferCount = evaluator.getRebufferCount();
+		return report;
+	}
+
+	static int[] constantTrace(int kbps, int seconds) {
+		int[] trace = new int[seconds];
+		for (int i = 0; i < seconds; i++) {
+			trace[i] = kbps;
+		}
+		return trace;
+	}
+
+	/** 6Mbps, with a minute at 800kbps */
+	static int[] dropTrace() {
+		int[] trace = constantTrace(6000, 400);
+		for (int i = 120; i < 180; i++) {
+			trace[i] = 800;
+		}
+		return trace;
+	}
+
+	/** 10s at 5Mbps, then 10s at 1.5Mbps, over and over */
+	static int[] fluctuatingTrace() {
+		int[] trace = new int[400];
+		for (int i = 0; i < trace.length; i++) {
+			trace[i] = (i / 10) % 2 == 0 ? 5000 : 1500;
+		}
+		return trace;
+	}
+
+	/** a random walk between 200kbps and 8Mbps */
+	static int[] randomWalkTrace() {
+		Random random = new Random(42);
+		int[] trace = new int[400];
+		int kbps = 3000;
+		for (int i = 0; i < trace.length; i++) {
+			kbps = Math.max(200, Math.min(8000, kbps + random.nextInt(1001) - 500));
+			trace[i] = kbps;
+		}
+		return trace;
+	}
+
+	/** 6Mbps, with a minute at 150kbps, below the lowest format */
+	static int[] outageTrace() {
+		int[] trace = constantTrace(6000, 400);
+		for (int i = 100; i < 160; i++) {
+			trace[i] = 150;
+		}
+		return trace;
+	}
+
+	private static Format createFormat(int height, int bitrate) {
+		return new Format(height + "p", "video/mp4", height * 16 / 9, height, -1, -1, bitrate);
+	}
+
+	/** stands in for a loaded segment - only its format and times are looked at */
+	private static final class FakeMediaChunk extends MediaChunk {
+
+		private static final DataSource DATA_SOURCE = new DataSource() {
+			@Override
+			public long open(DataSpec dataSpec) {
+				return 0;
+			}
+
+			@Override
+			public void close() {
+			}
+
+			@Override
+			public int read(byte[] buffer, int offset, int readLength) {
+				return -1;
+			}
+		};
+
+		FakeMediaChunk(Format format, long startTimeUs, long endTimeUs) {
+			super(DATA_SOURCE, new DataSpec(Uri.parse("http://localhost/segment.m4s")), format, 0, startTimeUs, endTimeUs, -1);
+		}
+
+		@Override
+		public void seekToStart() {
+		}
+
+		@Override
+		public boolean seekTo(long positionUs, boolean allowNoop) {
+			return true;
+		}
+
+		@Override
+		public boolean prepare() {
+			return true;
+		}
+
+		@Override
+		public boolean sampleAvailable() {
+			return false;
+		}
+
+		@Override
+		public boolean read(SampleHolder holder) {
+			return false;
+		}
+
+		@Override
+		public MediaFormat getMediaFormat() {
+			return null;
+		}
+
+		@Override
+		public Map<UUID, byte[]> getPsshInfo() {
+			return null;
+		}
+	}
+
+}
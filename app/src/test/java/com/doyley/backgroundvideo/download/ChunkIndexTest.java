@@ -0,0 +1,152 @@
+package com.doyley.backgroundvideo.download;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ChunkIndexTest {
+
+	private static final int CHUNK_SIZE = 1024;
+	// the last chunk is a short one
+	private static final long TOTAL_LENGTH = 20 * CHUNK_SIZE + 100;
+	private static final String VALIDATOR = "\"5e8f-1a2b\"";
+
+	private File mFile;
+	private ChunkIndex mIndex;
+
+	@Before
+	public void setUp() throws IOException {
+		mFile = File.createTempFile("download", ".chunks");
+	}
+
+	@After
+	public void tearDown() {
+		if (mIndex != null) {
+			mIndex.close();
+		}
+		mFile.delete();
+	}
+
+	@Test
+	public void newIndexHasNothingComplete() throws IOException {
+		mIndex = ChunkIndex.create(mFile, TOTAL_LENGTH, CHUNK_SIZE, VALIDATOR);
+		assertEquals(21, mIndex.getChunkCount());
+		assertEquals(0, mIndex.getCompletedCount());
+		assertEquals(0, mIndex.getCompletedBytes());
+		assertEquals(100, mIndex.getChunkLength(20));
+		assertEquals(20L * CHUNK_SIZE, mIndex.getChunkPosition(20));
+		for (int i = 0; i < mIndex.getChunkCount(); i++) {
+			assertTrue(!mIndex.isComplete(i));
+		}
+	}
+
+	@Test
+	public void completedChunksSurviveAReload() throws IOException {
+		mIndex = ChunkIndex.create(mFile, TOTAL_LENGTH, CHUNK_SIZE, VALIDATOR);
+		mIndex.setComplete(0, 0x11111111);
+		mIndex.setComplete(9, 0x99999999);
+		mIndex.setComplete(20, -1);
+		// twice is the same as once
+		mIndex.setComplete(9, 0x99999999);
+		mIndex.close();
+
+		mIndex = ChunkIndex.load(mFile);
+		assertTrue(mIndex != null);
+		assertTrue(mIndex.matches(TOTAL_LENGTH, CHUNK_SIZE, VALIDATOR));
+		assertEquals(3, mIndex.getCompletedCount());
+		assertEquals(2L * CHUNK_SIZE + 100, mIndex.getCompletedBytes());
+		assertTrue(mIndex.isComplete(0));
+		assertTrue(!mIndex.isComplete(1));
+		assertTrue(mIndex.isComplete(9));
+		assertTrue(mIndex.isComplete(20));
+		assertEquals(0x11111111, mIndex.getCrc(0));
+		assertEquals(0x99999999, mIndex.getCrc(9));
+		assertEquals(-1, mIndex.getCrc(20));
+	}
+
+	@Test
+	public void clearedChunksStayClearedAfterAReload() throws IOException {
+		mIndex = ChunkIndex.create(mFile, TOTAL_LENGTH, CHUNK_SIZE, VALIDATOR);
+		for (int i = 0; i < mIndex.getChunkCount(); i++) {
+			mIndex.setComplete(i, i);
+		}
+		assertTrue(mIndex.isDownloadComplete());
+		mIndex.clear(7);
+		mIndex.clear(7);
+		mIndex.close();
+
+		mIndex = ChunkIndex.load(mFile);
+		assertTrue(!mIndex.isDownloadComplete());
+		assertEquals(20, mIndex.getCompletedCount());
+		assertTrue(!mIndex.isComplete(7));
+		assertTrue(mIndex.isComplete(8));
+	}
+
+	@Test
+	public void createOverwritesAnExistingIndex() throws IOException {
+		mIndex = ChunkIndex.create(mFile, TOTAL_LENGTH, CHUNK_SIZE, VALIDATOR);
+		mIndex.setComplete(3, 3);
+		mIndex.close();
+		mIndex = ChunkIndex.create(mFile, 5 * CHUNK_SIZE, CHUNK_SIZE, "other");
+		mIndex.close();
+
+		mIndex = ChunkIndex.load(mFile);
+		assertEquals(5, mIndex.getChunkCount());
+		assertEquals(0, mIndex.getCompletedCount());
+		assertTrue(mIndex.matches(5 * CHUNK_SIZE, CHUNK_SIZE, "other"));
+	}
+
+	@Test
+	public void matchesNeedsTheSameRemoteFile() throws IOException {
+		mIndex = ChunkIndex.create(mFile, TOTAL_LENGTH, CHUNK_SIZE, VALIDATOR);
+		assertTrue(mIndex.matches(TOTAL_LENGTH, CHUNK_SIZE, VALIDATOR));
+		assertTrue(!mIndex.matches(TOTAL_LENGTH + 1, CHUNK_SIZE, VALIDATOR));
+		assertTrue(!mIndex.matches(TOTAL_LENGTH, CHUNK_SIZE * 2, VALIDATOR));
+		assertTrue(!mIndex.matches(TOTAL_LENGTH, CHUNK_SIZE, "\"changed\""));
+		assertTrue(!mIndex.matches(TOTAL_LENGTH, CHUNK_SIZE, null));
+	}
+
+	@Test
+	public void withoutAValidatorNothingMatches() throws IOException {
+		StringBuilder validator = new StringBuilder();
+		while (validator.length() <= 256) {
+			validator.append("too long ");
+		}
+		mIndex = ChunkIndex.create(mFile, TOTAL_LENGTH, CHUNK_SIZE, validator.toString());
+		assertTrue(!mIndex.matches(TOTAL_LENGTH, CHUNK_SIZE, validator.toString()));
+		mIndex.close();
+		mIndex = ChunkIndex.create(mFile, TOTAL_LENGTH, CHUNK_SIZE, null);
+		mIndex.close();
+
+		mIndex = ChunkIndex.load(mFile);
+		assertTrue(!mIndex.matches(TOTAL_LENGTH, CHUNK_SIZE, null));
+	}
+
+	@Test
+	public void missingOrDamagedIndexIsNotLoaded() throws IOException {
+		mFile.delete();
+		assertEquals(null, ChunkIndex.load(mFile));
+
+		mIndex = ChunkIndex.create(mFile, TOTAL_LENGTH, CHUNK_SIZE, VALIDATOR);
+		mIndex.close();
+		mIndex = null;
+		RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+		// cut off in the middle of the crcs
+		file.setLength(file.length() - 10);
+		file.close();
+		assertEquals(null, ChunkIndex.load(mFile));
+
+		file = new RandomAccessFile(mFile, "rw");
+		file.writeInt(0x12345678);
+		file.close();
+		assertEquals(null, ChunkIndex.load(mFile));
+	}
+
+}
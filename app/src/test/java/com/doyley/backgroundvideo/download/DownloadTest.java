@@ -0,0 +1,177 @@
+package com.doyley.backgroundvideo.download;
+
+import com.doyley.backgroundvideo.upstream.IoScheduler;
+import com.doyley.backgroundvideo.upstream.LocalHttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DownloadTest {
+
+	// the last chunk is a short one
+	private static final int FILE_LENGTH = 2 * Download.CHUNK_SIZE + Download.CHUNK_SIZE / 2;
+	private static final long DROP_AFTER_BYTES = 300000;
+
+	private File mDirectory;
+	private File mServedDirectory;
+	private LocalHttpServer mServer;
+	private byte[] mFile;
+	private CountDownLatch mEnded;
+
+	@Before
+	public void setUp() throws IOException {
+		mDirectory = createDirectory("download");
+		mServedDirectory = createDirectory("served");
+		mFile = new byte[FILE_LENGTH];
+		new Random(7).nextBytes(mFile);
+		FileOutputStream output = new FileOutputStream(new File(mServedDirectory, "video.mp4"));
+		output.write(mFile);
+		output.close();
+		mServer = new LocalHttpServer(mServedDirectory);
+		mEnded = new CountDownLatch(1);
+	}
+
+	@After
+	public void tearDown() {
+		mServer.stop();
+		deleteDirectory(mDirectory);
+		deleteDirectory(mServedDirectory);
+	}
+
+	@Test
+	public void droppedConnectionsResumeFromTheLastByteWritten() throws Exception {
+		// the check of the remote file, then the first response of every chunk
+		mServer.dropConnections(4, DROP_AFTER_BYTES);
+		Download download = createDownload(new IoScheduler(4, new int[] {4, 3, 3}));
+		download.start();
+		assertTrue(mEnded.await(30, TimeUnit.SECONDS));
+
+		assertEquals(Download.STATE_COMPLETED, download.getState());
+		assertEquals(FILE_LENGTH, download.getDownloadedBytes());
+		assertArrayEquals(mFile, readTargetFile());
+		// the check, three chunks and three resumes
+		assertEquals(7, mServer.getRequestCount());
+		for (int chunk = 0; chunk < 3; chunk++) {
+			assertTrue(mServer.getRangeStarts().contains((long) chunk * Download.CHUNK_SIZE + DROP_AFTER_BYTES));
+		}
+	}
+
+	@Test
+	public void completedChunksAreNotFetchedAgain() throws Exception {
+		Download download = createDownload(new IoScheduler(4, new int[] {4, 3, 3}));
+		download.start();
+		assertTrue(mEnded.await(30, TimeUnit.SECONDS));
+		assertEquals(4, mServer.getRequestCount());
+
+		// a download that lost chunk 1 fetches that one only
+		ChunkIndex index = ChunkIndex.load(new File(mDirectory, "video.chunks"));
+		index.clear(1);
+		mEnded = new CountDownLatch(1);
+		download = new Download(mServer.getUrl("video.mp4"), new File(mDirectory, "video.media"),
+				new File(mDirectory, "video.chunks"), index, new IoScheduler(4, new int[] {4, 3, 3}), "test",
+				new EndListener());
+		download.start();
+		assertTrue(mEnded.await(30, TimeUnit.SECONDS));
+		assertEquals(Download.STATE_COMPLETED, download.getState());
+		assertEquals(6, mServer.getRequestCount());
+		assertEquals(Long.valueOf(Download.CHUNK_SIZE), mServer.getRangeStarts().get(5));
+		assertArrayEquals(mFile, readTargetFile());
+	}
+
+	@Test
+	public void waitingForAChunkInFlightMovesItUp() throws Exception {
+		// slow enough that every chunk is still being fetched when the reader asks for one
+		mServer.setWriteDelayMs(1);
+		IoScheduler scheduler = new IoScheduler(4, new int[] {4, 3, 3});
+		final Download download = createDownload(scheduler);
+		download.start();
+		while (mServer.getRequestCount() < 4) {
+			Thread.sleep(5);
+		}
+
+		final IOException[] error = new IOException[1];
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					download.awaitChunk(2);
+				} catch (IOException e) {
+					error[0] = e;
+				}
+			}
+		});
+		reader.start();
+		reader.join(30000);
+		assertTrue(!reader.isAlive());
+		assertEquals(null, error[0]);
+		assertTrue(download.getIndex().isComplete(2));
+
+		assertTrue(mEnded.await(30, TimeUnit.SECONDS));
+		assertEquals(Download.STATE_COMPLETED, download.getState());
+		assertArrayEquals(mFile, readTargetFile());
+		// the chunk carried on over the same connection
+		assertEquals(4, mServer.getRequestCount());
+		assertEquals(0, scheduler.getQueuedCount(IoScheduler.PRIORITY_PLAYBACK));
+	}
+
+	private Download createDownload(IoScheduler scheduler) {
+		return new Download(mServer.getUrl("video.mp4"), new File(mDirectory, "video.media"),
+				new File(mDirectory, "video.chunks"), null, scheduler, "test", new EndListener());
+	}
+
+	private byte[] readTargetFile() throws IOException {
+		RandomAccessFile file = new RandomAccessFile(new File(mDirectory, "video.media"), "r");
+		try {
+			byte[] data = new byte[(int) file.length()];
+			file.readFully(data);
+			return data;
+		} finally {
+			file.close();
+		}
+	}
+
+	private static File createDirectory(String prefix) throws IOException {
+		File directory = File.createTempFile(prefix, "");
+		directory.delete();
+		directory.mkdir();
+		return directory;
+	}
+
+	private static void deleteDirectory(File directory) {
+		for (File file : directory.listFiles()) {
+			file.delete();
+		}
+		directory.delete();
+	}
+
+	private final class EndListener implements DownloadManager.Listener {
+
+		@Override
+		public void onDownloadProgress(Download download) {
+		}
+
+		@Override
+		public void onDownloadCompleted(Download download) {
+			mEnded.countDown();
+		}
+
+		@Override
+		public void onDownloadFailed(Download download, IOException e) {
+			mEnded.countDown();
+		}
+	}
+
+}
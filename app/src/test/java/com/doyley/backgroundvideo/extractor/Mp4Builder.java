@@ -0,0 +1,175 @@
+package com.doyley.backgroundvideo.extractor;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes a minimal mp4 with a single AAC track - one sample per chunk, the mdat ahead of the moov, the way
+ * a file that was not made streamable is laid out. Sample bytes can be told from their position in the file.
+ */
+public class Mp4Builder {
+
+	public static final int SAMPLE_RATE = 44100;
+	public static final int CHANNEL_COUNT = 2;
+	/** AAC frames are 1024 samples */
+	public static final int SAMPLE_DURATION = 1024;
+
+	private static final int MOVIE_TIMESCALE = 1000;
+	// AAC LC, 44.1kHz, stereo
+	private static final byte[] AUDIO_SPECIFIC_CONFIG = new byte[] {0x12, 0x10};
+
+	private final int[] mSampleSizes;
+	private final int mSyncInterval;
+
+	private long[] mOffsets;
+
+	/** every syncInterval-th sample is a sync sample, starting with the first */
+	public Mp4Builder(int[] sampleSizes, int syncInterval) {
+		mSampleSizes = sampleSizes;
+		mSyncInterval = syncInterval;
+	}
+
+	public static int[] createSampleSizes(int sampleCount, int minSize, int maxSize) {
+		int[] sizes = new int[sampleCount];
+		for (int i = 0; i < sampleCount; i++) {
+			sizes[i] = minSize + (i * 7919) % (maxSize - minSize + 1);
+		}
+		return sizes;
+	}
+
+	public static byte getByte(long position) {
+		return (byte) (position * 31 + (position >> 16));
+	}
+
+	public byte[] build() {
+		byte[] ftyp = atom("ftyp", bytes("isom"), ints(0), bytes("isom"));
+		int mdatSize = 8;
+		for (int size : mSampleSizes) {
+			mdatSize += size;
+		}
+		mOffsets = new long[mSampleSizes.length];
+		long offset = ftyp.length + 8;
+		for (int i = 0; i < mSampleSizes.length; i++) {
+			mOffsets[i] = offset;
+			offset += mSampleSizes[i];
+		}
+		byte[] moov = buildMoov();
+
+		ByteBuffer file = ByteBuffer.allocate(ftyp.length + mdatSize + moov.length);
+		file.put(ftyp);
+		file.putInt(mdatSize);
+		file.put(bytes("mdat"));
+		while (file.position() < ftyp.length + mdatSize) {
+			file.put(getByte(file.position()));
+		}
+		file.put(moov);
+		return file.array();
+	}
+
+	/** file offset of each sample - valid once built */
+	public long[] getOffsets() {
+		return mOffsets;
+	}
+
+	public long getDurationUs() {
+		return (long) mSampleSizes.length * SAMPLE_DURATION * 1000000 / SAMPLE_RATE;
+	}
+
+	private byte[] buildMoov() {
+		long durationMs = getDurationUs() / 1000;
+		int sampleCount = mSampleSizes.length;
+
+		// version, flags, creation and modification time, timescale, duration, rate, volume, reserved,
+		// matrix, pre defined, next track id
+		byte[] mvhd = atom("mvhd", ints(0, 0, 0, MOVIE_TIMESCALE, (int) durationMs, 0x00010000), shorts(0x0100),
+				new byte[10], new byte[36], new byte[24], ints(2));
+		// version, flags, creation and modification time, track id, reserved, duration, ...
+		byte[] tkhd = atom("tkhd", ints(0x00000007, 0, 0, 1, 0, (int) durationMs), new byte[60]);
+		byte[] mdhd = atom("mdhd", ints(0, 0, 0, SAMPLE_RATE, sampleCount * SAMPLE_DURATION), shorts(0x55c4, 0));
+		byte[] hdlr = atom("hdlr", ints(0, 0), bytes("soun"), ints(0, 0, 0), new byte[1]);
+
+		byte[] esds = atom("esds", ints(0), buildEsDescriptor());
+		// reserved, data reference index, reserved, channel count, sample size, pre defined, reserved,
+		// sample rate as 16.16
+		byte[] mp4a = atom("mp4a", new byte[6], shorts(1), new byte[8], shorts(CHANNEL_COUNT, 16, 0, 0),
+				ints(SAMPLE_RATE << 16), esds);
+		byte[] stsd = atom("stsd", ints(0, 1), mp4a);
+		byte[] stts = atom("stts", ints(0, 1, sampleCount, SAMPLE_DURATION));
+		byte[] stsc = atom("stsc", ints(0, 1, 1, 1, 1));
+		// version and flags, fixed sample size, sample count, then the sizes
+		int[] stszFields = new int[3 + sampleCount];
+		stszFields[2] = sampleCount;
+		System.arraycopy(mSampleSizes, 0, stszFields, 3, sampleCount);
+		byte[] stsz = atom("stsz", ints(stszFields));
+		int[] stcoFields = new int[2 + sampleCount];
+		stcoFields[1] = sampleCount;
+		for (int i = 0; i < sampleCount; i++) {
+			stcoFields[2 + i] = (int) mOffsets[i];
+		}
+		byte[] stco = atom("stco", ints(stcoFields));
+		int syncCount = (sampleCount + mSyncInterval - 1) / mSyncInterval;
+		int[] stssFields = new int[2 + syncCount];
+		stssFields[1] = syncCount;
+		for (int i = 0; i < syncCount; i++) {
+			// 1 based
+			stssFields[2 + i] = i * mSyncInterval + 1;
+		}
+		byte[] stss = atom("stss", ints(stssFields));
+
+		byte[] stbl = atom("stbl", stsd, stts, stss, stsc, stsz, stco);
+		byte[] minf = atom("minf", stbl);
+		byte[] mdia = atom("mdia", mdhd, hdlr, minf);
+		byte[] trak = atom("trak", tkhd, mdia);
+		return atom("moov", mvhd, trak);
+	}
+
+	/** ES_Descriptor holding a DecoderConfigDescriptor holding the AudioSpecificConfig, as in 14496-1 */
+	private static byte[] buildEsDescriptor() {
+		byte[] decoderSpecificInfo = concat(new byte[] {0x05, (byte) AUDIO_SPECIFIC_CONFIG.length},
+				AUDIO_SPECIFIC_CONFIG);
+		// object type AAC, stream type audio, buffer size, max and average bitrate
+		byte[] decoderConfig = concat(new byte[] {0x04, (byte) (13 + decoderSpecificInfo.length), 0x40, 0x15},
+				new byte[11], decoderSpecificInfo);
+		// ES_ID, flags, then the SLConfigDescriptor
+		return concat(new byte[] {0x03, (byte) (3 + decoderConfig.length + 3), 0, 1, 0}, decoderConfig,
+				new byte[] {0x06, 1, 2});
+	}
+
+	private static byte[] atom(String type, byte[]... contents) {
+		byte[] content = concat(contents);
+		return concat(ints(8 + content.length), bytes(type), content);
+	}
+
+	private static byte[] bytes(String fourCc) {
+		byte[] bytes = new byte[4];
+		for (int i = 0; i < 4; i++) {
+			bytes[i] = (byte) fourCc.charAt(i);
+		}
+		return bytes;
+	}
+
+	private static byte[] ints(int... values) {
+		ByteBuffer buffer = ByteBuffer.allocate(values.length * 4);
+		for (int value : values) {
+			buffer.putInt(value);
+		}
+		return buffer.array();
+	}
+
+	private static byte[] shorts(int... values) {
+		ByteBuffer buffer = ByteBuffer.allocate(values.length * 2);
+		for (int value : values) {
+			buffer.putShort((short) value);
+		}
+		return buffer.array();
+	}
+
+	private static byte[] concat(byte[]... arrays) {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		for (byte[] array : arrays) {
+			output.write(array, 0, array.length);
+		}
+		return output.toByteArray();
+	}
+
+}
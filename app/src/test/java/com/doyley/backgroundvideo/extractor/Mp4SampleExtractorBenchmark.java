@@ -0,0 +1,60 @@
+package com.doyley.backgroundvideo.extractor;
+
+import com.doyley.backgroundvideo.benchmark.Benchmark;
+import com.doyley.backgroundvideo.source.FakeInputSource;
+import com.google.android.exoplayer.SampleHolder;
+import com.google.android.exoplayer.SampleSource;
+
+import java.nio.ByteBuffer;
+
+/** parsing and sample iteration throughput, both from a read input and from a mapped one */
+public class Mp4SampleExtractorBenchmark extends Benchmark {
+
+	private static final int SAMPLE_COUNT = 100000;
+	private static final int SYNC_INTERVAL = 10;
+
+	@Override
+	protected void measure() throws Exception {
+		final byte[] file = new Mp4Builder(Mp4Builder.createSampleSizes(SAMPLE_COUNT, 200, 800), SYNC_INTERVAL).build();
+		final SampleHolder holder = new SampleHolder(SampleHolder.BUFFER_REPLACEMENT_MODE_NORMAL);
+		holder.data = ByteBuffer.allocate(800);
+		for (final boolean mapped : new boolean[] {false, true}) {
+			long parseNs = bestNs(new Run() {
+				@Override
+				public long run() throws Exception {
+					Mp4SampleExtractor extractor = open(file, mapped);
+					extractor.release();
+					return extractor.getTrackInfos().length;
+				}
+			});
+
+			final Mp4SampleExtractor extractor = open(file, mapped);
+			long iterateNs = bestNs(new Run() {
+				@Override
+				public long run() throws Exception {
+					extractor.seekTo(0);
+					long bytes = 0;
+					while (true) {
+						holder.data.clear();
+						if (extractor.readSample(0, holder) == SampleSource.END_OF_STREAM) {
+							return bytes;
+						}
+						bytes += holder.size;
+					}
+				}
+			});
+			extractor.release();
+			report("%s : parse %d samples in %.1fms, iterate %.0f samples/s (%.1f MB/s)", mapped ? "mapped" : "read",
+					SAMPLE_COUNT, parseNs / 1e6, SAMPLE_COUNT * 1e9 / iterateNs, file.length * 1e3 / iterateNs);
+		}
+	}
+
+	private static Mp4SampleExtractor open(byte[] file, boolean mapped) throws Exception {
+		FakeInputSource input = new FakeInputSource(file, 0);
+		input.setMapped(mapped);
+		Mp4SampleExtractor extractor = new Mp4SampleExtractor(input);
+		extractor.prepare();
+		return extractor;
+	}
+
+}
@@ -0,0 +1,109 @@
+package com.doyley.backgroundvideo.extractor;
+
+import com.doyley.backgroundvideo.source.FakeInputSource;
+import com.google.android.exoplayer.C;
+import com.google.android.exoplayer.MediaFormatHolder;
+import com.google.android.exoplayer.SampleHolder;
+import com.google.android.exoplayer.SampleSource;
+import com.google.android.exoplayer.util.MimeTypes;
+import com.google.android.exoplayer.util.Util;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class Mp4SampleExtractorTest {
+
+	private static final int SAMPLE_COUNT = 500;
+	private static final int SYNC_INTERVAL = 10;
+
+	@Test
+	public void sniffsTheFileType() {
+		byte[] file = new Mp4Builder(Mp4Builder.createSampleSizes(10, 100, 200), SYNC_INTERVAL).build();
+		assertTrue(Mp4SampleExtractor.sniff(new FakeInputSource(file, 0)));
+		assertTrue(!Mp4SampleExtractor.sniff(new FakeInputSource(FakeInputSource.createData(1024), 0)));
+	}
+
+	@Test
+	public void prepareParsesTheTrack() throws IOException {
+		Mp4Builder builder = new Mp4Builder(Mp4Builder.createSampleSizes(SAMPLE_COUNT, 100, 700), SYNC_INTERVAL);
+		Mp4SampleExtractor extractor = new Mp4SampleExtractor(new FakeInputSource(builder.build(), 0));
+		assertTrue(extractor.prepare());
+		assertEquals(1, extractor.getTrackInfos().length);
+		assertEquals(MimeTypes.AUDIO_AAC, extractor.getTrackInfos()[0].mimeType);
+
+		MediaFormatHolder formatHolder = new MediaFormatHolder();
+		extractor.getTrackMediaFormat(0, formatHolder);
+		assertEquals(Mp4Builder.SAMPLE_RATE, formatHolder.format.sampleRate);
+		assertEquals(Mp4Builder.CHANNEL_COUNT, formatHolder.format.channelCount);
+		// large enough for the largest sample
+		assertTrue(formatHolder.format.maxInputSize >= 700);
+	}
+
+	@Test
+	public void readsEverySampleInOrder() throws IOException {
+		readEverySample(false);
+	}
+
+	@Test
+	public void readsEverySampleInOrderFromTheMappedFile() throws IOException {
+		readEverySample(true);
+	}
+
+	@Test
+	public void seekGoesToTheSyncSampleBefore() throws IOException {
+		int[] sizes = Mp4Builder.createSampleSizes(SAMPLE_COUNT, 100, 700);
+		Mp4Builder builder = new Mp4Builder(sizes, SYNC_INTERVAL);
+		Mp4SampleExtractor extractor = new Mp4SampleExtractor(new FakeInputSource(builder.build(), 0));
+		extractor.prepare();
+		SampleHolder holder = new SampleHolder(SampleHolder.BUFFER_REPLACEMENT_MODE_NORMAL);
+		holder.data = ByteBuffer.allocate(700);
+
+		int target = 3 * SYNC_INTERVAL + 4;
+		extractor.seekTo(getTimeUs(target));
+		assertEquals(SampleSource.SAMPLE_READ, extractor.readSample(0, holder));
+		assertEquals(getTimeUs(3 * SYNC_INTERVAL), holder.timeUs);
+		assertTrue((holder.flags & C.SAMPLE_FLAG_SYNC) != 0);
+
+		extractor.seekTo(0);
+		holder.data.clear();
+		extractor.readSample(0, holder);
+		assertEquals(0, holder.timeUs);
+	}
+
+	private void readEverySample(boolean mapped) throws IOException {
+		int[] sizes = Mp4Builder.createSampleSizes(SAMPLE_COUNT, 100, 700);
+		Mp4Builder builder = new Mp4Builder(sizes, SYNC_INTERVAL);
+		FakeInputSource input = new FakeInputSource(builder.build(), 0);
+		input.setMapped(mapped);
+		Mp4SampleExtractor extractor = new Mp4SampleExtractor(input);
+		extractor.prepare();
+		long[] offsets = builder.getOffsets();
+
+		// too small to begin with, so the holder has to grow
+		SampleHolder holder = new SampleHolder(SampleHolder.BUFFER_REPLACEMENT_MODE_NORMAL);
+		holder.data = ByteBuffer.allocate(16);
+		for (int i = 0; i < SAMPLE_COUNT; i++) {
+			holder.data.clear();
+			assertEquals(SampleSource.SAMPLE_READ, extractor.readSample(0, holder));
+			assertEquals(sizes[i], holder.size);
+			assertEquals(getTimeUs(i), holder.timeUs);
+			assertEquals(i % SYNC_INTERVAL == 0, (holder.flags & C.SAMPLE_FLAG_SYNC) != 0);
+			for (int j = 0; j < sizes[i]; j++) {
+				assertEquals(Mp4Builder.getByte(offsets[i] + j), holder.data.get(j));
+			}
+		}
+		assertEquals(SampleSource.END_OF_STREAM, extractor.readSample(0, holder));
+		extractor.release();
+	}
+
+	private static long getTimeUs(int sample) {
+		return Util.scaleLargeTimestamp((long) sample * Mp4Builder.SAMPLE_DURATION, C.MICROS_PER_SECOND,
+				Mp4Builder.SAMPLE_RATE);
+	}
+
+}
@@ -0,0 +1,37 @@
+package com.doyley.backgroundvideo.hls;
+
+import com.doyley.backgroundvideo.benchmark.Benchmark;
+import com.google.android.exoplayer.C;
+import com.google.android.exoplayer.hls.HlsPlaylistParser;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.Charset;
+
+/** a large live playlist parsed over and over, as it is on every refresh, with the library parser for comparison */
+public class StreamingPlaylistParserBenchmark extends Benchmark {
+
+	private static final int SEGMENTS = 5000;
+	private static final int RUNS = 50;
+
+	@Override
+	protected void measure() throws Exception {
+		final byte[] playlist = StreamingPlaylistParserTest.createMediaPlaylist(SEGMENTS, false)
+				.getBytes(Charset.forName(C.UTF8_NAME));
+		final StreamingPlaylistParser parser = new StreamingPlaylistParser();
+		long streamingNs = bestNs(RUNS, new Run() {
+			@Override
+			public long run() throws Exception {
+				return parser.parse(new ByteArrayInputStream(playlist), null, null, null).type;
+			}
+		});
+		final HlsPlaylistParser libraryParser = new HlsPlaylistParser();
+		long libraryNs = bestNs(RUNS, new Run() {
+			@Override
+			public long run() throws Exception {
+				return libraryParser.parse(new ByteArrayInputStream(playlist), null, null, null).type;
+			}
+		});
+		report("%d segments : streaming %.2fms, library %.2fms", SEGMENTS, streamingNs / 1e6, libraryNs / 1e6);
+	}
+
+}
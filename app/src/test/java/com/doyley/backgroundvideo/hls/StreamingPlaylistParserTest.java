@@ -0,0 +1,258 @@
+package com.doyley.backgroundvideo.hls;
+
+import com.doyley.backgroundvideo.upstream.LocalHttpServer;
+import com.google.android.exoplayer.C;
+import com.google.android.exoplayer.ParserException;
+import com.google.android.exoplayer.hls.HlsMasterPlaylist;
+import com.google.android.exoplayer.hls.HlsMediaPlaylist;
+import com.google.android.exoplayer.hls.HlsPlaylist;
+import com.google.android.exoplayer.hls.HlsPlaylistParser;
+import com.google.android.exoplayer.hls.Variant;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StreamingPlaylistParserTest {
+
+	private static final Charset UTF_8 = Charset.forName(C.UTF8_NAME);
+
+	private static final String MASTER_PLAYLIST = "#EXTM3U\n"
+			+ "#EXT-X-STREAM-INF:BANDWIDTH=1280000,CODECS=\"avc1.42c01e, mp4a.40.2\",RESOLUTION=640x360\n"
+			+ "low/index.m3u8\n"
+			+ "#EXT-X-STREAM-INF:RESOLUTION=1280x720,BANDWIDTH=2560000\n"
+			+ "mid/index.m3u8\n"
+			+ "#EXT-X-STREAM-INF:BANDWIDTH=7680000,CODECS=\"avc1.640028\"\n"
+			+ "http://example.com/hi/index.m3u8\n";
+
+	private File mDirectory;
+	private LocalHttpServer mServer;
+
+	@After
+	public void tearDown() {
+		if (mServer != null) {
+			mServer.stop();
+		}
+		if (mDirectory != null) {
+			for (File file : mDirectory.listFiles()) {
+				file.delete();
+			}
+			mDirectory.delete();
+		}
+	}
+
+	@Test
+	public void mediaPlaylistMatchesTheLibraryParser() throws IOException {
+		String playlist = createMediaPlaylist(300, false);
+		HlsMediaPlaylist expected = (HlsMediaPlaylist) new HlsPlaylistParser().parse(stream(playlist), null, null, null);
+		HlsMediaPlaylist actual = (HlsMediaPlaylist) parse(playlist);
+		assertMediaPlaylistsEqual(expected, actual);
+		assertTrue(actual.live);
+	}
+
+	@Test
+	public void masterPlaylistMatchesTheLibraryParser() throws IOException {
+		HlsMasterPlaylist expected = (HlsMasterPlaylist) new HlsPlaylistParser().parse(stream(MASTER_PLAYLIST),
+				null, null, null);
+		HlsMasterPlaylist actual = (HlsMasterPlaylist) parse(MASTER_PLAYLIST);
+		assertEquals(expected.variants.size(), actual.variants.size());
+		for (int i = 0; i < expected.variants.size(); i++) {
+			Variant expectedVariant = expected.variants.get(i);
+			Variant actualVariant = actual.variants.get(i);
+			assertEquals(expectedVariant.url, actualVariant.url);
+			assertEquals(expectedVariant.bandwidth, actualVariant.bandwidth);
+			assertEquals(expectedVariant.width, actualVariant.width);
+			assertEquals(expectedVariant.height, actualVariant.height);
+		}
+		assertArrayEquals(new String[] {"avc1.42c01e", "mp4a.40.2"}, actual.variants.get(0).codecs);
+		assertEquals(null, actual.variants.get(1).codecs);
+	}
+
+	@Test
+	public void keyWithoutIvUsesTheMediaSequence() throws IOException {
+		HlsMediaPlaylist playlist = (HlsMediaPlaylist) parse("#EXTM3U\n"
+				+ "#EXT-X-MEDIA-SEQUENCE:26\n"
+				+ "#EXT-X-KEY:METHOD=AES-128,URI=\"https://example.com/key?a=1,b=2\"\n"
+				+ "#EXTINF:10.0,\nsegment26.ts\n"
+				+ "#EXTINF:10.0,\nsegment27.ts\n"
+				+ "#EXT-X-KEY:METHOD=NONE\n"
+				+ "#EXTINF:10.0,\nsegment28.ts\n"
+				+ "#EXT-X-ENDLIST\n");
+		assertEquals(26, playlist.mediaSequence);
+		assertTrue(!playlist.live);
+		assertEquals(HlsMediaPlaylist.ENCRYPTION_METHOD_AES_128, playlist.segments.get(0).encryptionMethod);
+		// quoted commas are part of the value
+		assertEquals("https://example.com/key?a=1,b=2", playlist.segments.get(0).encryptionKeyUri);
+		assertEquals(Integer.toHexString(26), playlist.segments.get(0).encryptionIV);
+		assertEquals(Integer.toHexString(27), playlist.segments.get(1).encryptionIV);
+		assertEquals(null, playlist.segments.get(2).encryptionMethod);
+	}
+
+	@Test
+	public void byterangeWithoutOffsetContinuesTheLastOne() throws IOException {
+		HlsMediaPlaylist playlist = (HlsMediaPlaylist) parse("#EXTM3U\n"
+				+ "#EXT-X-TARGETDURATION:10\n"
+				+ "#EXTINF:10,\n#EXT-X-BYTERANGE:1000@500\nmedia.ts\n"
+				+ "#EXTINF:10,\n#EXT-X-BYTERANGE:2000\nmedia.ts\n"
+				+ "#EXTINF:9.5,\nother.ts\n");
+		assertEquals(500, playlist.segments.get(0).byterangeOffset);
+		assertEquals(1000, playlist.segments.get(0).byterangeLength);
+		assertEquals(1500, playlist.segments.get(1).byterangeOffset);
+		assertEquals(2000, playlist.segments.get(1).byterangeLength);
+		assertEquals(C.LENGTH_UNBOUNDED, playlist.segments.get(2).byterangeLength);
+		assertEquals(20000000, playlist.segments.get(2).startTimeUs);
+		assertEquals(9.5, playlist.segments.get(2).durationSecs, 0);
+	}
+
+	@Test
+	public void linesSurviveAnyReadSize() throws IOException {
+		StringBuilder longUrl = new StringBuilder("http://example.com/");
+		while (longUrl.length() < 1000) {
+			longUrl.append("long/path/");
+		}
+		String playlist = "#EXTM3U \r\n#EXT-X-TARGETDURATION:6\r\n\r\n#EXTINF:6.006,title\r\n" + longUrl
+				+ "segment.ts  \r\n#EXTINF:6,\nlast.ts";
+		// one byte per read, so every line crosses a read
+		HlsMediaPlaylist playlistObject = (HlsMediaPlaylist) new StreamingPlaylistParser().parse(
+				new TrickleInputStream(playlist.getBytes(UTF_8)), null, null, null);
+		assertEquals(2, playlistObject.segments.size());
+		assertEquals(longUrl + "segment.ts", playlistObject.segments.get(0).url);
+		assertEquals(6.006, playlistObject.segments.get(0).durationSecs, 0);
+		assertEquals("last.ts", playlistObject.segments.get(1).url);
+	}
+
+	@Test(expected = ParserException.class)
+	public void noTagsIsAnError() throws IOException {
+		parse("just some text\n");
+	}
+
+	@Test
+	public void parserCanBeReused() throws IOException {
+		StreamingPlaylistParser parser = new StreamingPlaylistParser();
+		HlsMasterPlaylist master = (HlsMasterPlaylist) parser.parse(stream(MASTER_PLAYLIST), null, null, null);
+		HlsMediaPlaylist media = (HlsMediaPlaylist) parser.parse(stream(createMediaPlaylist(10, true)), null, null,
+				null);
+		assertEquals(3, master.variants.size());
+		assertEquals(10, media.segments.size());
+	}
+
+	@Test
+	public void parsesTheResponseOfAnHttpServer() throws IOException {
+		mDirectory = createDirectory();
+		String playlist = createMediaPlaylist(2000, true);
+		FileOutputStream output = new FileOutputStream(new File(mDirectory, "index.m3u8"));
+		output.write(playlist.getBytes(UTF_8));
+		output.close();
+		mServer = new LocalHttpServer(mDirectory);
+
+		HttpURLConnection connection = (HttpURLConnection) new URL(mServer.getUrl("index.m3u8")).openConnection();
+		HlsMediaPlaylist actual;
+		InputStream input = connection.getInputStream();
+		try {
+			actual = (HlsMediaPlaylist) new StreamingPlaylistParser().parse(input, null, null, null);
+		} finally {
+			input.close();
+			connection.disconnect();
+		}
+		assertMediaPlaylistsEqual((HlsMediaPlaylist) parse(playlist), actual);
+		assertEquals(2000, actual.segments.size());
+	}
+
+	private static HlsPlaylist parse(String playlist) throws IOException {
+		return new StreamingPlaylistParser().parse(stream(playlist), null, null, null);
+	}
+
+	private static InputStream stream(String playlist) {
+		return new ByteArrayInputStream(playlist.getBytes(UTF_8));
+	}
+
+	static String createMediaPlaylist(int segmentCount, boolean ended) {
+		StringBuilder playlist = new StringBuilder("#EXTM3U\n#EXT-X-VERSION:3\n#EXT-X-TARGETDURATION:7\n"
+				+ "#EXT-X-MEDIA-SEQUENCE:1200\n");
+		for (int i = 0; i < segmentCount; i++) {
+			if (i % 50 == 25) {
+				playlist.append("#EXT-X-DISCONTINUITY\n");
+			}
+			if (i % 100 == 0) {
+				playlist.append("#EXT-X-KEY:METHOD=AES-128,URI=\"https://example.com/key").append(i / 100)
+						.append("\",IV=0x").append(Integer.toHexString(0x1000 + i)).append('\n');
+			}
+			playlist.append("#EXTINF:").append(6 + (i % 3) * 0.25).append(",segment title\n");
+			playlist.append("https://cdn.example.com/live/stream_").append(1200 + i).append(".ts\n");
+		}
+		if (ended) {
+			playlist.append("#EXT-X-ENDLIST\n");
+		}
+		return playlist.toString();
+	}
+
+	private static void assertMediaPlaylistsEqual(HlsMediaPlaylist expected, HlsMediaPlaylist actual) {
+		assertEquals(expected.mediaSequence, actual.mediaSequence);
+		assertEquals(expected.targetDurationSecs, actual.targetDurationSecs);
+		assertEquals(expected.version, actual.version);
+		assertEquals(expected.live, actual.live);
+		assertEquals(expected.durationUs, actual.durationUs);
+		assertEquals(expected.segments.size(), actual.segments.size());
+		for (int i = 0; i < expected.segments.size(); i++) {
+			HlsMediaPlaylist.Segment expectedSegment = expected.segments.get(i);
+			HlsMediaPlaylist.Segment actualSegment = actual.segments.get(i);
+			assertEquals(expectedSegment.url, actualSegment.url);
+			assertEquals(expectedSegment.durationSecs, actualSegment.durationSecs, 0);
+			assertEquals(expectedSegment.discontinuity, actualSegment.discontinuity);
+			assertEquals(expectedSegment.startTimeUs, actualSegment.startTimeUs);
+			assertEquals(expectedSegment.encryptionMethod, actualSegment.encryptionMethod);
+			assertEquals(expectedSegment.encryptionKeyUri, actualSegment.encryptionKeyUri);
+			assertEquals(expectedSegment.encryptionIV, actualSegment.encryptionIV);
+			assertEquals(expectedSegment.byterangeOffset, actualSegment.byterangeOffset);
+			assertEquals(expectedSegment.byterangeLength, actualSegment.byterangeLength);
+		}
+	}
+
+	private static File createDirectory() throws IOException {
+		File directory = File.createTempFile("playlists", "");
+		directory.delete();
+		directory.mkdir();
+		return directory;
+	}
+
+	/** hands out one byte per read */
+	private static final class TrickleInputStream extends InputStream {
+
+		private final byte[] mData;
+		private int mPosition;
+
+		TrickleInputStream(byte[] data) {
+			mData = data;
+		}
+
+		@Override
+		public int read() {
+			return mPosition < mData.length ? mData[mPosition++] & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) {
+			if (mPosition == mData.length) {
+				return -1;
+			}
+			if (length == 0) {
+				return 0;
+			}
+			buffer[offset] = mData[mPosition++];
+			return 1;
+		}
+	}
+
+}
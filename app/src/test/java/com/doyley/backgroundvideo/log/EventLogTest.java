@@ -0,0 +1,63 @@
+package com.doyley.backgroundvideo.log;
+
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/** the log is one per process, so every test looks only at the events it logged last */
+public class EventLogTest {
+
+	@Test
+	public void stringsAreInternedOnce() {
+		long id = EventLog.intern("interned-once");
+		assertTrue(id >= 0);
+		assertEquals(id, EventLog.intern(new String("interned-once")));
+		assertTrue(EventLog.intern("interned-other") != id);
+		assertEquals(-1, EventLog.intern(null));
+	}
+
+	@Test
+	public void eventsAreDecodedWhenDumped() {
+		EventLog.log(EventLog.LOAD_VIDEO, EventLog.intern("decoded-uri"), 1234);
+		EventLog.log(EventLog.DOWNLOAD_PROGRESS, 3, 8);
+		EventLog.log(EventLog.SERVICE_CREATE);
+		EventLog.log(999, 1, 2);
+		EventLog.log(EventLog.RESTORE_SESSION, -1, 0);
+		String[] lines = dump();
+		assertTrue(lines[lines.length - 5].endsWith(" load video : uri = decoded-uri, start position = 1234"));
+		assertTrue(lines[lines.length - 4].endsWith(" download progress : 3/8"));
+		assertTrue(lines[lines.length - 3].endsWith(" service create"));
+		assertTrue(lines[lines.length - 2].endsWith(" unknown event 999 : 1, 2"));
+		// a string the table had no room for
+		assertTrue(lines[lines.length - 1].endsWith(" restore session : uri = ?, position = 0"));
+		// ages are relative to the newest event
+		assertEquals("0.000", lines[lines.length - 1].trim().split(" ")[0]);
+	}
+
+	@Test
+	public void oldestEventsAreOverwritten() {
+		int count = 5000;
+		for (int i = 0; i < count; i++) {
+			EventLog.log(EventLog.TRIM_MEMORY, i);
+		}
+		String[] lines = dump();
+		assertTrue(lines[0].startsWith("event log : 4096 of "));
+		assertEquals(4097, lines.length);
+		for (int i = 1; i < lines.length; i++) {
+			assertTrue(lines[i].endsWith(" trim memory : level = " + (count - 4097 + i)));
+		}
+	}
+
+	private static String[] dump() {
+		StringWriter text = new StringWriter();
+		PrintWriter writer = new PrintWriter(text);
+		EventLog.dump(writer);
+		writer.flush();
+		return text.toString().split("\r?\n");
+	}
+
+}
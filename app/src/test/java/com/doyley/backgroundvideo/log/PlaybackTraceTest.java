@@ -0,0 +1,111 @@
+package com.doyley.backgroundvideo.log;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PlaybackTraceTest {
+
+	private static final String TIMESTAMP = "\"ts\":\\d+\\.\\d{3},\"pid\":\\d+,\"tid\":\\d+";
+
+	@After
+	public void tearDown() {
+		PlaybackTrace.stop();
+	}
+
+	@Test
+	public void nothingIsRecordedWhileStopped() throws IOException {
+		PlaybackTrace.start();
+		PlaybackTrace.instant("before stop", 1);
+		PlaybackTrace.stop();
+		assertTrue(!PlaybackTrace.isEnabled());
+		PlaybackTrace.begin("after stop");
+		PlaybackTrace.instant("after stop", 2);
+		String[] lines = export(1);
+		assertTrue(lines[1].startsWith("{\"name\":\"before stop\","));
+	}
+
+	@Test
+	public void startClearsWhatWasRecorded() throws IOException {
+		PlaybackTrace.start();
+		PlaybackTrace.instant("first session", 1);
+		PlaybackTrace.start();
+		PlaybackTrace.instant("second session", 2);
+		String[] lines = export(1);
+		assertTrue(lines[1].startsWith("{\"name\":\"second session\","));
+	}
+
+	@Test
+	public void eventsAreExportedAsTraceEventJson() throws IOException {
+		PlaybackTrace.start();
+		PlaybackTrace.begin("load", 7);
+		PlaybackTrace.instant("stall", 42);
+		PlaybackTrace.begin("seek");
+		PlaybackTrace.end("seek");
+		PlaybackTrace.end("load");
+		PlaybackTrace.stop();
+
+		String[] lines = export(5);
+		assertEquals("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[", lines[0]);
+		assertEvent("load", 'B', ",\"args\":\\{\"arg\":7\\}", lines[1]);
+		assertEvent("stall", 'i', ",\"s\":\"t\",\"args\":\\{\"arg\":42\\}", lines[2]);
+		assertEvent("seek", 'B', ",\"args\":\\{\"arg\":0\\}", lines[3]);
+		assertEvent("seek", 'E', "", lines[4]);
+		assertEvent("load", 'E', "", lines[5]);
+		// then the name of every thread that recorded something
+		for (int i = 6; i < lines.length - 1; i++) {
+			assertMatches("\\{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":\\d+,\"tid\":\\d+,"
+					+ "\"args\":\\{\"name\":\".*\"\\}\\},?", lines[i]);
+		}
+		assertEquals("]}", lines[lines.length - 1]);
+	}
+
+	@Test
+	public void namesAreEscaped() throws IOException {
+		PlaybackTrace.start();
+		PlaybackTrace.instant("a \"quoted\" back\\slash\n", 1);
+		String[] lines = export(1);
+		assertTrue(lines[1].startsWith("{\"name\":\"a \\\"quoted\\\" back\\\\slash\\u000a\","));
+	}
+
+	@Test
+	public void oldestEventsAreOverwritten() throws IOException {
+		PlaybackTrace.start();
+		for (int i = 0; i < 20000; i++) {
+			PlaybackTrace.instant("tick", i);
+		}
+		String[] lines = export(16384);
+		assertTrue(lines[1].endsWith("\"args\":{\"arg\":" + (20000 - 16384) + "}},"));
+		assertTrue(lines[16384].endsWith("\"args\":{\"arg\":19999}},"));
+	}
+
+	/** exports the trace and checks it holds eventCount events, plus a thread name for each thread */
+	private static String[] export(int eventCount) throws IOException {
+		StringWriter writer = new StringWriter();
+		int count = PlaybackTrace.export(writer);
+		String[] lines = writer.toString().split("\n");
+		// the header, the events and the closing line
+		assertEquals(count + 2, lines.length);
+		assertTrue(count > eventCount);
+		for (int i = 1; i <= eventCount; i++) {
+			assertTrue(!lines[i].contains("thread_name"));
+		}
+		assertTrue(lines[eventCount + 1].contains("thread_name"));
+		return lines;
+	}
+
+	/** an event line, followed by others - rest is what follows the thread id, as a regex */
+	private static void assertEvent(String name, char phase, String rest, String line) {
+		assertMatches("\\{\"name\":\"" + name + "\",\"ph\":\"" + phase + "\"," + TIMESTAMP + rest + "\\},", line);
+	}
+
+	private static void assertMatches(String regex, String line) {
+		assertTrue(line, line.matches(regex));
+	}
+
+}
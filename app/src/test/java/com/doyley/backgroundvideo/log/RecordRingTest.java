@@ -0,0 +1,131 @@
+package com.doyley.backgroundvideo.log;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RecordRingTest {
+
+	@Test
+	public void recordsAreReadBack() {
+		RecordRing ring = new RecordRing(8, true);
+		assertEquals(0, ring.getNextSequence());
+		long[] record = new long[RecordRing.RECORD_LONGS];
+		Object[] object = new Object[1];
+		assertTrue(!ring.read(0, record, object));
+		ring.write(1, 2, 3, 4, "a");
+		ring.write(5, 6, 7, 8, null);
+		assertEquals(2, ring.getNextSequence());
+		assertEquals(0, ring.getFirstSequence());
+		assertTrue(ring.read(0, record, object));
+		assertRecord(record, 1, 2, 3, 4);
+		assertEquals("a", object[0]);
+		assertTrue(ring.read(1, record, object));
+		assertRecord(record, 5, 6, 7, 8);
+		assertEquals(null, object[0]);
+		// not written yet
+		assertTrue(!ring.read(2, record, object));
+	}
+
+	@Test
+	public void oldestRecordsAreOverwritten() {
+		RecordRing ring = new RecordRing(8, false);
+		for (int i = 0; i < 21; i++) {
+			ring.write(i, i, i, i, null);
+		}
+		assertEquals(21, ring.getNextSequence());
+		assertEquals(13, ring.getFirstSequence());
+		long[] record = new long[RecordRing.RECORD_LONGS];
+		for (long sequence = 0; sequence < 13; sequence++) {
+			assertTrue(!ring.read(sequence, record, null));
+		}
+		for (long sequence = 13; sequence < 21; sequence++) {
+			assertTrue(ring.read(sequence, record, null));
+			assertRecord(record, sequence, sequence, sequence, sequence);
+		}
+		// a ring without references reads them as null
+		Object[] object = {"stale"};
+		assertTrue(ring.read(20, record, object));
+		assertEquals(null, object[0]);
+	}
+
+	@Test
+	public void clearedRecordsAreNotRead() {
+		RecordRing ring = new RecordRing(4, false);
+		ring.write(1, 1, 1, 1, null);
+		ring.write(2, 2, 2, 2, null);
+		ring.clear();
+		long[] record = new long[RecordRing.RECORD_LONGS];
+		assertTrue(!ring.read(0, record, null));
+		assertTrue(!ring.read(1, record, null));
+		ring.write(3, 3, 3, 3, null);
+		assertTrue(ring.read(2, record, null));
+		assertRecord(record, 3, 3, 3, 3);
+	}
+
+	@Test
+	public void readsDuringWritesAreNeverTorn() throws InterruptedException {
+		// a small ring, so the reader keeps meeting the writer - one writer, as writers a ring apart could race
+		final RecordRing ring = new RecordRing(16, true);
+		final int writeCount = 500000;
+		final AtomicBoolean done = new AtomicBoolean();
+		final AtomicReference<String> failure = new AtomicReference<>();
+		Thread writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				// every word is derived from the sequence, so a copy mixing two writes shows
+				for (long value = 0; value < writeCount; value++) {
+					ring.write(value, value + 1, value + 2, value + 3, value);
+				}
+			}
+		});
+		long[] readCount = new long[1];
+		Thread reader = createReader(ring, done, failure, readCount);
+		reader.start();
+		writer.start();
+		writer.join();
+		done.set(true);
+		reader.join();
+		assertEquals(null, failure.get());
+		assertTrue(readCount[0] > 0);
+		assertEquals(writeCount, ring.getNextSequence());
+	}
+
+	private static Thread createReader(final RecordRing ring, final AtomicBoolean done,
+	                                   final AtomicReference<String> failure, final long[] readCount) {
+		return new Thread(new Runnable() {
+			@Override
+			public void run() {
+				long[] record = new long[RecordRing.RECORD_LONGS];
+				Object[] object = new Object[1];
+				while (!done.get() && failure.get() == null) {
+					long next = ring.getNextSequence();
+					for (long sequence = ring.getFirstSequence(); sequence < next; sequence++) {
+						if (!ring.read(sequence, record, object)) {
+							continue;
+						}
+						readCount[0]++;
+						long value = record[0];
+						if (value != sequence || record[1] != value + 1 || record[2] != value + 2 || record[3] != value + 3
+								|| !Long.valueOf(value).equals(object[0])) {
+							failure.set("torn record " + sequence + " : " + record[0] + ", " + record[1] + ", "
+									+ record[2] + ", " + record[3] + ", " + object[0]);
+						}
+					}
+				}
+			}
+		});
+	}
+
+	private static void assertRecord(long[] record, long a, long b, long c, long d) {
+		assertEquals(a, record[0]);
+		assertEquals(b, record[1]);
+		assertEquals(c, record[2]);
+		assertEquals(d, record[3]);
+	}
+
+}
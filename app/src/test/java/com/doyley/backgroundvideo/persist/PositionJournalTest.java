@@ -0,0 +1,178 @@
+package com.doyley.backgroundvideo.persist;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PositionJournalTest {
+
+	private File mFile;
+	private ExecutorService mExecutor;
+	private PositionJournal mJournal;
+
+	@Before
+	public void setUp() throws IOException {
+		mFile = File.createTempFile("positions", ".journal");
+		mFile.delete();
+	}
+
+	@After
+	public void tearDown() throws InterruptedException {
+		if (mJournal != null) {
+			close();
+		}
+		mFile.delete();
+		new File(mFile.getPath() + ".compact").delete();
+	}
+
+	@Test
+	public void positionsSurviveAReopen() throws InterruptedException {
+		open();
+		mJournal.record("a", 1000);
+		mJournal.record("b", 2000);
+		mJournal.record("a", 3000);
+		mJournal.record("c", 4000);
+		mJournal.remove("c");
+		assertEquals(3000, mJournal.getPositionMs("a"));
+		reopen();
+		assertEquals(3000, mJournal.getPositionMs("a"));
+		assertEquals(2000, mJournal.getPositionMs("b"));
+		assertEquals(-1, mJournal.getPositionMs("c"));
+	}
+
+	@Test
+	public void tornRecordIsIgnored() throws IOException, InterruptedException {
+		open();
+		mJournal.record("a", 1000);
+		mJournal.record("c", 5000);
+		mJournal.record("b", 2000);
+		mJournal.record("c", 9000);
+		close();
+
+		// the end offset made it to disk but the last record did not all
+		RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+		file.seek(8);
+		int end = file.readInt();
+		file.seek(end - 1);
+		int lastByte = file.read();
+		file.seek(end - 1);
+		file.write(lastByte ^ 0xff);
+		file.close();
+
+		open();
+		assertEquals(1000, mJournal.getPositionMs("a"));
+		assertEquals(2000, mJournal.getPositionMs("b"));
+		assertEquals(5000, mJournal.getPositionMs("c"));
+		// the next record goes over the torn one
+		mJournal.record("d", 4000);
+		reopen();
+		assertEquals(5000, mJournal.getPositionMs("c"));
+		assertEquals(4000, mJournal.getPositionMs("d"));
+	}
+
+	@Test
+	public void fileThatIsNotAJournalStartsEmpty() throws IOException, InterruptedException {
+		RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+		file.write(new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16});
+		file.close();
+		open();
+		assertEquals(-1, mJournal.getPositionMs("a"));
+		mJournal.record("a", 1000);
+		reopen();
+		assertEquals(1000, mJournal.getPositionMs("a"));
+	}
+
+	@Test
+	public void supersededRecordsAreCompactedAway() throws InterruptedException {
+		open();
+		// 21 byte records, a little more than fill the journal as far as it grows before it compacts
+		for (int i = 1; i <= 26000; i++) {
+			mJournal.record("video-" + i % 3, i);
+		}
+		mJournal.record("kept", 7);
+		close();
+		assertTrue(mFile.length() < 256 * 1024);
+		assertTrue(!new File(mFile.getPath() + ".compact").exists());
+
+		open();
+		assertEquals(25998, mJournal.getPositionMs("video-0"));
+		assertEquals(25999, mJournal.getPositionMs("video-1"));
+		assertEquals(26000, mJournal.getPositionMs("video-2"));
+		assertEquals(7, mJournal.getPositionMs("kept"));
+	}
+
+	@Test
+	public void changesMadeDuringTheLoadWinOverTheJournal() throws InterruptedException {
+		open();
+		mJournal.record("removed", 1000);
+		mJournal.record("recorded", 1000);
+		mJournal.record("kept", 1000);
+		close();
+
+		// the load waits until the changes are made
+		mExecutor = Executors.newSingleThreadExecutor();
+		final CountDownLatch loadGate = new CountDownLatch(1);
+		mExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					loadGate.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		mJournal = new PositionJournal(mFile, mExecutor);
+		mJournal.open();
+		mJournal.remove("removed");
+		mJournal.record("recorded", 2000);
+		assertEquals(-1, mJournal.getPositionMs("kept"));
+		loadGate.countDown();
+		awaitLoaded();
+
+		assertEquals(-1, mJournal.getPositionMs("removed"));
+		assertEquals(2000, mJournal.getPositionMs("recorded"));
+		assertEquals(1000, mJournal.getPositionMs("kept"));
+		reopen();
+		assertEquals(-1, mJournal.getPositionMs("removed"));
+		assertEquals(2000, mJournal.getPositionMs("recorded"));
+		assertEquals(1000, mJournal.getPositionMs("kept"));
+	}
+
+	private void open() throws InterruptedException {
+		mExecutor = Executors.newSingleThreadExecutor();
+		mJournal = new PositionJournal(mFile, mExecutor);
+		mJournal.open();
+		awaitLoaded();
+	}
+
+	private void close() throws InterruptedException {
+		mJournal.close();
+		assertTrue(mExecutor.awaitTermination(10, TimeUnit.SECONDS));
+		mJournal = null;
+	}
+
+	private void reopen() throws InterruptedException {
+		close();
+		open();
+	}
+
+	private void awaitLoaded() throws InterruptedException {
+		for (int i = 0; i < 1000 && !mJournal.isLoaded(); i++) {
+			Thread.sleep(5);
+		}
+		assertTrue(mJournal.isLoaded());
+	}
+
+}
@@ -0,0 +1,164 @@
+package com.doyley.backgroundvideo.persist;
+
+import com.doyley.backgroundvideo.model.VideoMetadata;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SessionSnapshotTest {
+
+	// layout of the state slots
+	private static final int STATE_OFFSET = 8;
+	private static final int STATE_SIZE = 29;
+
+	private File mFile;
+	private ExecutorService mExecutor;
+	private SessionSnapshot mSnapshot;
+
+	@Before
+	public void setUp() throws IOException {
+		mFile = File.createTempFile("session", ".snapshot");
+		mFile.delete();
+		open();
+	}
+
+	@After
+	public void tearDown() throws InterruptedException {
+		close();
+		mFile.delete();
+	}
+
+	@Test
+	public void sessionAndLatestStateAreRestored() throws InterruptedException {
+		mSnapshot.writeSession(createMetadata("video-a"), createProfile("subtitles-a"), 1000);
+		mSnapshot.writeState(2000, false);
+		mSnapshot.writeState(3000, true);
+		reopen();
+
+		SessionSnapshot.Session session = mSnapshot.read();
+		assertEquals("video-a", session.getMetadata().getVideoUri());
+		assertEquals("title", session.getMetadata().getTitle());
+		assertEquals(60000, session.getMetadata().getDuration());
+		assertEquals(null, session.getMetadata().getImageUrl());
+		assertEquals("subtitles-a", session.getProfile().getSubtitleUri());
+		assertEquals(30000, session.getProfile().getBackgroundIdleTimeoutMs());
+		assertTrue(session.getProfile().isReadAheadInput());
+		assertEquals(3000, session.getPositionMs());
+		assertTrue(session.isPaused());
+		assertTrue(session.getMetadata().isPaused());
+	}
+
+	@Test
+	public void stateWrittenAfterAReopenGoesOnFromTheLatestSlot() throws InterruptedException {
+		mSnapshot.writeSession(createMetadata("video-a"), createProfile(null), 1000);
+		mSnapshot.writeState(2000, false);
+		mSnapshot.writeState(3000, false);
+		reopen();
+		mSnapshot.writeState(4000, false);
+		reopen();
+		assertEquals(4000, mSnapshot.read().getPositionMs());
+	}
+
+	@Test
+	public void tornStateSlotFallsBackToTheOtherSlot() throws IOException, InterruptedException {
+		mSnapshot.writeSession(createMetadata("video-a"), createProfile(null), 1000);
+		mSnapshot.writeState(2000, false);
+		// sequence 3 goes to slot 1
+		mSnapshot.writeState(3000, false);
+		close();
+
+		corrupt(STATE_OFFSET + STATE_SIZE + 10);
+		open();
+		assertEquals(2000, mSnapshot.read().getPositionMs());
+
+		// both slots torn - the session is still there, from the start
+		corrupt(STATE_OFFSET + 10);
+		SessionSnapshot.Session session = mSnapshot.read();
+		assertEquals("video-a", session.getMetadata().getVideoUri());
+		assertEquals(0, session.getPositionMs());
+		assertTrue(session.isPaused());
+	}
+
+	@Test
+	public void newSessionReplacesTheOldOneAndResetsTheSlots() throws InterruptedException {
+		mSnapshot.writeSession(createMetadata("a-video-with-a-long-uri"), createProfile("subtitles"), 1000);
+		for (int i = 0; i < 5; i++) {
+			mSnapshot.writeState(2000 + i, false);
+		}
+		mSnapshot.writeSession(createMetadata("b"), createProfile(null), 500);
+		mSnapshot.writeState(600, false);
+		reopen();
+
+		SessionSnapshot.Session session = mSnapshot.read();
+		assertEquals("b", session.getMetadata().getVideoUri());
+		assertEquals(null, session.getProfile().getSubtitleUri());
+		assertEquals(600, session.getPositionMs());
+		assertTrue(!new File(mFile.getPath() + ".new").exists());
+	}
+
+	@Test
+	public void damagedSessionIsNotRestored() throws IOException, InterruptedException {
+		mSnapshot.writeSession(createMetadata("video-a"), createProfile(null), 1000);
+		close();
+		corrupt(STATE_OFFSET + 2 * STATE_SIZE + 8);
+		open();
+		assertEquals(null, mSnapshot.read());
+	}
+
+	@Test
+	public void clearedSessionIsNotRestoredOrUpdated() throws InterruptedException {
+		mSnapshot.writeSession(createMetadata("video-a"), createProfile(null), 1000);
+		mSnapshot.clear();
+		mSnapshot.writeState(2000, false);
+		reopen();
+		assertEquals(null, mSnapshot.read());
+		assertTrue(!mFile.exists());
+	}
+
+	private void open() {
+		mExecutor = Executors.newSingleThreadExecutor();
+		mSnapshot = new SessionSnapshot(mFile, mExecutor);
+	}
+
+	private void close() throws InterruptedException {
+		if (mSnapshot != null) {
+			mSnapshot.close();
+			assertTrue(mExecutor.awaitTermination(10, TimeUnit.SECONDS));
+			mSnapshot = null;
+		}
+	}
+
+	private void reopen() throws InterruptedException {
+		close();
+		open();
+	}
+
+	private void corrupt(int offset) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+		file.seek(offset);
+		int value = file.read();
+		file.seek(offset);
+		file.write(value ^ 0xff);
+		file.close();
+	}
+
+	private static VideoMetadata createMetadata(String videoUri) {
+		return new VideoMetadata(videoUri, "title", "artist", 60000, null, "click", true, false, false);
+	}
+
+	private static SessionSnapshot.Profile createProfile(String subtitleUri) {
+		return new SessionSnapshot.Profile(1, false, false, true, true, false, subtitleUri, 30000);
+	}
+
+}
@@ -0,0 +1,107 @@
+package com.doyley.backgroundvideo.qoe;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AvSyncMonitorTest {
+
+	private static final long LATE_US = -AvSyncMonitor.LATE_THRESHOLD_US - 1;
+
+	@Test
+	public void catchUpAfterEightLateFramesInARow() {
+		AvSyncMonitor monitor = new AvSyncMonitor();
+		for (int i = 0; i < 7; i++) {
+			assertTrue(!monitor.onFrame(LATE_US, true));
+		}
+		assertTrue(monitor.onFrame(LATE_US, true));
+		// the streak starts over after a catch up
+		for (int i = 0; i < 7; i++) {
+			assertTrue(!monitor.onFrame(LATE_US, false));
+		}
+		assertTrue(monitor.onFrame(LATE_US, false));
+		assertEquals(2, getSummary(monitor).getSyncCatchUps());
+	}
+
+	@Test
+	public void frameOnTheThresholdIsNotLate() {
+		AvSyncMonitor monitor = new AvSyncMonitor();
+		for (int i = 0; i < 20; i++) {
+			assertTrue(!monitor.onFrame(-AvSyncMonitor.LATE_THRESHOLD_US, true));
+		}
+		assertEquals(0, getSummary(monitor).getSyncCatchUps());
+	}
+
+	@Test
+	public void streakIsBrokenByAFrameOnTimeOrADiscontinuity() {
+		AvSyncMonitor monitor = new AvSyncMonitor();
+		for (int i = 0; i < 7; i++) {
+			assertTrue(!monitor.onFrame(LATE_US, true));
+		}
+		assertTrue(!monitor.onFrame(0, false));
+		for (int i = 0; i < 7; i++) {
+			assertTrue(!monitor.onFrame(LATE_US, true));
+		}
+		monitor.onDiscontinuity();
+		for (int i = 0; i < 7; i++) {
+			assertTrue(!monitor.onFrame(LATE_US, true));
+		}
+		assertTrue(monitor.onFrame(LATE_US, true));
+		assertEquals(1, getSummary(monitor).getSyncCatchUps());
+	}
+
+	@Test
+	public void framesShownTooEarlyAreRepeats() {
+		AvSyncMonitor monitor = new AvSyncMonitor();
+		monitor.onFrame(AvSyncMonitor.EARLY_THRESHOLD_US, false);
+		monitor.onFrame(AvSyncMonitor.EARLY_THRESHOLD_US + 1, false);
+		// not shown, so not repeated either
+		monitor.onFrame(AvSyncMonitor.EARLY_THRESHOLD_US + 1, true);
+		monitor.onFrame(200000, false);
+		assertEquals(2, getSummary(monitor).getSyncRepeats());
+	}
+
+	@Test
+	public void driftsAreRecordedForTheSession() {
+		AvSyncMonitor monitor = new AvSyncMonitor();
+		monitor.onFrame(-30000, false);
+		monitor.onFrame(-150000, true);
+		monitor.onFrame(10000, false);
+		monitor.onFrame(0, false);
+		QoeSummary summary = getSummary(monitor);
+		assertEquals(2, summary.getVideoLateMs().getCount());
+		assertEquals(30, summary.getVideoLateMs().getMin());
+		assertEquals(150, summary.getVideoLateMs().getMax());
+		assertEquals(2, summary.getVideoEarlyMs().getCount());
+		assertEquals(10, summary.getVideoEarlyMs().getMax());
+		assertTrue(monitor.getDebugString().startsWith("last 4 frames : mean = -42.5ms, min = -150.0ms, "
+				+ "max = 10.0ms, session : frames = 4, dropped = 1"));
+
+		monitor.reset();
+		summary = getSummary(monitor);
+		assertEquals(0, summary.getVideoLateMs().getCount());
+		assertEquals(0, summary.getVideoEarlyMs().getCount());
+		assertTrue(monitor.getDebugString().startsWith("last 0 frames : mean = 0.0ms"));
+	}
+
+	@Test
+	public void recentDriftsAreTheLastFramesOnly() {
+		AvSyncMonitor monitor = new AvSyncMonitor();
+		for (int i = 0; i < 100; i++) {
+			monitor.onFrame(-500000, true);
+		}
+		for (int i = 0; i < 128; i++) {
+			monitor.onFrame(20000, false);
+		}
+		assertTrue(monitor.getDebugString().startsWith(
+				"last 128 frames : mean = 20.0ms, min = 20.0ms, max = 20.0ms"));
+	}
+
+	private static QoeSummary getSummary(AvSyncMonitor monitor) {
+		QoeSummary summary = new QoeSummary();
+		monitor.addTo(summary);
+		return summary;
+	}
+
+}
@@ -0,0 +1,153 @@
+package com.doyley.backgroundvideo.qoe;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LogHistogramTest {
+
+	@Test
+	public void bucketsCoverEveryValueInOrder() {
+		assertEquals(0, LogHistogram.getBucketIndex(0));
+		assertEquals(7, LogHistogram.getBucketIndex(7));
+		int previous = 0;
+		for (long value = 1; value < 1L << 42; value += 1 + value / 3) {
+			int index = LogHistogram.getBucketIndex(value);
+			assertTrue(index >= previous);
+			assertTrue(value <= LogHistogram.getBucketUpperBound(index));
+			if (index > 0) {
+				assertTrue(value > LogHistogram.getBucketUpperBound(index - 1));
+			}
+			previous = index;
+		}
+		assertEquals(LogHistogram.getBucketIndex(1L << 41), LogHistogram.getBucketIndex(Long.MAX_VALUE));
+	}
+
+	@Test
+	public void bucketsAreWithinAnEighth() {
+		for (long value = 8; value < 1L << 40; value = value * 5 / 4 + 1) {
+			int index = LogHistogram.getBucketIndex(value);
+			long upper = LogHistogram.getBucketUpperBound(index);
+			assertTrue((upper - value) * 8 <= value);
+		}
+	}
+
+	@Test
+	public void countSumMinAndMaxAreExact() {
+		LogHistogram histogram = new LogHistogram();
+		assertEquals(0, histogram.getMin());
+		assertEquals(0, histogram.getPercentile(0.5));
+		histogram.record(1000);
+		histogram.record(17);
+		histogram.record(123456);
+		histogram.record(-5);
+		assertEquals(4, histogram.getCount());
+		assertEquals(1000 + 17 + 123456, histogram.getSum());
+		assertEquals(0, histogram.getMin());
+		assertEquals(123456, histogram.getMax());
+		assertEquals((1000 + 17 + 123456) / 4, histogram.getMean());
+	}
+
+	@Test
+	public void percentilesAreWithinTheBucketError() {
+		Random random = new Random(7);
+		LogHistogram histogram = new LogHistogram();
+		long[] values = new long[100000];
+		for (int i = 0; i < values.length; i++) {
+			// latencies are roughly log normal
+			values[i] = (long) Math.exp(8 + 2 * random.nextGaussian());
+			histogram.record(values[i]);
+		}
+		Arrays.sort(values);
+		for (double fraction : new double[] {0.01, 0.5, 0.9, 0.99, 0.999}) {
+			long exact = values[(int) Math.ceil(fraction * values.length) - 1];
+			long estimate = histogram.getPercentile(fraction);
+			assertTrue(estimate >= exact);
+			assertTrue((estimate - exact) * 8 <= exact + 8);
+		}
+		assertEquals(values[values.length - 1], histogram.getPercentile(1));
+	}
+
+	@Test
+	public void mergeIsTheSameAsRecordingEverything() {
+		Random random = new Random(11);
+		LogHistogram all = new LogHistogram();
+		LogHistogram first = new LogHistogram();
+		LogHistogram second = new LogHistogram();
+		for (int i = 0; i < 10000; i++) {
+			long value = random.nextInt(1000000);
+			all.record(value);
+			(i % 3 == 0 ? first : second).record(value);
+		}
+		LogHistogram merged = new LogHistogram();
+		merged.merge(first);
+		merged.merge(second);
+		merged.merge(new LogHistogram());
+		assertSameHistogram(all, merged);
+	}
+
+	@Test
+	public void serializedHistogramReadsBackTheSame() throws IOException {
+		LogHistogram histogram = new LogHistogram();
+		for (long value = 0; value < 1L << 45; value = value * 3 + 1) {
+			histogram.record(value);
+		}
+		assertSameHistogram(histogram, roundTrip(histogram));
+		assertSameHistogram(new LogHistogram(), roundTrip(new LogHistogram()));
+		// an empty histogram read back still takes the min of what it records next
+		LogHistogram empty = roundTrip(new LogHistogram());
+		empty.record(42);
+		assertEquals(42, empty.getMin());
+	}
+
+	@Test(expected = IOException.class)
+	public void bucketOutOfRangeIsRejected() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream output = new DataOutputStream(bytes);
+		// count, sum, min, max, one bucket past the end
+		for (long value : new long[] {1, 1, 1, 1, 1, 100000, 1}) {
+			LogHistogram.writeVarLong(output, value);
+		}
+		LogHistogram.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+	}
+
+	@Test
+	public void varLongsReadBack() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream output = new DataOutputStream(bytes);
+		long[] values = new long[] {0, 1, 127, 128, 300, Integer.MAX_VALUE, Long.MAX_VALUE, -1};
+		for (long value : values) {
+			LogHistogram.writeVarLong(output, value);
+		}
+		DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+		for (long value : values) {
+			assertEquals(value, LogHistogram.readVarLong(input));
+		}
+	}
+
+	private static LogHistogram roundTrip(LogHistogram histogram) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		histogram.writeTo(new DataOutputStream(bytes));
+		return LogHistogram.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+	}
+
+	private static void assertSameHistogram(LogHistogram expected, LogHistogram actual) {
+		assertEquals(expected.getCount(), actual.getCount());
+		assertEquals(expected.getSum(), actual.getSum());
+		assertEquals(expected.getMin(), actual.getMin());
+		assertEquals(expected.getMax(), actual.getMax());
+		for (double fraction = 0; fraction <= 1; fraction += 0.01) {
+			assertEquals(expected.getPercentile(fraction), actual.getPercentile(fraction));
+		}
+	}
+
+}
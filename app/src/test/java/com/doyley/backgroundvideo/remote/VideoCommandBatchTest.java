@@ -0,0 +1,120 @@
+package com.doyley.backgroundvideo.remote;
+
+import com.doyley.backgroundvideo.service.VideoService;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class VideoCommandBatchTest {
+
+	/** records the calls a batch makes, and plays along with them */
+	private static final class RecordingVideoService extends VideoService {
+		final List<String> calls = new ArrayList<>();
+		boolean playing;
+		long positionMs;
+
+		@Override
+		public void start() {
+			calls.add("start");
+			playing = true;
+		}
+
+		@Override
+		public void pause() {
+			calls.add("pause");
+			playing = false;
+		}
+
+		@Override
+		public boolean isPlaying() {
+			return playing;
+		}
+
+		@Override
+		public long getCurrentPosition() {
+			return positionMs;
+		}
+
+		@Override
+		public void seekTo(long positionMs) {
+			calls.add("seek " + positionMs);
+			this.positionMs = positionMs;
+		}
+
+		@Override
+		public void prev() {
+			calls.add("prev");
+		}
+
+		@Override
+		public void next() {
+			calls.add("next");
+		}
+
+		@Override
+		public void stop() {
+			calls.add("stop");
+		}
+	}
+
+	@Test
+	public void commandsAreAppliedInOrder() {
+		VideoCommandBatch batch = new VideoCommandBatch(1)
+				.add(VideoCommandBatch.OP_SEEK, 5000)
+				.add(VideoCommandBatch.OP_PLAY)
+				.add(VideoCommandBatch.OP_SEEK_RELATIVE, 2000)
+				.add(VideoCommandBatch.OP_TOGGLE_PAUSED)
+				.add(VideoCommandBatch.OP_SEEK_RELATIVE, -10000)
+				.add(VideoCommandBatch.OP_TOGGLE_PAUSED)
+				.add(VideoCommandBatch.OP_SEEK, -1)
+				.add(VideoCommandBatch.OP_NEXT)
+				.add(VideoCommandBatch.OP_PREVIOUS)
+				.add(VideoCommandBatch.OP_PAUSE)
+				.add(VideoCommandBatch.OP_STOP);
+		RecordingVideoService service = new RecordingVideoService();
+		assertEquals(0, batch.applyTo(service));
+		// relative seeks go from where the previous commands left playback, and no seek goes before the start
+		assertEquals(Arrays.asList("seek 5000", "start", "seek 7000", "pause", "seek 0", "start", "seek 0", "next",
+				"prev", "pause", "stop"), service.calls);
+	}
+
+	@Test
+	public void unknownCommandsAreRejectedAndSkipped() {
+		VideoCommandBatch batch = new VideoCommandBatch(1)
+				.add(0)
+				.add(VideoCommandBatch.OP_PLAY)
+				.add(99, 1000)
+				.add(VideoCommandBatch.OP_PAUSE);
+		RecordingVideoService service = new RecordingVideoService();
+		assertEquals(2, batch.applyTo(service));
+		assertEquals(Arrays.asList("start", "pause"), service.calls);
+	}
+
+	@Test
+	public void batchGrowsUpToItsMaximumSize() {
+		VideoCommandBatch batch = new VideoCommandBatch(7);
+		for (int i = 0; i < VideoCommandBatch.MAX_SIZE; i++) {
+			batch.add(VideoCommandBatch.OP_SEEK, i);
+		}
+		assertEquals(7, batch.getBatchId());
+		assertEquals(VideoCommandBatch.MAX_SIZE, batch.size());
+		for (int i = 0; i < VideoCommandBatch.MAX_SIZE; i++) {
+			assertEquals(VideoCommandBatch.OP_SEEK, batch.getOp(i));
+			assertEquals(i, batch.getArg(i));
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void fullBatchThrows() {
+		VideoCommandBatch batch = new VideoCommandBatch(1);
+		for (int i = 0; i <= VideoCommandBatch.MAX_SIZE; i++) {
+			batch.add(VideoCommandBatch.OP_PLAY);
+		}
+	}
+
+}
@@ -0,0 +1,263 @@
+package com.doyley.backgroundvideo.renderer;
+
+import com.doyley.backgroundvideo.upstream.IoScheduler;
+import com.google.android.exoplayer.MediaFormatHolder;
+import com.google.android.exoplayer.SampleHolder;
+import com.google.android.exoplayer.SampleSource;
+import com.google.android.exoplayer.TrackInfo;
+import com.google.android.exoplayer.source.SampleExtractor;
+import com.google.android.exoplayer.util.MimeTypes;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AudioTrackSelectingSourceTest {
+
+	private static final int[] MAX_CONCURRENCY = {2, 1, 1};
+	// audio at 1 and 3, among tracks of other kinds
+	private static final TrackInfo[] TRACKS = {
+			new TrackInfo(MimeTypes.VIDEO_H264, 1000000),
+			new TrackInfo(MimeTypes.AUDIO_AAC, 1000000),
+			new TrackInfo(MimeTypes.TEXT_VTT, 1000000),
+			new TrackInfo(MimeTypes.AUDIO_AC3, 1000000)};
+
+	/** a source over the tracks, recording what is asked of each */
+	private static final class FakeSource implements SampleSource {
+		final List<String> calls = new ArrayList<>();
+		int releaseCount;
+
+		@Override
+		public boolean prepare() {
+			return true;
+		}
+
+		@Override
+		public int getTrackCount() {
+			return TRACKS.length;
+		}
+
+		@Override
+		public TrackInfo getTrackInfo(int track) {
+			return TRACKS[track];
+		}
+
+		@Override
+		public void enable(int track, long positionUs) {
+			calls.add("enable " + track);
+		}
+
+		@Override
+		public void disable(int track) {
+			calls.add("disable " + track);
+		}
+
+		@Override
+		public boolean continueBuffering(long positionUs) {
+			return true;
+		}
+
+		@Override
+		public int readData(int track, long playbackPositionUs, MediaFormatHolder formatHolder,
+		                    SampleHolder sampleHolder, boolean onlyReadDiscontinuity) {
+			calls.add("read " + track);
+			return NOTHING_READ;
+		}
+
+		@Override
+		public void seekToUs(long positionUs) {
+			calls.add("seek " + positionUs);
+		}
+
+		@Override
+		public long getBufferedPositionUs() {
+			return 0;
+		}
+
+		@Override
+		public void release() {
+			releaseCount++;
+		}
+	}
+
+	/** an extractor over the tracks, recording which are selected */
+	private static final class FakeExtractor implements SampleExtractor {
+		final List<String> calls = new ArrayList<>();
+		boolean failsToPrepare;
+
+		@Override
+		public boolean prepare() throws IOException {
+			if (failsToPrepare) {
+				throw new IOException("unreachable");
+			}
+			return true;
+		}
+
+		@Override
+		public TrackInfo[] getTrackInfos() {
+			return TRACKS;
+		}
+
+		@Override
+		public void selectTrack(int track) {
+			calls.add("select " + track);
+		}
+
+		@Override
+		public void deselectTrack(int track) {
+			calls.add("deselect " + track);
+		}
+
+		@Override
+		public long getBufferedPositionUs() {
+			return 0;
+		}
+
+		@Override
+		public void seekTo(long positionUs) {
+		}
+
+		@Override
+		public void getTrackMediaFormat(int track, MediaFormatHolder formatHolder) {
+		}
+
+		@Override
+		public int readSample(int track, SampleHolder sampleHolder) {
+			return SampleSource.NOTHING_READ;
+		}
+
+		@Override
+		public void release() {
+			calls.add("release");
+		}
+	}
+
+	@Test
+	public void rendererSeesTheSelectedAudioTrackOnly() throws IOException {
+		FakeSource shared = new FakeSource();
+		AudioTrackSelectingSource source = new AudioTrackSelectingSource(shared, null, 0);
+		assertEquals(0, source.getTrackCount());
+		assertTrue(source.prepare());
+		assertEquals(1, source.getTrackCount());
+		assertArrayEquals(new String[] {MimeTypes.AUDIO_AAC, MimeTypes.AUDIO_AC3}, source.getMimeTypes());
+		assertEquals(MimeTypes.AUDIO_AAC, source.getTrackInfo(0).mimeType);
+
+		source.enable(0, 0);
+		source.readData(0, 0, null, null, false);
+		source.disable(0);
+		source.selectAudioTrack(1);
+		assertEquals(1, source.getSelectedAudioTrack());
+		assertEquals(MimeTypes.AUDIO_AC3, source.getTrackInfo(0).mimeType);
+		source.enable(0, 0);
+		source.readData(0, 0, null, null, false);
+		assertEquals(Arrays.asList("enable 1", "read 1", "disable 1", "enable 3", "read 3"), shared.calls);
+	}
+
+	@Test
+	public void selectionBeforePrepareIsCheckedOnceTheTracksAreKnown() throws IOException {
+		AudioTrackSelectingSource source = new AudioTrackSelectingSource(new FakeSource(), null, 1);
+		source.prepare();
+		assertEquals(1, source.getSelectedAudioTrack());
+
+		source = new AudioTrackSelectingSource(new FakeSource(), null, 0);
+		source.selectAudioTrack(5);
+		source.prepare();
+		assertEquals(0, source.getSelectedAudioTrack());
+	}
+
+	@Test
+	public void selectionOutOfRangeIsIgnoredAndWhileEnabledRefused() throws IOException {
+		AudioTrackSelectingSource source = new AudioTrackSelectingSource(new FakeSource(), null, 1);
+		source.prepare();
+		source.selectAudioTrack(2);
+		source.selectAudioTrack(-1);
+		assertEquals(1, source.getSelectedAudioTrack());
+		source.enable(0, 0);
+		try {
+			source.selectAudioTrack(0);
+			fail();
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void switchMovesTheAudioOntoASourceOfItsOwn() throws Exception {
+		FakeSource shared = new FakeSource();
+		final FakeExtractor extractor = new FakeExtractor();
+		AudioTrackSelectingSource source = new AudioTrackSelectingSource(shared,
+				new AudioTrackSelectingSource.ExtractorFactory() {
+					@Override
+					public SampleExtractor createExtractor() {
+						return extractor;
+					}
+				}, 0);
+		source.prepare();
+		prepareOwnSource(source);
+
+		source.selectAudioTrack(1);
+		source.enable(0, 0);
+		source.seekToUs(1000);
+		assertEquals(Arrays.asList("select 3"), extractor.calls);
+		// the shared source is left to the other renderers
+		assertTrue(shared.calls.isEmpty());
+
+		source.release();
+		assertEquals(1, shared.releaseCount);
+		assertEquals("release", extractor.calls.get(extractor.calls.size() - 1));
+	}
+
+	@Test
+	public void switchStaysOnTheSharedSourceIfTheOwnFailsToPrepare() throws Exception {
+		FakeSource shared = new FakeSource();
+		final FakeExtractor extractor = new FakeExtractor();
+		extractor.failsToPrepare = true;
+		AudioTrackSelectingSource source = new AudioTrackSelectingSource(shared,
+				new AudioTrackSelectingSource.ExtractorFactory() {
+					@Override
+					public SampleExtractor createExtractor() {
+						return extractor;
+					}
+				}, 0);
+		source.prepare();
+		prepareOwnSource(source);
+		// nothing left to prepare after a failure - onReady comes straight away
+		final boolean[] ready = new boolean[1];
+		source.prepareOwnSource(null, new Runnable() {
+			@Override
+			public void run() {
+				ready[0] = true;
+			}
+		});
+		assertTrue(ready[0]);
+
+		source.selectAudioTrack(1);
+		source.enable(0, 0);
+		assertEquals(Arrays.asList("enable 3"), shared.calls);
+		assertEquals(Arrays.asList("release"), extractor.calls);
+	}
+
+	/** prepares the source a switch moves the audio to, and waits until it is */
+	private static void prepareOwnSource(AudioTrackSelectingSource source) throws InterruptedException {
+		IoScheduler scheduler = new IoScheduler(1, MAX_CONCURRENCY);
+		final CountDownLatch ready = new CountDownLatch(1);
+		source.prepareOwnSource(scheduler, new Runnable() {
+			@Override
+			public void run() {
+				ready.countDown();
+			}
+		});
+		assertTrue(ready.await(5, TimeUnit.SECONDS));
+	}
+
+}
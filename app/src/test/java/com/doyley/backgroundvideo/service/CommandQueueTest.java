@@ -0,0 +1,105 @@
+package com.doyley.backgroundvideo.service;
+
+import com.doyley.backgroundvideo.remote.VideoCommandBatch;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CommandQueueTest {
+
+	@Test
+	public void seekRightAfterASeekReplacesIt() {
+		CommandQueue queue = new CommandQueue();
+		queue.add(VideoCommandBatch.OP_SEEK, 1000);
+		queue.add(VideoCommandBatch.OP_SEEK, 2000);
+		queue.add(VideoCommandBatch.OP_PLAY, 0);
+		queue.add(VideoCommandBatch.OP_SEEK, 3000);
+		queue.add(VideoCommandBatch.OP_SEEK_RELATIVE, 500);
+		queue.add(VideoCommandBatch.OP_SEEK, 4000);
+		queue.add(VideoCommandBatch.OP_SEEK, 5000);
+		List<VideoCommandBatch> batches = queue.takeBatches();
+		assertEquals(1, batches.size());
+		assertBatch(batches.get(0),
+				VideoCommandBatch.OP_SEEK, 2000,
+				VideoCommandBatch.OP_PLAY, 0,
+				VideoCommandBatch.OP_SEEK, 3000,
+				VideoCommandBatch.OP_SEEK_RELATIVE, 500,
+				VideoCommandBatch.OP_SEEK, 5000);
+	}
+
+	@Test
+	public void seekInANewBatchIsKept() {
+		CommandQueue queue = new CommandQueue();
+		queue.add(VideoCommandBatch.OP_SEEK, 1000);
+		queue.endBatch();
+		queue.add(VideoCommandBatch.OP_SEEK, 2000);
+		List<VideoCommandBatch> batches = queue.takeBatches();
+		assertEquals(2, batches.size());
+		assertBatch(batches.get(0), VideoCommandBatch.OP_SEEK, 1000);
+		assertBatch(batches.get(1), VideoCommandBatch.OP_SEEK, 2000);
+		assertTrue(batches.get(0).getBatchId() < batches.get(1).getBatchId());
+		assertEquals(0, queue.takeBatches().size());
+	}
+
+	@Test
+	public void batchMadeElsewhereGoesAfterTheQueuedCommands() {
+		CommandQueue queue = new CommandQueue();
+		queue.add(VideoCommandBatch.OP_PAUSE, 0);
+		VideoCommandBatch batch = new VideoCommandBatch(100).add(VideoCommandBatch.OP_NEXT);
+		queue.addBatch(batch);
+		// does not coalesce with anything before the batch
+		queue.add(VideoCommandBatch.OP_SEEK, 1000);
+		List<VideoCommandBatch> batches = queue.takeBatches();
+		assertEquals(3, batches.size());
+		assertBatch(batches.get(0), VideoCommandBatch.OP_PAUSE, 0);
+		assertTrue(batches.get(1) == batch);
+		assertBatch(batches.get(2), VideoCommandBatch.OP_SEEK, 1000);
+	}
+
+	@Test
+	public void fullBatchTakesNoMoreCommands() {
+		CommandQueue queue = new CommandQueue();
+		for (int i = 0; i < VideoCommandBatch.MAX_SIZE - 1; i++) {
+			assertTrue(queue.add(VideoCommandBatch.OP_TOGGLE_PAUSED, 0));
+		}
+		assertTrue(queue.add(VideoCommandBatch.OP_SEEK, 1000));
+		assertTrue(!queue.add(VideoCommandBatch.OP_PLAY, 0));
+		// replaces the last command rather than adding one
+		assertTrue(queue.add(VideoCommandBatch.OP_SEEK, 2000));
+		queue.endBatch();
+		assertTrue(queue.add(VideoCommandBatch.OP_PLAY, 0));
+		List<VideoCommandBatch> batches = queue.takeBatches();
+		assertEquals(2, batches.size());
+		assertEquals(VideoCommandBatch.MAX_SIZE, batches.get(0).size());
+		assertEquals(2000, batches.get(0).getArg(VideoCommandBatch.MAX_SIZE - 1));
+		assertBatch(batches.get(1), VideoCommandBatch.OP_PLAY, 0);
+	}
+
+	@Test
+	public void oldestBatchesAreDroppedWhileNothingTakesThem() {
+		CommandQueue queue = new CommandQueue();
+		for (int i = 0; i < PlayerProcessClient.MAX_PENDING_BATCHES + 3; i++) {
+			queue.add(VideoCommandBatch.OP_SEEK, i);
+			queue.endBatch();
+		}
+		List<VideoCommandBatch> batches = queue.takeBatches();
+		assertEquals(PlayerProcessClient.MAX_PENDING_BATCHES, batches.size());
+		for (int i = 0; i < batches.size(); i++) {
+			assertBatch(batches.get(i), VideoCommandBatch.OP_SEEK, i + 3);
+		}
+	}
+
+	/** expected is pairs of op and arg */
+	private static void assertBatch(VideoCommandBatch batch, long... expected) {
+		assertEquals(expected.length / 2, batch.size());
+		for (int i = 0; i < batch.size(); i++) {
+			assertEquals(expected[2 * i], batch.getOp(i));
+			assertEquals(expected[2 * i + 1], batch.getArg(i));
+		}
+	}
+
+}
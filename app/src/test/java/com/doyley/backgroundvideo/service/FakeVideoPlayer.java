@@ -0,0 +1,42 @@
+package com.doyley.backgroundvideo.service;
+
+import com.doyley.backgroundvideo.player.VideoPlayer;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+/** answers only what the recoveries ask of a player, and records the calls that change it - anything else fails */
+class FakeVideoPlayer implements InvocationHandler {
+
+	long playingPositionMs = -1;
+	boolean mediaPlayerActive = true;
+	boolean fallbackLeft = true;
+	final List<String> calls = new ArrayList<>();
+
+	VideoPlayer create() {
+		return (VideoPlayer) Proxy.newProxyInstance(VideoPlayer.class.getClassLoader(),
+				new Class<?>[] {VideoPlayer.class}, this);
+	}
+
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args) {
+		switch (method.getName()) {
+			case "getPlayingPosition":
+				return playingPositionMs;
+			case "isMediaPlayerActive":
+				return mediaPlayerActive;
+			case "fallBackDecoder":
+				calls.add("fallBackDecoder " + args[0]);
+				return fallbackLeft;
+			case "retry":
+				calls.add("retry " + args[0]);
+				return null;
+			default:
+				throw new UnsupportedOperationException(method.getName());
+		}
+	}
+
+}
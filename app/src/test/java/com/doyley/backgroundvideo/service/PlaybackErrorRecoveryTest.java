@@ -0,0 +1,163 @@
+package com.doyley.backgroundvideo.service;
+
+import android.media.MediaCodec;
+import android.os.Handler;
+
+import com.google.android.exoplayer.ExoPlaybackException;
+import com.google.android.exoplayer.MediaCodecTrackRenderer;
+import com.google.android.exoplayer.ParserException;
+import com.google.android.exoplayer.audio.AudioTrack;
+import com.google.android.exoplayer.upstream.HttpDataSource;
+import com.google.android.exoplayer.util.Clock;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PlaybackErrorRecoveryTest {
+
+	private static final class FakeClock implements Clock {
+		long nowMs;
+
+		@Override
+		public long elapsedRealtime() {
+			return nowMs;
+		}
+	}
+
+	private FakeClock mClock;
+	private FakeVideoPlayer mPlayer;
+	private PlaybackErrorRecovery mRecovery;
+
+	@Before
+	public void setUp() {
+		mClock = new FakeClock();
+		mPlayer = new FakeVideoPlayer();
+		mRecovery = new PlaybackErrorRecovery(new Handler(), mClock);
+		mRecovery.setVideoPlayer(mPlayer.create());
+	}
+
+	@Test
+	public void errorsAreClassifiedByTheirCause() {
+		assertClass(PlaybackErrorRecovery.ERROR_DECODER_INIT,
+				new MediaCodecTrackRenderer.DecoderInitializationException(null, new IllegalStateException(), 0));
+		assertClass(PlaybackErrorRecovery.ERROR_FATAL, new MediaCodec.CryptoException(1, "no key"));
+		// a parser error is an IOException, but asking again gets the same
+		assertClass(PlaybackErrorRecovery.ERROR_FATAL, new ParserException("bad box"));
+		assertClass(PlaybackErrorRecovery.ERROR_TRANSIENT, new SocketTimeoutException());
+		assertClass(PlaybackErrorRecovery.ERROR_TRANSIENT,
+				new AudioTrack.InitializationException(0, 44100, 12, 0));
+		assertClass(PlaybackErrorRecovery.ERROR_FATAL, new IllegalStateException());
+		assertClass(PlaybackErrorRecovery.ERROR_FATAL, null);
+	}
+
+	@Test
+	public void serverErrorsAndThrottlingAreTransient() {
+		int[] transientCodes = {500, 503, 408, 429};
+		for (int responseCode : transientCodes) {
+			assertClass(PlaybackErrorRecovery.ERROR_TRANSIENT, createResponseCodeException(responseCode));
+		}
+		int[] fatalCodes = {400, 403, 404, 410};
+		for (int responseCode : fatalCodes) {
+			assertClass(PlaybackErrorRecovery.ERROR_FATAL, createResponseCodeException(responseCode));
+		}
+	}
+
+	@Test
+	public void firstCauseThatSaysDecides() {
+		assertClass(PlaybackErrorRecovery.ERROR_TRANSIENT, new ExoPlaybackException(new IOException()));
+		assertClass(PlaybackErrorRecovery.ERROR_FATAL,
+				new ExoPlaybackException(new RuntimeException(createResponseCodeException(404))));
+		assertClass(PlaybackErrorRecovery.ERROR_FATAL,
+				new ExoPlaybackException(new ParserException(new IOException())));
+		assertClass(PlaybackErrorRecovery.ERROR_FATAL, new ExoPlaybackException("no cause"));
+	}
+
+	@Test
+	public void backoffDoublesWithEveryAttemptAndIsJittered() {
+		for (int attempt = 0; attempt <= 10; attempt++) {
+			long backoffMs = Math.min(30000, 1000L << attempt);
+			long minMs = Long.MAX_VALUE;
+			long maxMs = 0;
+			for (int i = 0; i < 1000; i++) {
+				long delayMs = mRecovery.getBackoffMs(attempt);
+				assertTrue(delayMs >= backoffMs / 2 && delayMs < backoffMs);
+				minMs = Math.min(minMs, delayMs);
+				maxMs = Math.max(maxMs, delayMs);
+			}
+			// spread over the upper half rather than always the same
+			assertTrue(maxMs - minMs > backoffMs / 4);
+		}
+	}
+
+	@Test
+	public void transientErrorsAreRetriedUntilTheRetriesRunOut() {
+		for (int i = 0; i < PlaybackErrorRecovery.MAX_RETRIES; i++) {
+			mClock.nowMs += 1000;
+			assertTrue(mRecovery.onError(new IOException(), 5000));
+		}
+		mClock.nowMs += 1000;
+		assertTrue(!mRecovery.onError(new IOException(), 5000));
+		assertEquals(PlaybackErrorRecovery.MAX_RETRIES, mRecovery.getRetryCount());
+		assertEquals(PlaybackErrorRecovery.MAX_RETRIES + 1,
+				mRecovery.getErrorCount(PlaybackErrorRecovery.ERROR_TRANSIENT));
+		assertEquals(1, mRecovery.getOutcomeCount(PlaybackErrorRecovery.OUTCOME_RETRIES_EXHAUSTED));
+	}
+
+	@Test
+	public void errorLongAfterThePreviousStartsANewStreak() {
+		for (int i = 0; i < PlaybackErrorRecovery.MAX_RETRIES; i++) {
+			assertTrue(mRecovery.onError(new IOException(), 5000));
+		}
+		mClock.nowMs += 60001;
+		assertTrue(mRecovery.onError(new IOException(), 5000));
+		assertEquals(0, mRecovery.getOutcomeCount(PlaybackErrorRecovery.OUTCOME_RETRIES_EXHAUSTED));
+	}
+
+	@Test
+	public void recoveryIsASuccessOnceThePlayerIsReady() {
+		assertTrue(mRecovery.onError(new IOException(), 5000));
+		mRecovery.onPlaybackReady();
+		mRecovery.onPlaybackReady();
+		assertEquals(1, mRecovery.getOutcomeCount(PlaybackErrorRecovery.OUTCOME_RETRY_RECOVERED));
+
+		assertTrue(mRecovery.onError(new MediaCodecTrackRenderer.DecoderInitializationException(null, null, 0),
+				7000));
+		assertEquals("fallBackDecoder 7000", mPlayer.calls.get(0));
+		mRecovery.onPlaybackReady();
+		assertEquals(1, mRecovery.getOutcomeCount(PlaybackErrorRecovery.OUTCOME_FALLBACK_RECOVERED));
+		assertEquals(1, mRecovery.getFallbackCount());
+	}
+
+	@Test
+	public void sessionEndsWithoutAFallbackOrAnActivePlayer() {
+		mPlayer.fallbackLeft = false;
+		assertTrue(!mRecovery.onError(new MediaCodecTrackRenderer.DecoderInitializationException(null, null, 0),
+				0));
+		assertEquals(1, mRecovery.getOutcomeCount(PlaybackErrorRecovery.OUTCOME_NO_FALLBACK_LEFT));
+
+		mPlayer.mediaPlayerActive = false;
+		assertTrue(!mRecovery.onError(new IOException(), 0));
+		assertEquals(1, mRecovery.getOutcomeCount(PlaybackErrorRecovery.OUTCOME_FATAL));
+		// the error is still counted as what it was
+		assertEquals(1, mRecovery.getErrorCount(PlaybackErrorRecovery.ERROR_TRANSIENT));
+
+		mRecovery.stop();
+		assertTrue(!mRecovery.onError(new IOException(), 0));
+		assertEquals(2, mRecovery.getOutcomeCount(PlaybackErrorRecovery.OUTCOME_FATAL));
+	}
+
+	private static HttpDataSource.InvalidResponseCodeException createResponseCodeException(int responseCode) {
+		return new HttpDataSource.InvalidResponseCodeException(responseCode, null, null);
+	}
+
+	private static void assertClass(int errorClass, Throwable error) {
+		assertEquals(errorClass, PlaybackErrorRecovery.classify(error));
+	}
+
+}
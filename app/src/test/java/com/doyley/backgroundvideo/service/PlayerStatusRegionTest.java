@@ -0,0 +1,154 @@
+package com.doyley.backgroundvideo.service;
+
+import com.doyley.backgroundvideo.player.VideoPlayer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PlayerStatusRegionTest {
+
+	private File mFile;
+	private RandomAccessFile mWriterFile;
+	private RandomAccessFile mReaderFile;
+	private MappedByteBuffer mWriterBuffer;
+	private PlayerStatusRegion mWriter;
+	private PlayerStatusRegion mReader;
+
+	@Before
+	public void setUp() throws IOException {
+		mFile = File.createTempFile("player", ".status");
+		// two mappings of the file, as the player process and a client have
+		mWriterFile = new RandomAccessFile(mFile, "rw");
+		mWriterFile.setLength(PlayerStatusRegion.SIZE);
+		mWriterBuffer = mWriterFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, PlayerStatusRegion.SIZE);
+		mWriter = new PlayerStatusRegion(mWriterBuffer);
+		mReaderFile = new RandomAccessFile(mFile, "r");
+		mReader = new PlayerStatusRegion(mReaderFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+				PlayerStatusRegion.SIZE));
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		mWriterFile.close();
+		mReaderFile.close();
+		mFile.delete();
+	}
+
+	@Test
+	public void nothingIsReadBeforeTheRegionIsInitialized() {
+		assertTrue(!mReader.read(new PlayerStatusRegion.Status()));
+		mWriter.initialize();
+		PlayerStatusRegion.Status status = new PlayerStatusRegion.Status();
+		assertTrue(mReader.read(status));
+		assertEquals(VideoPlayer.VideoPlaybackState.STATE_IDLE, status.getState());
+		assertEquals(-1, status.getAppliedBatchId());
+	}
+
+	@Test
+	public void writesAreRead() {
+		mWriter.initialize();
+		mWriter.write(VideoPlayer.VideoPlaybackState.STATE_BUFFERING, true, 1000, 5000, 60000, 123);
+		mWriter.writeCounters(3, 7, 1, 4, 42, 850);
+		PlayerStatusRegion.Status status = new PlayerStatusRegion.Status();
+		assertTrue(mReader.read(status));
+		assertEquals(VideoPlayer.VideoPlaybackState.STATE_BUFFERING, status.getState());
+		assertTrue(status.isPlaying());
+		assertEquals(1000, status.getPositionMs());
+		assertEquals(5000, status.getBufferedPositionMs());
+		assertEquals(60000, status.getDurationMs());
+		assertEquals(123, status.getUpdatedAtMs());
+		assertEquals(3, status.getBatchCount());
+		assertEquals(7, status.getCommandCount());
+		assertEquals(1, status.getRejectedCount());
+		assertEquals(4, status.getMaxBatchSize());
+		assertEquals(42, status.getAppliedBatchId());
+		assertEquals(850, status.getBatchLatencyUs());
+	}
+
+	@Test
+	public void tornCopyIsNotTaken() {
+		mWriter.initialize();
+		mWriter.write(VideoPlayer.VideoPlaybackState.STATE_READY, true, 1000, 2000, 3000, 4000);
+		PlayerStatusRegion.Status status = new PlayerStatusRegion.Status();
+		assertTrue(mReader.read(status));
+
+		// what a reader sees when a write's field stores reach it but its sequence number stores do not
+		mWriterBuffer.putLong(16, 1500);
+		assertTrue(!mReader.read(status));
+		assertEquals(1000, status.getPositionMs());
+
+		mWriter.write(VideoPlayer.VideoPlaybackState.STATE_READY, true, 2000, 2000, 3000, 5000);
+		assertTrue(mReader.read(status));
+		assertEquals(2000, status.getPositionMs());
+	}
+
+	@Test
+	public void readsDuringWritesAreConsistent() throws InterruptedException {
+		mWriter.initialize();
+		final int writeCount = 200000;
+		final AtomicBoolean done = new AtomicBoolean();
+		Thread writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				VideoPlayer.VideoPlaybackState[] states = VideoPlayer.VideoPlaybackState.values();
+				for (int i = 1; i <= writeCount; i++) {
+					// every field is derived from i, so a copy mixing two writes shows
+					mWriter.write(states[i % states.length], i % 2 == 0, i, i + 1, i + 2, i + 3);
+					mWriter.writeCounters(i, i + 1, i + 2, i + 3, i + 4, i + 5);
+				}
+				done.set(true);
+			}
+		});
+		final AtomicReference<String> failure = new AtomicReference<>();
+		final long[] readCount = new long[1];
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				VideoPlayer.VideoPlaybackState[] states = VideoPlayer.VideoPlaybackState.values();
+				PlayerStatusRegion.Status status = new PlayerStatusRegion.Status();
+				long lastPositionMs = 0;
+				while (!done.get() && failure.get() == null) {
+					if (!mReader.read(status)) {
+						continue;
+					}
+					readCount[0]++;
+					long i = status.getPositionMs();
+					long c = status.getBatchCount();
+					boolean consistent = status.getBufferedPositionMs() == i + 1 && status.getDurationMs() == i + 2
+							&& status.getUpdatedAtMs() == i + 3 && status.isPlaying() == (i % 2 == 0)
+							&& status.getState() == states[(int) (i % states.length)]
+							&& status.getCommandCount() == c + 1 && status.getRejectedCount() == c + 2
+							&& status.getMaxBatchSize() == c + 3 && status.getAppliedBatchId() == c + 4
+							&& status.getBatchLatencyUs() == c + 5 && (c == i || c == i - 1)
+							&& i >= lastPositionMs;
+					if (!consistent) {
+						failure.set(status.toString());
+					}
+					lastPositionMs = i;
+				}
+			}
+		});
+		// the counters of write 0 are what initialize left
+		mWriter.write(VideoPlayer.VideoPlaybackState.STATE_IDLE, true, 0, 1, 2, 3);
+		mWriter.writeCounters(0, 1, 2, 3, 4, 5);
+		reader.start();
+		writer.start();
+		writer.join();
+		reader.join();
+		assertEquals(null, failure.get());
+		assertTrue(readCount[0] > 0);
+	}
+
+}
@@ -0,0 +1,148 @@
+package com.doyley.backgroundvideo.service;
+
+import android.os.Handler;
+
+import com.google.android.exoplayer.util.Clock;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/** the handlers do not run anything on the JVM, so the ladder is read back from the counts */
+public class StallWatchdogTest {
+
+	private static final long SAMPLE_MS = 500;
+
+	private static final class FakeClock implements Clock {
+		long nowMs;
+
+		@Override
+		public long elapsedRealtime() {
+			return nowMs;
+		}
+	}
+
+	private FakeClock mClock;
+	private FakeVideoPlayer mPlayer;
+	private StallWatchdog mWatchdog;
+
+	@Before
+	public void setUp() {
+		mClock = new FakeClock();
+		mPlayer = new FakeVideoPlayer();
+		mWatchdog = new StallWatchdog(new Handler(), new Handler(), new StallWatchdog.Recovery() {
+			@Override
+			public void recover(int level, long positionMs) {
+			}
+		}, mClock);
+		mWatchdog.setVideoPlayer(mPlayer.create());
+	}
+
+	@Test
+	public void movingPlaybackNeverStalls() {
+		for (int i = 0; i < 100; i++) {
+			mPlayer.playingPositionMs = i * SAMPLE_MS;
+			sampleFor(SAMPLE_MS);
+		}
+		assertEquals(0, mWatchdog.getStallCount());
+	}
+
+	@Test
+	public void playbackNotMeantToMoveNeverStalls() {
+		mPlayer.playingPositionMs = -1;
+		sampleFor(60000);
+		assertEquals(0, mWatchdog.getStallCount());
+	}
+
+	@Test
+	public void stallIsDetectedAfterTheThreshold() {
+		// the first sample is the last move, so the threshold runs from there
+		mPlayer.playingPositionMs = 1000;
+		sampleFor(StallWatchdog.DEFAULT_STALL_THRESHOLD_MS);
+		assertEquals(0, mWatchdog.getStallCount());
+		sampleFor(SAMPLE_MS);
+		assertEquals(1, mWatchdog.getStallCount());
+		assertEquals(1, mWatchdog.getRecoveryCount(StallWatchdog.RECOVERY_SEEK));
+
+		mWatchdog.setStallThresholdMs(1000);
+		mWatchdog.reset();
+		mPlayer.playingPositionMs = 2000;
+		sampleFor(1000);
+		assertEquals(1, mWatchdog.getStallCount());
+		sampleFor(SAMPLE_MS);
+		assertEquals(2, mWatchdog.getStallCount());
+	}
+
+	@Test
+	public void everyRecoveryIsTriedBeforeGivingUp() {
+		mPlayer.playingPositionMs = 1000;
+		long thresholdMs = StallWatchdog.DEFAULT_STALL_THRESHOLD_MS;
+		sampleFor(thresholdMs + SAMPLE_MS);
+		assertLadder(1, 0, 0, 0);
+		sampleFor(thresholdMs);
+		assertLadder(1, 1, 0, 0);
+		sampleFor(thresholdMs);
+		assertLadder(1, 1, 1, 0);
+		sampleFor(thresholdMs);
+		assertLadder(1, 1, 1, 1);
+		assertEquals(1, mWatchdog.getStallCount());
+		assertEquals(0, mWatchdog.getRecoveredCount());
+
+		// the next stall starts the ladder over
+		sampleFor(thresholdMs + SAMPLE_MS);
+		assertEquals(2, mWatchdog.getStallCount());
+		assertLadder(2, 1, 1, 1);
+	}
+
+	@Test
+	public void moveAfterARecoveryEndsTheStall() {
+		mPlayer.playingPositionMs = 1000;
+		sampleFor(StallWatchdog.DEFAULT_STALL_THRESHOLD_MS * 2 + SAMPLE_MS);
+		assertLadder(1, 1, 0, 0);
+		// the seek of the recovery is not a move - the position has to move on from where it lands
+		mPlayer.playingPositionMs = 900;
+		sampleFor(SAMPLE_MS);
+		assertEquals(0, mWatchdog.getRecoveredCount());
+		mPlayer.playingPositionMs = 1100;
+		sampleFor(SAMPLE_MS);
+		assertEquals(1, mWatchdog.getRecoveredCount());
+		assertEquals(0, mWatchdog.getGivenUpCount());
+		assertEquals(1, mWatchdog.getTimeToRecoverMs().getCount());
+		// from the first sample, the last move before the stall
+		assertEquals(mClock.nowMs - SAMPLE_MS, mWatchdog.getTimeToRecoverMs().getMax());
+		assertTrue(mWatchdog.getDebugString().startsWith(
+				"stalls = 1, recovered = 1 (seek 0, source 1, player 0)"));
+	}
+
+	@Test
+	public void resetAbandonsTheStall() {
+		mPlayer.playingPositionMs = 1000;
+		sampleFor(StallWatchdog.DEFAULT_STALL_THRESHOLD_MS + SAMPLE_MS);
+		assertLadder(1, 0, 0, 0);
+		mWatchdog.reset();
+		mPlayer.playingPositionMs = 3000;
+		sampleFor(SAMPLE_MS);
+		mPlayer.playingPositionMs = 3500;
+		sampleFor(SAMPLE_MS);
+		assertEquals(0, mWatchdog.getRecoveredCount());
+		assertLadder(1, 0, 0, 0);
+	}
+
+	/** samples at the sample interval until durationMs has gone by */
+	private void sampleFor(long durationMs) {
+		for (long elapsedMs = 0; elapsedMs < durationMs; elapsedMs += SAMPLE_MS) {
+			mClock.nowMs += SAMPLE_MS;
+			mWatchdog.sample();
+		}
+	}
+
+	private void assertLadder(int seeks, int sources, int players, int givenUp) {
+		assertEquals(seeks, mWatchdog.getRecoveryCount(StallWatchdog.RECOVERY_SEEK));
+		assertEquals(sources, mWatchdog.getRecoveryCount(StallWatchdog.RECOVERY_REINITIALIZE_SOURCE));
+		assertEquals(players, mWatchdog.getRecoveryCount(StallWatchdog.RECOVERY_REBUILD_PLAYER));
+		assertEquals(givenUp, mWatchdog.getGivenUpCount());
+	}
+
+}
@@ -0,0 +1,120 @@
+package com.doyley.backgroundvideo.source;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * An {@link InputSource} over a byte array, standing in for storage - every read can be made to take a
+ * while, and every so often a lot longer, the way slow removable storage does.
+ */
+public class FakeInputSource implements InputSource {
+
+	private final byte[] mData;
+	private final int mReadAheadSize;
+	private final InputSourceCounters mCounters = new InputSourceCounters();
+	private volatile long mLatencyNs;
+	private volatile long mSpikeLatencyNs;
+	private volatile int mSpikeInterval;
+	private volatile boolean mMapped;
+	private int mReadCount;
+
+	public FakeInputSource(byte[] data, int readAheadSize) {
+		mData = data;
+		mReadAheadSize = readAheadSize;
+	}
+
+	/** every read takes latencyNs, and every spikeInterval-th read spikeLatencyNs instead - 0 for no spikes */
+	public void setLatency(long latencyNs, long spikeLatencyNs, int spikeInterval) {
+		mLatencyNs = latencyNs;
+		mSpikeLatencyNs = spikeLatencyNs;
+		mSpikeInterval = spikeInterval;
+	}
+
+	/** hands the array out as the mapped buffer, the way a memory mapped file is */
+	public void setMapped(boolean mapped) {
+		mMapped = mapped;
+	}
+
+	/** a file of the given length whose every byte can be told from its position */
+	public static byte[] createData(int length) {
+		byte[] data = new byte[length];
+		for (int i = 0; i < length; i++) {
+			data[i] = (byte) (i * 31 + (i >> 16));
+		}
+		return data;
+	}
+
+	public synchronized int getReadCount() {
+		return mReadCount;
+	}
+
+	@Override
+	public void open() {
+	}
+
+	@Override
+	public int getType() {
+		return TYPE_FILE;
+	}
+
+	@Override
+	public FileDescriptor getFileDescriptor() {
+		return null;
+	}
+
+	@Override
+	public long getStartOffset() {
+		return 0;
+	}
+
+	@Override
+	public long getLength() {
+		return mData.length;
+	}
+
+	@Override
+	public int read(ByteBuffer target, long position) throws IOException {
+		long startNs = System.nanoTime();
+		int readCount;
+		synchronized (this) {
+			readCount = ++mReadCount;
+		}
+		int spikeInterval = mSpikeInterval;
+		long latencyNs = spikeInterval > 0 && readCount % spikeInterval == 0 ? mSpikeLatencyNs : mLatencyNs;
+		if (latencyNs > 0) {
+			try {
+				Thread.sleep(latencyNs / 1000000, (int) (latencyNs % 1000000));
+			} catch (InterruptedException e) {
+				throw new IOException("interrupted");
+			}
+		}
+		if (position >= mData.length) {
+			return -1;
+		}
+		int read = (int) Math.min(target.remaining(), mData.length - position);
+		target.put(mData, (int) position, read);
+		mCounters.onRead(read, System.nanoTime() - startNs);
+		return read;
+	}
+
+	@Override
+	public ByteBuffer getMappedBuffer() {
+		return mMapped ? ByteBuffer.wrap(mData).asReadOnlyBuffer() : null;
+	}
+
+	@Override
+	public int getReadAheadSize() {
+		return mReadAheadSize;
+	}
+
+	@Override
+	public InputSourceCounters getCounters() {
+		return mCounters;
+	}
+
+	@Override
+	public void close() {
+	}
+
+}
@@ -0,0 +1,44 @@
+package com.doyley.backgroundvideo.source;
+
+import com.doyley.backgroundvideo.benchmark.Benchmark;
+
+/**
+ * Interleaved reads against storage with injected latency, and the decoding a reader does between them,
+ * straight from the storage and through the read-ahead stage. Each replay takes seconds, so it is timed once.
+ */
+public class ReadAheadInputSourceBenchmark extends Benchmark {
+
+	@Override
+	protected void measure() throws Exception {
+		byte[] data = FakeInputSource.createData(ReadAheadInputSourceTest.LENGTH);
+		final FakeInputSource direct = ReadAheadInputSourceTest.createSlowSource(data);
+		long directNs = bestNs(1, new Run() {
+			@Override
+			public long run() throws Exception {
+				return ReadAheadInputSourceTest.replay(direct);
+			}
+		});
+
+		final ReadAheadInputSource readAhead =
+				ReadAheadInputSourceTest.open(ReadAheadInputSourceTest.createSlowSource(data));
+		try {
+			long readAheadNs = bestNs(1, new Run() {
+				@Override
+				public long run() throws Exception {
+					return ReadAheadInputSourceTest.replay(readAhead);
+				}
+			});
+			report("direct %.1f MB/s, read ahead %.1f MB/s, stalls = %d, seeks = %d, window = %d KB",
+					mbPerSecond(directNs), mbPerSecond(readAheadNs), readAhead.getStallCount(),
+					readAhead.getSeekCount(), readAhead.getReadAheadSize() / 1024);
+		} finally {
+			readAhead.close();
+		}
+	}
+
+	/** the audio cursor reads the first quarter again */
+	private static double mbPerSecond(long elapsedNs) {
+		return ReadAheadInputSourceTest.LENGTH * 1.25 / 1024 / 1024 / (elapsedNs / 1e9);
+	}
+
+}
@@ -0,0 +1,180 @@
+package com.doyley.backgroundvideo.source;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ReadAheadInputSourceTest {
+
+	static final int LENGTH = 8 * 1024 * 1024 + 1234;
+	private static final int READ_SIZE = 16 * 1024;
+	private static final int UPSTREAM_READ_AHEAD = 512 * 1024;
+
+	private final byte[] mData = FakeInputSource.createData(LENGTH);
+	private ReadAheadInputSource mSource;
+
+	@After
+	public void tearDown() throws IOException {
+		if (mSource != null) {
+			mSource.close();
+		}
+	}
+
+	@Test
+	public void sequentialReadsReturnTheInput() throws IOException {
+		mSource = open(new FakeInputSource(mData, UPSTREAM_READ_AHEAD));
+		ByteBuffer buffer = ByteBuffer.allocate(READ_SIZE);
+		long position = 0;
+		while (true) {
+			buffer.clear();
+			int read = mSource.read(buffer, position);
+			if (read == -1) {
+				break;
+			}
+			assertRead(buffer, position, read);
+			position += read;
+		}
+		assertEquals(LENGTH, position);
+		assertEquals(0, mSource.getSeekCount());
+	}
+
+	@Test
+	public void interleavedStreamsAreNotSeeks() throws IOException {
+		mSource = open(new FakeInputSource(mData, UPSTREAM_READ_AHEAD));
+		ByteBuffer buffer = ByteBuffer.allocate(READ_SIZE);
+		// the audio cursor of an extractor trailing the video one by more than a window
+		long videoPosition = 3 * 1024 * 1024;
+		long audioPosition = 0;
+		while (videoPosition < LENGTH) {
+			buffer.clear();
+			int read = mSource.read(buffer, videoPosition);
+			assertRead(buffer, videoPosition, read);
+			videoPosition += read;
+			buffer.clear();
+			buffer.limit(READ_SIZE / 4);
+			read = mSource.read(buffer, audioPosition);
+			assertRead(buffer, audioPosition, read);
+			audioPosition += read;
+		}
+		assertEquals(0, mSource.getSeekCount());
+	}
+
+	@Test
+	public void seekRefillsFromTheNewPosition() throws IOException {
+		FakeInputSource upstream = new FakeInputSource(mData, UPSTREAM_READ_AHEAD);
+		mSource = open(upstream);
+		ByteBuffer buffer = ByteBuffer.allocate(READ_SIZE);
+		// one stream for each window, read once
+		for (int i = 0; i < ReadAheadInputSource.MAX_STREAMS; i++) {
+			buffer.clear();
+			long position = i * 1024L * 1024;
+			assertRead(buffer, position, mSource.read(buffer, position));
+		}
+		assertEquals(0, mSource.getSeekCount());
+		long position = 6 * 1024 * 1024 + 100;
+		buffer.clear();
+		assertRead(buffer, position, mSource.read(buffer, position));
+		assertEquals(1, mSource.getSeekCount());
+		// and the stream goes on from there
+		position += buffer.position();
+		buffer.clear();
+		assertRead(buffer, position, mSource.read(buffer, position));
+		assertEquals(1, mSource.getSeekCount());
+	}
+
+	@Test
+	public void errorIsThrownToTheReader() throws IOException {
+		FakeInputSource upstream = new FakeInputSource(mData, UPSTREAM_READ_AHEAD) {
+			@Override
+			public int read(ByteBuffer target, long position) throws IOException {
+				if (position >= 1024 * 1024) {
+					throw new IOException("bad sector");
+				}
+				return super.read(target, position);
+			}
+		};
+		mSource = open(upstream);
+		ByteBuffer buffer = ByteBuffer.allocate(READ_SIZE);
+		try {
+			mSource.read(buffer, 2 * 1024 * 1024);
+			throw new AssertionError("read past a failing block");
+		} catch (IOException e) {
+			assertEquals("bad sector", e.getMessage());
+		}
+		// what is before it still reads
+		buffer.clear();
+		assertRead(buffer, 0, mSource.read(buffer, 0));
+	}
+
+	@Test
+	public void readAheadHidesInjectedLatency() throws IOException {
+		long directNs = replay(createSlowSource(mData));
+		mSource = open(createSlowSource(mData));
+		long readAheadNs = replay(mSource);
+		assertEquals(0, mSource.getSeekCount());
+		assertTrue("read ahead slower than direct reads", readAheadNs < directNs);
+	}
+
+	/** storage taking 2ms per read, and every 16th read a 40ms spike */
+	static FakeInputSource createSlowSource(byte[] data) {
+		FakeInputSource source = new FakeInputSource(data, UPSTREAM_READ_AHEAD);
+		source.setLatency(2000000, 40000000, 16);
+		return source;
+	}
+
+	static ReadAheadInputSource open(InputSource upstream) throws IOException {
+		ReadAheadInputSource source = new ReadAheadInputSource(upstream);
+		source.open();
+		return source;
+	}
+
+	/**
+	 * reads the whole input as a video and an audio cursor, with 1ms of decoding per 64KB read between them -
+	 * returns the time it took
+	 */
+	static long replay(InputSource source) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(READ_SIZE);
+		long startNs = System.nanoTime();
+		long videoPosition = LENGTH / 4;
+		long audioPosition = 0;
+		long consumed = 0;
+		long decoded = 0;
+		while (videoPosition < LENGTH) {
+			buffer.clear();
+			int read = source.read(buffer, videoPosition);
+			videoPosition += read;
+			consumed += read;
+			if (audioPosition < LENGTH / 4) {
+				buffer.clear();
+				buffer.limit(READ_SIZE / 4);
+				read = source.read(buffer, audioPosition);
+				audioPosition += read;
+				consumed += read;
+			}
+			for (; decoded + 64 * 1024 <= consumed; decoded += 64 * 1024) {
+				try {
+					Thread.sleep(1);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+		return System.nanoTime() - startNs;
+	}
+
+	private void assertRead(ByteBuffer buffer, long position, int read) {
+		assertTrue("nothing read at " + position, read > 0);
+		assertEquals(read, buffer.position());
+		for (int i = 0; i < read; i++) {
+			if (buffer.get(i) != mData[(int) position + i]) {
+				throw new AssertionError("wrong byte at " + (position + i));
+			}
+		}
+	}
+
+}
@@ -0,0 +1,39 @@
+package com.doyley.backgroundvideo.text;
+
+import com.doyley.backgroundvideo.benchmark.Benchmark;
+
+import java.util.Random;
+
+/** lookups at random positions in the index of a long subtitle file */
+public class CueIndexBenchmark extends Benchmark {
+
+	private static final int CUE_COUNT = 50000;
+	private static final int LOOKUPS = 2000000;
+
+	@Override
+	protected void measure() throws Exception {
+		final CueIndex index = new CueIndex();
+		long startUs = 0;
+		for (int i = 0; i < CUE_COUNT; i++) {
+			index.add(startUs, startUs + 2500000, i);
+			startUs += 3000000;
+		}
+		final long endUs = startUs;
+		final long[] keys = new long[4];
+		final Random random = new Random(1);
+		long bestNs = bestNs(new Run() {
+			@Override
+			public long run() {
+				long found = 0;
+				for (int i = 0; i < LOOKUPS; i++) {
+					long positionUs = (long) (random.nextDouble() * endUs);
+					found += index.getActiveCues(positionUs, keys);
+					found += index.getNextChangeUs(positionUs) > 0 ? 1 : 0;
+				}
+				return found;
+			}
+		});
+		report("%d cues : %.0fns per position looked up", CUE_COUNT, (double) bestNs / LOOKUPS);
+	}
+
+}
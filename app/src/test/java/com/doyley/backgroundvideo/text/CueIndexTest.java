@@ -0,0 +1,158 @@
+package com.doyley.backgroundvideo.text;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CueIndexTest {
+
+	@Test
+	public void activeCuesAreTheOnesShowing() {
+		CueIndex index = new CueIndex();
+		index.add(1000, 3000, 1);
+		index.add(2000, 2500, 2);
+		index.add(4000, 5000, 3);
+		long[] keys = new long[4];
+		assertEquals(0, index.getActiveCues(999, keys));
+		assertEquals(1, index.getActiveCues(1000, keys));
+		assertEquals(1, keys[0]);
+		assertEquals(2, index.getActiveCues(2000, keys));
+		assertEquals(1, keys[0]);
+		assertEquals(2, keys[1]);
+		// the end is not included
+		assertEquals(1, index.getActiveCues(2500, keys));
+		assertEquals(1, keys[0]);
+		assertEquals(0, index.getActiveCues(3500, keys));
+		assertEquals(1, index.getActiveCues(4999, keys));
+		assertEquals(3, keys[0]);
+		assertEquals(0, index.getActiveCues(5000, keys));
+	}
+
+	@Test
+	public void nextChangeIsTheNextStartOrEnd() {
+		CueIndex index = new CueIndex();
+		index.add(1000, 3000, 1);
+		index.add(2000, 2500, 2);
+		index.add(4000, 5000, 3);
+		assertEquals(1000, index.getNextChangeUs(0));
+		assertEquals(2000, index.getNextChangeUs(1000));
+		assertEquals(2500, index.getNextChangeUs(2000));
+		assertEquals(3000, index.getNextChangeUs(2500));
+		assertEquals(4000, index.getNextChangeUs(3000));
+		assertEquals(5000, index.getNextChangeUs(4500));
+		assertEquals(Long.MAX_VALUE, index.getNextChangeUs(5000));
+		assertEquals(Long.MAX_VALUE, new CueIndex().getNextChangeUs(0));
+	}
+
+	@Test
+	public void lookupsMatchAScanOfEveryCue() {
+		Random random = new Random(5);
+		for (boolean inOrder : new boolean[] {true, false}) {
+			List<long[]> cues = new ArrayList<>();
+			long startUs = 0;
+			for (int key = 0; key < 2000; key++) {
+				startUs += 1 + random.nextInt(3000000);
+				// mostly short, now and then one that lasts over many others
+				long durationUs = random.nextInt(10) == 0 ? random.nextInt(60000000) : random.nextInt(4000000);
+				cues.add(new long[] {startUs, startUs + durationUs, key});
+			}
+			List<long[]> added = new ArrayList<>(cues);
+			if (!inOrder) {
+				Collections.shuffle(added, random);
+			}
+			CueIndex index = new CueIndex();
+			for (long[] cue : added) {
+				index.add(cue[0], cue[1], cue[2]);
+			}
+			assertEquals(cues.size(), index.size());
+
+			long[] keys = new long[cues.size()];
+			for (long positionUs = 0; positionUs < startUs + 60000000; positionUs += 97331) {
+				int count = index.getActiveCues(positionUs, keys);
+				long nextChangeUs = Long.MAX_VALUE;
+				int expectedCount = 0;
+				for (long[] cue : cues) {
+					if (cue[0] <= positionUs && cue[1] > positionUs) {
+						// in start order, and cues here start in key order
+						assertEquals(cue[2], keys[expectedCount++]);
+					}
+					if (cue[0] > positionUs) {
+						nextChangeUs = Math.min(nextChangeUs, cue[0]);
+					} else if (cue[1] > positionUs) {
+						nextChangeUs = Math.min(nextChangeUs, cue[1]);
+					}
+				}
+				assertEquals(expectedCount, count);
+				assertEquals(nextChangeUs, index.getNextChangeUs(positionUs));
+			}
+		}
+	}
+
+	@Test
+	public void onlyTheLatestStartingCuesFitInASmallArray() {
+		CueIndex index = new CueIndex();
+		for (int i = 0; i < 5; i++) {
+			index.add(i * 1000, 10000, i);
+		}
+		long[] keys = new long[2];
+		assertEquals(2, index.getActiveCues(5000, keys));
+		assertEquals(3, keys[0]);
+		assertEquals(4, keys[1]);
+	}
+
+	@Test
+	public void cuesStartingTogetherKeepTheirOrder() {
+		CueIndex index = new CueIndex();
+		index.add(1000, 2000, 1);
+		index.add(0, 2000, 0);
+		index.add(1000, 2000, 2);
+		index.add(1000, 2000, 3);
+		long[] keys = new long[4];
+		assertEquals(4, index.getActiveCues(1500, keys));
+		for (int i = 0; i < 4; i++) {
+			assertEquals(i, keys[i]);
+		}
+	}
+
+	@Test
+	public void openCueLastsUntilItIsClosed() {
+		CueIndex index = new CueIndex();
+		index.add(1000, CueIndex.OPEN_END_US, 1);
+		long[] keys = new long[1];
+		assertEquals(1, index.getActiveCues(Long.MAX_VALUE - 1, keys));
+		index.closeLast(3000);
+		assertEquals(1, index.getActiveCues(2999, keys));
+		assertEquals(0, index.getActiveCues(3000, keys));
+		// a closed cue stays closed
+		index.closeLast(5000);
+		assertEquals(0, index.getActiveCues(4000, keys));
+		// and one cannot end before it starts
+		index.add(6000, CueIndex.OPEN_END_US, 2);
+		index.closeLast(5000);
+		assertEquals(0, index.getActiveCues(6000, keys));
+		assertEquals(6000, index.getNextChangeUs(5999));
+	}
+
+	@Test
+	public void indexedToFollowsTheLastStart() {
+		CueIndex index = new CueIndex();
+		assertTrue(!index.isIndexedTo(0));
+		index.add(1000, 2000, 1);
+		assertTrue(index.isIndexedTo(999));
+		assertTrue(!index.isIndexedTo(1000));
+		index.setComplete();
+		assertTrue(index.isComplete());
+		assertTrue(index.isIndexedTo(Long.MAX_VALUE));
+		index.clear();
+		assertTrue(!index.isComplete());
+		assertEquals(0, index.size());
+		assertEquals(0, index.getActiveCues(1500, new long[1]));
+	}
+
+}
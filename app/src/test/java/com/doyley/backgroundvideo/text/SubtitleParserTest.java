@@ -0,0 +1,232 @@
+package com.doyley.backgroundvideo.text;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SubtitleParserTest {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final String SRT = "1\r\n"
+			+ "00:00:01,000 --> 00:00:03,500\r\n"
+			+ "Hello <i>world</i>\r\n"
+			+ "\r\n"
+			+ "2\r\n"
+			+ "00:00:04,250 --> 00:00:06,000\r\n"
+			+ "Two lines\r\n"
+			+ "of text &amp; more\r\n"
+			+ "\r\n"
+			+ "3\r\n"
+			+ "01:02:03,004 --> 01:02:05,000\r\n"
+			+ "Late\r\n";
+
+	private static final String VTT = "WEBVTT - with a title\n"
+			+ "\n"
+			+ "NOTE a comment\n"
+			+ "that goes on\n"
+			+ "\n"
+			+ "intro\n"
+			+ "00:01.000 --> 00:02.000 align:start position:10%\n"
+			+ "<c.yellow>First</c>\n"
+			+ "\n"
+			+ "00:00:02.500 --> 00:00:04.000\n"
+			+ "{\\an8}Second\n"
+			+ "\n"
+			+ "00:05.000 --> 00:06.000\n"
+			+ "\n"
+			+ "not --> a timing\n"
+			+ "\n"
+			+ "00:07.000 --> 00:08.000\n"
+			+ "Last";
+
+	@Test
+	public void srtCuesAreIndexedWithTheirText() throws IOException {
+		byte[] file = SRT.getBytes(UTF_8);
+		CueIndex index = parseAll(file);
+		assertEquals(3, index.size());
+		assertCue(index, file, 1000000, 3500000, "Hello <i>world</i>");
+		assertCue(index, file, 4250000, 6000000, "Two lines\r\nof text &amp; more");
+		assertCue(index, file, 3723004000L, 3725000000L, "Late");
+	}
+
+	@Test
+	public void webVttHeaderNotesAndSettingsAreSkipped() throws IOException {
+		byte[] file = VTT.getBytes(UTF_8);
+		CueIndex index = parseAll(file);
+		// the cue without text is left out
+		assertEquals(3, index.size());
+		assertCue(index, file, 1000000, 2000000, "<c.yellow>First</c>");
+		assertCue(index, file, 2500000, 4000000, "{\\an8}Second");
+		assertCue(index, file, 7000000, 8000000, "Last");
+	}
+
+	@Test
+	public void byteOrderMarkIsSkipped() throws IOException {
+		byte[] srt = SRT.getBytes(UTF_8);
+		byte[] file = new byte[srt.length + 3];
+		file[0] = (byte) 0xef;
+		file[1] = (byte) 0xbb;
+		file[2] = (byte) 0xbf;
+		System.arraycopy(srt, 0, file, 3, srt.length);
+		CueIndex index = parseAll(file);
+		assertEquals(3, index.size());
+		assertCue(index, file, 1000000, 3500000, "Hello <i>world</i>");
+
+		// a file that starts with its first timing line
+		byte[] vtt = "00:01.000 --> 00:02.000\nText\n".getBytes(UTF_8);
+		file = new byte[vtt.length + 3];
+		System.arraycopy(new byte[] {(byte) 0xef, (byte) 0xbb, (byte) 0xbf}, 0, file, 0, 3);
+		System.arraycopy(vtt, 0, file, 3, vtt.length);
+		index = parseAll(file);
+		assertCue(index, file, 1000000, 2000000, "Text");
+	}
+
+	@Test
+	public void badTimingsAreSkipped() throws IOException {
+		byte[] file = ("1\n00:00:01,000 --> soon\nNo end\n\n"
+				+ "2\n1 --> 2\nToo short\n\n"
+				+ "3\n00:00:03,000 --> 00:00:02,000\nBackwards\n\n"
+				+ "4\n00:00:05,000-->00:00:06,5\nTight\n").getBytes(UTF_8);
+		CueIndex index = parseAll(file);
+		assertEquals(2, index.size());
+		// an end before the start is an empty cue, never showing
+		long[] keys = new long[1];
+		assertEquals(0, index.getActiveCues(3000000, keys));
+		assertEquals(3000000, index.getNextChangeUs(2999999));
+		assertCue(index, file, 5000000, 6500000, "Tight");
+	}
+
+	@Test
+	public void cuesArriveABatchAtATime() throws IOException {
+		byte[] file = createSrt(25).getBytes(UTF_8);
+		CueIndex index = new CueIndex();
+		SubtitleParser parser = new SubtitleParser(new ByteArrayInputStream(file), index);
+		assertTrue(parser.parse(10));
+		assertEquals(10, index.size());
+		assertTrue(!index.isComplete());
+		assertTrue(index.isIndexedTo(9 * 2000000 - 1));
+		assertTrue(!index.isIndexedTo(9 * 2000000));
+		assertTrue(parser.parse(10));
+		assertEquals(20, index.size());
+		assertTrue(!parser.parse(10));
+		assertEquals(25, index.size());
+		assertTrue(index.isComplete());
+	}
+
+	@Test
+	public void largeFileReadInSmallPiecesMatchesTheWholeFile() throws IOException {
+		byte[] file = createSrt(20000).getBytes(UTF_8);
+		CueIndex whole = parseAll(file);
+		CueIndex trickled = new CueIndex();
+		SubtitleParser parser = new SubtitleParser(new TrickleInputStream(file, 7), trickled);
+		while (parser.parse(1000)) {
+			// more to come
+		}
+		assertEquals(20000, whole.size());
+		assertEquals(20000, trickled.size());
+		long[] wholeKeys = new long[2];
+		long[] trickledKeys = new long[2];
+		for (long positionUs = 0; positionUs < 20000 * 2000000L; positionUs += 999999) {
+			int count = whole.getActiveCues(positionUs, wholeKeys);
+			assertEquals(count, trickled.getActiveCues(positionUs, trickledKeys));
+			for (int i = 0; i < count; i++) {
+				assertEquals(wholeKeys[i], trickledKeys[i]);
+			}
+		}
+		assertCue(whole, file, 19999 * 2000000L, 19999 * 2000000L + 1500000, "Cue 19999\nsecond line 19999");
+	}
+
+	@Test
+	public void displayTextHasNoMarkup() {
+		assertEquals("Hello world", SubtitleParser.toDisplayText("Hello <i>world</i>"));
+		assertEquals("Top", SubtitleParser.toDisplayText("{\\an8}Top"));
+		assertEquals("a & b < c > d e", SubtitleParser.toDisplayText("a &amp; b &lt; c &gt; d&nbsp;e"));
+		assertEquals("Two\nlines", SubtitleParser.toDisplayText("<c.yellow>Two</c>\r\nlines\r\n"));
+		assertEquals("1 < 2", SubtitleParser.toDisplayText("1 < 2"));
+		assertEquals("{not markup}", SubtitleParser.toDisplayText("{not markup}"));
+	}
+
+	private static CueIndex parseAll(byte[] file) throws IOException {
+		CueIndex index = new CueIndex();
+		SubtitleParser parser = new SubtitleParser(new ByteArrayInputStream(file), index);
+		while (parser.parse(Integer.MAX_VALUE)) {
+			// more to come
+		}
+		assertTrue(index.isComplete());
+		return index;
+	}
+
+	/** checks there is a cue showing from startUs until endUs with the given text in the file */
+	private static void assertCue(CueIndex index, byte[] file, long startUs, long endUs, String text) {
+		long[] keys = new long[4];
+		long key = findKey(index, startUs);
+		assertEquals(text, new String(file, (int) SubtitleParser.getTextOffset(key),
+				SubtitleParser.getTextLength(key), UTF_8));
+		int count = index.getActiveCues(endUs - 1, keys);
+		assertEquals(key, keys[count - 1]);
+		count = index.getActiveCues(endUs, keys);
+		assertTrue(count == 0 || keys[count - 1] != key);
+	}
+
+	/** the key of the latest cue starting at startUs */
+	private static long findKey(CueIndex index, long startUs) {
+		long[] keys = new long[4];
+		int count = index.getActiveCues(startUs, keys);
+		assertTrue(count > 0);
+		return keys[count - 1];
+	}
+
+	private static String createSrt(int cueCount) {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < cueCount; i++) {
+			long startMs = i * 2000L;
+			builder.append(i + 1).append('\n')
+					.append(formatTime(startMs)).append(" --> ").append(formatTime(startMs + 1500)).append('\n')
+					.append("Cue ").append(i).append("\nsecond line ").append(i).append("\n\n");
+		}
+		return builder.toString();
+	}
+
+	private static String formatTime(long timeMs) {
+		return String.format(Locale.US, "%02d:%02d:%02d,%03d", timeMs / 3600000, timeMs / 60000 % 60,
+				timeMs / 1000 % 60, timeMs % 1000);
+	}
+
+	/** hands out at most readSize bytes a read */
+	private static final class TrickleInputStream extends InputStream {
+
+		private final byte[] mData;
+		private final int mReadSize;
+		private int mPosition;
+
+		TrickleInputStream(byte[] data, int readSize) {
+			mData = data;
+			mReadSize = readSize;
+		}
+
+		@Override
+		public int read() {
+			return mPosition < mData.length ? mData[mPosition++] & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) {
+			if (mPosition == mData.length) {
+				return -1;
+			}
+			int read = Math.min(Math.min(length, mReadSize), mData.length - mPosition);
+			System.arraycopy(mData, mPosition, buffer, offset, read);
+			mPosition += read;
+			return read;
+		}
+	}
+
+}
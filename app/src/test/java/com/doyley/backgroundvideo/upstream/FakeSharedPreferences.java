@@ -0,0 +1,152 @@
+package com.doyley.backgroundvideo.upstream;
+
+import android.content.SharedPreferences;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/** preferences held in a map - edits are applied as they are committed, and counted */
+public class FakeSharedPreferences implements SharedPreferences {
+
+	private final Map<String, Object> mValues = new HashMap<>();
+	private int mCommitCount;
+
+	public int getCommitCount() {
+		return mCommitCount;
+	}
+
+	@Override
+	public Map<String, ?> getAll() {
+		return new HashMap<>(mValues);
+	}
+
+	@Override
+	public String getString(String key, String defValue) {
+		return get(key, defValue);
+	}
+
+	@Override
+	public Set<String> getStringSet(String key, Set<String> defValues) {
+		return get(key, defValues);
+	}
+
+	@Override
+	public int getInt(String key, int defValue) {
+		return get(key, defValue);
+	}
+
+	@Override
+	public long getLong(String key, long defValue) {
+		return get(key, defValue);
+	}
+
+	@Override
+	public float getFloat(String key, float defValue) {
+		return get(key, defValue);
+	}
+
+	@Override
+	public boolean getBoolean(String key, boolean defValue) {
+		return get(key, defValue);
+	}
+
+	@Override
+	public boolean contains(String key) {
+		return mValues.containsKey(key);
+	}
+
+	@Override
+	public Editor edit() {
+		return new FakeEditor();
+	}
+
+	@Override
+	public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+		throw new UnsupportedOperationException();
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T> T get(String key, T defValue) {
+		return mValues.containsKey(key) ? (T) mValues.get(key) : defValue;
+	}
+
+	private final class FakeEditor implements Editor {
+
+		private final Map<String, Object> mChanges = new HashMap<>();
+		private final Set<String> mRemovals = new HashSet<>();
+		private boolean mClear;
+
+		@Override
+		public Editor putString(String key, String value) {
+			return put(key, value);
+		}
+
+		@Override
+		public Editor putStringSet(String key, Set<String> values) {
+			return put(key, values == null ? null : new HashSet<>(values));
+		}
+
+		@Override
+		public Editor putInt(String key, int value) {
+			return put(key, value);
+		}
+
+		@Override
+		public Editor putLong(String key, long value) {
+			return put(key, value);
+		}
+
+		@Override
+		public Editor putFloat(String key, float value) {
+			return put(key, value);
+		}
+
+		@Override
+		public Editor putBoolean(String key, boolean value) {
+			return put(key, value);
+		}
+
+		@Override
+		public Editor remove(String key) {
+			mRemovals.add(key);
+			return this;
+		}
+
+		@Override
+		public Editor clear() {
+			mClear = true;
+			return this;
+		}
+
+		@Override
+		public boolean commit() {
+			if (mClear) {
+				mValues.clear();
+			}
+			for (String key : mRemovals) {
+				mValues.remove(key);
+			}
+			mValues.putAll(mChanges);
+			mCommitCount++;
+			return true;
+		}
+
+		@Override
+		public void apply() {
+			commit();
+		}
+
+		private Editor put(String key, Object value) {
+			mChanges.put(key, value);
+			return this;
+		}
+	}
+
+}
@@ -0,0 +1,287 @@
+package com.doyley.backgroundvideo.upstream;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class IoSchedulerTest {
+
+	private static final int[] MAX_CONCURRENCY = {4, 2, 2};
+
+	@Test
+	public void otherClassesLeavePlaybackAWorker() throws InterruptedException {
+		IoScheduler scheduler = new IoScheduler(2, MAX_CONCURRENCY);
+		GateTask first = new GateTask(false);
+		GateTask second = new GateTask(false);
+		scheduler.submit(IoScheduler.PRIORITY_DOWNLOAD, first);
+		first.awaitStart();
+		scheduler.submit(IoScheduler.PRIORITY_DOWNLOAD, second);
+		assertEquals(1, scheduler.getQueuedCount(IoScheduler.PRIORITY_DOWNLOAD));
+
+		GateTask playback = new GateTask(false);
+		scheduler.submit(IoScheduler.PRIORITY_PLAYBACK, playback);
+		playback.awaitStart();
+		assertEquals(0, scheduler.getPreemptionCount(IoScheduler.PRIORITY_DOWNLOAD));
+		playback.release();
+		first.release();
+		second.awaitStart();
+		second.release();
+	}
+
+	@Test
+	public void preemptedTaskYieldsAndIsRunAgain() throws InterruptedException {
+		IoScheduler scheduler = new IoScheduler(2, MAX_CONCURRENCY);
+		GateTask download = new GateTask(true);
+		GateTask playback = new GateTask(false);
+		scheduler.submit(IoScheduler.PRIORITY_DOWNLOAD, download);
+		download.awaitStart();
+		scheduler.submit(IoScheduler.PRIORITY_PLAYBACK, playback);
+		playback.awaitStart();
+
+		// both workers are busy, so the next playback task takes the download's
+		GateTask waiting = new GateTask(false);
+		scheduler.submit(IoScheduler.PRIORITY_PLAYBACK, waiting);
+		waiting.awaitStart();
+		assertEquals(1, scheduler.getPreemptionCount(IoScheduler.PRIORITY_DOWNLOAD));
+		assertEquals(1, scheduler.getQueuedCount(IoScheduler.PRIORITY_DOWNLOAD));
+
+		waiting.release();
+		download.awaitStart();
+		assertEquals(2, download.getRunCount());
+		assertTrue(!download.isPreempted());
+		download.release();
+		playback.release();
+		awaitIdle(scheduler, IoScheduler.PRIORITY_DOWNLOAD);
+		assertEquals(2, download.getRunCount());
+	}
+
+	@Test
+	public void taskThatFinishedIsNotRunAgainWhenAskedToYieldLate() throws InterruptedException {
+		IoScheduler scheduler = new IoScheduler(2, MAX_CONCURRENCY);
+		// does not listen for the request to yield, and finishes its work anyway
+		GateTask download = new GateTask(false);
+		GateTask playback = new GateTask(false);
+		scheduler.submit(IoScheduler.PRIORITY_DOWNLOAD, download);
+		download.awaitStart();
+		scheduler.submit(IoScheduler.PRIORITY_PLAYBACK, playback);
+		playback.awaitStart();
+		GateTask waiting = new GateTask(false);
+		scheduler.submit(IoScheduler.PRIORITY_PLAYBACK, waiting);
+		assertTrue(download.isPreempted());
+
+		download.release();
+		waiting.awaitStart();
+		waiting.release();
+		playback.release();
+		awaitIdle(scheduler, IoScheduler.PRIORITY_DOWNLOAD);
+		assertEquals(1, download.getRunCount());
+	}
+
+	@Test
+	public void playbackStartingLimitsTheOtherClasses() throws InterruptedException {
+		IoScheduler scheduler = new IoScheduler(4, MAX_CONCURRENCY);
+		GateTask first = new GateTask(true);
+		GateTask second = new GateTask(true);
+		scheduler.submit(IoScheduler.PRIORITY_PREFETCH, first);
+		scheduler.submit(IoScheduler.PRIORITY_PREFETCH, second);
+		first.awaitStart();
+		second.awaitStart();
+
+		scheduler.setPlaybackActive(true);
+		assertEquals(1, scheduler.getPreemptionCount(IoScheduler.PRIORITY_PREFETCH));
+		GateTask preempted = first.isPreempted() ? first : second;
+		GateTask running = preempted == first ? second : first;
+		// it stays queued while the other one runs
+		while (scheduler.getQueuedCount(IoScheduler.PRIORITY_PREFETCH) == 0) {
+			Thread.sleep(1);
+		}
+		assertEquals(1, preempted.getRunCount());
+
+		scheduler.setPlaybackActive(false);
+		preempted.awaitStart();
+		assertEquals(2, preempted.getRunCount());
+		preempted.release();
+		running.release();
+	}
+
+	@Test
+	public void cancelledQueuedTaskNeverRuns() throws InterruptedException {
+		IoScheduler scheduler = new IoScheduler(2, MAX_CONCURRENCY);
+		GateTask first = new GateTask(false);
+		GateTask second = new GateTask(false);
+		scheduler.submit(IoScheduler.PRIORITY_DOWNLOAD, first);
+		first.awaitStart();
+		scheduler.submit(IoScheduler.PRIORITY_DOWNLOAD, second);
+		assertTrue(second.cancel());
+		assertEquals(0, scheduler.getQueuedCount(IoScheduler.PRIORITY_DOWNLOAD));
+
+		first.release();
+		awaitIdle(scheduler, IoScheduler.PRIORITY_DOWNLOAD);
+		assertEquals(0, second.getRunCount());
+	}
+
+	@Test
+	public void cancelledRunningTaskYieldsAndIsNotRunAgain() throws InterruptedException {
+		IoScheduler scheduler = new IoScheduler(2, MAX_CONCURRENCY);
+		GateTask task = new GateTask(true);
+		scheduler.submit(IoScheduler.PRIORITY_DOWNLOAD, task);
+		task.awaitStart();
+		assertTrue(!task.cancel());
+		assertTrue(task.shouldYield());
+		awaitIdle(scheduler, IoScheduler.PRIORITY_DOWNLOAD);
+		assertEquals(1, task.getRunCount());
+	}
+
+	@Test
+	public void delayedTaskCanBeCancelledBeforeItIsQueued() throws InterruptedException {
+		IoScheduler scheduler = new IoScheduler(2, MAX_CONCURRENCY);
+		GateTask cancelled = new GateTask(false);
+		scheduler.submitDelayed(IoScheduler.PRIORITY_DOWNLOAD, cancelled, 50);
+		assertEquals(0, scheduler.getQueuedCount(IoScheduler.PRIORITY_DOWNLOAD));
+		assertTrue(cancelled.cancel());
+
+		GateTask delayed = new GateTask(false);
+		delayed.release();
+		long startNs = System.nanoTime();
+		scheduler.submitDelayed(IoScheduler.PRIORITY_DOWNLOAD, delayed, 50);
+		delayed.awaitStart();
+		assertTrue(System.nanoTime() - startNs >= TimeUnit.MILLISECONDS.toNanos(50));
+		awaitIdle(scheduler, IoScheduler.PRIORITY_DOWNLOAD);
+		assertEquals(0, cancelled.getRunCount());
+	}
+
+	@Test
+	public void promotedQueuedTaskRunsAhead() throws InterruptedException {
+		IoScheduler scheduler = new IoScheduler(2, MAX_CONCURRENCY);
+		GateTask first = new GateTask(false);
+		GateTask second = new GateTask(false);
+		GateTask promoted = new GateTask(false);
+		scheduler.submit(IoScheduler.PRIORITY_DOWNLOAD, first);
+		first.awaitStart();
+		scheduler.submit(IoScheduler.PRIORITY_DOWNLOAD, second);
+		scheduler.submit(IoScheduler.PRIORITY_DOWNLOAD, promoted);
+
+		scheduler.promote(promoted, IoScheduler.PRIORITY_PLAYBACK);
+		promoted.awaitStart();
+		assertEquals(1, scheduler.getQueuedCount(IoScheduler.PRIORITY_DOWNLOAD));
+		assertEquals(0, second.getRunCount());
+		promoted.release();
+		first.release();
+		second.awaitStart();
+		second.release();
+	}
+
+	@Test
+	public void promotedRunningTaskIsNoLongerAskedToYield() throws InterruptedException {
+		IoScheduler scheduler = new IoScheduler(4, new int[] {4, 3, 3});
+		GateTask first = new GateTask(true);
+		GateTask second = new GateTask(true);
+		GateTask third = new GateTask(true);
+		scheduler.submit(IoScheduler.PRIORITY_DOWNLOAD, first);
+		scheduler.submit(IoScheduler.PRIORITY_DOWNLOAD, second);
+		scheduler.submit(IoScheduler.PRIORITY_DOWNLOAD, third);
+		first.awaitStart();
+		second.awaitStart();
+		third.awaitStart();
+		scheduler.promote(first, IoScheduler.PRIORITY_PLAYBACK);
+
+		// the two still counted as downloads are one over the limit, the promoted one is not counted
+		scheduler.setPlaybackActive(true);
+		assertTrue(!first.isPreempted());
+		assertEquals(1, scheduler.getPreemptionCount(IoScheduler.PRIORITY_DOWNLOAD));
+		first.release();
+		second.release();
+		third.release();
+		awaitIdle(scheduler, IoScheduler.PRIORITY_DOWNLOAD);
+		assertEquals(1, first.getRunCount());
+	}
+
+	@Test
+	public void promotionDuringTheDelayHoldsWhenTheTaskIsQueued() throws InterruptedException {
+		IoScheduler scheduler = new IoScheduler(2, MAX_CONCURRENCY);
+		GateTask blocking = new GateTask(false);
+		scheduler.submit(IoScheduler.PRIORITY_DOWNLOAD, blocking);
+		blocking.awaitStart();
+
+		// a download could not run next to the blocking one, so running shows it was promoted
+		GateTask delayed = new GateTask(false);
+		delayed.release();
+		scheduler.submitDelayed(IoScheduler.PRIORITY_DOWNLOAD, delayed, 50);
+		scheduler.promote(delayed, IoScheduler.PRIORITY_PLAYBACK);
+		delayed.awaitStart();
+		blocking.release();
+	}
+
+	@Test
+	public void taskIsNeverMovedDown() throws InterruptedException {
+		IoScheduler scheduler = new IoScheduler(2, MAX_CONCURRENCY);
+		GateTask blocking = new GateTask(false);
+		scheduler.submit(IoScheduler.PRIORITY_DOWNLOAD, blocking);
+		blocking.awaitStart();
+		GateTask prefetch = new GateTask(false);
+		scheduler.submit(IoScheduler.PRIORITY_PREFETCH, prefetch);
+		scheduler.promote(prefetch, IoScheduler.PRIORITY_DOWNLOAD);
+		assertEquals(1, scheduler.getQueuedCount(IoScheduler.PRIORITY_PREFETCH));
+		assertEquals(0, scheduler.getQueuedCount(IoScheduler.PRIORITY_DOWNLOAD));
+		blocking.release();
+		prefetch.awaitStart();
+		prefetch.release();
+	}
+
+	/** waits until a task submitted now has run - anything requeued ahead of it has run by then too */
+	static void awaitIdle(IoScheduler scheduler, int priority) throws InterruptedException {
+		GateTask last = new GateTask(false);
+		last.release();
+		scheduler.submit(priority, last);
+		last.awaitStart();
+	}
+
+	/** runs until it is released, or until it is asked to yield if it listens for that */
+	static final class GateTask extends IoScheduler.Task {
+
+		private final boolean mYields;
+		private final CountDownLatch mRelease = new CountDownLatch(1);
+		private final Semaphore mStarted = new Semaphore(0);
+		private final AtomicInteger mRunCount = new AtomicInteger();
+
+		GateTask(boolean yields) {
+			mYields = yields;
+		}
+
+		@Override
+		public boolean run() {
+			mRunCount.incrementAndGet();
+			mStarted.release();
+			try {
+				while (!mRelease.await(1, TimeUnit.MILLISECONDS)) {
+					if (mYields && shouldYield()) {
+						return true;
+					}
+				}
+			} catch (InterruptedException e) {
+				// done
+			}
+			return false;
+		}
+
+		/** waits for the next run to start */
+		void awaitStart() throws InterruptedException {
+			assertTrue(mStarted.tryAcquire(5, TimeUnit.SECONDS));
+		}
+
+		void release() {
+			mRelease.countDown();
+		}
+
+		int getRunCount() {
+			return mRunCount.get();
+		}
+	}
+
+}
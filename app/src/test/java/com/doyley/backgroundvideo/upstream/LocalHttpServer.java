@@ -0,0 +1,143 @@
+package com.doyley.backgroundvideo.upstream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Serves the files of a directory over http on the loopback interface, in small writes so a client sees the
+ * body arrive in pieces the way it does from a real server. Byte ranges are honoured, and the server can be
+ * told to drop connections part way through a body, or to write slowly enough that requests overlap.
+ */
+public class LocalHttpServer {
+
+	private static final int WRITE_SIZE = 1024;
+	private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d*)");
+
+	private final File mRoot;
+	private final HttpServer mServer;
+	private final List<Long> mRangeStarts = new ArrayList<>();
+	private int mRequestCount;
+	private int mDropCount;
+	private long mDropAfterBytes;
+	private long mWriteDelayMs;
+
+	public LocalHttpServer(File root) throws IOException {
+		mRoot = root;
+		mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		mServer.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				serve(exchange);
+			}
+		});
+		// requests are served in parallel, like a real server does
+		mServer.setExecutor(Executors.newCachedThreadPool());
+		mServer.start();
+	}
+
+	/** the url the file of the given name is served at */
+	public String getUrl(String name) {
+		return "http://" + mServer.getAddress().getHostString() + ":" + mServer.getAddress().getPort() + "/" + name;
+	}
+
+	public synchronized int getRequestCount() {
+		return mRequestCount;
+	}
+
+	/** the first byte asked for by every request so far, in the order they came in */
+	public synchronized List<Long> getRangeStarts() {
+		return new ArrayList<>(mRangeStarts);
+	}
+
+	/** the next count responses close the connection once afterBytes of their body have been written */
+	public synchronized void dropConnections(int count, long afterBytes) {
+		mDropCount = count;
+		mDropAfterBytes = afterBytes;
+	}
+
+	/** waits that long after every write of the body */
+	public synchronized void setWriteDelayMs(long writeDelayMs) {
+		mWriteDelayMs = writeDelayMs;
+	}
+
+	public void stop() {
+		mServer.stop(0);
+	}
+
+	private void serve(HttpExchange exchange) throws IOException {
+		File file = new File(mRoot, exchange.getRequestURI().getPath().substring(1));
+		if (!file.isFile()) {
+			exchange.sendResponseHeaders(404, -1);
+			exchange.close();
+			return;
+		}
+		long start = 0;
+		long end = file.length() - 1;
+		String range = exchange.getRequestHeaders().getFirst("Range");
+		Matcher matcher = range == null ? null : RANGE.matcher(range);
+		if (matcher != null && matcher.matches()) {
+			start = Long.parseLong(matcher.group(1));
+			if (!matcher.group(2).isEmpty()) {
+				end = Math.min(end, Long.parseLong(matcher.group(2)));
+			}
+		}
+		long dropAfterBytes = Long.MAX_VALUE;
+		long writeDelayMs;
+		synchronized (this) {
+			mRequestCount++;
+			mRangeStarts.add(start);
+			if (mDropCount > 0) {
+				mDropCount--;
+				dropAfterBytes = mDropAfterBytes;
+			}
+			writeDelayMs = mWriteDelayMs;
+		}
+
+		RandomAccessFile input = new RandomAccessFile(file, "r");
+		OutputStream output = exchange.getResponseBody();
+		try {
+			exchange.getResponseHeaders().set("ETag", "\"" + file.length() + "-" + file.lastModified() + "\"");
+			if (matcher != null && matcher.matches()) {
+				exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + file.length());
+				exchange.sendResponseHeaders(206, end - start + 1);
+			} else {
+				exchange.sendResponseHeaders(200, file.length());
+			}
+			input.seek(start);
+			byte[] buffer = new byte[WRITE_SIZE];
+			long written = 0;
+			while (written <= end - start && written < dropAfterBytes) {
+				int read = input.read(buffer, 0, (int) Math.min(WRITE_SIZE, Math.min(end - start + 1 - written,
+						dropAfterBytes - written)));
+				if (read <= 0) {
+					break;
+				}
+				output.write(buffer, 0, read);
+				output.flush();
+				written += read;
+				if (writeDelayMs > 0) {
+					Thread.sleep(writeDelayMs);
+				}
+			}
+		} catch (InterruptedException e) {
+			// stopped
+		} finally {
+			input.close();
+			exchange.close();
+		}
+	}
+
+}
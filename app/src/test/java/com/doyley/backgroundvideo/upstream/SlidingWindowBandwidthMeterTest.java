@@ -0,0 +1,123 @@
+package com.doyley.backgroundvideo.upstream;
+
+import com.google.android.exoplayer.upstream.BandwidthMeter;
+import com.google.android.exoplayer.util.Clock;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class SlidingWindowBandwidthMeterTest {
+
+	private static final class FakeClock implements Clock {
+		long nowMs;
+
+		@Override
+		public long elapsedRealtime() {
+			return nowMs;
+		}
+	}
+
+	private FakeClock mClock;
+	private FakeSharedPreferences mPreferences;
+	private SlidingWindowBandwidthMeter mMeter;
+
+	@Before
+	public void setUp() {
+		mClock = new FakeClock();
+		mPreferences = new FakeSharedPreferences();
+		mMeter = new SlidingWindowBandwidthMeter(mPreferences, mClock);
+	}
+
+	@Test
+	public void transferIsMeasured() {
+		assertEquals(BandwidthMeter.NO_ESTIMATE, mMeter.getBitrateEstimate());
+		assertEquals(BandwidthMeter.NO_ESTIMATE, mMeter.getTimeToFirstByteEstimateMs());
+		mMeter.onTransferStart();
+		mClock.nowMs = 100;
+		mMeter.onBytesTransferred(400000);
+		mClock.nowMs = 1000;
+		mMeter.onBytesTransferred(600000);
+		mMeter.onTransferEnd();
+		assertEquals(8000000, mMeter.getBitrateEstimate());
+		assertEquals(100, mMeter.getTimeToFirstByteEstimateMs());
+	}
+
+	@Test
+	public void shortTransfersCountForLess() {
+		// weighs 1000
+		transfer(1000000, 1000);
+		// each weighs 100, and is ten times as fast
+		transfer(10000, 1);
+		transfer(10000, 1);
+		assertEquals(8000000, mMeter.getBitrateEstimate());
+		// the big one is trimmed once the window is full, and the fast ones outweigh it
+		for (int i = 0; i < 9; i++) {
+			transfer(10000, 1);
+		}
+		assertEquals(80000000, mMeter.getBitrateEstimate());
+	}
+
+	@Test
+	public void oldTransfersLeaveTheWindow() {
+		transfer(1000000, 1000);
+		transfer(1000000, 1000);
+		// the window holds two transfers this size, the median is the lower of them
+		transfer(1000000, 4000);
+		assertEquals(2000000, mMeter.getBitrateEstimate());
+		transfer(1000000, 250);
+		assertEquals(2000000, mMeter.getBitrateEstimate());
+		transfer(1000000, 250);
+		assertEquals(32000000, mMeter.getBitrateEstimate());
+	}
+
+	@Test
+	public void overlappingTransfersAreMeasuredTogether() {
+		mMeter.onTransferStart();
+		mMeter.onTransferStart();
+		mClock.nowMs = 50;
+		mMeter.onBytesTransferred(500000);
+		mMeter.onBytesTransferred(500000);
+		mClock.nowMs = 500;
+		mMeter.onTransferEnd();
+		assertEquals(16000000, mMeter.getBitrateEstimate());
+		// the first bytes of the first transfer only
+		assertEquals(50, mMeter.getTimeToFirstByteEstimateMs());
+
+		// the other one goes on from there
+		mMeter.onBytesTransferred(250000);
+		mClock.nowMs = 1000;
+		mMeter.onTransferEnd();
+		assertEquals(50, mMeter.getTimeToFirstByteEstimateMs());
+		// an end without a start is ignored
+		mMeter.onTransferEnd();
+		assertEquals(16000000, mMeter.getBitrateEstimate());
+	}
+
+	@Test
+	public void estimatesArePersistedNowAndThen() {
+		transfer(1000000, 1000);
+		assertEquals(0, mPreferences.getCommitCount());
+		mClock.nowMs = 10000;
+		transfer(500000, 1000);
+		assertEquals(1, mPreferences.getCommitCount());
+
+		SlidingWindowBandwidthMeter meter = new SlidingWindowBandwidthMeter(mPreferences, mClock);
+		assertEquals(8000000, meter.getBitrateEstimate());
+		assertEquals(0, meter.getTimeToFirstByteEstimateMs());
+
+		// nothing new to write
+		mMeter.persist();
+		assertEquals(1, mPreferences.getCommitCount());
+	}
+
+	/** a transfer of bytes taking durationMs, with the first of them arriving right away */
+	private void transfer(int bytes, long durationMs) {
+		mMeter.onTransferStart();
+		mMeter.onBytesTransferred(bytes);
+		mClock.nowMs += durationMs;
+		mMeter.onTransferEnd();
+	}
+
+}
@@ -0,0 +1,74 @@
+package com.doyley.backgroundvideo.upstream;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class WeightedPercentileWindowTest {
+
+	@Test
+	public void percentileIsWeighted() {
+		WeightedPercentileWindow window = new WeightedPercentileWindow(10, 100);
+		assertTrue(Float.isNaN(window.getPercentile(0.5f)));
+		window.addSample(1, 30);
+		window.addSample(6, 10);
+		window.addSample(3, 20);
+		assertEquals(10, window.getPercentile(0f), 0);
+		assertEquals(10, window.getPercentile(0.5f), 0);
+		assertEquals(10, window.getPercentile(0.6f), 0);
+		assertEquals(20, window.getPercentile(0.7f), 0);
+		assertEquals(20, window.getPercentile(0.9f), 0);
+		assertEquals(30, window.getPercentile(1f), 0);
+	}
+
+	@Test
+	public void oldestSamplesLeaveFirst() {
+		WeightedPercentileWindow window = new WeightedPercentileWindow(3, 100);
+		window.addSample(1, 40);
+		window.addSample(1, 10);
+		window.addSample(1, 30);
+		assertEquals(30, window.getPercentile(0.5f), 0);
+		window.addSample(1, 20);
+		assertEquals(3, window.getSampleCount());
+		assertEquals(20, window.getPercentile(0.5f), 0);
+		assertEquals(30, window.getPercentile(1f), 0);
+		window.addSample(1, 50);
+		window.addSample(1, 60);
+		assertEquals(20, window.getPercentile(0f), 0);
+		window.addSample(1, 70);
+		assertEquals(50, window.getPercentile(0f), 0);
+	}
+
+	@Test
+	public void oldestSampleIsTrimmedToTheMaxWeight() {
+		WeightedPercentileWindow window = new WeightedPercentileWindow(10, 10);
+		window.addSample(6, 10);
+		window.addSample(3, 20);
+		assertEquals(10, window.getPercentile(0.5f), 0);
+		// the oldest keeps a weight of 3 of its 6
+		window.addSample(4, 30);
+		assertEquals(3, window.getSampleCount());
+		assertEquals(10, window.getPercentile(0.3f), 0);
+		assertEquals(20, window.getPercentile(0.31f), 0);
+		// and is gone once it has no weight left
+		window.addSample(3, 40);
+		assertEquals(3, window.getSampleCount());
+		assertEquals(20, window.getPercentile(0f), 0);
+	}
+
+	@Test
+	public void samplesWithoutWeightAreIgnored() {
+		WeightedPercentileWindow window = new WeightedPercentileWindow(2, 10);
+		window.addSample(1, 10);
+		window.addSample(0, 20);
+		window.addSample(-1, 20);
+		assertEquals(1, window.getSampleCount());
+		window.clear();
+		assertEquals(0, window.getSampleCount());
+		assertTrue(Float.isNaN(window.getPercentile(0.5f)));
+		window.addSample(2, 5);
+		assertEquals(5, window.getPercentile(1f), 0);
+	}
+
+}